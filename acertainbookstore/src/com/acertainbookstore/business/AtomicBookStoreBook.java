@@ -0,0 +1,192 @@
+package com.acertainbookstore.business;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.acertainbookstore.utils.BookStoreUtility;
+
+/**
+ * The book used by the AtomicCertainBookStore. It has the same state as the
+ * BookStoreBook, but all the stock and rating counters are atomic variables
+ * that are updated with compare-and-set instead of under a lock.
+ *
+ * The number of copies in stock and the number of copies reserved by
+ * purchases still in flight are packed into one long, copies in the high and
+ * reserved copies in the low 32 bits, so a buyer that finds too few copies
+ * can tell in one read whether the purchases in flight could still put back
+ * enough of them.
+ */
+public class AtomicBookStoreBook extends ImmutableBook {
+	private static final long COPY = 1L << 32;
+
+	private final AtomicLong stock;
+	private final AtomicLong totalRating;
+	private final AtomicLong timesRated;
+	private final AtomicLong saleMisses;
+	private volatile boolean editorPick;
+
+	/**
+	 * Constructor to create a book store book object from a stock book object
+	 *
+	 * @param bookToCopy
+	 */
+	public AtomicBookStoreBook(StockBook bookToCopy) {
+		super(bookToCopy.getISBN(), bookToCopy.getTitle(), bookToCopy
+				.getAuthor(), bookToCopy.getPrice());
+		this.stock = new AtomicLong(bookToCopy.getNumCopies() * COPY);
+		this.totalRating = new AtomicLong(bookToCopy.getTotalRating());
+		this.timesRated = new AtomicLong(bookToCopy.getTimesRated());
+		this.saleMisses = new AtomicLong(bookToCopy.getSaleMisses());
+		this.editorPick = bookToCopy.isEditorPick();
+	}
+
+	/**
+	 * Returns the number of copies of the book, counting the copies reserved
+	 * by purchases in flight until they commit, so a read never sees a
+	 * purchase that is then rolled back.
+	 */
+	public int getNumCopies() {
+		long state = stock.get();
+		return (int) ((state >>> 32) + (state & 0xFFFFFFFFL));
+	}
+
+	public long getSaleMisses() {
+		return saleMisses.get();
+	}
+
+	public long getTotalRating() {
+		return totalRating.get();
+	}
+
+	public long getTimesRated() {
+		return timesRated.get();
+	}
+
+	public boolean isEditorPick() {
+		return editorPick;
+	}
+
+	public void setEditorPick(boolean editorPick) {
+		this.editorPick = editorPick;
+	}
+
+	/**
+	 * Reserves numCopies copies if that many copies are in stock. The check
+	 * and the decrement are one atomic step, so two buyers can never both get
+	 * the last copy. Every reservation must end with either commitCopies or
+	 * returnCopies.
+	 *
+	 * @param numCopies
+	 * @return True if the copies were reserved, false if not enough copies
+	 *         were in stock
+	 */
+	public boolean tryBuyCopies(int numCopies) {
+		if (BookStoreUtility.isInvalidNoCopies(numCopies))
+			return true;
+		while (true) {
+			long state = stock.get();
+			if ((state >>> 32) < numCopies)
+				return false;
+			if (stock.compareAndSet(state, state - numCopies * COPY
+					+ numCopies))
+				return true;
+		}
+	}
+
+	/**
+	 * Returns true if fewer than numCopies copies would be in stock even if
+	 * every purchase in flight put its reserved copies back, i.e. if a
+	 * failed tryBuyCopies is a real shortage.
+	 *
+	 * @param numCopies
+	 * @return
+	 */
+	public boolean isShortOf(int numCopies) {
+		long state = stock.get();
+		return (state >>> 32) + (state & 0xFFFFFFFFL) < numCopies;
+	}
+
+	/**
+	 * Sells copies reserved by tryBuyCopies, once the whole purchase
+	 * succeeded.
+	 *
+	 * @param numCopies
+	 */
+	public void commitCopies(int numCopies) {
+		if (!BookStoreUtility.isInvalidNoCopies(numCopies))
+			stock.addAndGet(-numCopies);
+	}
+
+	/**
+	 * Puts back copies reserved by tryBuyCopies, used when a purchase of
+	 * several books has to be rolled back.
+	 *
+	 * @param numCopies
+	 */
+	public void returnCopies(int numCopies) {
+		if (!BookStoreUtility.isInvalidNoCopies(numCopies))
+			stock.addAndGet(numCopies * COPY - numCopies);
+	}
+
+	/**
+	 * Adds newCopies to the total number of copies of the book.
+	 */
+	public void addCopies(int newCopies) {
+		if (!BookStoreUtility.isInvalidNoCopies(newCopies)) {
+			stock.addAndGet(newCopies * COPY);
+			this.saleMisses.set(0);
+		}
+	}
+
+	/**
+	 * Increases the amount of missed sales of the book.
+	 */
+	public void addSaleMiss() {
+		this.saleMisses.incrementAndGet();
+	}
+
+	/**
+	 * Adds the rating to the total rating of the book.
+	 *
+	 * @param rating
+	 */
+	public void addRating(int rating) {
+		if (!BookStoreUtility.isInvalidRating(rating)) {
+			this.totalRating.addAndGet(rating);
+			this.timesRated.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Returns True if someone tried to buy the book, while the book was not in
+	 * stock.
+	 *
+	 * @return
+	 */
+	public boolean hadSaleMiss() {
+		return this.saleMisses.get() > 0;
+	}
+
+	/**
+	 * Returns a ImmutableBook copy of the book.
+	 *
+	 * @return
+	 */
+	public ImmutableBook immutableBook() {
+		return new ImmutableBook(this.getISBN(), this.getTitle(),
+				this.getAuthor(), this.getPrice());
+	}
+
+	/**
+	 * Returns a ImmutableStockBook copy of the book. The counters are read one
+	 * at a time, so the copy is not a consistent snapshot when the book is
+	 * updated concurrently.
+	 *
+	 * @return
+	 */
+	public StockBook immutableStockBook() {
+		return new ImmutableStockBook(this.getISBN(), this.getTitle(),
+				this.getAuthor(), this.getPrice(), this.getNumCopies(),
+				this.saleMisses.get(), this.timesRated.get(),
+				this.totalRating.get(), this.editorPick);
+	}
+}
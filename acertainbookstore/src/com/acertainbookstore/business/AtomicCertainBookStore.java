@@ -0,0 +1,416 @@
+/**
+ *
+ */
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreUtility;
+
+/**
+ * AtomicCertainBookStore implements the bookstore without locks on the
+ * customer path. The stock of every book is kept in atomic counters (cf.
+ * AtomicBookStoreBook) and buyBooks takes copies out of the stock with
+ * compare-and-set, so buyers of the same book never hand a lock to each other.
+ *
+ * A purchase of several books reserves the copies of each book in ascending
+ * ISBN order. If one of the books does not have enough copies, the
+ * reservations already made are put back and the purchase fails as a whole,
+ * so buyBooks stays all-or-nothing. A buyer that finds too few copies while
+ * other purchases still hold reservations of the book waits for them to
+ * finish, so it never fails, or records a sale miss, because of copies that
+ * are then put back. Purchases only wait for books with a higher ISBN than
+ * the ones they hold, so they can not wait for each other in a cycle.
+ *
+ * Changes to the catalog itself (addBooks, removeBooks, removeAllBooks) are
+ * rare and are serialized among themselves, but they do not block buyers.
+ * Every removal bumps a generation counter, and a purchase that sees it
+ * change checks that its books are still in the catalog before it sells
+ * them, so no copies are sold of a book that was removed meanwhile.
+ *
+ * Reads take no locks either. The copies reserved by a purchase are still
+ * counted until it commits, so reads never see a purchase that is rolled
+ * back. A purchase commits its books one after the other though, so a read
+ * of several books that runs while it commits may see it on some of the
+ * books only: reads see committed copies per book, not a snapshot of the
+ * whole store.
+ */
+public class AtomicCertainBookStore implements BookStore, StockManager {
+	private final ConcurrentIntHashMap<AtomicBookStoreBook> bookMap;
+	private final Object catalogLock = new Object();
+	// Bumped after every removal of books, cf. buyBooks
+	private volatile long catalogGeneration = 0;
+	private final EditorPickIndex<AtomicBookStoreBook> editorPickIndex = new EditorPickIndex<AtomicBookStoreBook>();
+	private final TopRatedIndex<AtomicBookStoreBook> topRatedIndex = new TopRatedIndex<AtomicBookStoreBook>();
+	private final InDemandIndex<AtomicBookStoreBook> inDemandIndex = new InDemandIndex<AtomicBookStoreBook>();
+
+	public AtomicCertainBookStore() {
+		bookMap = new ConcurrentIntHashMap<AtomicBookStoreBook>();
+	}
+
+	public void addBooks(Set<StockBook> bookSet) throws BookStoreException {
+
+		if (bookSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		synchronized (catalogLock) {
+			// Check if all are there
+			for (StockBook book : bookSet) {
+				int ISBN = book.getISBN();
+				String bookTitle = book.getTitle();
+				String bookAuthor = book.getAuthor();
+				int noCopies = book.getNumCopies();
+				float bookPrice = book.getPrice();
+				if (BookStoreUtility.isInvalidISBN(ISBN)
+						|| BookStoreUtility.isEmpty(bookTitle)
+						|| BookStoreUtility.isEmpty(bookAuthor)
+						|| BookStoreUtility.isInvalidNoCopies(noCopies)
+						|| bookPrice < 0.0) {
+					throw new BookStoreException(BookStoreConstants.BOOK
+							+ book.toString() + BookStoreConstants.INVALID);
+				} else if (bookMap.containsKey(ISBN)) {
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.DUPLICATED);
+				}
+			}
+
+			for (StockBook book : bookSet) {
+				AtomicBookStoreBook addedBook = new AtomicBookStoreBook(book);
+				bookMap.put(book.getISBN(), addedBook);
+				if (addedBook.isEditorPick()) {
+					editorPickIndex.add(addedBook);
+				}
+				topRatedIndex.update(addedBook, addedBook.getTotalRating(),
+						addedBook.getTimesRated());
+				if (addedBook.hadSaleMiss()) {
+					inDemandIndex.add(addedBook);
+				}
+			}
+		}
+	}
+
+	public void addCopies(Set<BookCopy> bookCopiesSet)
+			throws BookStoreException {
+		int ISBN, numCopies;
+
+		if (bookCopiesSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		for (BookCopy bookCopy : bookCopiesSet) {
+			ISBN = bookCopy.getISBN();
+			numCopies = bookCopy.getNumCopies();
+			if (BookStoreUtility.isInvalidISBN(ISBN))
+				throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+						+ BookStoreConstants.INVALID);
+			if (!bookMap.containsKey(ISBN))
+				throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+						+ BookStoreConstants.NOT_AVAILABLE);
+			if (BookStoreUtility.isInvalidNoCopies(numCopies))
+				throw new BookStoreException(BookStoreConstants.NUM_COPIES
+						+ numCopies + BookStoreConstants.INVALID);
+		}
+
+		// Update the number of copies
+		for (BookCopy bookCopy : bookCopiesSet) {
+			AtomicBookStoreBook book = bookMap.get(bookCopy.getISBN());
+			if (book != null) {
+				book.addCopies(bookCopy.getNumCopies());
+				inDemandIndex.remove(book.getISBN());
+				// A sale miss may have been recorded between the reset and
+				// the removal, that book is still in demand
+				if (book.hadSaleMiss()) {
+					inDemandIndex.add(book);
+				}
+			}
+		}
+	}
+
+	public List<StockBook> getBooks() {
+		List<StockBook> listBooks = new ArrayList<StockBook>();
+		for (AtomicBookStoreBook book : bookMap.values()) {
+			listBooks.add(book.immutableStockBook());
+		}
+		return listBooks;
+	}
+
+	public void updateEditorPicks(Set<BookEditorPick> editorPicks)
+			throws BookStoreException {
+		// Check that all ISBNs that we add/remove are there first.
+		if (editorPicks == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		int ISBNVal;
+
+		// Picks are rare, they are serialized with the catalog changes so a
+		// removed book never ends up in the editor pick index
+		synchronized (catalogLock) {
+			for (BookEditorPick editorPickArg : editorPicks) {
+				ISBNVal = editorPickArg.getISBN();
+				if (BookStoreUtility.isInvalidISBN(ISBNVal))
+					throw new BookStoreException(BookStoreConstants.ISBN
+							+ ISBNVal + BookStoreConstants.INVALID);
+				if (!bookMap.containsKey(ISBNVal))
+					throw new BookStoreException(BookStoreConstants.ISBN
+							+ ISBNVal + BookStoreConstants.NOT_AVAILABLE);
+			}
+
+			List<AtomicBookStoreBook> picked = new ArrayList<AtomicBookStoreBook>();
+			List<AtomicBookStoreBook> unpicked = new ArrayList<AtomicBookStoreBook>();
+			for (BookEditorPick editorPickArg : editorPicks) {
+				AtomicBookStoreBook book = bookMap.get(editorPickArg.getISBN());
+				book.setEditorPick(editorPickArg.isEditorPick());
+				if (editorPickArg.isEditorPick()) {
+					picked.add(book);
+				} else {
+					unpicked.add(book);
+				}
+			}
+			editorPickIndex.update(picked, unpicked);
+		}
+	}
+
+	public void buyBooks(Set<BookCopy> bookCopiesToBuy)
+			throws BookStoreException {
+		if (bookCopiesToBuy == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		// Check that all ISBNs that we buy are there first.
+		int ISBN;
+		BookCopy[] copies = bookCopiesToBuy
+				.toArray(new BookCopy[bookCopiesToBuy.size()]);
+		AtomicBookStoreBook[] books = new AtomicBookStoreBook[copies.length];
+		for (BookCopy bookCopyToBuy : copies) {
+			ISBN = bookCopyToBuy.getISBN();
+			if (bookCopyToBuy.getNumCopies() < 0)
+				throw new BookStoreException(BookStoreConstants.NUM_COPIES
+						+ bookCopyToBuy.getNumCopies()
+						+ BookStoreConstants.INVALID);
+			if (BookStoreUtility.isInvalidISBN(ISBN))
+				throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+						+ BookStoreConstants.INVALID);
+		}
+
+		// Reserve the copies in ISBN order, so that competing purchases
+		// of the same books always meet in the same order
+		long generation = catalogGeneration;
+		Arrays.sort(copies, new Comparator<BookCopy>() {
+			public int compare(BookCopy a, BookCopy b) {
+				return Integer.compare(a.getISBN(), b.getISBN());
+			}
+		});
+		for (int i = 0; i < copies.length; i++) {
+			books[i] = bookMap.get(copies[i].getISBN());
+			if (books[i] == null)
+				throw new BookStoreException(BookStoreConstants.ISBN
+						+ copies[i].getISBN()
+						+ BookStoreConstants.NOT_AVAILABLE);
+		}
+
+		boolean[] reserved = new boolean[copies.length];
+		boolean saleMiss = false;
+		for (int i = 0; i < copies.length; i++) {
+			int numCopies = copies[i].getNumCopies();
+			while (!(reserved[i] = books[i].tryBuyCopies(numCopies))) {
+				// The copies are missing for sure, unless purchases in flight
+				// still hold some of them. This purchase never waits for its
+				// own reservations.
+				if (books[i].isShortOf(numCopies)
+						|| (i > 0 && books[i - 1] == books[i])) {
+					saleMiss = true;
+					break;
+				}
+				Thread.yield();
+			}
+		}
+
+		boolean removed = false;
+		if (catalogGeneration != generation) {
+			for (AtomicBookStoreBook book : books) {
+				if (bookMap.get(book.getISBN()) != book) {
+					removed = true;
+				}
+			}
+		}
+
+		// We throw exception now since we want to see how many books in the
+		// order incurred misses which is used by books in demand
+		if (saleMiss || removed) {
+			for (int i = 0; i < copies.length; i++) {
+				if (reserved[i]) {
+					books[i].returnCopies(copies[i].getNumCopies());
+				} else if (!removed) {
+					books[i].addSaleMiss(); // If we cannot sell the copies of
+											// the book its a miss
+					inDemandIndex.add(books[i]);
+				}
+			}
+			throw new BookStoreException(BookStoreConstants.BOOK
+					+ BookStoreConstants.NOT_AVAILABLE);
+		}
+		for (int i = 0; i < copies.length; i++) {
+			books[i].commitCopies(copies[i].getNumCopies());
+		}
+	}
+
+	public List<StockBook> getBooksByISBN(Set<Integer> isbnSet)
+			throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		List<StockBook> listBooks = new ArrayList<StockBook>();
+		for (Integer ISBN : isbnSet) {
+			if (BookStoreUtility.isInvalidISBN(ISBN))
+				throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+						+ BookStoreConstants.INVALID);
+			AtomicBookStoreBook book = bookMap.get(ISBN);
+			if (book == null)
+				throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+						+ BookStoreConstants.NOT_AVAILABLE);
+			listBooks.add(book.immutableStockBook());
+		}
+		return listBooks;
+	}
+
+	public List<Book> getBooks(Set<Integer> isbnSet) throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		List<Book> listBooks = new ArrayList<Book>();
+		for (Integer ISBN : isbnSet) {
+			if (BookStoreUtility.isInvalidISBN(ISBN))
+				throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+						+ BookStoreConstants.INVALID);
+			AtomicBookStoreBook book = bookMap.get(ISBN);
+			if (book == null)
+				throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+						+ BookStoreConstants.NOT_AVAILABLE);
+			listBooks.add(book.immutableBook());
+		}
+		return listBooks;
+	}
+
+	public List<Book> getEditorPicks(int numBooks) throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks
+					+ ", but it must be positive");
+		}
+
+		List<Book> listEditorPicks = new ArrayList<Book>();
+		for (AtomicBookStoreBook book : editorPickIndex.sample(numBooks)) {
+			listEditorPicks.add(book.immutableBook());
+		}
+		return listEditorPicks;
+	}
+
+	@Override
+	public List<Book> getTopRatedBooks(int numBooks)
+			throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks
+					+ ", but it must be positive");
+		}
+
+		List<Book> listTopRated = new ArrayList<Book>();
+		for (AtomicBookStoreBook book : topRatedIndex.top(numBooks)) {
+			listTopRated.add(book.immutableBook());
+		}
+		return listTopRated;
+	}
+
+	@Override
+	public List<StockBook> getBooksInDemand() throws BookStoreException {
+		// Buyers and restockers do not lock the catalog, so the index can
+		// briefly hold a restocked book or a book removed during a purchase
+		List<StockBook> listBooks = new ArrayList<StockBook>();
+		for (AtomicBookStoreBook book : inDemandIndex.books()) {
+			StockBook stockBook = book.immutableStockBook();
+			if (stockBook.getSaleMisses() > 0
+					&& bookMap.get(book.getISBN()) == book) {
+				listBooks.add(stockBook);
+			}
+		}
+		return listBooks;
+	}
+
+	@Override
+	public void rateBooks(Set<BookRating> bookRating)
+			throws BookStoreException {
+		if (bookRating == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		// Ratings are serialized with the catalog changes, so a removed book
+		// never ends up in the top rated index. Buyers are not blocked.
+		synchronized (catalogLock) {
+			for (BookRating rating : bookRating) {
+				int ISBN = rating.getISBN();
+				if (BookStoreUtility.isInvalidISBN(ISBN))
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.INVALID);
+				if (!bookMap.containsKey(ISBN))
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.NOT_AVAILABLE);
+				if (BookStoreUtility.isInvalidRating(rating.getRating()))
+					throw new BookStoreException(BookStoreConstants.RATING
+							+ rating.getRating() + BookStoreConstants.INVALID);
+			}
+
+			for (BookRating rating : bookRating) {
+				AtomicBookStoreBook book = bookMap.get(rating.getISBN());
+				book.addRating(rating.getRating());
+				topRatedIndex.update(book, book.getTotalRating(),
+						book.getTimesRated());
+			}
+		}
+	}
+
+	public void removeAllBooks() throws BookStoreException {
+		synchronized (catalogLock) {
+			bookMap.clear();
+			editorPickIndex.clear();
+			topRatedIndex.clear();
+			inDemandIndex.clear();
+			catalogGeneration++;
+		}
+	}
+
+	public void removeBooks(Set<Integer> isbnSet) throws BookStoreException {
+
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		synchronized (catalogLock) {
+			for (Integer ISBN : isbnSet) {
+				if (BookStoreUtility.isInvalidISBN(ISBN))
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.INVALID);
+				if (!bookMap.containsKey(ISBN))
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.NOT_AVAILABLE);
+			}
+
+			for (int isbn : isbnSet) {
+				bookMap.remove(isbn);
+				editorPickIndex.remove(isbn);
+				topRatedIndex.remove(isbn);
+				inDemandIndex.remove(isbn);
+			}
+			catalogGeneration++;
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package com.acertainbookstore.business;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * BloomFilter is a set of ISBNs that can answer "definitely not there" without
+ * keeping the ISBNs. A BookSegment keeps one for its ISBNs, so a lookup of an
+ * ISBN that is not in the segment almost never has to read the segment.
+ *
+ * The filter uses about 10 bits and 7 hashes per ISBN, which gives about 1%
+ * false positives. The hashes are derived from two mixes of the ISBN (double
+ * hashing).
+ */
+public class BloomFilter {
+	private static final int BITS_PER_KEY = 10;
+	private static final int NUM_HASHES = 7;
+
+	private final long[] bits;
+	private final int numHashes;
+
+	/**
+	 * Creates an empty filter for about expectedKeys ISBNs.
+	 *
+	 * @param expectedKeys
+	 */
+	public BloomFilter(int expectedKeys) {
+		this(new long[Math.max(1,
+				(int) (((long) expectedKeys * BITS_PER_KEY + 63) / 64))],
+				NUM_HASHES);
+	}
+
+	private BloomFilter(long[] bits, int numHashes) {
+		this.bits = bits;
+		this.numHashes = numHashes;
+	}
+
+	public void add(int ISBN) {
+		long numBits = (long) bits.length * 64;
+		int h1 = mix(ISBN);
+		int h2 = mix(h1 ^ 0x5bd1e995);
+		for (int i = 0; i < numHashes; i++) {
+			long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+			bits[(int) (bit >>> 6)] |= 1L << bit;
+		}
+	}
+
+	/**
+	 * Returns false if the ISBN was never added, and true if it probably was.
+	 *
+	 * @param ISBN
+	 * @return
+	 */
+	public boolean mightContain(int ISBN) {
+		long numBits = (long) bits.length * 64;
+		int h1 = mix(ISBN);
+		int h2 = mix(h1 ^ 0x5bd1e995);
+		for (int i = 0; i < numHashes; i++) {
+			long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+			if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int mix(int key) {
+		key ^= key >>> 16;
+		key *= 0x85ebca6b;
+		key ^= key >>> 13;
+		key *= 0xc2b2ae35;
+		key ^= key >>> 16;
+		return key;
+	}
+
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeInt(numHashes);
+		out.writeInt(bits.length);
+		for (long word : bits) {
+			out.writeLong(word);
+		}
+	}
+
+	public static BloomFilter readFrom(DataInput in) throws IOException {
+		int numHashes = in.readInt();
+		long[] bits = new long[in.readInt()];
+		for (int i = 0; i < bits.length; i++) {
+			bits[i] = in.readLong();
+		}
+		return new BloomFilter(bits, numHashes);
+	}
+}
@@ -0,0 +1,310 @@
+package com.acertainbookstore.business;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * BookLockTable keeps the per-book locks of the ConcurrentCertainBookStore
+ * indexed by ISBN, so finding the locks of an operation costs O(1) per book
+ * instead of a scan over the whole catalog.
+ *
+ * Locks on several books are always acquired in ascending ISBN order, which
+ * gives every operation the same global lock order and rules out deadlocks
+ * between operations on overlapping sets of books.
+ *
+ * Entries are registered when a book is added and unregistered when it is
+ * removed. The store only does either while holding its master write lock,
+ * and every other operation holds the master read lock for as long as it uses
+ * a per-book lock. Taking the master write lock therefore waits out all
+ * in-flight operations, so an unregistered lock can be reclaimed right away
+ * and re-adding an ISBN always gets a single, fresh entry.
+ *
+ * Locks are acquired with a timeout. When a lock is busy the caller waits
+ * for it a short while; if it is still busy, all the locks taken so far are
+ * released and the whole set is retried after an exponentially growing,
+ * randomized backoff. A caller that can not get its locks before the timeout
+ * gets a BookStoreException instead of waiting forever behind a stuck holder.
+ */
+public class BookLockTable {
+	public static final long DEFAULT_TIMEOUT_MILLIS = 5000;
+	private static final long INITIAL_BACKOFF_NANOS = TimeUnit.MICROSECONDS
+			.toNanos(1);
+	private static final long MAX_BACKOFF_NANOS = TimeUnit.MILLISECONDS
+			.toNanos(10);
+	// How long a busy lock is waited for before backing off
+	private static final long LOCK_WAIT_NANOS = TimeUnit.MILLISECONDS
+			.toNanos(1);
+
+	private final Map<Integer, ISBNandLock> locks = new ConcurrentHashMap<Integer, ISBNandLock>();
+	private final long timeoutNanos;
+	private final LongAdder acquisitions = new LongAdder();
+	private final LongAdder contendedAcquisitions = new LongAdder();
+	private final LongAdder timeouts = new LongAdder();
+	private final LongAdder waitNanos = new LongAdder();
+
+	/**
+	 * The lock wait statistics of a BookLockTable.
+	 */
+	public static final class Statistics {
+		private final long acquisitions;
+		private final long contendedAcquisitions;
+		private final long timeouts;
+		private final long waitNanos;
+
+		private Statistics(long acquisitions, long contendedAcquisitions,
+				long timeouts, long waitNanos) {
+			this.acquisitions = acquisitions;
+			this.contendedAcquisitions = contendedAcquisitions;
+			this.timeouts = timeouts;
+			this.waitNanos = waitNanos;
+		}
+
+		/**
+		 * Returns the number of sets of locks that were acquired.
+		 */
+		public long getAcquisitions() {
+			return acquisitions;
+		}
+
+		/**
+		 * Returns the number of acquisitions that found a lock busy.
+		 */
+		public long getContendedAcquisitions() {
+			return contendedAcquisitions;
+		}
+
+		/**
+		 * Returns the number of acquisitions that timed out.
+		 */
+		public long getTimeouts() {
+			return timeouts;
+		}
+
+		/**
+		 * Returns the total time spent waiting for busy locks.
+		 */
+		public long getWaitNanos() {
+			return waitNanos;
+		}
+	}
+
+	public BookLockTable() {
+		this(DEFAULT_TIMEOUT_MILLIS);
+	}
+
+	/**
+	 * Creates a table whose locks are given up on after timeoutMillis.
+	 *
+	 * @param timeoutMillis
+	 */
+	public BookLockTable(long timeoutMillis) {
+		this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+	}
+
+	/**
+	 * Creates the lock of the book with the given ISBN, unless it already
+	 * exists.
+	 *
+	 * @param ISBN
+	 */
+	public void register(int ISBN) {
+		if (!locks.containsKey(ISBN)) {
+			locks.put(ISBN, new ISBNandLock(ISBN));
+		}
+	}
+
+	/**
+	 * Drops the lock of the book with the given ISBN.
+	 *
+	 * @param ISBN
+	 */
+	public void unregister(int ISBN) {
+		locks.remove(ISBN);
+	}
+
+	/**
+	 * Drops all the locks in the table.
+	 */
+	public void clear() {
+		locks.clear();
+	}
+
+	/**
+	 * Returns the number of locks in the table.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return locks.size();
+	}
+
+	/**
+	 * Returns the lock of the book with the given ISBN, or null if there is
+	 * none.
+	 *
+	 * @param ISBN
+	 * @return
+	 */
+	public ISBNandLock get(int ISBN) {
+		return locks.get(ISBN);
+	}
+
+	/**
+	 * Acquires the read locks of the given ISBNs.
+	 *
+	 * @param isbns
+	 * @throws BookStoreException
+	 *             if the locks could not be acquired before the timeout
+	 */
+	public void readLock(Set<Integer> isbns) throws BookStoreException {
+		acquire(sorted(isbns), false);
+	}
+
+	public void readUnlock(Set<Integer> isbns) {
+		for (ISBNandLock isbnAndLock : sorted(isbns)) {
+			isbnAndLock.lock.asReadLock().unlock();
+		}
+	}
+
+	/**
+	 * Acquires the write locks of the given ISBNs.
+	 *
+	 * @param isbns
+	 * @throws BookStoreException
+	 *             if the locks could not be acquired before the timeout
+	 */
+	public void writeLock(Set<Integer> isbns) throws BookStoreException {
+		acquire(sorted(isbns), true);
+	}
+
+	public void writeUnlock(Set<Integer> isbns) {
+		for (ISBNandLock isbnAndLock : sorted(isbns)) {
+			isbnAndLock.lock.asWriteLock().unlock();
+		}
+	}
+
+	public void writeLock(int ISBN) throws BookStoreException {
+		writeLock(Collections.singleton(ISBN));
+	}
+
+	public void writeUnlock(int ISBN) {
+		locks.get(ISBN).lock.asWriteLock().unlock();
+	}
+
+	/**
+	 * Returns the lock wait statistics of the table.
+	 *
+	 * @return
+	 */
+	public Statistics getStatistics() {
+		return new Statistics(acquisitions.sum(), contendedAcquisitions.sum(),
+				timeouts.sum(), waitNanos.sum());
+	}
+
+	private static Lock lockOf(ISBNandLock isbnAndLock, boolean write) {
+		return write ? isbnAndLock.lock.asWriteLock() : isbnAndLock.lock
+				.asReadLock();
+	}
+
+	private static void release(ISBNandLock[] sortedLocks, int count,
+			boolean write) {
+		for (int i = 0; i < count; i++) {
+			lockOf(sortedLocks[i], write).unlock();
+		}
+	}
+
+	/**
+	 * Acquires the locks in order. Either all of them are held when it
+	 * returns, or none of them.
+	 */
+	private void acquire(ISBNandLock[] sortedLocks, boolean write)
+			throws BookStoreException {
+		long start = 0;
+		long backoff = INITIAL_BACKOFF_NANOS;
+		while (true) {
+			int held = 0;
+			int busy = -1;
+			try {
+				for (; held < sortedLocks.length; held++) {
+					Lock lock = lockOf(sortedLocks[held], write);
+					if (lock.tryLock()) {
+						continue;
+					}
+					if (start == 0) {
+						start = System.nanoTime();
+					}
+					long remaining = start + timeoutNanos - System.nanoTime();
+					if (remaining <= 0
+							|| !lock.tryLock(
+									Math.min(remaining, LOCK_WAIT_NANOS),
+									TimeUnit.NANOSECONDS)) {
+						busy = held;
+						break;
+					}
+				}
+			} catch (InterruptedException ex) {
+				release(sortedLocks, held, write);
+				Thread.currentThread().interrupt();
+				throw new BookStoreException(BookStoreConstants.ISBN
+						+ sortedLocks[held].ISBN
+						+ BookStoreConstants.LOCK_TIMEOUT, ex);
+			}
+
+			if (busy < 0) {
+				acquisitions.increment();
+				if (start != 0) {
+					contendedAcquisitions.increment();
+					waitNanos.add(System.nanoTime() - start);
+				}
+				return;
+			}
+
+			// Do not sit on the locks we have while waiting for the busy one
+			release(sortedLocks, held, write);
+			long remaining = start + timeoutNanos - System.nanoTime();
+			if (remaining <= 0) {
+				timeouts.increment();
+				contendedAcquisitions.increment();
+				waitNanos.add(System.nanoTime() - start);
+				throw new BookStoreException(BookStoreConstants.ISBN
+						+ sortedLocks[busy].ISBN
+						+ BookStoreConstants.LOCK_TIMEOUT);
+			}
+			LockSupport.parkNanos(Math.min(remaining, ThreadLocalRandom
+					.current().nextLong(backoff) + 1));
+			backoff = Math.min(backoff * 2, MAX_BACKOFF_NANOS);
+		}
+	}
+
+	/**
+	 * Returns the locks of the given ISBNs in ascending ISBN order.
+	 *
+	 * @param isbns
+	 * @return
+	 */
+	private ISBNandLock[] sorted(Set<Integer> isbns) {
+		int[] keys = new int[isbns.size()];
+		int i = 0;
+		for (Integer ISBN : isbns) {
+			keys[i++] = ISBN;
+		}
+		Arrays.sort(keys);
+
+		ISBNandLock[] sortedLocks = new ISBNandLock[keys.length];
+		for (i = 0; i < keys.length; i++) {
+			sortedLocks[i] = locks.get(keys[i]);
+		}
+		return sortedLocks;
+	}
+}
@@ -0,0 +1,370 @@
+package com.acertainbookstore.business;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * BookSegment is an immutable file of books sorted by ISBN, written when the
+ * LSMBookStorage flushes its memtable or compacts its segments. A removed book
+ * is kept as a tombstone, so it hides the older versions of the book in older
+ * segments. The file is laid out as
+ *
+ * <pre>
+ * record* | index | bloom filter | footer
+ * </pre>
+ *
+ * The index is sparse: it holds the ISBN and offset of every
+ * INDEX_INTERVAL-th record, so it is small enough to keep in memory with the
+ * bloom filter. A lookup checks the bloom filter, finds the block of records
+ * that may hold the ISBN in the index and reads that block with one read.
+ *
+ * Lookups use positional reads of the channel and can run concurrently.
+ */
+public class BookSegment {
+	private static final int MAGIC = 0x4253454d;
+	private static final int INDEX_INTERVAL = 64;
+	private static final int FOOTER_SIZE = 8 + 4 + 8 + 4 + 4;
+
+	/**
+	 * Stands for a removed book, in segments and in the memtable.
+	 */
+	static final StockBook TOMBSTONE = new ImmutableStockBook(0, "", "", 0, 0,
+			0, 0, 0, false);
+
+	private final File file;
+	private final FileChannel channel;
+	private final int numRecords;
+	private final long indexOffset;
+	private final int[] indexISBNs;
+	private final long[] indexOffsets;
+	private final BloomFilter bloomFilter;
+	private final LongAdder diskReads = new LongAdder();
+
+	/**
+	 * Opens the segment in file and reads its index and bloom filter.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public BookSegment(File file) throws IOException {
+		this.file = file;
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			if (size < FOOTER_SIZE) {
+				throw new IOException("The segment " + file + " is truncated");
+			}
+			ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+			readFully(footer, size - FOOTER_SIZE);
+			footer.flip();
+			indexOffset = footer.getLong();
+			int indexEntries = footer.getInt();
+			long bloomOffset = footer.getLong();
+			numRecords = footer.getInt();
+			if (footer.getInt() != MAGIC) {
+				throw new IOException(file + " is not a segment");
+			}
+
+			ByteBuffer metadata = ByteBuffer
+					.allocate((int) (size - FOOTER_SIZE - indexOffset));
+			readFully(metadata, indexOffset);
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+					metadata.array()));
+			indexISBNs = new int[indexEntries];
+			indexOffsets = new long[indexEntries];
+			for (int i = 0; i < indexEntries; i++) {
+				indexISBNs[i] = in.readInt();
+				indexOffsets[i] = in.readLong();
+			}
+			in.skipBytes((int) (bloomOffset - indexOffset - indexEntries * 12));
+			bloomFilter = BloomFilter.readFrom(in);
+		} catch (IOException ex) {
+			channel.close();
+			throw ex;
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Returns the number of records, books and tombstones, in the segment.
+	 *
+	 * @return
+	 */
+	public int getNumRecords() {
+		return numRecords;
+	}
+
+	/**
+	 * Returns the number of blocks read by lookups.
+	 *
+	 * @return
+	 */
+	public long getNumDiskReads() {
+		return diskReads.sum();
+	}
+
+	/**
+	 * Returns the book with the given ISBN, TOMBSTONE if the segment says it
+	 * was removed, or null if the segment does not know the ISBN.
+	 *
+	 * @param ISBN
+	 * @return
+	 * @throws IOException
+	 */
+	public StockBook get(int ISBN) throws IOException {
+		if (!bloomFilter.mightContain(ISBN)) {
+			return null;
+		}
+		// The last block that starts at or before the ISBN
+		int low = 0;
+		int high = indexISBNs.length - 1;
+		int block = -1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			if (indexISBNs[middle] <= ISBN) {
+				block = middle;
+				low = middle + 1;
+			} else {
+				high = middle - 1;
+			}
+		}
+		if (block < 0) {
+			return null;
+		}
+		long start = indexOffsets[block];
+		long end = (block + 1 < indexOffsets.length) ? indexOffsets[block + 1]
+				: indexOffset;
+		ByteBuffer bytes = ByteBuffer.allocate((int) (end - start));
+		readFully(bytes, start);
+		diskReads.increment();
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				bytes.array()));
+		while (in.available() > 0) {
+			int recordISBN = in.readInt();
+			StockBook book = readRecord(recordISBN, in);
+			if (recordISBN == ISBN) {
+				return book;
+			} else if (recordISBN > ISBN) {
+				return null;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Opens a reader of the records of the segment in ISBN order.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	public Reader reader() throws IOException {
+		return new Reader(new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file), 64 * 1024)), numRecords);
+	}
+
+	/**
+	 * Closes the segment, and deletes its file if delete is set.
+	 *
+	 * @param delete
+	 * @throws IOException
+	 */
+	public void close(boolean delete) throws IOException {
+		channel.close();
+		if (delete) {
+			file.delete();
+		}
+	}
+
+	private void readFully(ByteBuffer buffer, long position)
+			throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Unexpected end of " + file);
+			}
+		}
+	}
+
+	private static StockBook readRecord(int ISBN, DataInputStream in)
+			throws IOException {
+		if (in.readBoolean()) {
+			return TOMBSTONE;
+		}
+		return new ImmutableStockBook(ISBN, in.readUTF(), in.readUTF(),
+				in.readFloat(), in.readInt(), in.readLong(), in.readLong(),
+				in.readLong(), in.readBoolean());
+	}
+
+	/**
+	 * Reads the records of a segment in ISBN order.
+	 */
+	public static final class Reader {
+		private final DataInputStream in;
+		private int remaining;
+		private int ISBN;
+		private StockBook book;
+
+		private Reader(DataInputStream in, int numRecords) {
+			this.in = in;
+			this.remaining = numRecords;
+		}
+
+		/**
+		 * Moves to the next record, and returns false if there is none.
+		 *
+		 * @return
+		 * @throws IOException
+		 */
+		public boolean next() throws IOException {
+			if (remaining == 0) {
+				return false;
+			}
+			remaining--;
+			ISBN = in.readInt();
+			book = readRecord(ISBN, in);
+			return true;
+		}
+
+		public int getISBN() {
+			return ISBN;
+		}
+
+		/**
+		 * Returns the book of the record, or TOMBSTONE.
+		 *
+		 * @return
+		 */
+		public StockBook getBook() {
+			return book;
+		}
+
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes a segment. The records must be added in increasing ISBN order.
+	 */
+	public static final class Writer {
+		private final File file;
+		private final FileOutputStream fileOut;
+		private final DataOutputStream out;
+		private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+		private final DataOutputStream recordOut = new DataOutputStream(record);
+		private final BloomFilter bloomFilter;
+		private final ByteArrayOutputStream index = new ByteArrayOutputStream();
+		private final DataOutputStream indexOut = new DataOutputStream(index);
+		private long offset = 0;
+		private int numRecords = 0;
+		private int indexEntries = 0;
+		private int lastISBN = 0;
+
+		/**
+		 * Creates a writer of a segment in file for about expectedRecords
+		 * records.
+		 *
+		 * @param file
+		 * @param expectedRecords
+		 * @throws IOException
+		 */
+		public Writer(File file, int expectedRecords) throws IOException {
+			this.file = file;
+			this.fileOut = new FileOutputStream(file);
+			this.out = new DataOutputStream(new BufferedOutputStream(fileOut,
+					64 * 1024));
+			this.bloomFilter = new BloomFilter(expectedRecords);
+		}
+
+		/**
+		 * Adds the book, or a tombstone if book is TOMBSTONE, with the given
+		 * ISBN.
+		 *
+		 * @param ISBN
+		 * @param book
+		 * @throws IOException
+		 */
+		public void add(int ISBN, StockBook book) throws IOException {
+			if (numRecords > 0 && ISBN <= lastISBN) {
+				throw new IllegalArgumentException("ISBN " + ISBN
+						+ " is out of order");
+			}
+			record.reset();
+			recordOut.writeInt(ISBN);
+			recordOut.writeBoolean(book == TOMBSTONE);
+			if (book != TOMBSTONE) {
+				recordOut.writeUTF(book.getTitle());
+				recordOut.writeUTF(book.getAuthor());
+				recordOut.writeFloat(book.getPrice());
+				recordOut.writeInt(book.getNumCopies());
+				recordOut.writeLong(book.getSaleMisses());
+				recordOut.writeLong(book.getTimesRated());
+				recordOut.writeLong(book.getTotalRating());
+				recordOut.writeBoolean(book.isEditorPick());
+			}
+			recordOut.flush();
+			if (numRecords % INDEX_INTERVAL == 0) {
+				indexOut.writeInt(ISBN);
+				indexOut.writeLong(offset);
+				indexEntries++;
+			}
+			record.writeTo(out);
+			offset += record.size();
+			bloomFilter.add(ISBN);
+			lastISBN = ISBN;
+			numRecords++;
+		}
+
+		/**
+		 * Writes the index, bloom filter and footer, forces the file to disk
+		 * and opens the segment.
+		 *
+		 * @return
+		 * @throws IOException
+		 */
+		public BookSegment finish() throws IOException {
+			long indexOffset = offset;
+			indexOut.flush();
+			index.writeTo(out);
+			long bloomOffset = indexOffset + index.size();
+			bloomFilter.writeTo(out);
+			out.writeLong(indexOffset);
+			out.writeInt(indexEntries);
+			out.writeLong(bloomOffset);
+			out.writeInt(numRecords);
+			out.writeInt(MAGIC);
+			out.flush();
+			// Force the segment before it replaces the data it was made from
+			fileOut.getChannel().force(true);
+			out.close();
+			return new BookSegment(file);
+		}
+
+		/**
+		 * Gives up the segment and deletes its file.
+		 */
+		public void abort() {
+			try {
+				out.close();
+			} catch (IOException ex) {
+				; // The file is deleted anyway
+			}
+			file.delete();
+		}
+	}
+}
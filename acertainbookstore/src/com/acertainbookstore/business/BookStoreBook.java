@@ -1,5 +1,7 @@
 package com.acertainbookstore.business;
 
+import java.util.concurrent.atomic.LongAdder;
+
 import com.acertainbookstore.utils.BookStoreUtility;
 
 /**
@@ -7,13 +9,63 @@ import com.acertainbookstore.utils.BookStoreUtility;
  * in the BookStoreClient and StockManager, cf. the Book interface and the
  * StockBook interface.
  * 
+ * Every change to the stock or the editor pick status of the book bumps its
+ * version. The ImmutableBook and ImmutableStockBook projections handed out to
+ * clients are cached and only re-created once the version has moved on, so
+ * reading a book that did not change does not allocate.
+ * 
+ * The sale misses and ratings are statistics kept in LongAdders, so buyers
+ * that miss the same sold out book and clients that rate it do not need the
+ * write lock of the book and do not contend on one counter. They are read
+ * live: a projection holds the values of the counters at the time it was
+ * made, and is not consistent with numCopies as of one instant. The cached
+ * projection is re-created when any of the counters has moved on.
+ * 
+ * While the book is on flash sale its stock is kept in a StripedStockCounter
+ * instead of numCopies. Buying copies on flash sale does not need the write
+ * lock of the book, and the stock is read live like the counters above.
+ * 
  */
 public class BookStoreBook extends ImmutableBook {
 	private int numCopies;
-	private long totalRating;
-	private long timesRated;
-	private long saleMisses;
+	private final LongAdder totalRating = new LongAdder();
+	private final LongAdder timesRated = new LongAdder();
+	private final LongAdder saleMisses = new LongAdder();
 	private boolean editorPick;
+	private volatile StripedStockCounter flashStock;
+	private volatile BookVersion latestVersion;
+	// Bumped after every change, so a reader that sees the same version
+	// before and after reading the fields has seen a stable state
+	private volatile long version;
+	private volatile ImmutableBook cachedBook;
+	private volatile CachedStockBook cachedStockBook;
+	// How recently and often the book was used, cf. BookTiering
+	private int heat;
+
+	/**
+	 * A projection of the book tagged with the version it was made from.
+	 */
+	private static final class CachedStockBook {
+		private final long version;
+		private final StockBook stockBook;
+
+		private CachedStockBook(long version, StockBook stockBook) {
+			this.version = version;
+			this.stockBook = stockBook;
+		}
+	}
+
+	/**
+	 * Returns true if the counters of the projection are the current values
+	 * of the counters of the book.
+	 */
+	private boolean hasLiveCounters(StockBook stockBook) {
+		StripedStockCounter stock = flashStock;
+		return (stock == null || stockBook.getNumCopies() == stock.sum())
+				&& stockBook.getSaleMisses() == saleMisses.sum()
+				&& stockBook.getTimesRated() == timesRated.sum()
+				&& stockBook.getTotalRating() == totalRating.sum();
+	}
 
 	/**
 	 * Constructor to create a book object
@@ -43,37 +95,76 @@ public class BookStoreBook extends ImmutableBook {
 		this.setEditorPick(bookToCopy.isEditorPick());
 	}
 
+	/**
+	 * Constructor to create a book store book object from a stock book object,
+	 * sharing the title and author with the other books of the dictionary.
+	 * The strings must be released from the dictionary when the book is
+	 * removed.
+	 * 
+	 * @param bookToCopy
+	 * @param dictionary
+	 */
+	public BookStoreBook(StockBook bookToCopy, BookStringDictionary dictionary) {
+		super(bookToCopy.getISBN(), dictionary.canonicalize(bookToCopy
+				.getTitle()), dictionary.canonicalize(bookToCopy.getAuthor()),
+				bookToCopy.getPrice());
+		this.setSaleMisses(bookToCopy.getSaleMisses());
+		this.setTimesRated(bookToCopy.getTimesRated());
+		this.setNumCopies(bookToCopy.getNumCopies());
+		this.setTotalRating(bookToCopy.getTotalRating());
+		this.setEditorPick(bookToCopy.isEditorPick());
+	}
+
 	public long getTotalRating() {
-		return totalRating;
+		return totalRating.sum();
 	}
 
 	public long getTimesRated() {
-		return timesRated;
+		return timesRated.sum();
 	}
 
 	public int getNumCopies() {
-		return numCopies;
+		StripedStockCounter stock = flashStock;
+		return (stock == null) ? numCopies : stock.sum();
 	}
 
 	public long getSaleMisses() {
-		return saleMisses;
+		return saleMisses.sum();
 	}
 
 	public float getAverageRating() {
-		return (float) (timesRated == 0 ? -1.0 : totalRating / timesRated);
+		long times = timesRated.sum();
+		return (float) (times == 0 ? -1.0 : totalRating.sum() / times);
 	}
 
 	public boolean isEditorPick() {
 		return editorPick;
 	}
 
+	/**
+	 * Returns the modification version of the book.
+	 * 
+	 * @return
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Marks the book as changed. Must be called after the fields are written.
+	 */
+	private void modified() {
+		version++;
+	}
+
 	/**
 	 * Sets the total rating of the book.
 	 * 
 	 * @param totalRating
 	 */
 	private void setTotalRating(long totalRating) {
-		this.totalRating = totalRating;
+		this.totalRating.reset();
+		this.totalRating.add(totalRating);
 	}
 
 	/**
@@ -82,7 +173,8 @@ public class BookStoreBook extends ImmutableBook {
 	 * @param timesRated
 	 */
 	private void setTimesRated(long timesRated) {
-		this.timesRated = timesRated;
+		this.timesRated.reset();
+		this.timesRated.add(timesRated);
 	}
 
 	/**
@@ -101,7 +193,8 @@ public class BookStoreBook extends ImmutableBook {
 	 * @param saleMisses
 	 */
 	private void setSaleMisses(long saleMisses) {
-		this.saleMisses = saleMisses;
+		this.saleMisses.reset();
+		this.saleMisses.add(saleMisses);
 	}
 
 	/**
@@ -112,6 +205,7 @@ public class BookStoreBook extends ImmutableBook {
 	 */
 	public void setEditorPick(boolean editorPick) {
 		this.editorPick = editorPick;
+		modified();
 	}
 
 	/**
@@ -121,7 +215,7 @@ public class BookStoreBook extends ImmutableBook {
 	 * @return
 	 */
 	public boolean areCopiesInStore(int numCopies) {
-		return (this.numCopies >= numCopies);
+		return (getNumCopies() >= numCopies);
 	}
 
 	/**
@@ -131,9 +225,15 @@ public class BookStoreBook extends ImmutableBook {
 	 * @return
 	 */
 	public boolean buyCopies(int numCopies) {
+		StripedStockCounter stock = flashStock;
+		if (stock != null) {
+			return !BookStoreUtility.isInvalidNoCopies(numCopies)
+					&& stock.take(numCopies);
+		}
 		if (!BookStoreUtility.isInvalidNoCopies(numCopies))
 			if (areCopiesInStore(numCopies)) {
 				this.numCopies -= numCopies;
+				modified();
 				return true;
 			}
 		return false;
@@ -144,30 +244,107 @@ public class BookStoreBook extends ImmutableBook {
 	 */
 	public void addCopies(int newCopies) {
 		if (!BookStoreUtility.isInvalidNoCopies(newCopies)) {
-			this.numCopies += newCopies;
-			this.saleMisses = 0;
+			StripedStockCounter stock = flashStock;
+			if (stock != null) {
+				stock.add(newCopies);
+			} else {
+				this.numCopies += newCopies;
+			}
+			this.saleMisses.reset();
+			modified();
+		}
+	}
+
+	/**
+	 * Returns true if the book is on flash sale.
+	 * 
+	 * @return
+	 */
+	public boolean isFlashSale() {
+		return flashStock != null;
+	}
+
+	/**
+	 * Puts the book on flash sale, splitting its stock over numStripes
+	 * stripes. The caller must make sure that no copies are bought or added
+	 * meanwhile.
+	 * 
+	 * @param numStripes
+	 */
+	public void startFlashSale(int numStripes) {
+		if (flashStock == null) {
+			flashStock = new StripedStockCounter(numCopies, numStripes);
+			modified();
 		}
 	}
 
 	/**
-	 * Increases the amount of missed sales of the book.
+	 * Ends the flash sale of the book and moves the stock back into
+	 * numCopies. The caller must make sure that no copies are bought or added
+	 * meanwhile.
+	 */
+	public void endFlashSale() {
+		StripedStockCounter stock = flashStock;
+		if (stock != null) {
+			numCopies = stock.sum();
+			flashStock = null;
+			modified();
+		}
+	}
+
+	/**
+	 * Puts back copies taken by buyCopies while the book is on flash sale,
+	 * for a purchase that could not be completed.
+	 * 
+	 * @param numCopies
+	 */
+	public void returnFlashCopies(int numCopies) {
+		flashStock.add(numCopies);
+	}
+
+	/**
+	 * Increases the amount of missed sales of the book. Does not need the
+	 * write lock of the book.
 	 */
 	public void addSaleMiss() {
-		this.saleMisses++;
+		this.saleMisses.increment();
 	}
 
 	/**
-	 * Adds the rating to the total rating of the book.
+	 * Adds the rating to the total rating of the book. Does not need the write
+	 * lock of the book.
 	 * 
 	 * @param rating
 	 */
 	public void addRating(int rating) {
 		if (!BookStoreUtility.isInvalidRating(rating)) {
-			this.totalRating += rating;
-			this.timesRated++;
+			this.totalRating.add(rating);
+			this.timesRated.increment();
 		}
 	}
 
+	/**
+	 * Records a use of the book for the tiering of the store. Does not need
+	 * any lock, a racing use may be lost since the heat is only a hint.
+	 */
+	public void touch() {
+		if (heat < BookTiering.MAX_HEAT) {
+			heat++;
+		}
+	}
+
+	/**
+	 * Halves the heat of the book and returns the heat it had, cf.
+	 * BookTiering.
+	 * 
+	 * @return
+	 */
+	public int cool() {
+		int previous = heat;
+		heat = previous >> 1;
+		return previous;
+	}
+
 	/**
 	 * Returns True if someone tried to buy the book, while the book was not in
 	 * stock.
@@ -175,7 +352,7 @@ public class BookStoreBook extends ImmutableBook {
 	 * @return
 	 */
 	public boolean hadSaleMiss() {
-		return this.saleMisses > 0;
+		return this.saleMisses.sum() > 0;
 	}
 
 	/**
@@ -189,25 +366,103 @@ public class BookStoreBook extends ImmutableBook {
 	}
 
 	/**
-	 * Returns a ImmutableBook copy of the book.
+	 * Returns a ImmutableBook copy of the book. Strings are immutable, so the
+	 * copy shares the title and author of the book. The ISBN, title, author
+	 * and price never change, so the copy is made once and then reused.
 	 * 
 	 * @return
 	 */
 	public ImmutableBook immutableBook() {
-		return new ImmutableBook(this.getISBN(), new String(this.getTitle()),
-				new String(this.getAuthor()), this.getPrice());
+		ImmutableBook book = cachedBook;
+		if (book == null) {
+			book = new ImmutableBook(this.getISBN(), this.getTitle(),
+					this.getAuthor(), this.getPrice());
+			cachedBook = book;
+		}
+		return book;
 	}
 
 	/**
-	 * Returns a ImmutableStockBook copy of the book.
+	 * Returns a ImmutableStockBook copy of the book. The copy is reused until
+	 * the book changes.
 	 * 
 	 * @return
 	 */
 	public StockBook immutableStockBook() {
-		return new ImmutableStockBook(this.getISBN(), new String(
-				this.getTitle()), new String(this.getAuthor()),
-				this.getPrice(), this.numCopies, this.saleMisses,
-				this.timesRated, this.totalRating, this.editorPick);
+		// Read the version before the fields: if a writer changes the fields
+		// meanwhile, it bumps the version afterwards, so a torn copy is never
+		// tagged with the version it is served for
+		long currentVersion = version;
+		CachedStockBook cached = cachedStockBook;
+		if (cached != null && cached.version == currentVersion
+				&& hasLiveCounters(cached.stockBook)) {
+			return cached.stockBook;
+		}
+		StockBook stockBook = new ImmutableStockBook(this.getISBN(),
+				this.getTitle(), this.getAuthor(), this.getPrice(),
+				getNumCopies(), this.saleMisses.sum(), this.timesRated.sum(),
+				this.totalRating.sum(), this.editorPick);
+		cachedStockBook = new CachedStockBook(currentVersion, stockBook);
+		return stockBook;
+	}
+
+	/**
+	 * Returns the given version of the book with the live values of the sale
+	 * misses and ratings, and of the stock while on flash sale, which are not
+	 * versioned. Returns the version itself
+	 * if its counters are still current.
+	 * 
+	 * @param stockBook
+	 * @return
+	 */
+	public StockBook withLiveCounters(StockBook stockBook) {
+		if (hasLiveCounters(stockBook)) {
+			return stockBook;
+		}
+		StripedStockCounter stock = flashStock;
+		return new ImmutableStockBook(stockBook.getISBN(),
+				stockBook.getTitle(), stockBook.getAuthor(),
+				stockBook.getPrice(), (stock == null) ? stockBook
+						.getNumCopies() : stock.sum(),
+				saleMisses.sum(), timesRated.sum(), totalRating.sum(),
+				stockBook.isEditorPick());
+	}
+
+	/**
+	 * Returns the newest version published by publishVersion, or null if no
+	 * version was published.
+	 * 
+	 * @return
+	 */
+	public BookVersion getLatestVersion() {
+		return latestVersion;
+	}
+
+	/**
+	 * Publishes the current state of the book as its newest version. The
+	 * version shares the cached ImmutableStockBook of the book.
+	 * 
+	 * @param epoch
+	 */
+	public void publishVersion(long epoch) {
+		latestVersion = new BookVersion(epoch, immutableStockBook(),
+				latestVersion);
+	}
+
+	/**
+	 * Drops the versions that are older than the newest version at or below
+	 * the given epoch, since no reader can reach them anymore.
+	 * 
+	 * @param epoch
+	 */
+	public void pruneVersions(long epoch) {
+		BookVersion version = latestVersion;
+		while (version != null && version.getEpoch() > epoch) {
+			version = version.getPrevious();
+		}
+		if (version != null) {
+			version.dropPrevious();
+		}
 	}
 
 	/**
@@ -216,8 +471,8 @@ public class BookStoreBook extends ImmutableBook {
 	 * @return
 	 */
 	public BookStoreBook copy() {
-		return new BookStoreBook(this.getISBN(), new String(this.getTitle()),
-				new String(this.getAuthor()), this.getPrice(), this.numCopies);
+		return new BookStoreBook(this.getISBN(), this.getTitle(),
+				this.getAuthor(), this.getPrice(), getNumCopies());
 	}
 
 }
@@ -0,0 +1,514 @@
+package com.acertainbookstore.business;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * BookStoreLog is an append-only write-ahead log of the changes to the books.
+ * Every record is framed as
+ *
+ * <pre>
+ * length (int) | crc32 (int) | type (byte) | sequence (long) | arguments
+ * </pre>
+ *
+ * where length counts the bytes after the crc, and the crc covers the same
+ * bytes. The sequence numbers of the records start at 1 and grow by one.
+ *
+ * Records are written under an append lock, so they are in the order in
+ * which they were appended. Forcing them to disk is done under a separate
+ * sync lock: with the GROUP policy a committer that finds its record not yet
+ * durable takes the sync lock and forces everything written so far, so all
+ * the committers that queued up behind one fsync are made durable by the
+ * next one (cf. SyncPolicy).
+ *
+ * When the log is opened, a record that was only partly written before a
+ * crash is detected by its length or crc and cut off. A record that fails
+ * to be written while the log is open is cut off at once, so the records
+ * appended after it are not lost behind it.
+ */
+public class BookStoreLog {
+	private static final int HEADER_SIZE = 4 + 4 + 1 + 8;
+	public static final long DEFAULT_SYNC_INTERVAL_MILLIS = 10;
+
+	/**
+	 * Is given the records of the log in order, cf. read.
+	 */
+	public interface Visitor {
+		void visit(long sequence, LogRecord record) throws BookStoreException;
+	}
+
+	private final File file;
+	private final FileChannel channel;
+	private final SyncPolicy policy;
+	private final Object appendLock = new Object();
+	private final Object syncLock = new Object();
+	private final Thread syncer;
+	private long lastSequence;
+	private volatile long writtenSequence;
+	// The offset after the record with sequence number writtenSequence
+	private volatile long writtenPosition;
+	private volatile long durableSequence;
+	private volatile boolean closed = false;
+	// Set when a failed append could not be cut off again, cf. discard
+	private boolean failed = false;
+	private final LongAdder records = new LongAdder();
+	private final LongAdder syncs = new LongAdder();
+
+	/**
+	 * Opens the log in file, creating it if needed, with the GROUP policy.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public BookStoreLog(File file) throws IOException {
+		this(file, SyncPolicy.GROUP, DEFAULT_SYNC_INTERVAL_MILLIS);
+	}
+
+	/**
+	 * Opens the log in file, creating it if needed. The interval is only
+	 * used by the INTERVAL policy.
+	 *
+	 * @param file
+	 * @param policy
+	 * @param syncIntervalMillis
+	 * @throws IOException
+	 */
+	public BookStoreLog(File file, SyncPolicy policy,
+			final long syncIntervalMillis) throws IOException {
+		this.file = file;
+		this.policy = policy;
+		this.channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		long end;
+		try {
+			end = scan(0, 0, Long.MAX_VALUE, null);
+		} catch (BookStoreException ex) {
+			// Only the visitor throws it, and there is none
+			throw new IOException(ex);
+		}
+		if (end < channel.size()) {
+			// Cut off a record that was only partly written
+			channel.truncate(end);
+			channel.force(true);
+		}
+		channel.position(end);
+		writtenSequence = lastSequence;
+		writtenPosition = end;
+		durableSequence = lastSequence;
+
+		if (policy == SyncPolicy.INTERVAL) {
+			syncer = new Thread(new Runnable() {
+				public void run() {
+					while (!closed) {
+						try {
+							Thread.sleep(syncIntervalMillis);
+							sync();
+						} catch (InterruptedException ex) {
+							return;
+						} catch (IOException ex) {
+							; // The next sync tries again
+						}
+					}
+				}
+			}, "bookstore-log-sync");
+			syncer.setDaemon(true);
+			syncer.start();
+		} else {
+			syncer = null;
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public SyncPolicy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Returns the sequence number of the last record appended.
+	 *
+	 * @return
+	 */
+	public long getLastSequence() {
+		return writtenSequence;
+	}
+
+	/**
+	 * Returns the offset in the file after the last record appended. Read
+	 * together with getLastSequence while no record is appended, it is where
+	 * the records after that sequence number start (cf. read).
+	 *
+	 * @return
+	 */
+	public long getPosition() {
+		return writtenPosition;
+	}
+
+	/**
+	 * Returns the sequence number up to which the records are known to be on
+	 * disk.
+	 *
+	 * @return
+	 */
+	public long getDurableSequence() {
+		return durableSequence;
+	}
+
+	/**
+	 * Returns the sequence number of the last record whose change may have
+	 * been reported as done: with the GROUP policy a change is only reported
+	 * once its record is on disk, with the others once it is written.
+	 *
+	 * @return
+	 */
+	public long getCommittedSequence() {
+		return (policy == SyncPolicy.GROUP) ? durableSequence
+				: writtenSequence;
+	}
+
+	/**
+	 * Returns the number of records appended since the log was opened.
+	 *
+	 * @return
+	 */
+	public long getNumRecords() {
+		return records.sum();
+	}
+
+	/**
+	 * Returns the number of times the log was forced to disk since it was
+	 * opened.
+	 *
+	 * @return
+	 */
+	public long getNumSyncs() {
+		return syncs.sum();
+	}
+
+	/**
+	 * Appends the record to the log and returns its sequence number. With the
+	 * ALWAYS policy the record is on disk when this returns, with GROUP the
+	 * caller must call awaitDurable before it reports the change as done.
+	 *
+	 * @param record
+	 * @return
+	 * @throws IOException
+	 */
+	public long append(LogRecord record) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0);
+		out.writeInt(0);
+		out.writeByte(record.getType().getCode());
+		out.writeLong(0);
+		record.writeTo(out);
+		out.flush();
+		ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+
+		synchronized (appendLock) {
+			if (closed) {
+				throw new IOException("The log " + file + " is closed");
+			}
+			if (failed) {
+				throw new IOException("The log " + file
+						+ " could not recover from a failed append");
+			}
+			long sequence = lastSequence + 1;
+			buffer.putInt(0, buffer.limit() - 8);
+			buffer.putLong(9, sequence);
+			buffer.putInt(4, crc(buffer, 8, buffer.limit()));
+			long start = channel.position();
+			try {
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+				if (policy == SyncPolicy.ALWAYS) {
+					channel.force(false);
+					syncs.increment();
+				}
+			} catch (IOException ex) {
+				discard(start);
+				throw ex;
+			}
+			lastSequence = sequence;
+			writtenPosition = channel.position();
+			writtenSequence = sequence;
+			records.increment();
+			if (policy == SyncPolicy.ALWAYS) {
+				durableSequence = sequence;
+			}
+			return sequence;
+		}
+	}
+
+	/**
+	 * Cuts off the record that failed to be appended at start, so the next
+	 * record is written in its place. If that fails too, the log rejects all
+	 * further appends: a record written after the torn one would be lost
+	 * when the log is opened again. Must be called under the append lock.
+	 */
+	private void discard(long start) {
+		try {
+			channel.truncate(start);
+			channel.position(start);
+		} catch (IOException ex) {
+			failed = true;
+		}
+	}
+
+	/**
+	 * Waits until the record with the given sequence number is on disk, if
+	 * the policy makes changes wait for that (cf. SyncPolicy).
+	 *
+	 * @param sequence
+	 * @throws IOException
+	 */
+	public void awaitDurable(long sequence) throws IOException {
+		if (policy != SyncPolicy.GROUP || durableSequence >= sequence) {
+			return;
+		}
+		synchronized (syncLock) {
+			// The fsync of the committer before us may have covered us
+			if (durableSequence >= sequence) {
+				return;
+			}
+			forceWritten();
+		}
+	}
+
+	/**
+	 * Forces all the records appended so far to disk.
+	 *
+	 * @throws IOException
+	 */
+	public void sync() throws IOException {
+		synchronized (syncLock) {
+			if (durableSequence < writtenSequence) {
+				forceWritten();
+			}
+		}
+	}
+
+	/**
+	 * Forces the records written so far. Must be called under the sync lock.
+	 */
+	private void forceWritten() throws IOException {
+		long target = writtenSequence;
+		channel.force(false);
+		syncs.increment();
+		if (target > durableSequence) {
+			durableSequence = target;
+		}
+	}
+
+	/**
+	 * Gives the records of the log to the visitor in order, starting after
+	 * the record with sequence number afterSequence.
+	 *
+	 * @param afterSequence
+	 * @param visitor
+	 * @throws IOException
+	 * @throws BookStoreException
+	 *             if the visitor failed
+	 */
+	public void read(long afterSequence, Visitor visitor) throws IOException,
+			BookStoreException {
+		scan(0, afterSequence, Long.MAX_VALUE, visitor);
+	}
+
+	/**
+	 * Gives the records of the log after the record with sequence number
+	 * afterSequence to the visitor as above, but starts reading at the offset
+	 * position where that record ended (cf. getPosition), so a restart from a
+	 * snapshot does not scan the records already in it. If the record at
+	 * position is not the one after afterSequence, e.g. because the log was
+	 * replaced, the log is read from the start.
+	 *
+	 * @param afterSequence
+	 * @param position
+	 * @param visitor
+	 * @throws IOException
+	 * @throws BookStoreException
+	 *             if the visitor failed
+	 */
+	public void read(long afterSequence, long position, Visitor visitor)
+			throws IOException, BookStoreException {
+		if (position > 0 && !startsAfter(position, afterSequence)) {
+			position = 0;
+		}
+		scan(position, afterSequence, Long.MAX_VALUE, visitor);
+	}
+
+	/**
+	 * Returns whether the records after afterSequence start at the offset
+	 * position: either the record there has the next sequence number, or
+	 * position is the end of the log and afterSequence its last record.
+	 */
+	private boolean startsAfter(long position, long afterSequence)
+			throws IOException {
+		if (position == writtenPosition) {
+			return afterSequence == writtenSequence;
+		}
+		if (position > writtenPosition - HEADER_SIZE) {
+			return false;
+		}
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		readFully(header, position);
+		return header.getLong(9) == afterSequence + 1;
+	}
+
+	/**
+	 * Opens a cursor at the start of the log.
+	 *
+	 * @return
+	 */
+	public Cursor openCursor() {
+		return new Cursor();
+	}
+
+	/**
+	 * Reads the records of the log in order a few at a time, remembering
+	 * where it stopped, so a reader that follows the log as it grows does
+	 * not scan it from the start every time (cf. LogShipper).
+	 */
+	public final class Cursor {
+		private long position = 0;
+		private long sequence = 0;
+
+		private Cursor() {
+		}
+
+		/**
+		 * Returns the sequence number of the last record read.
+		 *
+		 * @return
+		 */
+		public long getSequence() {
+			return sequence;
+		}
+
+		/**
+		 * Gives the records after the last one read, up to and including the
+		 * record with sequence number upToSequence, to the visitor, and
+		 * returns the number of records given. The visitor may be null to
+		 * skip the records.
+		 *
+		 * @param upToSequence
+		 * @param visitor
+		 * @return
+		 * @throws IOException
+		 * @throws BookStoreException
+		 *             if the visitor failed
+		 */
+		public int read(long upToSequence, final Visitor visitor)
+				throws IOException, BookStoreException {
+			final int[] count = new int[1];
+			position = scan(position, sequence, upToSequence, new Visitor() {
+				public void visit(long recordSequence, LogRecord record)
+						throws BookStoreException {
+					if (visitor != null) {
+						visitor.visit(recordSequence, record);
+					}
+					sequence = recordSequence;
+					count[0]++;
+				}
+			});
+			return count[0];
+		}
+	}
+
+	/**
+	 * Scans the log from the offset position, giving the records after
+	 * afterSequence up to upToSequence to the visitor if there is one, and
+	 * returns the offset after the last complete record up to upToSequence.
+	 */
+	private long scan(long position, long afterSequence, long upToSequence,
+			Visitor visitor) throws IOException, BookStoreException {
+		long size = channel.size();
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		long sequence = 0;
+		while (position + HEADER_SIZE <= size) {
+			header.clear();
+			readFully(header, position);
+			int length = header.getInt(0);
+			if (length < HEADER_SIZE - 8 || position + 8 + length > size) {
+				break;
+			}
+			ByteBuffer body = ByteBuffer.allocate(length);
+			readFully(body, position + 8);
+			if (crc(body, 0, length) != header.getInt(4)) {
+				break;
+			}
+			LogRecord.Type type = LogRecord.Type.fromCode(body.get(0));
+			if (type == null) {
+				break;
+			}
+			if (body.getLong(1) > upToSequence) {
+				break;
+			}
+			sequence = body.getLong(1);
+			if (visitor != null && sequence > afterSequence) {
+				LogRecord record = LogRecord.readFrom(type,
+						new DataInputStream(new ByteArrayInputStream(
+								body.array(), 9, length - 9)));
+				visitor.visit(sequence, record);
+			}
+			position += 8 + length;
+		}
+		if (visitor == null) {
+			lastSequence = sequence;
+		}
+		return position;
+	}
+
+	private void readFully(ByteBuffer buffer, long position)
+			throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Unexpected end of " + file);
+			}
+		}
+	}
+
+	private static int crc(ByteBuffer buffer, int from, int to) {
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), buffer.arrayOffset() + from, to - from);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Forces the log to disk and closes it.
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		synchronized (appendLock) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		}
+		if (syncer != null) {
+			syncer.interrupt();
+		}
+		synchronized (syncLock) {
+			channel.force(false);
+			durableSequence = writtenSequence;
+			channel.close();
+		}
+	}
+}
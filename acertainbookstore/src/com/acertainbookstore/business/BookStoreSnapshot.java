@@ -0,0 +1,283 @@
+package com.acertainbookstore.business;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.zip.CRC32;
+
+/**
+ * BookStoreSnapshot is a checkpoint of all the books of a store, together with
+ * the sequence number of the last record of the BookStoreLog it includes and
+ * the offset in the log after that record. A store is restarted by loading
+ * the snapshot and replaying only the records of the log from that offset.
+ *
+ * The file is written and read through memory mapped windows of the file,
+ * so the books are copied straight between the page cache and the books
+ * without going through stream buffers. It is laid out as
+ *
+ * <pre>
+ * magic (int) | sequence (long) | log position (long) | books (int) | book*
+ *     | crc32 (int)
+ * </pre>
+ *
+ * where every book is its length (int) followed by its fields, and the crc
+ * covers the books. A snapshot is written to a temporary file that is moved
+ * over the old snapshot when it is complete, so a crash while checkpointing
+ * leaves the old snapshot in place.
+ */
+public class BookStoreSnapshot {
+	private static final int MAGIC = 0x424b534e;
+	private static final int HEADER_SIZE = 4 + 8 + 8 + 4;
+	private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Is given the books of a snapshot, cf. read.
+	 */
+	public interface Visitor {
+		void visit(StockBook book);
+	}
+
+	private final File file;
+	private final long sequence;
+	private final long logPosition;
+	private final int numBooks;
+
+	private BookStoreSnapshot(File file, long sequence, long logPosition,
+			int numBooks) {
+		this.file = file;
+		this.sequence = sequence;
+		this.logPosition = logPosition;
+		this.numBooks = numBooks;
+	}
+
+	/**
+	 * Opens the snapshot in file and reads its header.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static BookStoreSnapshot open(File file) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.READ);
+		try {
+			if (channel.size() < HEADER_SIZE + 4) {
+				throw new IOException("The snapshot " + file + " is truncated");
+			}
+			MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY,
+					0, HEADER_SIZE);
+			if (header.getInt() != MAGIC) {
+				throw new IOException(file + " is not a snapshot");
+			}
+			return new BookStoreSnapshot(file, header.getLong(),
+					header.getLong(), header.getInt());
+		} finally {
+			channel.close();
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Returns the sequence number of the last log record in the snapshot.
+	 *
+	 * @return
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Returns the offset in the log after the last log record in the
+	 * snapshot, cf. BookStoreLog.getPosition.
+	 *
+	 * @return
+	 */
+	public long getLogPosition() {
+		return logPosition;
+	}
+
+	public int getNumBooks() {
+		return numBooks;
+	}
+
+	/**
+	 * Gives the books of the snapshot to the visitor.
+	 *
+	 * @param visitor
+	 * @throws IOException
+	 *             if the snapshot is damaged
+	 */
+	public void read(Visitor visitor) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			long position = HEADER_SIZE;
+			MappedByteBuffer window = null;
+			CRC32 crc = new CRC32();
+			byte[] record = new byte[256];
+			for (int i = 0; i < numBooks; i++) {
+				if (window == null || window.remaining() < 4) {
+					window = map(channel, position, 4, size);
+				}
+				int length = window.getInt(window.position());
+				if (length < 0 || position + 4 + length > size - 4) {
+					throw new IOException("The snapshot " + file
+							+ " is truncated");
+				}
+				if (window.remaining() < 4 + length) {
+					window = map(channel, position, 4 + length, size);
+				}
+				window.getInt();
+				if (record.length < length) {
+					record = new byte[Math.max(length, record.length * 2)];
+				}
+				window.get(record, 0, length);
+				crc.update(record, 0, length);
+				visitor.visit(decode(ByteBuffer.wrap(record, 0, length)));
+				position += 4 + length;
+			}
+			if (window == null || window.remaining() < 4) {
+				window = map(channel, position, 4, size);
+			}
+			if (window.getInt() != (int) crc.getValue()) {
+				throw new IOException("The snapshot " + file + " is damaged");
+			}
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Writes a snapshot of the books to file, replacing the snapshot in it if
+	 * there is one.
+	 *
+	 * @param file
+	 * @param sequence
+	 *            the sequence number of the last log record the books include
+	 * @param logPosition
+	 *            the offset in the log after that record
+	 * @param books
+	 * @throws IOException
+	 */
+	public static void write(File file, long sequence, long logPosition,
+			Collection<? extends StockBook> books) throws IOException {
+		File temporary = new File(file.getPath() + ".tmp");
+		FileChannel channel = FileChannel.open(temporary.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			MappedByteBuffer window = channel.map(
+					FileChannel.MapMode.READ_WRITE, 0, WINDOW_SIZE);
+			long position = 0;
+			window.putInt(MAGIC);
+			window.putLong(sequence);
+			window.putLong(logPosition);
+			window.putInt(books.size());
+			position += HEADER_SIZE;
+
+			CRC32 crc = new CRC32();
+			ByteBuffer record = ByteBuffer.allocate(256);
+			for (StockBook book : books) {
+				record = encode(book, record);
+				int length = record.remaining();
+				if (window.remaining() < 4 + length) {
+					window.force();
+					window = channel.map(FileChannel.MapMode.READ_WRITE,
+							position, Math.max(WINDOW_SIZE, 4 + length));
+				}
+				window.putInt(length);
+				crc.update(record.array(), 0, length);
+				window.put(record);
+				position += 4 + length;
+			}
+			if (window.remaining() < 4) {
+				window.force();
+				window = channel.map(FileChannel.MapMode.READ_WRITE, position,
+						4);
+			}
+			window.putInt((int) crc.getValue());
+			position += 4;
+			window.force();
+			// Mapping the last window grew the file past the snapshot
+			channel.truncate(position);
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+		Files.move(temporary.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Maps a window for reading at position that holds at least needed bytes,
+	 * if the file has them.
+	 */
+	private static MappedByteBuffer map(FileChannel channel, long position,
+			int needed, long size) throws IOException {
+		return channel.map(FileChannel.MapMode.READ_ONLY, position,
+				Math.min(Math.max(WINDOW_SIZE, needed), size - position));
+	}
+
+	/**
+	 * Encodes the fields of the book into record, or into a larger buffer if
+	 * it does not fit, and returns the buffer flipped for reading.
+	 */
+	static ByteBuffer encode(StockBook book, ByteBuffer record) {
+		byte[] title = book.getTitle().getBytes(UTF8);
+		byte[] author = book.getAuthor().getBytes(UTF8);
+		int length = 4 + 4 + title.length + 4 + author.length + 4 + 4 + 8 + 8
+				+ 8 + 1;
+		if (record.capacity() < length) {
+			record = ByteBuffer.allocate(Math.max(length,
+					record.capacity() * 2));
+		}
+		record.clear();
+		record.putInt(book.getISBN());
+		record.putInt(title.length);
+		record.put(title);
+		record.putInt(author.length);
+		record.put(author);
+		record.putFloat(book.getPrice());
+		record.putInt(book.getNumCopies());
+		record.putLong(book.getSaleMisses());
+		record.putLong(book.getTimesRated());
+		record.putLong(book.getTotalRating());
+		record.put((byte) (book.isEditorPick() ? 1 : 0));
+		record.flip();
+		return record;
+	}
+
+	/**
+	 * Decodes a book encoded by encode. The record must be backed by an array.
+	 */
+	static StockBook decode(ByteBuffer record) {
+		int ISBN = record.getInt();
+		String title = decodeString(record);
+		String author = decodeString(record);
+		return new ImmutableStockBook(ISBN, title, author, record.getFloat(),
+				record.getInt(), record.getLong(), record.getLong(),
+				record.getLong(), record.get() != 0);
+	}
+
+	private static String decodeString(ByteBuffer record) {
+		int length = record.getInt();
+		String string = new String(record.array(), record.arrayOffset()
+				+ record.position(), length, UTF8);
+		record.position(record.position() + length);
+		return string;
+	}
+}
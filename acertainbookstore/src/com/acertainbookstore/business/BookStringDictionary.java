@@ -0,0 +1,144 @@
+package com.acertainbookstore.business;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * BookStringDictionary deduplicates the titles and authors of the books of a
+ * store. Every distinct string is kept once and gets a small int id, so a book
+ * only has to hold the id (cf. ColumnarBookStorage) or a reference to the
+ * canonical string (cf. BookStoreBook). Authors repeat a lot across the
+ * catalog, so this saves one string per book for most of them.
+ *
+ * The dictionary counts the books that use each string. A string and its id
+ * are dropped when the last book that uses it is removed, and the id is reused
+ * for a later string.
+ *
+ * Changes are synchronized on the dictionary. lookup takes no lock, the
+ * caller must have got the id under the same lock of the store that guarded
+ * the call to intern.
+ */
+public class BookStringDictionary {
+	private static final int INITIAL_CAPACITY = 64;
+
+	private final Map<String, Integer> ids = new HashMap<String, Integer>();
+	private String[] strings = new String[INITIAL_CAPACITY];
+	private int[] refCounts = new int[INITIAL_CAPACITY];
+	private int[] freeIds = new int[INITIAL_CAPACITY];
+	private int numFreeIds = 0;
+	private int nextId = 0;
+
+	/**
+	 * Returns the id of the string, adding it to the dictionary if needed, and
+	 * counts one more use of it. Each call must be matched by one call to
+	 * release when the book is removed.
+	 *
+	 * @param string
+	 * @return
+	 */
+	public synchronized int intern(String string) {
+		Integer id = ids.get(string);
+		if (id != null) {
+			refCounts[id]++;
+			return id;
+		}
+
+		int newId;
+		if (numFreeIds > 0) {
+			newId = freeIds[--numFreeIds];
+		} else {
+			if (nextId == strings.length) {
+				grow();
+			}
+			newId = nextId++;
+		}
+		strings[newId] = string;
+		refCounts[newId] = 1;
+		ids.put(string, newId);
+		return newId;
+	}
+
+	/**
+	 * Returns the canonical copy of the string and counts one more use of it,
+	 * cf. intern.
+	 *
+	 * @param string
+	 * @return
+	 */
+	public synchronized String canonicalize(String string) {
+		// intern may grow the array, so it must run before the array is read
+		int id = intern(string);
+		return strings[id];
+	}
+
+	/**
+	 * Returns the string with the given id.
+	 *
+	 * @param id
+	 * @return
+	 */
+	public String lookup(int id) {
+		return strings[id];
+	}
+
+	/**
+	 * Counts one less use of the string with the given id and drops the string
+	 * when it is not used anymore.
+	 *
+	 * @param id
+	 */
+	public synchronized void release(int id) {
+		if (--refCounts[id] > 0) {
+			return;
+		}
+		ids.remove(strings[id]);
+		strings[id] = null;
+		if (numFreeIds == freeIds.length) {
+			int[] grown = new int[freeIds.length * 2];
+			System.arraycopy(freeIds, 0, grown, 0, numFreeIds);
+			freeIds = grown;
+		}
+		freeIds[numFreeIds++] = id;
+	}
+
+	/**
+	 * Counts one less use of the string, cf. release(int).
+	 *
+	 * @param string
+	 */
+	public synchronized void release(String string) {
+		Integer id = ids.get(string);
+		if (id != null) {
+			release(id.intValue());
+		}
+	}
+
+	/**
+	 * Returns the number of distinct strings in the dictionary.
+	 *
+	 * @return
+	 */
+	public synchronized int size() {
+		return ids.size();
+	}
+
+	/**
+	 * Removes all the strings.
+	 */
+	public synchronized void clear() {
+		ids.clear();
+		strings = new String[INITIAL_CAPACITY];
+		refCounts = new int[INITIAL_CAPACITY];
+		numFreeIds = 0;
+		nextId = 0;
+	}
+
+	private void grow() {
+		String[] grownStrings = new String[strings.length * 2];
+		int[] grownRefCounts = new int[strings.length * 2];
+		System.arraycopy(strings, 0, grownStrings, 0, nextId);
+		System.arraycopy(refCounts, 0, grownRefCounts, 0, nextId);
+		strings = grownStrings;
+		refCounts = grownRefCounts;
+	}
+}
@@ -0,0 +1,215 @@
+package com.acertainbookstore.business;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * BookTiering keeps the heap of a ConcurrentCertainBookStore proportional to
+ * the books that are used. Every access to a book heats it up (cf.
+ * BookStoreBook.touch), and when more than maxHotBooks books are on the heap
+ * a background thread makes eviction passes over them: each pass halves the
+ * heat of the books, and the books that were already cold are paged out to a
+ * ColdBookFile until only the target number of books is left. A book that
+ * was used recently or often survives a few passes, so the policy is a CLOCK
+ * with a small frequency count.
+ *
+ * A paged out book is faulted back onto the heap by the first operation that
+ * needs it. The books that an index refers to (editor picks, rated books,
+ * books in demand) and books on flash sale are never paged out.
+ *
+ * The store faults books in while it holds the monitor of the tiering, and
+ * pages them out while it holds its master write lock.
+ */
+public class BookTiering {
+	/**
+	 * The highest heat of a book, a book is paged out after at most this many
+	 * passes plus one without being used.
+	 */
+	static final int MAX_HEAT = 3;
+
+	private final ColdBookFile coldBooks;
+	private final int maxHotBooks;
+	private final ExecutorService background;
+	private final AtomicBoolean evictionScheduled = new AtomicBoolean();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder faults = new LongAdder();
+	private final LongAdder faultNanos = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder evictionFailures = new LongAdder();
+
+	/**
+	 * The hit and fault statistics of a BookTiering.
+	 */
+	public static final class Statistics {
+		private final long hits;
+		private final long faults;
+		private final long faultNanos;
+		private final long evictions;
+		private final long evictionFailures;
+		private final int coldBooks;
+
+		private Statistics(long hits, long faults, long faultNanos,
+				long evictions, long evictionFailures, int coldBooks) {
+			this.hits = hits;
+			this.faults = faults;
+			this.faultNanos = faultNanos;
+			this.evictions = evictions;
+			this.evictionFailures = evictionFailures;
+			this.coldBooks = coldBooks;
+		}
+
+		/**
+		 * Returns the number of accesses that found the book on the heap.
+		 */
+		public long getHits() {
+			return hits;
+		}
+
+		/**
+		 * Returns the number of accesses that faulted the book back in.
+		 */
+		public long getFaults() {
+			return faults;
+		}
+
+		/**
+		 * Returns the share of the accesses that found the book on the heap.
+		 */
+		public double getHitRatio() {
+			long accesses = hits + faults;
+			return (accesses == 0) ? 1.0 : (double) hits / accesses;
+		}
+
+		/**
+		 * Returns the total time spent faulting books back in.
+		 */
+		public long getFaultNanos() {
+			return faultNanos;
+		}
+
+		/**
+		 * Returns the average time it took to fault a book back in.
+		 */
+		public long getAverageFaultNanos() {
+			return (faults == 0) ? 0 : faultNanos / faults;
+		}
+
+		/**
+		 * Returns the number of books paged out.
+		 */
+		public long getEvictions() {
+			return evictions;
+		}
+
+		/**
+		 * Returns the number of background eviction runs that stopped
+		 * because books could not be written to the cold file.
+		 */
+		public long getEvictionFailures() {
+			return evictionFailures;
+		}
+
+		/**
+		 * Returns the number of books that are paged out now.
+		 */
+		public int getColdBooks() {
+			return coldBooks;
+		}
+	}
+
+	/**
+	 * Creates the tiering of a store that keeps at most about maxHotBooks
+	 * books on the heap and pages the others out to coldFile.
+	 *
+	 * @param coldFile
+	 * @param maxHotBooks
+	 * @throws IOException
+	 */
+	public BookTiering(File coldFile, int maxHotBooks) throws IOException {
+		if (maxHotBooks <= 0) {
+			throw new IllegalArgumentException("maxHotBooks = " + maxHotBooks
+					+ ", but it must be positive");
+		}
+		this.coldBooks = new ColdBookFile(coldFile);
+		this.maxHotBooks = maxHotBooks;
+		background = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "bookstore-tiering");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	public ColdBookFile getColdBooks() {
+		return coldBooks;
+	}
+
+	public int getMaxHotBooks() {
+		return maxHotBooks;
+	}
+
+	/**
+	 * Returns the number of books an eviction pass leaves on the heap. It is
+	 * below maxHotBooks, so the passes do not run after every fault.
+	 *
+	 * @return
+	 */
+	public int getTargetHotBooks() {
+		return maxHotBooks - maxHotBooks / 4;
+	}
+
+	/**
+	 * Runs the eviction on the background thread, unless it is already
+	 * scheduled.
+	 *
+	 * @param eviction
+	 */
+	public void scheduleEviction(final Runnable eviction) {
+		if (evictionScheduled.compareAndSet(false, true)) {
+			background.execute(new Runnable() {
+				public void run() {
+					evictionScheduled.set(false);
+					eviction.run();
+				}
+			});
+		}
+	}
+
+	public void hit() {
+		hits.increment();
+	}
+
+	public void faulted(long nanos) {
+		faults.increment();
+		faultNanos.add(nanos);
+	}
+
+	public void evicted(int numBooks) {
+		evictions.add(numBooks);
+	}
+
+	public void evictionFailed() {
+		evictionFailures.increment();
+	}
+
+	public Statistics getStatistics() {
+		return new Statistics(hits.sum(), faults.sum(), faultNanos.sum(),
+				evictions.sum(), evictionFailures.sum(), coldBooks.size());
+	}
+
+	/**
+	 * Stops the background thread and deletes the cold file.
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		background.shutdownNow();
+		coldBooks.close();
+	}
+}
@@ -0,0 +1,46 @@
+package com.acertainbookstore.business;
+
+/**
+ * One committed version of a BookStoreBook. The versions of a book form a
+ * chain from the newest to the oldest, each tagged with the commit epoch in
+ * which it was published (cf. BookVersionManager).
+ *
+ */
+public final class BookVersion {
+	private final long epoch;
+	private final StockBook stockBook;
+	private volatile BookVersion previous;
+
+	/**
+	 * Creates a version of a book.
+	 *
+	 * @param epoch
+	 * @param stockBook
+	 * @param previous
+	 */
+	public BookVersion(long epoch, StockBook stockBook, BookVersion previous) {
+		this.epoch = epoch;
+		this.stockBook = stockBook;
+		this.previous = previous;
+	}
+
+	public long getEpoch() {
+		return epoch;
+	}
+
+	public StockBook getStockBook() {
+		return stockBook;
+	}
+
+	public BookVersion getPrevious() {
+		return previous;
+	}
+
+	/**
+	 * Cuts the chain after this version, so the older versions can be
+	 * garbage collected.
+	 */
+	public void dropPrevious() {
+		this.previous = null;
+	}
+}
@@ -0,0 +1,169 @@
+package com.acertainbookstore.business;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * BookVersionManager implements multi-version concurrency control for the
+ * books of a store. Every commit publishes a new BookVersion of each book it
+ * changed, tagged with a new global commit epoch. A reader opens a Snapshot at
+ * the latest stable epoch and reads the newest version of each book that is
+ * not newer than that epoch, so it sees a consistent state of all the books
+ * without taking any per-book locks.
+ *
+ * The stock of a book on flash sale is not versioned: it lives in a
+ * StripedStockCounter that buyers decrement without a commit, and a snapshot
+ * reads its current sum. A snapshot may therefore see the copies that a
+ * purchase of several books took from a book on flash sale, but not yet the
+ * copies it took from the other books. The stock is versioned again from the
+ * commit that ends the flash sale.
+ *
+ * Commits take their epochs from a counter and publish them in epoch order
+ * with a compare-and-set on the stable epoch, so a commit only waits for the
+ * commits with older epochs to finish publishing their versions. The callers
+ * hold the write locks of the books, so the commits of one book never overlap.
+ *
+ * Old versions are cut from the chains once no open snapshot can read them
+ * anymore. Every HORIZON_REFRESH_INTERVAL commits, one committer scans the
+ * open snapshots outside of any lock: it first raises the reclaim horizon and
+ * then re-checks the open snapshots before moving the prune horizon, while a
+ * reader first registers its snapshot and then checks that its epoch is not
+ * below the reclaim horizon. Either the scan sees the new snapshot or the
+ * reader sees the new horizon and retries, so a version is never cut while a
+ * snapshot still needs it. Commits prune the books they changed to the last
+ * prune horizon.
+ */
+public class BookVersionManager {
+	private static final int HORIZON_REFRESH_INTERVAL = 32;
+
+	private final Set<Snapshot> openSnapshots = Collections
+			.newSetFromMap(new ConcurrentHashMap<Snapshot, Boolean>());
+	private final AtomicLong nextEpoch = new AtomicLong(0);
+	private final AtomicLong stableEpoch = new AtomicLong(0);
+	private final AtomicBoolean refreshingHorizon = new AtomicBoolean(false);
+	private volatile long reclaimHorizon = 0;
+	private volatile long pruneHorizon = 0;
+
+	/**
+	 * A consistent view of all the books as of an epoch. Must be closed when
+	 * the reader is done.
+	 */
+	public class Snapshot {
+		private final long epoch;
+
+		private Snapshot(long epoch) {
+			this.epoch = epoch;
+		}
+
+		public long getEpoch() {
+			return epoch;
+		}
+
+		/**
+		 * Returns the state of the book as of the snapshot epoch, or null if
+		 * the book did not exist yet. The sale misses, the ratings and the
+		 * stock of a book on flash sale are not versioned, they are the live
+		 * values (cf. BookStoreBook).
+		 *
+		 * @param book
+		 * @return
+		 */
+		public StockBook read(BookStoreBook book) {
+			BookVersion version = book.getLatestVersion();
+			while (version != null && version.getEpoch() > epoch) {
+				version = version.getPrevious();
+			}
+			return (version == null) ? null : book.withLiveCounters(version
+					.getStockBook());
+		}
+
+		public void close() {
+			openSnapshots.remove(this);
+		}
+	}
+
+	/**
+	 * Returns the epoch of the latest commit visible to readers.
+	 *
+	 * @return
+	 */
+	public long getStableEpoch() {
+		return stableEpoch.get();
+	}
+
+	/**
+	 * Opens a snapshot at the latest stable epoch.
+	 *
+	 * @return
+	 */
+	public Snapshot openSnapshot() {
+		while (true) {
+			Snapshot snapshot = new Snapshot(stableEpoch.get());
+			openSnapshots.add(snapshot);
+			if (snapshot.epoch >= reclaimHorizon) {
+				return snapshot;
+			}
+			openSnapshots.remove(snapshot);
+		}
+	}
+
+	/**
+	 * Publishes the current state of the books as a new version in a new
+	 * epoch. The caller must hold the write locks of the books, so that their
+	 * state does not change while it is published.
+	 *
+	 * @param books
+	 */
+	public void commit(Collection<BookStoreBook> books) {
+		long epoch = nextEpoch.incrementAndGet();
+		for (BookStoreBook book : books) {
+			book.publishVersion(epoch);
+		}
+		// The commits with older epochs only have versions left to publish
+		while (!stableEpoch.compareAndSet(epoch - 1, epoch)) {
+			Thread.yield();
+		}
+
+		if (epoch % HORIZON_REFRESH_INTERVAL == 0) {
+			refreshHorizon();
+		}
+		long horizon = pruneHorizon;
+		for (BookStoreBook book : books) {
+			book.pruneVersions(horizon);
+		}
+	}
+
+	/**
+	 * Moves the prune horizon up to the oldest open snapshot, unless another
+	 * committer is already doing so.
+	 */
+	private void refreshHorizon() {
+		if (!refreshingHorizon.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			long horizon = Math.min(oldestOpenSnapshot(), stableEpoch.get());
+			if (horizon > reclaimHorizon) {
+				reclaimHorizon = horizon;
+			}
+			horizon = Math.min(horizon, oldestOpenSnapshot());
+			if (horizon > pruneHorizon) {
+				pruneHorizon = horizon;
+			}
+		} finally {
+			refreshingHorizon.set(false);
+		}
+	}
+
+	private long oldestOpenSnapshot() {
+		long oldest = Long.MAX_VALUE;
+		for (Snapshot snapshot : openSnapshots) {
+			oldest = Math.min(oldest, snapshot.epoch);
+		}
+		return oldest;
+	}
+}
@@ -0,0 +1,27 @@
+package com.acertainbookstore.business;
+
+/**
+ * BulkLoadListener is told about the progress of a bulk load, cf.
+ * ConcurrentCertainBookStore.bulkAddBooks. It is called from the threads that
+ * prepare the books, so it must be thread-safe.
+ */
+public interface BulkLoadListener {
+
+	/**
+	 * Called after a batch of books was validated and prepared.
+	 *
+	 * @param prepared
+	 *            the number of books prepared so far
+	 * @param total
+	 *            the number of books being loaded
+	 */
+	public void prepared(int prepared, int total);
+
+	/**
+	 * Called once the books were published to the store.
+	 *
+	 * @param total
+	 *            the number of books loaded
+	 */
+	public void published(int total);
+}
@@ -0,0 +1,78 @@
+package com.acertainbookstore.business;
+
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreUtility;
+
+/**
+ * BulkLoadTask validates a range of the books of a bulk load and turns them
+ * into BookStoreBooks, splitting the range in halves until it is small enough
+ * to do in one go. The first invalid book is recorded in the error and stops
+ * the remaining work; the books already built are left for the caller to
+ * release.
+ */
+class BulkLoadTask extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+	private static final int BATCH_SIZE = 4096;
+
+	private final StockBook[] books;
+	private final BookStoreBook[] built;
+	private final int from;
+	private final int to;
+	private final BookStringDictionary strings;
+	private final AtomicReference<BookStoreException> error;
+	private final AtomicInteger prepared;
+	private final BulkLoadListener listener;
+
+	BulkLoadTask(StockBook[] books, BookStoreBook[] built, int from, int to,
+			BookStringDictionary strings,
+			AtomicReference<BookStoreException> error, AtomicInteger prepared,
+			BulkLoadListener listener) {
+		this.books = books;
+		this.built = built;
+		this.from = from;
+		this.to = to;
+		this.strings = strings;
+		this.error = error;
+		this.prepared = prepared;
+		this.listener = listener;
+	}
+
+	@Override
+	protected void compute() {
+		if (to - from > BATCH_SIZE) {
+			int middle = (from + to) >>> 1;
+			invokeAll(new BulkLoadTask(books, built, from, middle, strings,
+					error, prepared, listener), new BulkLoadTask(books, built,
+					middle, to, strings, error, prepared, listener));
+			return;
+		}
+		for (int i = from; i < to; i++) {
+			if (error.get() != null) {
+				return;
+			}
+			StockBook book = books[i];
+			if (book == null || BookStoreUtility.isInvalidISBN(book.getISBN())
+					|| BookStoreUtility.isEmpty(book.getTitle())
+					|| BookStoreUtility.isEmpty(book.getAuthor())
+					|| BookStoreUtility.isInvalidNoCopies(book.getNumCopies())
+					|| book.getPrice() < 0.0) {
+				error.compareAndSet(null, new BookStoreException(
+						BookStoreConstants.BOOK + book
+								+ BookStoreConstants.INVALID));
+				return;
+			}
+			built[i] = new BookStoreBook(book, strings);
+			// Made here, so publishing the first version only links it in
+			built[i].immutableStockBook();
+		}
+		int done = prepared.addAndGet(to - from);
+		if (listener != null) {
+			listener.prepared(done, books.length);
+		}
+	}
+}
@@ -3,16 +3,13 @@
  */
 package com.acertainbookstore.business;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 import com.acertainbookstore.interfaces.BookStore;
 import com.acertainbookstore.interfaces.StockManager;
@@ -23,16 +20,318 @@ import com.acertainbookstore.utils.BookStoreUtility;
 /**
  * CertainBookStore implements the bookstore and its functionality which is
  * defined in the BookStore
+ *
+ * If it is given a BookStoreLog, every change is appended to the log under
+ * the lock of the store before it is applied, and the call waits for the log
+ * to make the record durable only after it released the lock, so concurrent
+ * changes share the fsync of the log (cf. SyncPolicy). A checkpoint writes
+ * the books to a BookStoreSnapshot, so a restart only reads and replays the
+ * records of the log after it. The records are replayed in parallel by ISBN, cf.
+ * ParallelLogReplay.
  */
 public class CertainBookStore implements BookStore, StockManager {
-	private Map<Integer, BookStoreBook> bookMap = null;
+	private ConcurrentIntHashMap<BookStoreBook> bookMap = null;
+	private final BookStringDictionary bookStrings = new BookStringDictionary();
+	private final EditorPickIndex<BookStoreBook> editorPickIndex = new EditorPickIndex<BookStoreBook>();
+	private final TopRatedIndex<BookStoreBook> topRatedIndex = new TopRatedIndex<BookStoreBook>();
+	private final InDemandIndex<BookStoreBook> inDemandIndex = new InDemandIndex<BookStoreBook>();
+	private BookStoreLog log = null;
+	private final Object checkpointLock = new Object();
 
 	public CertainBookStore() {
 		// Constructors are not synchronized
-		bookMap = new HashMap<Integer, BookStoreBook>();
+		bookMap = new ConcurrentIntHashMap<BookStoreBook>();
 	}
 
-	public synchronized void addBooks(Set<StockBook> bookSet)
+	/**
+	 * Creates a store that rebuilds its books from the records of the log and
+	 * then appends its changes to it.
+	 *
+	 * @param log
+	 * @throws BookStoreException
+	 */
+	public CertainBookStore(BookStoreLog log) throws BookStoreException {
+		this(null, log);
+	}
+
+	/**
+	 * Creates a store that loads the books of the snapshot in snapshotFile,
+	 * if there is one, replays the records of the log after the snapshot and
+	 * then appends its changes to the log.
+	 *
+	 * @param snapshotFile
+	 * @param log
+	 * @throws BookStoreException
+	 */
+	public CertainBookStore(File snapshotFile, BookStoreLog log)
+			throws BookStoreException {
+		this(snapshotFile, log, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Creates a store from the snapshot and the log as above, replaying the
+	 * log with replayThreads threads. With one thread the records are replayed
+	 * one after the other.
+	 *
+	 * @param snapshotFile
+	 * @param log
+	 * @param replayThreads
+	 * @throws BookStoreException
+	 */
+	public CertainBookStore(File snapshotFile, BookStoreLog log,
+			int replayThreads) throws BookStoreException {
+		this();
+		long sequence = 0;
+		long position = 0;
+		if (snapshotFile != null && snapshotFile.exists()) {
+			BookStoreSnapshot snapshot = loadSnapshot(snapshotFile);
+			sequence = snapshot.getSequence();
+			position = snapshot.getLogPosition();
+		}
+		try {
+			if (replayThreads <= 1) {
+				log.read(sequence, position, new BookStoreLog.Visitor() {
+					public void visit(long sequence, LogRecord record)
+							throws BookStoreException {
+						replay(record);
+					}
+				});
+			} else {
+				replayInParallel(log, sequence, position, replayThreads);
+			}
+		} catch (IOException ex) {
+			throw new BookStoreException(BookStoreConstants.LOG_FAILED, ex);
+		}
+		this.log = log;
+	}
+
+	private void replayInParallel(BookStoreLog log, long afterSequence,
+			long position, int replayThreads) throws IOException, BookStoreException {
+		ForkJoinPool pool = new ForkJoinPool(replayThreads);
+		try {
+			ParallelLogReplay replay = new ParallelLogReplay(
+					new ParallelLogReplay.Target() {
+						public void apply(LogRecord record)
+								throws BookStoreException {
+							replay(record);
+						}
+
+						public void applyPart(LogRecord record, int i) {
+							replayPart(record, i);
+						}
+					}, pool);
+			log.read(afterSequence, position, replay);
+			replay.finish();
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Loads the books of the snapshot in file and returns the snapshot, which
+	 * tells where the log records after it start.
+	 */
+	private synchronized BookStoreSnapshot loadSnapshot(File file)
+			throws BookStoreException {
+		try {
+			BookStoreSnapshot snapshot = BookStoreSnapshot.open(file);
+			bookMap.ensureCapacity(snapshot.getNumBooks());
+			snapshot.read(new BookStoreSnapshot.Visitor() {
+				public void visit(StockBook book) {
+					putBook(book);
+				}
+			});
+			return snapshot;
+		} catch (IOException ex) {
+			throw new BookStoreException(BookStoreConstants.SNAPSHOT_FAILED,
+					ex);
+		}
+	}
+
+	/**
+	 * Writes a snapshot of the books to file. The store is only locked while
+	 * the books are copied, the snapshot is written while the store goes on
+	 * serving. Returns the sequence number of the last log record in the
+	 * snapshot.
+	 *
+	 * @param file
+	 * @return
+	 * @throws BookStoreException
+	 */
+	public long checkpoint(File file) throws BookStoreException {
+		synchronized (checkpointLock) {
+			List<StockBook> books;
+			long sequence;
+			long position;
+			synchronized (this) {
+				books = getBooks();
+				// Changes are appended under the lock, so the position is
+				// where the record after sequence will start
+				sequence = (log == null) ? 0 : log.getLastSequence();
+				position = (log == null) ? 0 : log.getPosition();
+			}
+			try {
+				// The records in the snapshot must not be lost from the log,
+				// or the records appended after a restart would reuse their
+				// sequence numbers
+				if (log != null) {
+					log.sync();
+				}
+				BookStoreSnapshot.write(file, sequence, position, books);
+			} catch (IOException ex) {
+				throw new BookStoreException(
+						BookStoreConstants.SNAPSHOT_FAILED, ex);
+			}
+			return sequence;
+		}
+	}
+
+	/**
+	 * Returns the log of the store, or null if it has none.
+	 *
+	 * @return
+	 */
+	public BookStoreLog getLog() {
+		return log;
+	}
+
+	/**
+	 * Applies a record shipped from the log of a primary store to this
+	 * replica, cf. LogReceiver. The store must not have a log of its own.
+	 *
+	 * @param record
+	 * @throws BookStoreException
+	 *             if the record does not apply to the books of the store
+	 */
+	public void apply(LogRecord record) throws BookStoreException {
+		if (log != null) {
+			throw new IllegalStateException(
+					"A store with a log can not apply shipped records");
+		}
+		replay(record);
+	}
+
+	/**
+	 * Applies a record of the log. Called while the store has no log yet, so
+	 * nothing is logged again.
+	 */
+	private synchronized void replay(LogRecord record)
+			throws BookStoreException {
+		switch (record.getType()) {
+		case ADD_BOOKS:
+			applyAddBooks(new HashSet<StockBook>(record.getBooks()));
+			break;
+		case ADD_COPIES:
+			applyAddCopies(record.getBookCopies());
+			break;
+		case BUY_BOOKS:
+			applyBuyBooks(record.getBookCopies());
+			break;
+		case SALE_MISSES:
+			for (int i = 0; i < record.size(); i++) {
+				BookStoreBook book = bookMap.get(record.getISBN(i));
+				book.addSaleMiss();
+				inDemandIndex.add(book);
+			}
+			break;
+		case UPDATE_EDITOR_PICKS:
+			applyUpdateEditorPicks(record.getEditorPicks());
+			break;
+		case RATE_BOOKS:
+			applyRateBooks(record.getBookRatings());
+			break;
+		case REMOVE_BOOKS:
+			applyRemoveBooks(record.getIsbnSet());
+			break;
+		case REMOVE_ALL_BOOKS:
+			applyRemoveAllBooks();
+			break;
+		}
+	}
+
+	/**
+	 * Applies the part of a record of the log for one ISBN. Only called while
+	 * the store is recovered, concurrently for different books, so it takes
+	 * no lock of the store and relies on the indexes being thread safe.
+	 */
+	private void replayPart(LogRecord record, int i) {
+		BookStoreBook book;
+		switch (record.getType()) {
+		case ADD_BOOKS:
+			putBook(record.getBooks().get(i));
+			break;
+		case ADD_COPIES:
+			bookMap.get(record.getISBN(i)).addCopies(record.getValue(i));
+			inDemandIndex.remove(record.getISBN(i));
+			break;
+		case BUY_BOOKS:
+			bookMap.get(record.getISBN(i)).buyCopies(record.getValue(i));
+			break;
+		case SALE_MISSES:
+			book = bookMap.get(record.getISBN(i));
+			book.addSaleMiss();
+			inDemandIndex.add(book);
+			break;
+		case UPDATE_EDITOR_PICKS:
+			book = bookMap.get(record.getISBN(i));
+			book.setEditorPick(record.getValue(i) != 0);
+			if (book.isEditorPick()) {
+				editorPickIndex.add(book);
+			} else {
+				editorPickIndex.remove(book.getISBN());
+			}
+			break;
+		case RATE_BOOKS:
+			book = bookMap.get(record.getISBN(i));
+			book.addRating(record.getValue(i));
+			topRatedIndex.update(book, book.getTotalRating(),
+					book.getTimesRated());
+			break;
+		case REMOVE_BOOKS:
+			dropBook(record.getISBN(i));
+			break;
+		case REMOVE_ALL_BOOKS:
+			throw new IllegalArgumentException(record.getType()
+					+ " has no parts");
+		}
+	}
+
+	/**
+	 * Appends the record to the log, if there is one, and returns its
+	 * sequence number. Must be called before the change is applied.
+	 */
+	private long log(LogRecord record) throws BookStoreException {
+		if (log == null) {
+			return 0;
+		}
+		try {
+			return log.append(record);
+		} catch (IOException ex) {
+			throw new BookStoreException(BookStoreConstants.LOG_FAILED, ex);
+		}
+	}
+
+	/**
+	 * Waits until the record with the given sequence number is durable. Must
+	 * be called without holding the lock of the store, so the changes waiting
+	 * at the same time share one fsync.
+	 */
+	private void awaitDurable(long sequence) throws BookStoreException {
+		if (sequence == 0) {
+			return;
+		}
+		try {
+			log.awaitDurable(sequence);
+		} catch (IOException ex) {
+			throw new BookStoreException(BookStoreConstants.LOG_FAILED, ex);
+		}
+	}
+
+	public void addBooks(Set<StockBook> bookSet) throws BookStoreException {
+		awaitDurable(applyAddBooks(bookSet));
+	}
+
+	private synchronized long applyAddBooks(Set<StockBook> bookSet)
 			throws BookStoreException {
 
 		if (bookSet == null) {
@@ -58,14 +357,35 @@ public class CertainBookStore implements BookStore, StockManager {
 			}
 		}
 
+		long sequence = log(LogRecord.addBooks(bookSet));
 		for (StockBook book : bookSet) {
-			int ISBN = book.getISBN();
-			bookMap.put(ISBN, new BookStoreBook(book));
+			putBook(book);
+		}
+		return sequence;
+	}
+
+	/**
+	 * Adds a validated book to the map and the indexes.
+	 */
+	private void putBook(StockBook book) {
+		BookStoreBook addedBook = new BookStoreBook(book, bookStrings);
+		bookMap.put(book.getISBN(), addedBook);
+		if (addedBook.isEditorPick()) {
+			editorPickIndex.add(addedBook);
+		}
+		topRatedIndex.update(addedBook, addedBook.getTotalRating(),
+				addedBook.getTimesRated());
+		if (addedBook.hadSaleMiss()) {
+			inDemandIndex.add(addedBook);
 		}
-		return;
 	}
 
-	public synchronized void addCopies(Set<BookCopy> bookCopiesSet)
+	public void addCopies(Set<BookCopy> bookCopiesSet)
+			throws BookStoreException {
+		awaitDurable(applyAddCopies(bookCopiesSet));
+	}
+
+	private synchronized long applyAddCopies(Set<BookCopy> bookCopiesSet)
 			throws BookStoreException {
 		int ISBN, numCopies;
 
@@ -88,6 +408,7 @@ public class CertainBookStore implements BookStore, StockManager {
 
 		}
 
+		long sequence = log(LogRecord.addCopies(bookCopiesSet));
 		BookStoreBook book;
 		// Update the number of copies
 		for (BookCopy bookCopy : bookCopiesSet) {
@@ -95,20 +416,26 @@ public class CertainBookStore implements BookStore, StockManager {
 			numCopies = bookCopy.getNumCopies();
 			book = bookMap.get(ISBN);
 			book.addCopies(numCopies);
+			inDemandIndex.remove(ISBN);
 		}
+		return sequence;
 	}
 
 	public synchronized List<StockBook> getBooks() {
 		List<StockBook> listBooks = new ArrayList<StockBook>();
-		Collection<BookStoreBook> bookMapValues = bookMap.values();
-		for (BookStoreBook book : bookMapValues) {
+		for (BookStoreBook book : bookMap.values()) {
 			listBooks.add(book.immutableStockBook());
 		}
 		return listBooks;
 	}
 
-	public synchronized void updateEditorPicks(Set<BookEditorPick> editorPicks)
+	public void updateEditorPicks(Set<BookEditorPick> editorPicks)
 			throws BookStoreException {
+		awaitDurable(applyUpdateEditorPicks(editorPicks));
+	}
+
+	private synchronized long applyUpdateEditorPicks(
+			Set<BookEditorPick> editorPicks) throws BookStoreException {
 		// Check that all ISBNs that we add/remove are there first.
 		if (editorPicks == null) {
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
@@ -126,14 +453,28 @@ public class CertainBookStore implements BookStore, StockManager {
 						+ BookStoreConstants.NOT_AVAILABLE);
 		}
 
+		long sequence = log(LogRecord.updateEditorPicks(editorPicks));
+		List<BookStoreBook> picked = new ArrayList<BookStoreBook>();
+		List<BookStoreBook> unpicked = new ArrayList<BookStoreBook>();
 		for (BookEditorPick editorPickArg : editorPicks) {
-			bookMap.get(editorPickArg.getISBN()).setEditorPick(
-					editorPickArg.isEditorPick());
+			BookStoreBook book = bookMap.get(editorPickArg.getISBN());
+			book.setEditorPick(editorPickArg.isEditorPick());
+			if (editorPickArg.isEditorPick()) {
+				picked.add(book);
+			} else {
+				unpicked.add(book);
+			}
 		}
-		return;
+		editorPickIndex.update(picked, unpicked);
+		return sequence;
 	}
 
-	public synchronized void buyBooks(Set<BookCopy> bookCopiesToBuy)
+	public void buyBooks(Set<BookCopy> bookCopiesToBuy)
+			throws BookStoreException {
+		awaitDurable(applyBuyBooks(bookCopiesToBuy));
+	}
+
+	private synchronized long applyBuyBooks(Set<BookCopy> bookCopiesToBuy)
 			throws BookStoreException {
 		if (bookCopiesToBuy == null) {
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
@@ -142,7 +483,7 @@ public class CertainBookStore implements BookStore, StockManager {
 		// Check that all ISBNs that we buy are there first.
 		int ISBN;
 		BookStoreBook book;
-		Boolean saleMiss = false;
+		List<Integer> missed = new ArrayList<Integer>();
 		for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
 			ISBN = bookCopyToBuy.getISBN();
 			if (bookCopyToBuy.getNumCopies() < 0)
@@ -157,24 +498,32 @@ public class CertainBookStore implements BookStore, StockManager {
 						+ BookStoreConstants.NOT_AVAILABLE);
 			book = bookMap.get(ISBN);
 			if (!book.areCopiesInStore(bookCopyToBuy.getNumCopies())) {
-				book.addSaleMiss(); // If we cannot sell the copies of the book
+				missed.add(ISBN); // If we cannot sell the copies of the book
 									// its a miss
-				saleMiss = true;
 			}
 		}
 
 		// We throw exception now since we want to see how many books in the
-		// order incurred misses which is used by books in demand
-		if (saleMiss)
+		// order incurred misses which is used by books in demand. The misses
+		// are logged, but the failed call does not wait for them.
+		if (!missed.isEmpty()) {
+			log(LogRecord.saleMisses(missed));
+			for (int missedISBN : missed) {
+				book = bookMap.get(missedISBN);
+				book.addSaleMiss();
+				inDemandIndex.add(book);
+			}
 			throw new BookStoreException(BookStoreConstants.BOOK
 					+ BookStoreConstants.NOT_AVAILABLE);
+		}
 
 		// Then make purchase
+		long sequence = log(LogRecord.buyBooks(bookCopiesToBuy));
 		for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
 			book = bookMap.get(bookCopyToBuy.getISBN());
 			book.buyCopies(bookCopyToBuy.getNumCopies());
 		}
-		return;
+		return sequence;
 	}
 
 	public synchronized List<StockBook> getBooksByISBN(Set<Integer> isbnSet)
@@ -231,43 +580,8 @@ public class CertainBookStore implements BookStore, StockManager {
 					+ ", but it must be positive");
 		}
 
-		List<BookStoreBook> listAllEditorPicks = new ArrayList<BookStoreBook>();
 		List<Book> listEditorPicks = new ArrayList<Book>();
-		Iterator<Entry<Integer, BookStoreBook>> it = bookMap.entrySet()
-				.iterator();
-		BookStoreBook book;
-
-		// Get all books that are editor picks
-		while (it.hasNext()) {
-			Entry<Integer, BookStoreBook> pair = (Entry<Integer, BookStoreBook>) it
-					.next();
-			book = (BookStoreBook) pair.getValue();
-			if (book.isEditorPick()) {
-				listAllEditorPicks.add(book);
-			}
-		}
-
-		// Find numBooks random indices of books that will be picked
-		Random rand = new Random();
-		Set<Integer> tobePicked = new HashSet<Integer>();
-		int rangePicks = listAllEditorPicks.size();
-		if (rangePicks <= numBooks) {
-			// We need to add all the books
-			for (int i = 0; i < listAllEditorPicks.size(); i++) {
-				tobePicked.add(i);
-			}
-		} else {
-			// We need to pick randomly the books that need to be returned
-			int randNum;
-			while (tobePicked.size() < numBooks) {
-				randNum = rand.nextInt(rangePicks);
-				tobePicked.add(randNum);
-			}
-		}
-
-		// Get the numBooks random books
-		for (Integer index : tobePicked) {
-			book = listAllEditorPicks.get(index);
+		for (BookStoreBook book : editorPickIndex.sample(numBooks)) {
 			listEditorPicks.add(book.immutableBook());
 		}
 		return listEditorPicks;
@@ -277,26 +591,82 @@ public class CertainBookStore implements BookStore, StockManager {
 	@Override
 	public synchronized List<Book> getTopRatedBooks(int numBooks)
 			throws BookStoreException {
-		throw new BookStoreException("Not implemented");
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks
+					+ ", but it must be positive");
+		}
+
+		List<Book> listTopRated = new ArrayList<Book>();
+		for (BookStoreBook book : topRatedIndex.top(numBooks)) {
+			listTopRated.add(book.immutableBook());
+		}
+		return listTopRated;
 	}
 
 	@Override
 	public synchronized List<StockBook> getBooksInDemand()
 			throws BookStoreException {
-		throw new BookStoreException("Not implemented");
+		List<StockBook> listBooks = new ArrayList<StockBook>();
+		for (BookStoreBook book : inDemandIndex.books()) {
+			listBooks.add(book.immutableStockBook());
+		}
+		return listBooks;
 	}
 
 	@Override
-	public synchronized void rateBooks(Set<BookRating> bookRating)
+	public void rateBooks(Set<BookRating> bookRating)
 			throws BookStoreException {
-		throw new BookStoreException("Not implemented");
+		awaitDurable(applyRateBooks(bookRating));
+	}
+
+	private synchronized long applyRateBooks(Set<BookRating> bookRating)
+			throws BookStoreException {
+		if (bookRating == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		for (BookRating rating : bookRating) {
+			int ISBN = rating.getISBN();
+			if (BookStoreUtility.isInvalidISBN(ISBN))
+				throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+						+ BookStoreConstants.INVALID);
+			if (!bookMap.containsKey(ISBN))
+				throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+						+ BookStoreConstants.NOT_AVAILABLE);
+			if (BookStoreUtility.isInvalidRating(rating.getRating()))
+				throw new BookStoreException(BookStoreConstants.RATING
+						+ rating.getRating() + BookStoreConstants.INVALID);
+		}
+
+		long sequence = log(LogRecord.rateBooks(bookRating));
+		for (BookRating rating : bookRating) {
+			BookStoreBook book = bookMap.get(rating.getISBN());
+			book.addRating(rating.getRating());
+			topRatedIndex.update(book, book.getTotalRating(),
+					book.getTimesRated());
+		}
+		return sequence;
 	}
 
-	public synchronized void removeAllBooks() throws BookStoreException {
+	public void removeAllBooks() throws BookStoreException {
+		awaitDurable(applyRemoveAllBooks());
+	}
+
+	private synchronized long applyRemoveAllBooks() throws BookStoreException {
+		long sequence = log(LogRecord.removeAllBooks());
 		bookMap.clear();
+		bookStrings.clear();
+		editorPickIndex.clear();
+		topRatedIndex.clear();
+		inDemandIndex.clear();
+		return sequence;
+	}
+
+	public void removeBooks(Set<Integer> isbnSet) throws BookStoreException {
+		awaitDurable(applyRemoveBooks(isbnSet));
 	}
 
-	public synchronized void removeBooks(Set<Integer> isbnSet)
+	private synchronized long applyRemoveBooks(Set<Integer> isbnSet)
 			throws BookStoreException {
 
 		if (isbnSet == null) {
@@ -311,8 +681,22 @@ public class CertainBookStore implements BookStore, StockManager {
 						+ BookStoreConstants.NOT_AVAILABLE);
 		}
 
+		long sequence = log(LogRecord.removeBooks(isbnSet));
 		for (int isbn : isbnSet) {
-			bookMap.remove(isbn);
+			dropBook(isbn);
 		}
+		return sequence;
+	}
+
+	/**
+	 * Removes a validated book from the map and the indexes.
+	 */
+	private void dropBook(int isbn) {
+		BookStoreBook book = bookMap.remove(isbn);
+		editorPickIndex.remove(isbn);
+		topRatedIndex.remove(isbn);
+		inDemandIndex.remove(isbn);
+		bookStrings.release(book.getTitle());
+		bookStrings.release(book.getAuthor());
 	}
 }
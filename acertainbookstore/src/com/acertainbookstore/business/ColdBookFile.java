@@ -0,0 +1,331 @@
+package com.acertainbookstore.business;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ColdBookFile holds the books that a ConcurrentCertainBookStore paged out of
+ * the heap, cf. BookTiering. The books are appended to a memory mapped file in
+ * the record format of BookStoreSnapshot, each one preceded by its length, so
+ * a book costs no heap but its slot in the index from ISBN to file offset.
+ *
+ * The file is mapped in chunks of CHUNK_SIZE bytes and a record never
+ * straddles two chunks. A book that is taken back leaves a dead record
+ * behind; when the dead records take more room than the live ones, the live
+ * records are copied to a new file instead of growing the old one.
+ *
+ * The file only lives as long as the store, it is emptied when it is opened.
+ * All the methods are synchronized on the file.
+ */
+public class ColdBookFile {
+	private static final int CHUNK_SIZE = 64 * 1024 * 1024;
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private final File file;
+	private FileChannel channel;
+	private List<MappedByteBuffer> chunks = new ArrayList<MappedByteBuffer>();
+	private long end = 0;
+	private long liveBytes = 0;
+	private long deadBytes = 0;
+	private ByteBuffer record = ByteBuffer.allocate(256);
+	// The index, open addressing with linear probing. The ISBN 0 marks an
+	// empty slot, ISBNs are always positive
+	private int[] keys = new int[INITIAL_CAPACITY];
+	private long[] offsets = new long[INITIAL_CAPACITY];
+	private int size = 0;
+
+	/**
+	 * Creates an empty cold file in file.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public ColdBookFile(File file) throws IOException {
+		this.file = file;
+		this.channel = open(file);
+	}
+
+	private static FileChannel open(File file) throws IOException {
+		return FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+	/**
+	 * Returns the number of books in the file.
+	 *
+	 * @return
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of bytes taken by the live records.
+	 *
+	 * @return
+	 */
+	public synchronized long getLiveBytes() {
+		return liveBytes;
+	}
+
+	public synchronized boolean contains(int ISBN) {
+		return find(ISBN) >= 0;
+	}
+
+	/**
+	 * Writes the book to the file. A book already in the file with the same
+	 * ISBN is replaced.
+	 *
+	 * @param book
+	 * @throws IOException
+	 */
+	public synchronized void put(StockBook book) throws IOException {
+		remove(book.getISBN());
+		record = BookStoreSnapshot.encode(book, record);
+		int length = 4 + record.remaining();
+		if (length > CHUNK_SIZE) {
+			throw new IOException("The book " + book.getISBN()
+					+ " does not fit in a chunk");
+		}
+		if (deadBytes > liveBytes && chunkSpace(end) < length) {
+			compact();
+		}
+		long offset = append(chunks, channel, end, record);
+		end = offset + length;
+		liveBytes += length;
+		insert(book.getISBN(), offset);
+	}
+
+	/**
+	 * Returns the book with the given ISBN, or null if it is not in the file.
+	 *
+	 * @param ISBN
+	 * @return
+	 */
+	public synchronized StockBook get(int ISBN) {
+		int slot = find(ISBN);
+		if (slot < 0) {
+			return null;
+		}
+		return BookStoreSnapshot.decode(ByteBuffer.wrap(read(offsets[slot])));
+	}
+
+	/**
+	 * Removes the book with the given ISBN from the file and returns it, or
+	 * null if it is not in the file.
+	 *
+	 * @param ISBN
+	 * @return
+	 */
+	public synchronized StockBook take(int ISBN) {
+		StockBook book = get(ISBN);
+		if (book != null) {
+			remove(ISBN);
+		}
+		return book;
+	}
+
+	/**
+	 * Removes the book with the given ISBN from the file, and returns false if
+	 * it is not in the file.
+	 *
+	 * @param ISBN
+	 * @return
+	 */
+	public synchronized boolean remove(int ISBN) {
+		int slot = find(ISBN);
+		if (slot < 0) {
+			return false;
+		}
+		int length = 4 + recordLength(offsets[slot]);
+		liveBytes -= length;
+		deadBytes += length;
+		delete(slot);
+		return true;
+	}
+
+	/**
+	 * Gives all the books in the file to the visitor, in no particular order.
+	 *
+	 * @param visitor
+	 */
+	public synchronized void scan(BookStoreSnapshot.Visitor visitor) {
+		for (int slot = 0; slot < keys.length; slot++) {
+			if (keys[slot] != 0) {
+				visitor.visit(BookStoreSnapshot.decode(ByteBuffer
+						.wrap(read(offsets[slot]))));
+			}
+		}
+	}
+
+	/**
+	 * Removes all the books. The space of the file is reused.
+	 */
+	public synchronized void clear() {
+		keys = new int[INITIAL_CAPACITY];
+		offsets = new long[INITIAL_CAPACITY];
+		size = 0;
+		end = 0;
+		liveBytes = 0;
+		deadBytes = 0;
+	}
+
+	/**
+	 * Closes and deletes the file.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+		chunks.clear();
+		channel.close();
+		file.delete();
+	}
+
+	/**
+	 * Copies the live records to a new file, which then replaces the old one.
+	 */
+	private void compact() throws IOException {
+		File temporary = new File(file.getPath() + ".tmp");
+		FileChannel newChannel = open(temporary);
+		List<MappedByteBuffer> newChunks = new ArrayList<MappedByteBuffer>();
+		long[] newOffsets = new long[offsets.length];
+		long newEnd = 0;
+		try {
+			for (int slot = 0; slot < keys.length; slot++) {
+				if (keys[slot] != 0) {
+					long offset = append(newChunks, newChannel, newEnd,
+							ByteBuffer.wrap(read(offsets[slot])));
+					newOffsets[slot] = offset;
+					newEnd = offset + 4 + recordLength(offset, newChunks);
+				}
+			}
+			Files.move(temporary.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException ex) {
+			newChannel.close();
+			temporary.delete();
+			throw ex;
+		}
+		channel.close();
+		channel = newChannel;
+		chunks = newChunks;
+		offsets = newOffsets;
+		end = newEnd;
+		deadBytes = 0;
+	}
+
+	/**
+	 * Appends the record and its length at end, or at the start of the next
+	 * chunk if it does not fit in the chunk of end, and returns its offset.
+	 */
+	private static long append(List<MappedByteBuffer> chunks,
+			FileChannel channel, long end, ByteBuffer record)
+			throws IOException {
+		int length = 4 + record.remaining();
+		if (chunkSpace(end) < length) {
+			end += chunkSpace(end);
+		}
+		int chunk = (int) (end / CHUNK_SIZE);
+		while (chunks.size() <= chunk) {
+			chunks.add(channel.map(FileChannel.MapMode.READ_WRITE,
+					(long) chunks.size() * CHUNK_SIZE, CHUNK_SIZE));
+		}
+		ByteBuffer buffer = chunks.get(chunk).duplicate();
+		buffer.position((int) (end % CHUNK_SIZE));
+		buffer.putInt(record.remaining());
+		buffer.put(record);
+		return end;
+	}
+
+	private static int chunkSpace(long end) {
+		return CHUNK_SIZE - (int) (end % CHUNK_SIZE);
+	}
+
+	private int recordLength(long offset) {
+		return recordLength(offset, chunks);
+	}
+
+	private static int recordLength(long offset, List<MappedByteBuffer> chunks) {
+		return chunks.get((int) (offset / CHUNK_SIZE)).getInt(
+				(int) (offset % CHUNK_SIZE));
+	}
+
+	private byte[] read(long offset) {
+		ByteBuffer buffer = chunks.get((int) (offset / CHUNK_SIZE))
+				.duplicate();
+		buffer.position((int) (offset % CHUNK_SIZE));
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return bytes;
+	}
+
+	private static int slot(int ISBN, int mask) {
+		int h = ISBN * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	private int find(int ISBN) {
+		int mask = keys.length - 1;
+		for (int i = slot(ISBN, mask);; i = (i + 1) & mask) {
+			if (keys[i] == ISBN) {
+				return i;
+			} else if (keys[i] == 0) {
+				return -1;
+			}
+		}
+	}
+
+	private void insert(int ISBN, long offset) {
+		if ((size + 1) * 2 > keys.length) {
+			int[] oldKeys = keys;
+			long[] oldOffsets = offsets;
+			keys = new int[oldKeys.length * 2];
+			offsets = new long[oldKeys.length * 2];
+			size = 0;
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldKeys[i] != 0) {
+					insert(oldKeys[i], oldOffsets[i]);
+				}
+			}
+		}
+		int mask = keys.length - 1;
+		int i = slot(ISBN, mask);
+		while (keys[i] != 0) {
+			i = (i + 1) & mask;
+		}
+		keys[i] = ISBN;
+		offsets[i] = offset;
+		size++;
+	}
+
+	/**
+	 * Empties the slot and moves the entries after it back, so no probe
+	 * sequence is broken.
+	 */
+	private void delete(int slot) {
+		int mask = keys.length - 1;
+		int hole = slot;
+		for (int i = (slot + 1) & mask; keys[i] != 0; i = (i + 1) & mask) {
+			int home = slot(keys[i], mask);
+			// The entry can move into the hole if its home is not between
+			// the hole and the entry
+			if (((i - home) & mask) >= ((i - hole) & mask)) {
+				keys[hole] = keys[i];
+				offsets[hole] = offsets[i];
+				hole = i;
+			}
+		}
+		keys[hole] = 0;
+		size--;
+	}
+}
@@ -0,0 +1,346 @@
+package com.acertainbookstore.business;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * ColumnarBookStorage keeps the numeric state of the books off the Java heap.
+ * Every book gets a dense slot number, and each field (numCopies, saleMisses,
+ * totalRating, timesRated, price, editorPick) is a column of direct memory
+ * indexed by slot. The index from ISBN to slot is an open-addressing hash
+ * table that is also kept in direct memory. Titles and authors are kept once
+ * in a BookStringDictionary and the columns only hold their ids, so the
+ * number of heap objects only grows with the number of distinct strings.
+ *
+ * Book and StockBook objects are only materialized when they are handed out,
+ * cf. immutableBook and immutableStockBook.
+ *
+ * The class is not thread-safe, the ColumnarCertainBookStore guards it with a
+ * read/write lock.
+ */
+public class ColumnarBookStorage {
+	private static final int INITIAL_CAPACITY = 1024;
+	// ISBN 0 is invalid, so it marks a free slot and an empty index entry
+	private static final int NO_ISBN = 0;
+	// Marks an index entry whose book was removed
+	private static final int REMOVED_SLOT = -1;
+
+	private int capacity;
+	private int size;
+	private int highWater;
+	private int[] freeSlots;
+	private int numFreeSlots;
+
+	private ByteBuffer isbns;
+	private ByteBuffer numCopies;
+	private ByteBuffer saleMisses;
+	private ByteBuffer totalRatings;
+	private ByteBuffer timesRated;
+	private ByteBuffer prices;
+	private ByteBuffer editorPicks;
+	private ByteBuffer titleIds;
+	private ByteBuffer authorIds;
+	private final BookStringDictionary strings = new BookStringDictionary();
+
+	private int indexCapacity;
+	private int indexUsed;
+	private ByteBuffer indexKeys;
+	private ByteBuffer indexSlots;
+
+	public ColumnarBookStorage() {
+		clear();
+	}
+
+	/**
+	 * Removes all the books and releases the columns.
+	 */
+	public void clear() {
+		capacity = INITIAL_CAPACITY;
+		size = 0;
+		highWater = 0;
+		freeSlots = new int[16];
+		numFreeSlots = 0;
+		isbns = column(capacity, 4);
+		numCopies = column(capacity, 4);
+		saleMisses = column(capacity, 8);
+		totalRatings = column(capacity, 8);
+		timesRated = column(capacity, 8);
+		prices = column(capacity, 4);
+		editorPicks = column(capacity, 1);
+		titleIds = column(capacity, 4);
+		authorIds = column(capacity, 4);
+		strings.clear();
+
+		indexCapacity = INITIAL_CAPACITY * 2;
+		indexUsed = 0;
+		indexKeys = column(indexCapacity, 4);
+		indexSlots = column(indexCapacity, 4);
+	}
+
+	private static ByteBuffer column(int capacity, int width) {
+		return ByteBuffer.allocateDirect(capacity * width).order(
+				ByteOrder.nativeOrder());
+	}
+
+	private static ByteBuffer grow(ByteBuffer column, int capacity, int width) {
+		ByteBuffer grown = column(capacity, width);
+		ByteBuffer old = column.duplicate();
+		old.clear();
+		grown.put(old);
+		grown.clear();
+		return grown;
+	}
+
+	/**
+	 * Returns the number of books in the storage.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of slots that have been handed out, slots from 0 to
+	 * getHighWater() - 1 may hold books (cf. isLive).
+	 *
+	 * @return
+	 */
+	public int getHighWater() {
+		return highWater;
+	}
+
+	public boolean isLive(int slot) {
+		return isbns.getInt(slot * 4) != NO_ISBN;
+	}
+
+	/**
+	 * Returns the slot of the book with the given ISBN, or -1 if the book is
+	 * not in the storage.
+	 *
+	 * @param ISBN
+	 * @return
+	 */
+	public int find(int ISBN) {
+		int mask = indexCapacity - 1;
+		int i = indexPosition(ISBN, mask);
+		while (true) {
+			int key = indexKeys.getInt(i * 4);
+			if (key == ISBN) {
+				return indexSlots.getInt(i * 4);
+			}
+			if (key == NO_ISBN) {
+				return -1;
+			}
+			i = (i + 1) & mask;
+		}
+	}
+
+	public boolean contains(int ISBN) {
+		return find(ISBN) >= 0;
+	}
+
+	/**
+	 * Adds the book to the storage and returns its slot. The caller must check
+	 * that the ISBN is not in the storage yet.
+	 *
+	 * @param book
+	 * @return
+	 */
+	public int add(StockBook book) {
+		int slot;
+		if (numFreeSlots > 0) {
+			slot = freeSlots[--numFreeSlots];
+		} else {
+			if (highWater == capacity) {
+				growColumns();
+			}
+			slot = highWater++;
+		}
+		isbns.putInt(slot * 4, book.getISBN());
+		numCopies.putInt(slot * 4, book.getNumCopies());
+		saleMisses.putLong(slot * 8, book.getSaleMisses());
+		totalRatings.putLong(slot * 8, book.getTotalRating());
+		timesRated.putLong(slot * 8, book.getTimesRated());
+		prices.putFloat(slot * 4, book.getPrice());
+		editorPicks.put(slot, (byte) (book.isEditorPick() ? 1 : 0));
+		titleIds.putInt(slot * 4, strings.intern(book.getTitle()));
+		authorIds.putInt(slot * 4, strings.intern(book.getAuthor()));
+		indexPut(book.getISBN(), slot);
+		size++;
+		return slot;
+	}
+
+	/**
+	 * Removes the book with the given ISBN and frees its slot.
+	 *
+	 * @param ISBN
+	 */
+	public void remove(int ISBN) {
+		int slot = find(ISBN);
+		if (slot < 0) {
+			return;
+		}
+		indexPut(ISBN, REMOVED_SLOT);
+		isbns.putInt(slot * 4, NO_ISBN);
+		strings.release(titleIds.getInt(slot * 4));
+		strings.release(authorIds.getInt(slot * 4));
+		if (numFreeSlots == freeSlots.length) {
+			int[] grown = new int[freeSlots.length * 2];
+			System.arraycopy(freeSlots, 0, grown, 0, numFreeSlots);
+			freeSlots = grown;
+		}
+		freeSlots[numFreeSlots++] = slot;
+		size--;
+	}
+
+	public int getISBN(int slot) {
+		return isbns.getInt(slot * 4);
+	}
+
+	public int getNumCopies(int slot) {
+		return numCopies.getInt(slot * 4);
+	}
+
+	public void setNumCopies(int slot, int copies) {
+		numCopies.putInt(slot * 4, copies);
+	}
+
+	public long getSaleMisses(int slot) {
+		return saleMisses.getLong(slot * 8);
+	}
+
+	public void setSaleMisses(int slot, long misses) {
+		saleMisses.putLong(slot * 8, misses);
+	}
+
+	public long getTotalRating(int slot) {
+		return totalRatings.getLong(slot * 8);
+	}
+
+	public void setTotalRating(int slot, long rating) {
+		totalRatings.putLong(slot * 8, rating);
+	}
+
+	public long getTimesRated(int slot) {
+		return timesRated.getLong(slot * 8);
+	}
+
+	public void setTimesRated(int slot, long times) {
+		timesRated.putLong(slot * 8, times);
+	}
+
+	public String getTitle(int slot) {
+		return strings.lookup(titleIds.getInt(slot * 4));
+	}
+
+	public String getAuthor(int slot) {
+		return strings.lookup(authorIds.getInt(slot * 4));
+	}
+
+	public float getPrice(int slot) {
+		return prices.getFloat(slot * 4);
+	}
+
+	public boolean isEditorPick(int slot) {
+		return editorPicks.get(slot) != 0;
+	}
+
+	public void setEditorPick(int slot, boolean editorPick) {
+		editorPicks.put(slot, (byte) (editorPick ? 1 : 0));
+	}
+
+	/**
+	 * Returns a ImmutableBook of the book in the slot.
+	 *
+	 * @param slot
+	 * @return
+	 */
+	public ImmutableBook immutableBook(int slot) {
+		return new ImmutableBook(getISBN(slot), getTitle(slot),
+				getAuthor(slot), getPrice(slot));
+	}
+
+	/**
+	 * Returns a ImmutableStockBook of the book in the slot.
+	 *
+	 * @param slot
+	 * @return
+	 */
+	public StockBook immutableStockBook(int slot) {
+		return new ImmutableStockBook(getISBN(slot), getTitle(slot),
+				getAuthor(slot), getPrice(slot), getNumCopies(slot),
+				getSaleMisses(slot), getTimesRated(slot), getTotalRating(slot),
+				isEditorPick(slot));
+	}
+
+	private void growColumns() {
+		int grownCapacity = capacity * 2;
+		isbns = grow(isbns, grownCapacity, 4);
+		numCopies = grow(numCopies, grownCapacity, 4);
+		saleMisses = grow(saleMisses, grownCapacity, 8);
+		totalRatings = grow(totalRatings, grownCapacity, 8);
+		timesRated = grow(timesRated, grownCapacity, 8);
+		prices = grow(prices, grownCapacity, 4);
+		editorPicks = grow(editorPicks, grownCapacity, 1);
+		titleIds = grow(titleIds, grownCapacity, 4);
+		authorIds = grow(authorIds, grownCapacity, 4);
+		capacity = grownCapacity;
+	}
+
+	private static int indexPosition(int ISBN, int mask) {
+		int h = ISBN * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	/**
+	 * Sets the slot of ISBN in the index, reusing the entry of the ISBN if it
+	 * has one.
+	 */
+	private void indexPut(int ISBN, int slot) {
+		int mask = indexCapacity - 1;
+		int i = indexPosition(ISBN, mask);
+		while (true) {
+			int key = indexKeys.getInt(i * 4);
+			if (key == ISBN) {
+				indexSlots.putInt(i * 4, slot);
+				return;
+			}
+			if (key == NO_ISBN) {
+				indexKeys.putInt(i * 4, ISBN);
+				indexSlots.putInt(i * 4, slot);
+				if (++indexUsed > indexCapacity / 2) {
+					rebuildIndex();
+				}
+				return;
+			}
+			i = (i + 1) & mask;
+		}
+	}
+
+	/**
+	 * Rebuilds the index from the live slots, which drops the entries of
+	 * removed books and grows the index if needed.
+	 */
+	private void rebuildIndex() {
+		while (size * 4 > indexCapacity) {
+			indexCapacity *= 2;
+		}
+		indexKeys = column(indexCapacity, 4);
+		indexSlots = column(indexCapacity, 4);
+		indexUsed = 0;
+		int mask = indexCapacity - 1;
+		for (int slot = 0; slot < highWater; slot++) {
+			int ISBN = isbns.getInt(slot * 4);
+			if (ISBN != NO_ISBN) {
+				int i = indexPosition(ISBN, mask);
+				while (indexKeys.getInt(i * 4) != NO_ISBN) {
+					i = (i + 1) & mask;
+				}
+				indexKeys.putInt(i * 4, ISBN);
+				indexSlots.putInt(i * 4, slot);
+				indexUsed++;
+			}
+		}
+	}
+}
@@ -0,0 +1,380 @@
+/**
+ *
+ */
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreUtility;
+
+/**
+ * ColumnarCertainBookStore implements the bookstore on top of a
+ * ColumnarBookStorage, which keeps the numeric state of the books in off-heap
+ * columns instead of one BookStoreBook object per book. This keeps the garbage
+ * collector from having to trace tens of millions of book objects.
+ *
+ * Reads share a read lock and all updates take the write lock.
+ */
+public class ColumnarCertainBookStore implements BookStore, StockManager {
+	private final ColumnarBookStorage storage = new ColumnarBookStorage();
+	private final ReentrantReadWriteLock storageLock = new ReentrantReadWriteLock();
+	private final EditorPickIndex<ImmutableBook> editorPickIndex = new EditorPickIndex<ImmutableBook>();
+	private final TopRatedIndex<ImmutableBook> topRatedIndex = new TopRatedIndex<ImmutableBook>();
+	private final InDemandIndex<ImmutableBook> inDemandIndex = new InDemandIndex<ImmutableBook>();
+
+	public void addBooks(Set<StockBook> bookSet) throws BookStoreException {
+
+		if (bookSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		storageLock.writeLock().lock();
+		try {
+			// Check if all are there. Two books of the set may have the same
+			// ISBN, they would each get a slot of their own
+			Set<Integer> isbns = new HashSet<Integer>();
+			for (StockBook book : bookSet) {
+				int ISBN = book.getISBN();
+				String bookTitle = book.getTitle();
+				String bookAuthor = book.getAuthor();
+				int noCopies = book.getNumCopies();
+				float bookPrice = book.getPrice();
+				if (BookStoreUtility.isInvalidISBN(ISBN)
+						|| BookStoreUtility.isEmpty(bookTitle)
+						|| BookStoreUtility.isEmpty(bookAuthor)
+						|| BookStoreUtility.isInvalidNoCopies(noCopies)
+						|| bookPrice < 0.0) {
+					throw new BookStoreException(BookStoreConstants.BOOK
+							+ book.toString() + BookStoreConstants.INVALID);
+				} else if (storage.contains(ISBN) || !isbns.add(ISBN)) {
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.DUPLICATED);
+				}
+			}
+
+			for (StockBook book : bookSet) {
+				int slot = storage.add(book);
+				if (book.isEditorPick()) {
+					editorPickIndex.add(storage.immutableBook(slot));
+				}
+				topRatedIndex.update(storage.immutableBook(slot),
+						book.getTotalRating(), book.getTimesRated());
+				if (book.getSaleMisses() > 0) {
+					inDemandIndex.add(storage.immutableBook(slot));
+				}
+			}
+		} finally {
+			storageLock.writeLock().unlock();
+		}
+	}
+
+	public void addCopies(Set<BookCopy> bookCopiesSet)
+			throws BookStoreException {
+		int ISBN, numCopies;
+
+		if (bookCopiesSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		storageLock.writeLock().lock();
+		try {
+			for (BookCopy bookCopy : bookCopiesSet) {
+				ISBN = bookCopy.getISBN();
+				numCopies = bookCopy.getNumCopies();
+				if (BookStoreUtility.isInvalidISBN(ISBN))
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.INVALID);
+				if (!storage.contains(ISBN))
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.NOT_AVAILABLE);
+				if (BookStoreUtility.isInvalidNoCopies(numCopies))
+					throw new BookStoreException(BookStoreConstants.NUM_COPIES
+							+ numCopies + BookStoreConstants.INVALID);
+			}
+
+			// Update the number of copies
+			for (BookCopy bookCopy : bookCopiesSet) {
+				int slot = storage.find(bookCopy.getISBN());
+				storage.setNumCopies(slot, storage.getNumCopies(slot)
+						+ bookCopy.getNumCopies());
+				storage.setSaleMisses(slot, 0);
+				inDemandIndex.remove(bookCopy.getISBN());
+			}
+		} finally {
+			storageLock.writeLock().unlock();
+		}
+	}
+
+	public List<StockBook> getBooks() {
+		storageLock.readLock().lock();
+		try {
+			List<StockBook> listBooks = new ArrayList<StockBook>();
+			for (int slot = 0; slot < storage.getHighWater(); slot++) {
+				if (storage.isLive(slot)) {
+					listBooks.add(storage.immutableStockBook(slot));
+				}
+			}
+			return listBooks;
+		} finally {
+			storageLock.readLock().unlock();
+		}
+	}
+
+	public void updateEditorPicks(Set<BookEditorPick> editorPicks)
+			throws BookStoreException {
+		// Check that all ISBNs that we add/remove are there first.
+		if (editorPicks == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		int ISBNVal;
+
+		storageLock.writeLock().lock();
+		try {
+			for (BookEditorPick editorPickArg : editorPicks) {
+				ISBNVal = editorPickArg.getISBN();
+				if (BookStoreUtility.isInvalidISBN(ISBNVal))
+					throw new BookStoreException(BookStoreConstants.ISBN
+							+ ISBNVal + BookStoreConstants.INVALID);
+				if (!storage.contains(ISBNVal))
+					throw new BookStoreException(BookStoreConstants.ISBN
+							+ ISBNVal + BookStoreConstants.NOT_AVAILABLE);
+			}
+
+			List<ImmutableBook> picked = new ArrayList<ImmutableBook>();
+			List<ImmutableBook> unpicked = new ArrayList<ImmutableBook>();
+			for (BookEditorPick editorPickArg : editorPicks) {
+				int slot = storage.find(editorPickArg.getISBN());
+				storage.setEditorPick(slot, editorPickArg.isEditorPick());
+				if (editorPickArg.isEditorPick()) {
+					picked.add(storage.immutableBook(slot));
+				} else {
+					unpicked.add(storage.immutableBook(slot));
+				}
+			}
+			editorPickIndex.update(picked, unpicked);
+		} finally {
+			storageLock.writeLock().unlock();
+		}
+	}
+
+	public void buyBooks(Set<BookCopy> bookCopiesToBuy)
+			throws BookStoreException {
+		if (bookCopiesToBuy == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		// Check that all ISBNs that we buy are there first.
+		int ISBN, slot;
+		Boolean saleMiss = false;
+		storageLock.writeLock().lock();
+		try {
+			for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+				ISBN = bookCopyToBuy.getISBN();
+				if (bookCopyToBuy.getNumCopies() < 0)
+					throw new BookStoreException(BookStoreConstants.NUM_COPIES
+							+ bookCopyToBuy.getNumCopies()
+							+ BookStoreConstants.INVALID);
+				if (BookStoreUtility.isInvalidISBN(ISBN))
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.INVALID);
+				slot = storage.find(ISBN);
+				if (slot < 0)
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.NOT_AVAILABLE);
+				if (storage.getNumCopies(slot) < bookCopyToBuy.getNumCopies()) {
+					// If we cannot sell the copies of the book its a miss
+					storage.setSaleMisses(slot, storage.getSaleMisses(slot) + 1);
+					inDemandIndex.add(storage.immutableBook(slot));
+					saleMiss = true;
+				}
+			}
+
+			// We throw exception now since we want to see how many books in
+			// the order incurred misses which is used by books in demand
+			if (saleMiss)
+				throw new BookStoreException(BookStoreConstants.BOOK
+						+ BookStoreConstants.NOT_AVAILABLE);
+
+			// Then make purchase
+			for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+				slot = storage.find(bookCopyToBuy.getISBN());
+				storage.setNumCopies(slot, storage.getNumCopies(slot)
+						- bookCopyToBuy.getNumCopies());
+			}
+		} finally {
+			storageLock.writeLock().unlock();
+		}
+	}
+
+	public List<StockBook> getBooksByISBN(Set<Integer> isbnSet)
+			throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		storageLock.readLock().lock();
+		try {
+			List<StockBook> listBooks = new ArrayList<StockBook>();
+			for (Integer ISBN : isbnSet) {
+				if (BookStoreUtility.isInvalidISBN(ISBN))
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.INVALID);
+				int slot = storage.find(ISBN);
+				if (slot < 0)
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.NOT_AVAILABLE);
+				listBooks.add(storage.immutableStockBook(slot));
+			}
+			return listBooks;
+		} finally {
+			storageLock.readLock().unlock();
+		}
+	}
+
+	public List<Book> getBooks(Set<Integer> isbnSet) throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		storageLock.readLock().lock();
+		try {
+			List<Book> listBooks = new ArrayList<Book>();
+			for (Integer ISBN : isbnSet) {
+				if (BookStoreUtility.isInvalidISBN(ISBN))
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.INVALID);
+				int slot = storage.find(ISBN);
+				if (slot < 0)
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.NOT_AVAILABLE);
+				listBooks.add(storage.immutableBook(slot));
+			}
+			return listBooks;
+		} finally {
+			storageLock.readLock().unlock();
+		}
+	}
+
+	public List<Book> getEditorPicks(int numBooks) throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks
+					+ ", but it must be positive");
+		}
+
+		// The index holds the ImmutableBook of every pick, the ISBN, title,
+		// author and price of a book never change
+		return new ArrayList<Book>(editorPickIndex.sample(numBooks));
+	}
+
+	@Override
+	public List<Book> getTopRatedBooks(int numBooks)
+			throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks
+					+ ", but it must be positive");
+		}
+
+		return new ArrayList<Book>(topRatedIndex.top(numBooks));
+	}
+
+	@Override
+	public List<StockBook> getBooksInDemand() throws BookStoreException {
+		storageLock.readLock().lock();
+		try {
+			List<StockBook> listBooks = new ArrayList<StockBook>();
+			for (ImmutableBook book : inDemandIndex.books()) {
+				listBooks.add(storage.immutableStockBook(storage.find(book
+						.getISBN())));
+			}
+			return listBooks;
+		} finally {
+			storageLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void rateBooks(Set<BookRating> bookRating)
+			throws BookStoreException {
+		if (bookRating == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		storageLock.writeLock().lock();
+		try {
+			for (BookRating rating : bookRating) {
+				int ISBN = rating.getISBN();
+				if (BookStoreUtility.isInvalidISBN(ISBN))
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.INVALID);
+				if (!storage.contains(ISBN))
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.NOT_AVAILABLE);
+				if (BookStoreUtility.isInvalidRating(rating.getRating()))
+					throw new BookStoreException(BookStoreConstants.RATING
+							+ rating.getRating() + BookStoreConstants.INVALID);
+			}
+
+			for (BookRating rating : bookRating) {
+				int slot = storage.find(rating.getISBN());
+				long totalRating = storage.getTotalRating(slot)
+						+ rating.getRating();
+				long timesRated = storage.getTimesRated(slot) + 1;
+				storage.setTotalRating(slot, totalRating);
+				storage.setTimesRated(slot, timesRated);
+				topRatedIndex.update(storage.immutableBook(slot), totalRating,
+						timesRated);
+			}
+		} finally {
+			storageLock.writeLock().unlock();
+		}
+	}
+
+	public void removeAllBooks() throws BookStoreException {
+		storageLock.writeLock().lock();
+		try {
+			storage.clear();
+			editorPickIndex.clear();
+			topRatedIndex.clear();
+			inDemandIndex.clear();
+		} finally {
+			storageLock.writeLock().unlock();
+		}
+	}
+
+	public void removeBooks(Set<Integer> isbnSet) throws BookStoreException {
+
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		storageLock.writeLock().lock();
+		try {
+			for (Integer ISBN : isbnSet) {
+				if (BookStoreUtility.isInvalidISBN(ISBN))
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.INVALID);
+				if (!storage.contains(ISBN))
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.NOT_AVAILABLE);
+			}
+
+			for (int isbn : isbnSet) {
+				storage.remove(isbn);
+				editorPickIndex.remove(isbn);
+				topRatedIndex.remove(isbn);
+				inDemandIndex.remove(isbn);
+			}
+		} finally {
+			storageLock.writeLock().unlock();
+		}
+	}
+}
@@ -3,17 +3,19 @@
  */
 package com.acertainbookstore.business;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Random;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.StampedLock;
 
 import com.acertainbookstore.interfaces.BookStore;
 import com.acertainbookstore.interfaces.StockManager;
@@ -30,13 +32,196 @@ import com.acertainbookstore.utils.BookStoreUtility;
  *
  */
 public class ConcurrentCertainBookStore implements BookStore, StockManager {
-	private Map<Integer, BookStoreBook> bookMap;
-	private final ReentrantReadWriteLock bookMapMasterKey = new ReentrantReadWriteLock();
-	private List<ISBNandLock> bookMapBookKeys = new ArrayList<ISBNandLock>(); 
+	private ConcurrentIntHashMap<BookStoreBook> bookMap;
+	private final StampedLock bookMapMasterKey = new StampedLock();
+	private final BookLockTable bookMapBookKeys = new BookLockTable();
+	private final BookVersionManager bookVersions = new BookVersionManager();
+	private final BookStringDictionary bookStrings = new BookStringDictionary();
+	private final EditorPickIndex<BookStoreBook> editorPickIndex = new EditorPickIndex<BookStoreBook>();
+	private final TopRatedIndex<BookStoreBook> topRatedIndex = new TopRatedIndex<BookStoreBook>();
+	private final InDemandIndex<BookStoreBook> inDemandIndex = new InDemandIndex<BookStoreBook>();
+	private final boolean optimisticReads;
+	private final FlatCombiner<Set<BookCopy>> purchaseCombiner;
+	// Null if all the books stay on the heap
+	private final BookTiering tiering;
+	// Bumped under the master write lock whenever books are added or
+	// removed, and whenever the string dictionary is cleared
+	private volatile long catalogChanges = 0;
+	private volatile long dictionaryClears = 0;
+	// The number of books on flash sale, changed under the master write
+	// lock. Purchases only look for a flash sale while it is not 0.
+	private volatile int numFlashSales = 0;
+	// Null if the changes are not logged
+	private BookStoreLog log = null;
 
 	public ConcurrentCertainBookStore() {
+		this(true);
+	}
+
+	public ConcurrentCertainBookStore(boolean optimisticReads) {
+		this(optimisticReads, false);
+	}
+
+	/**
+	 * Creates the store. If optimisticReads is set, getBooks(Set) and
+	 * getBooksByISBN first try to read the books without taking any locks and
+	 * only lock when a concurrent writer invalidated the read. If
+	 * combinePurchases is set, concurrent buyBooks calls are handed to a
+	 * single combiner that applies them in batches, cf. FlatCombiner.
+	 * 
+	 * @param optimisticReads
+	 * @param combinePurchases
+	 */
+	public ConcurrentCertainBookStore(boolean optimisticReads,
+			boolean combinePurchases) {
+		this(optimisticReads, combinePurchases, null);
+	}
+
+	/**
+	 * Creates a store that keeps at most about maxHotBooks books on the heap
+	 * and pages the books that are not used out to coldFile, from where they
+	 * are faulted back in when they are needed, cf. BookTiering.
+	 * 
+	 * @param coldFile
+	 * @param maxHotBooks
+	 * @throws BookStoreException
+	 */
+	public ConcurrentCertainBookStore(File coldFile, int maxHotBooks)
+			throws BookStoreException {
+		this(true, false, openTiering(coldFile, maxHotBooks));
+	}
+
+	private static BookTiering openTiering(File coldFile, int maxHotBooks)
+			throws BookStoreException {
+		try {
+			return new BookTiering(coldFile, maxHotBooks);
+		} catch (IOException ex) {
+			throw new BookStoreException(BookStoreConstants.STORAGE_FAILED, ex);
+		}
+	}
+
+	/**
+	 * Creates a store that rebuilds its books from the records of the log and
+	 * then appends its changes to it, like CertainBookStore. A change is
+	 * appended while the store holds the locks that order it against the
+	 * changes it conflicts with, and waits for its record to be durable after
+	 * it released them, so concurrent changes share the fsync of the log.
+	 * 
+	 * The copies sold on flash sale are logged, but flash sales themselves
+	 * are not: the books of a restarted store are not on flash sale.
+	 * 
+	 * @param log
+	 * @throws BookStoreException
+	 */
+	public ConcurrentCertainBookStore(BookStoreLog log)
+			throws BookStoreException {
+		this(true, false, null);
+		try {
+			log.read(0, new BookStoreLog.Visitor() {
+				public void visit(long sequence, LogRecord record)
+						throws BookStoreException {
+					replay(record);
+				}
+			});
+		} catch (IOException ex) {
+			throw new BookStoreException(BookStoreConstants.LOG_FAILED, ex);
+		}
+		this.log = log;
+	}
+
+	private ConcurrentCertainBookStore(boolean optimisticReads,
+			boolean combinePurchases, BookTiering tiering) {
 		// Constructors are not synchronized
-		bookMap = new ConcurrentHashMap<Integer, BookStoreBook>();
+		bookMap = new ConcurrentIntHashMap<BookStoreBook>();
+		this.optimisticReads = optimisticReads;
+		this.tiering = tiering;
+		if (combinePurchases) {
+			purchaseCombiner = new FlatCombiner<Set<BookCopy>>(
+					new FlatCombiner.Handler<Set<BookCopy>>() {
+						public void apply(
+								List<FlatCombiner.Request<Set<BookCopy>>> batch) {
+							buyBatch(batch);
+						}
+					});
+		} else {
+			purchaseCombiner = null;
+		}
+	}
+
+	/**
+	 * Returns the log of the store, or null if it has none.
+	 * 
+	 * @return
+	 */
+	public BookStoreLog getLog() {
+		return log;
+	}
+
+	/**
+	 * Applies a record of the log. Called while the store has no log yet, so
+	 * nothing is logged again.
+	 */
+	private void replay(LogRecord record) throws BookStoreException {
+		switch (record.getType()) {
+		case ADD_BOOKS:
+			addBooks(new HashSet<StockBook>(record.getBooks()));
+			break;
+		case ADD_COPIES:
+			addCopies(record.getBookCopies());
+			break;
+		case BUY_BOOKS:
+			buyBooks(record.getBookCopies());
+			break;
+		case SALE_MISSES:
+			for (int i = 0; i < record.size(); i++) {
+				BookStoreBook book = bookMap.get(record.getISBN(i));
+				book.addSaleMiss();
+				inDemandIndex.add(book);
+			}
+			break;
+		case UPDATE_EDITOR_PICKS:
+			updateEditorPicks(record.getEditorPicks());
+			break;
+		case RATE_BOOKS:
+			rateBooks(record.getBookRatings());
+			break;
+		case REMOVE_BOOKS:
+			removeBooks(record.getIsbnSet());
+			break;
+		case REMOVE_ALL_BOOKS:
+			removeAllBooks();
+			break;
+		}
+	}
+
+	/**
+	 * Appends the record to the log, if there is one, and returns its
+	 * sequence number. Must be called before the change is applied.
+	 */
+	private long log(LogRecord record) throws BookStoreException {
+		if (log == null) {
+			return 0;
+		}
+		try {
+			return log.append(record);
+		} catch (IOException ex) {
+			throw new BookStoreException(BookStoreConstants.LOG_FAILED, ex);
+		}
+	}
+
+	/**
+	 * Waits until the record with the given sequence number is durable. Must
+	 * be called without holding any lock of the store.
+	 */
+	private void awaitDurable(long sequence) throws BookStoreException {
+		if (sequence == 0) {
+			return;
+		}
+		try {
+			log.awaitDurable(sequence);
+		} catch (IOException ex) {
+			throw new BookStoreException(BookStoreConstants.LOG_FAILED, ex);
+		}
 	}
 
 	public void addBooks(Set<StockBook> bookSet)
@@ -46,7 +231,8 @@ public class ConcurrentCertainBookStore implements BookStore, StockManager {
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
 
-		bookMapMasterKey.writeLock().lock();
+		long sequence;
+		bookMapMasterKey.asWriteLock().lock();
 		try{
 			// Check if all are there
 			for (StockBook book : bookSet) {
@@ -62,20 +248,36 @@ public class ConcurrentCertainBookStore implements BookStore, StockManager {
 						|| bookPrice < 0.0) {
 					throw new BookStoreException(BookStoreConstants.BOOK
 							+ book.toString() + BookStoreConstants.INVALID);
-				} else if (bookMap.containsKey(ISBN)) {
+				} else if (inCatalog(ISBN)) {
 					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
 							+ BookStoreConstants.DUPLICATED);
 				}
 			}
+			sequence = log(LogRecord.addBooks(bookSet));
+			List<BookStoreBook> addedBooks = new ArrayList<BookStoreBook>();
 			for (StockBook book : bookSet) {
 				int ISBN = book.getISBN();
-				bookMap.put(ISBN, new BookStoreBook(book));
-				bookMapBookKeys.add(new ISBNandLock(ISBN));
+				BookStoreBook addedBook = new BookStoreBook(book, bookStrings);
+				bookMap.put(ISBN, addedBook);
+				bookMapBookKeys.register(ISBN);
+				if (addedBook.isEditorPick()) {
+					editorPickIndex.add(addedBook);
+				}
+				topRatedIndex.update(addedBook, addedBook.getTotalRating(),
+						addedBook.getTimesRated());
+				if (addedBook.hadSaleMiss()) {
+					inDemandIndex.add(addedBook);
+				}
+				addedBooks.add(addedBook);
 			}
+			bookVersions.commit(addedBooks);
+			catalogChanges++;
 		}
 		finally{
-			bookMapMasterKey.writeLock().unlock();
+			bookMapMasterKey.asWriteLock().unlock();
 		}
+		scheduleEvictionIfNeeded();
+		awaitDurable(sequence);
 		return;
 	}
 
@@ -88,8 +290,9 @@ public class ConcurrentCertainBookStore implements BookStore, StockManager {
 		}
 		
 		Set<Integer> isbns = new HashSet<Integer>();
+		long sequence;
 		
-		bookMapMasterKey.readLock().lock();
+		bookMapMasterKey.asReadLock().lock();
 		try{
 			for (BookCopy bookCopy : bookCopiesSet) {
 				ISBN = bookCopy.getISBN();
@@ -98,7 +301,7 @@ public class ConcurrentCertainBookStore implements BookStore, StockManager {
 					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
 							+ BookStoreConstants.INVALID);
 				}
-				if (!bookMap.containsKey(ISBN)) {
+				if (residentBook(ISBN) == null) {
 					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
 							+ BookStoreConstants.NOT_AVAILABLE);
 				}
@@ -110,39 +313,78 @@ public class ConcurrentCertainBookStore implements BookStore, StockManager {
 				isbns.add(ISBN);
 			}
 			BookStoreBook book;
+			List<BookStoreBook> updatedBooks = new ArrayList<BookStoreBook>();
 			
-			writeLockFromISBNs(isbns);
-					
-			// Update the number of copies
-			for (BookCopy bookCopy : bookCopiesSet) {
-				ISBN = bookCopy.getISBN();
-				numCopies = bookCopy.getNumCopies();
-				book = bookMap.get(ISBN);
-				book.addCopies(numCopies);
+			bookMapBookKeys.writeLock(isbns);
+			try {
+				sequence = log(LogRecord.addCopies(bookCopiesSet));
+				// Update the number of copies
+				for (BookCopy bookCopy : bookCopiesSet) {
+					ISBN = bookCopy.getISBN();
+					numCopies = bookCopy.getNumCopies();
+					book = bookMap.get(ISBN);
+					book.addCopies(numCopies);
+					inDemandIndex.remove(ISBN);
+					// Sale misses are recorded without the write lock, one
+					// may have come in between the reset and the removal
+					if (book.hadSaleMiss()) {
+						inDemandIndex.add(book);
+					}
+					updatedBooks.add(book);
+				}
+				bookVersions.commit(updatedBooks);
+			} finally {
+				bookMapBookKeys.writeUnlock(isbns);
 			}
-			
-			writeUnlockFromISBNs(isbns);
 		}
 		finally{
-			bookMapMasterKey.readLock().unlock();
+			bookMapMasterKey.asReadLock().unlock();
 		}
-		
+		awaitDurable(sequence);
 		return;
 	}
 
 	public List<StockBook> getBooks() {
-		bookMapMasterKey.readLock().lock();
-		readLockAll();
-		
-		List<StockBook> listBooks = new ArrayList<StockBook>();
-		Collection<BookStoreBook> bookMapValues = bookMap.values();
-		for (BookStoreBook book : bookMapValues) {
-			listBooks.add(book.immutableStockBook());
+		// The master read lock only keeps books from being added or removed
+		// during the scan, the books are read from a snapshot so buyers are
+		// not blocked
+		bookMapMasterKey.asReadLock().lock();
+		try {
+			final List<StockBook> listBooks = new ArrayList<StockBook>();
+			if (tiering == null) {
+				readBooks(listBooks);
+				return listBooks;
+			}
+			// No book moves between the heap and the cold file during the
+			// scan, the paged out books have not changed since they were
+			// paged out. The snapshot is opened under the same lock, as a
+			// book faulted in before it would be missing from both
+			synchronized (tiering) {
+				readBooks(listBooks);
+				tiering.getColdBooks().scan(new BookStoreSnapshot.Visitor() {
+					public void visit(StockBook book) {
+						listBooks.add(book);
+					}
+				});
+			}
+			return listBooks;
+		} finally {
+			bookMapMasterKey.asReadLock().unlock();
+		}
+	}
+
+	private void readBooks(List<StockBook> listBooks) {
+		BookVersionManager.Snapshot snapshot = bookVersions.openSnapshot();
+		try {
+			for (BookStoreBook book : bookMap.values()) {
+				StockBook bookVersion = snapshot.read(book);
+				if (bookVersion != null) {
+					listBooks.add(bookVersion);
+				}
+			}
+		} finally {
+			snapshot.close();
 		}
-		
-		readUnlockAll();
-		bookMapMasterKey.readLock().unlock(); 
-		return listBooks;
 	}
 
 	public void updateEditorPicks(Set<BookEditorPick> editorPicks)
@@ -155,8 +397,9 @@ public class ConcurrentCertainBookStore implements BookStore, StockManager {
 		int ISBNVal;
 		
 		Set<Integer> isbns = new HashSet<Integer>();
+		long sequence;
 
-		bookMapMasterKey.readLock().lock();
+		bookMapMasterKey.asReadLock().lock();
 		try{
 			for (BookEditorPick editorPickArg : editorPicks) {
 				ISBNVal = editorPickArg.getISBN();
@@ -164,38 +407,73 @@ public class ConcurrentCertainBookStore implements BookStore, StockManager {
 					throw new BookStoreException(BookStoreConstants.ISBN + ISBNVal
 							+ BookStoreConstants.INVALID);
 				}
-				if (!bookMap.containsKey(ISBNVal)) {
+				if (residentBook(ISBNVal) == null) {
 					throw new BookStoreException(BookStoreConstants.ISBN + ISBNVal
 							+ BookStoreConstants.NOT_AVAILABLE);
 				}
 				isbns.add(ISBNVal);
 			}
 			
-			writeLockFromISBNs(isbns);
-	
-			for (BookEditorPick editorPickArg : editorPicks) {
-				bookMap.get(editorPickArg.getISBN()).setEditorPick(
-						editorPickArg.isEditorPick());
+			List<BookStoreBook> updatedBooks = new ArrayList<BookStoreBook>();
+			List<BookStoreBook> picked = new ArrayList<BookStoreBook>();
+			List<BookStoreBook> unpicked = new ArrayList<BookStoreBook>();
+			bookMapBookKeys.writeLock(isbns);
+			try {
+				sequence = log(LogRecord.updateEditorPicks(editorPicks));
+				for (BookEditorPick editorPickArg : editorPicks) {
+					BookStoreBook book = bookMap.get(editorPickArg.getISBN());
+					book.setEditorPick(editorPickArg.isEditorPick());
+					updatedBooks.add(book);
+					if (editorPickArg.isEditorPick()) {
+						picked.add(book);
+					} else {
+						unpicked.add(book);
+					}
+				}
+				bookVersions.commit(updatedBooks);
+				editorPickIndex.update(picked, unpicked);
+			} finally {
+				bookMapBookKeys.writeUnlock(isbns);
 			}
-			writeUnlockFromISBNs(isbns);
-			return;
 		}
 		finally {
-			bookMapMasterKey.readLock().unlock();
+			bookMapMasterKey.asReadLock().unlock();
 		}
+		awaitDurable(sequence);
 	}
 
 	public void buyBooks(Set<BookCopy> bookCopiesToBuy) throws BookStoreException {
 		if (bookCopiesToBuy == null) {
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
+		if (numFlashSales > 0 && bookCopiesToBuy.size() == 1
+				&& buyFlashSaleCopies(bookCopiesToBuy.iterator().next())) {
+			return;
+		}
+		if (purchaseCombiner != null) {
+			// The arguments are checked before queueing, the combiner only
+			// checks what depends on the state of the store
+			for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+				if (bookCopyToBuy.getNumCopies() < 0)
+					throw new BookStoreException(BookStoreConstants.NUM_COPIES
+							+ bookCopyToBuy.getNumCopies()
+							+ BookStoreConstants.INVALID);
+				if (BookStoreUtility.isInvalidISBN(bookCopyToBuy.getISBN()))
+					throw new BookStoreException(BookStoreConstants.ISBN
+							+ bookCopyToBuy.getISBN()
+							+ BookStoreConstants.INVALID);
+			}
+			purchaseCombiner.submit(bookCopiesToBuy);
+			return;
+		}
 
 		// Check that all ISBNs that we buy are there first.
 		int ISBN;
 		Set<Integer> isbns = new HashSet<Integer>();
 		BookStoreBook book;
-		Boolean saleMiss = false;
-		bookMapMasterKey.readLock().lock();
+		List<BookStoreBook> missedBooks = new ArrayList<BookStoreBook>();
+		long sequence;
+		bookMapMasterKey.asReadLock().lock();
 		try {
 			for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
 				ISBN = bookCopyToBuy.getISBN();
@@ -206,37 +484,499 @@ public class ConcurrentCertainBookStore implements BookStore, StockManager {
 				if (BookStoreUtility.isInvalidISBN(ISBN)) {
 					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
 							+ BookStoreConstants.INVALID);}
-				if (!bookMap.containsKey(ISBN)){
+				book = residentBook(ISBN);
+				if (book == null){
 					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
 							+ BookStoreConstants.NOT_AVAILABLE);}
-				book = bookMap.get(ISBN);
 				if (!book.areCopiesInStore(bookCopyToBuy.getNumCopies())) {
-					writeLockFromISBN(ISBN);
-					book.addSaleMiss(); // If we cannot sell the copies of the book
-										// its a miss
-					writeUnlockFromISBN(ISBN);
-					saleMiss = true;
+					// If we cannot sell the copies of the book its a miss
+					missedBooks.add(book);
 				}
 				isbns.add(ISBN);
 			}
 			// We throw exception now since we want to see how many books in the
 			// order incurred misses which is used by books in demand
-			if (saleMiss)
+			if (!missedBooks.isEmpty()) {
+				recordSaleMisses(missedBooks);
 				throw new BookStoreException(BookStoreConstants.BOOK
 						+ BookStoreConstants.NOT_AVAILABLE);
+			}
 	
 			// Then make purchase
-			writeLockFromISBNs(isbns);
-			
-			for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
-				book = bookMap.get(bookCopyToBuy.getISBN());
-				book.buyCopies(bookCopyToBuy.getNumCopies());
+			List<BookStoreBook> boughtBooks = new ArrayList<BookStoreBook>();
+			bookMapBookKeys.writeLock(isbns);
+			try {
+				// A concurrent purchase may have taken the copies since they
+				// were checked
+				for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+					book = bookMap.get(bookCopyToBuy.getISBN());
+					if (!book.isFlashSale()
+							&& !book.areCopiesInStore(bookCopyToBuy
+									.getNumCopies())) {
+						missedBooks.add(book);
+					}
+				}
+				if (missedBooks.isEmpty()) {
+					BookStoreBook missedBook = takeFlashSaleCopies(bookCopiesToBuy);
+					if (missedBook != null) {
+						missedBooks.add(missedBook);
+					}
+				}
+				if (!missedBooks.isEmpty()) {
+					addSaleMisses(missedBooks);
+					throw new BookStoreException(BookStoreConstants.BOOK
+							+ BookStoreConstants.NOT_AVAILABLE);
+				}
+				try {
+					sequence = log(LogRecord.buyBooks(bookCopiesToBuy));
+				} catch (BookStoreException ex) {
+					returnFlashSaleCopies(bookCopiesToBuy);
+					throw ex;
+				}
+				for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+					book = bookMap.get(bookCopyToBuy.getISBN());
+					if (!book.isFlashSale()) {
+						book.buyCopies(bookCopyToBuy.getNumCopies());
+						boughtBooks.add(book);
+					}
+				}
+				bookVersions.commit(boughtBooks);
+			} finally {
+				bookMapBookKeys.writeUnlock(isbns);
 			}
-			writeUnlockFromISBNs(isbns);
-			return;
 		}
 		finally {
-			bookMapMasterKey.readLock().unlock();
+			bookMapMasterKey.asReadLock().unlock();
+		}
+		awaitDurable(sequence);
+	}
+
+	/**
+	 * Records a sale miss of each of the books. The sale misses are
+	 * LongAdders, so buyers that miss the same sold out book neither take its
+	 * write lock nor contend on one counter. With a log, the misses are taken
+	 * under the read locks of the books though, so they are logged in the same
+	 * order as the restocks that reset them. The caller must hold the master
+	 * read lock.
+	 */
+	private void recordSaleMisses(List<BookStoreBook> missedBooks)
+			throws BookStoreException {
+		if (log == null) {
+			addSaleMisses(missedBooks);
+			return;
+		}
+		Set<Integer> isbns = new HashSet<Integer>();
+		for (BookStoreBook book : missedBooks) {
+			isbns.add(book.getISBN());
+		}
+		bookMapBookKeys.readLock(isbns);
+		try {
+			addSaleMisses(missedBooks);
+		} finally {
+			bookMapBookKeys.readUnlock(isbns);
+		}
+	}
+
+	/**
+	 * Logs and records a sale miss of each of the books. The caller must
+	 * hold the read or write locks of the books if the store has a log. The
+	 * misses are not waited for, like in CertainBookStore.
+	 */
+	private void addSaleMisses(List<BookStoreBook> missedBooks)
+			throws BookStoreException {
+		if (log != null) {
+			List<Integer> isbns = new ArrayList<Integer>();
+			for (BookStoreBook book : missedBooks) {
+				isbns.add(book.getISBN());
+			}
+			log(LogRecord.saleMisses(isbns));
+		}
+		for (BookStoreBook book : missedBooks) {
+			book.addSaleMiss();
+			inDemandIndex.add(book);
+		}
+	}
+
+	/**
+	 * Buys the copies of a single book on flash sale. Only the master read
+	 * lock is taken, the copies are taken from the striped stock of the book
+	 * and no version is committed, the stock of a book on flash sale is read
+	 * live. Returns false if the book is not on flash sale or the arguments
+	 * are not valid, in which case the caller buys as usual.
+	 * 
+	 * @param bookCopyToBuy
+	 * @return
+	 * @throws BookStoreException
+	 *             if there are not enough copies left
+	 */
+	private boolean buyFlashSaleCopies(BookCopy bookCopyToBuy)
+			throws BookStoreException {
+		int ISBN = bookCopyToBuy.getISBN();
+		if (BookStoreUtility.isInvalidISBN(ISBN)
+				|| BookStoreUtility.isInvalidNoCopies(bookCopyToBuy
+						.getNumCopies())) {
+			return false;
+		}
+		long sequence;
+		bookMapMasterKey.asReadLock().lock();
+		try {
+			BookStoreBook book = bookMap.get(ISBN);
+			if (book == null || !book.isFlashSale()) {
+				return false;
+			}
+			if (!book.buyCopies(bookCopyToBuy.getNumCopies())) {
+				recordSaleMisses(Collections.singletonList(book));
+				throw new BookStoreException(BookStoreConstants.BOOK
+						+ BookStoreConstants.NOT_AVAILABLE);
+			}
+			// Logged after the copies were taken, so the restocks they were
+			// taken from come before them in the log
+			try {
+				sequence = log(LogRecord.buyBooks(Collections
+						.singleton(bookCopyToBuy)));
+			} catch (BookStoreException ex) {
+				book.returnFlashCopies(bookCopyToBuy.getNumCopies());
+				throw ex;
+			}
+		} finally {
+			bookMapMasterKey.asReadLock().unlock();
+		}
+		awaitDurable(sequence);
+		return true;
+	}
+
+	/**
+	 * Takes the copies of the books on flash sale from their striped stock.
+	 * Either all of them are taken, or the ones taken are put back and the
+	 * book that ran out is returned. The caller must hold the write locks of
+	 * the books; the other books are bought after this succeeded.
+	 * 
+	 * @param bookCopiesToBuy
+	 * @return the book that ran out, or null if all copies were taken
+	 */
+	private BookStoreBook takeFlashSaleCopies(Set<BookCopy> bookCopiesToBuy) {
+		List<BookCopy> taken = new ArrayList<BookCopy>();
+		for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+			BookStoreBook book = bookMap.get(bookCopyToBuy.getISBN());
+			if (!book.isFlashSale()
+					|| BookStoreUtility.isInvalidNoCopies(bookCopyToBuy
+							.getNumCopies())) {
+				continue;
+			}
+			if (!book.buyCopies(bookCopyToBuy.getNumCopies())) {
+				returnFlashSaleCopies(taken);
+				return book;
+			}
+			taken.add(bookCopyToBuy);
+		}
+		return null;
+	}
+
+	/**
+	 * Puts back the copies of the books on flash sale taken by
+	 * takeFlashSaleCopies. The caller must hold the write locks of the books.
+	 */
+	private void returnFlashSaleCopies(Collection<BookCopy> bookCopies) {
+		for (BookCopy bookCopy : bookCopies) {
+			BookStoreBook book = bookMap.get(bookCopy.getISBN());
+			if (book.isFlashSale()
+					&& !BookStoreUtility.isInvalidNoCopies(bookCopy
+							.getNumCopies())) {
+				book.returnFlashCopies(bookCopy.getNumCopies());
+			}
+		}
+	}
+
+	/**
+	 * Puts the book on flash sale: its stock is split over one stripe per
+	 * processor, and buyBooks calls that only buy this book take copies from
+	 * the stripes without locking the book (cf. StripedStockCounter).
+	 * 
+	 * The stock on flash sale is not versioned, so getBooks and
+	 * getBooksInDemand read its live value rather than the value as of their
+	 * snapshot, cf. BookVersionManager.
+	 * 
+	 * @param ISBN
+	 * @throws BookStoreException
+	 */
+	public void startFlashSale(int ISBN) throws BookStoreException {
+		setFlashSale(ISBN, true);
+	}
+
+	/**
+	 * Ends the flash sale of the book and moves its stock back into the book.
+	 * 
+	 * @param ISBN
+	 * @throws BookStoreException
+	 */
+	public void endFlashSale(int ISBN) throws BookStoreException {
+		setFlashSale(ISBN, false);
+	}
+
+	private void setFlashSale(int ISBN, boolean flashSale)
+			throws BookStoreException {
+		if (BookStoreUtility.isInvalidISBN(ISBN)) {
+			throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+					+ BookStoreConstants.INVALID);
+		}
+		// The master write lock keeps out the buyers that take copies from
+		// the stripes without locking the book
+		bookMapMasterKey.asWriteLock().lock();
+		try {
+			BookStoreBook book = bookMap.get(ISBN);
+			if (book == null) {
+				throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+						+ BookStoreConstants.NOT_AVAILABLE);
+			}
+			boolean wasFlashSale = book.isFlashSale();
+			if (flashSale) {
+				book.startFlashSale(Runtime.getRuntime().availableProcessors());
+			} else {
+				book.endFlashSale();
+			}
+			if (book.isFlashSale() != wasFlashSale) {
+				numFlashSales += flashSale ? 1 : -1;
+			}
+			List<BookStoreBook> changedBooks = new ArrayList<BookStoreBook>();
+			changedBooks.add(book);
+			bookVersions.commit(changedBooks);
+		} finally {
+			bookMapMasterKey.asWriteLock().unlock();
+		}
+	}
+
+	/**
+	 * Adds a large number of books at once. The books are validated and
+	 * prepared in parallel without any locks, and then published in one short
+	 * critical section under the master write lock, so customers are only
+	 * blocked for the time it takes to link the books in. Like addBooks, the
+	 * load is all-or-nothing.
+	 * 
+	 * @param bookCollection
+	 * @param listener
+	 *            is told about the progress, may be null
+	 * @throws BookStoreException
+	 */
+	public void bulkAddBooks(Collection<StockBook> bookCollection,
+			BulkLoadListener listener) throws BookStoreException {
+		if (bookCollection == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		StockBook[] books = bookCollection.toArray(new StockBook[bookCollection
+				.size()]);
+		BookStoreBook[] built = new BookStoreBook[books.length];
+		long changes = catalogChanges;
+		long clears = dictionaryClears;
+		AtomicReference<BookStoreException> error = new AtomicReference<BookStoreException>();
+		ForkJoinPool.commonPool().invoke(
+				new BulkLoadTask(books, built, 0, books.length, bookStrings,
+						error, new AtomicInteger(0), listener));
+		try {
+			if (error.get() != null) {
+				throw error.get();
+			}
+			int[] isbns = new int[built.length];
+			for (int i = 0; i < built.length; i++) {
+				isbns[i] = built[i].getISBN();
+			}
+			Arrays.sort(isbns);
+			for (int i = 1; i < isbns.length; i++) {
+				if (isbns[i] == isbns[i - 1]) {
+					throw new BookStoreException(BookStoreConstants.ISBN
+							+ isbns[i] + BookStoreConstants.DUPLICATED);
+				}
+			}
+			checkNotInCatalog(built);
+			// Grows the catalog on the side, readers keep the old table
+			bookMap.ensureCapacity(bookMap.size() + built.length);
+		} catch (BookStoreException ex) {
+			// The master read lock keeps removeAllBooks from clearing the
+			// dictionary while the strings are released
+			bookMapMasterKey.asReadLock().lock();
+			try {
+				releaseBulkStrings(built, clears);
+			} finally {
+				bookMapMasterKey.asReadLock().unlock();
+			}
+			throw ex;
+		}
+
+		// The record is built before the lock is taken and only appended
+		// under it
+		LogRecord record = (log == null) ? null : LogRecord
+				.addBooks(new HashSet<StockBook>(bookCollection));
+		long sequence = 0;
+		bookMapMasterKey.asWriteLock().lock();
+		try {
+			try {
+				if (catalogChanges != changes) {
+					// Books were added or removed meanwhile
+					checkNotInCatalog(built);
+				}
+				if (record != null) {
+					sequence = log(record);
+				}
+			} catch (BookStoreException ex) {
+				releaseBulkStrings(built, clears);
+				throw ex;
+			}
+			if (dictionaryClears != clears) {
+				// The strings of the books were dropped with the dictionary
+				for (BookStoreBook book : built) {
+					bookStrings.canonicalize(book.getTitle());
+					bookStrings.canonicalize(book.getAuthor());
+				}
+			}
+			for (BookStoreBook book : built) {
+				bookMap.put(book.getISBN(), book);
+				bookMapBookKeys.register(book.getISBN());
+				if (book.isEditorPick()) {
+					editorPickIndex.add(book);
+				}
+				topRatedIndex.update(book, book.getTotalRating(),
+						book.getTimesRated());
+				if (book.hadSaleMiss()) {
+					inDemandIndex.add(book);
+				}
+			}
+			bookVersions.commit(Arrays.asList(built));
+			catalogChanges++;
+		} finally {
+			bookMapMasterKey.asWriteLock().unlock();
+		}
+		scheduleEvictionIfNeeded();
+		awaitDurable(sequence);
+		if (listener != null) {
+			listener.published(built.length);
+		}
+	}
+
+	private void checkNotInCatalog(BookStoreBook[] books)
+			throws BookStoreException {
+		for (BookStoreBook book : books) {
+			if (inCatalog(book.getISBN())) {
+				throw new BookStoreException(BookStoreConstants.ISBN
+						+ book.getISBN() + BookStoreConstants.DUPLICATED);
+			}
+		}
+	}
+
+	/**
+	 * Releases the strings of the books of a failed bulk load, unless the
+	 * dictionary was cleared since they were added to it. The caller must
+	 * hold the master lock.
+	 */
+	private void releaseBulkStrings(BookStoreBook[] books, long clears) {
+		if (dictionaryClears != clears) {
+			return;
+		}
+		for (BookStoreBook book : books) {
+			if (book != null) {
+				bookStrings.release(book.getTitle());
+				bookStrings.release(book.getAuthor());
+			}
+		}
+	}
+
+	/**
+	 * Applies a batch of purchases under one acquisition of the locks of all
+	 * the books in the batch. The purchases are applied one after the other,
+	 * so each one is all-or-nothing and sees the stock left by the ones
+	 * before it, as if they had been made by separate buyBooks calls.
+	 */
+	private void buyBatch(List<FlatCombiner.Request<Set<BookCopy>>> batch) {
+		Set<Integer> isbns = new HashSet<Integer>();
+		long sequence = 0;
+		bookMapMasterKey.asReadLock().lock();
+		try {
+			for (FlatCombiner.Request<Set<BookCopy>> request : batch) {
+				for (BookCopy bookCopyToBuy : request.getArgument()) {
+					int ISBN = bookCopyToBuy.getISBN();
+					if (residentBook(ISBN) == null) {
+						request.fail(new BookStoreException(
+								BookStoreConstants.ISBN + ISBN
+										+ BookStoreConstants.NOT_AVAILABLE));
+					}
+				}
+				if (!request.isFailed()) {
+					for (BookCopy bookCopyToBuy : request.getArgument()) {
+						isbns.add(bookCopyToBuy.getISBN());
+					}
+				}
+			}
+
+			Set<BookStoreBook> boughtBooks = new HashSet<BookStoreBook>();
+			try {
+				bookMapBookKeys.writeLock(isbns);
+			} catch (BookStoreException ex) {
+				for (FlatCombiner.Request<Set<BookCopy>> request : batch) {
+					request.fail(ex);
+				}
+				return;
+			}
+			try {
+				for (FlatCombiner.Request<Set<BookCopy>> request : batch) {
+					if (request.isFailed()) {
+						continue;
+					}
+					List<BookStoreBook> missedBooks = new ArrayList<BookStoreBook>();
+					for (BookCopy bookCopyToBuy : request.getArgument()) {
+						BookStoreBook book = bookMap.get(bookCopyToBuy.getISBN());
+						if (!book.areCopiesInStore(bookCopyToBuy.getNumCopies())) {
+							missedBooks.add(book);
+						}
+					}
+					if (missedBooks.isEmpty()) {
+						BookStoreBook missedBook = takeFlashSaleCopies(request
+								.getArgument());
+						if (missedBook != null) {
+							missedBooks.add(missedBook);
+						}
+					}
+					try {
+						if (!missedBooks.isEmpty()) {
+							addSaleMisses(missedBooks);
+							request.fail(new BookStoreException(
+									BookStoreConstants.BOOK
+											+ BookStoreConstants.NOT_AVAILABLE));
+							continue;
+						}
+						try {
+							sequence = log(LogRecord.buyBooks(request
+									.getArgument()));
+						} catch (BookStoreException ex) {
+							returnFlashSaleCopies(request.getArgument());
+							throw ex;
+						}
+					} catch (BookStoreException ex) {
+						request.fail(ex);
+						continue;
+					}
+					for (BookCopy bookCopyToBuy : request.getArgument()) {
+						BookStoreBook book = bookMap.get(bookCopyToBuy.getISBN());
+						if (!book.isFlashSale()) {
+							book.buyCopies(bookCopyToBuy.getNumCopies());
+							boughtBooks.add(book);
+						}
+					}
+				}
+				bookVersions.commit(boughtBooks);
+			} finally {
+				bookMapBookKeys.writeUnlock(isbns);
+			}
+		} finally {
+			bookMapMasterKey.asReadLock().unlock();
+		}
+		// The purchases of the batch are made durable by one wait
+		try {
+			awaitDurable(sequence);
+		} catch (BookStoreException ex) {
+			for (FlatCombiner.Request<Set<BookCopy>> request : batch) {
+				if (!request.isFailed()) {
+					request.fail(ex);
+				}
+			}
 		}
 	}
 
@@ -244,58 +984,76 @@ public class ConcurrentCertainBookStore implements BookStore, StockManager {
 		if (isbnSet == null) {
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
-		bookMapMasterKey.readLock().lock();
+		if (optimisticReads) {
+			List<StockBook> listBooks = optimisticGetBooksByISBN(isbnSet);
+			if (listBooks != null) {
+				return listBooks;
+			}
+		}
+		bookMapMasterKey.asReadLock().lock();
 		try {
 			for (Integer ISBN : isbnSet) {
 				if (BookStoreUtility.isInvalidISBN(ISBN)){
 					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
 							+ BookStoreConstants.INVALID);}
-				if (!bookMap.containsKey(ISBN)){
+				if (residentBook(ISBN) == null){
 					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
 							+ BookStoreConstants.NOT_AVAILABLE);}
 			}
 	
 			List<StockBook> listBooks = new ArrayList<StockBook>();
 	
-			readLockFromISBNs(isbnSet);
-			for (Integer ISBN : isbnSet) {
-				listBooks.add(bookMap.get(ISBN).immutableStockBook());
+			bookMapBookKeys.readLock(isbnSet);
+			try {
+				for (Integer ISBN : isbnSet) {
+					listBooks.add(bookMap.get(ISBN).immutableStockBook());
+				}
+			} finally {
+				bookMapBookKeys.readUnlock(isbnSet);
 			}
-			readUnlockFromISBNs(isbnSet);
 			return listBooks;
 		}
 		finally {
-			bookMapMasterKey.readLock().unlock();
+			bookMapMasterKey.asReadLock().unlock();
 		}
 	}
 
 	public List<Book> getBooks(Set<Integer> isbnSet) throws BookStoreException {
 		if (isbnSet == null) {
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
-		}			
-		bookMapMasterKey.readLock().lock();
+		}
+		if (optimisticReads) {
+			List<Book> listBooks = optimisticGetBooks(isbnSet);
+			if (listBooks != null) {
+				return listBooks;
+			}
+		}
+		bookMapMasterKey.asReadLock().lock();
 		try {
 			// Check that all ISBNs that we rate are there first.
 			for (Integer ISBN : isbnSet) {
 				if (BookStoreUtility.isInvalidISBN(ISBN))
 					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
 							+ BookStoreConstants.INVALID);
-				if (!bookMap.containsKey(ISBN))
+				if (residentBook(ISBN) == null)
 					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
 							+ BookStoreConstants.NOT_AVAILABLE);
 			}
 
 			List<Book> listBooks = new ArrayList<Book>();
 
-			readLockFromISBNs(isbnSet);
-			// Get the books
-			for (Integer ISBN : isbnSet) {
-				listBooks.add(bookMap.get(ISBN).immutableBook());
+			bookMapBookKeys.readLock(isbnSet);
+			try {
+				// Get the books
+				for (Integer ISBN : isbnSet) {
+					listBooks.add(bookMap.get(ISBN).immutableBook());
+				}
+			} finally {
+				bookMapBookKeys.readUnlock(isbnSet);
 			}
-			readUnlockFromISBNs(isbnSet);			
 			return listBooks;
 		} finally {
-			bookMapMasterKey.readLock().unlock();			
+			bookMapMasterKey.asReadLock().unlock();			
 		}
 	}
 
@@ -306,80 +1064,120 @@ public class ConcurrentCertainBookStore implements BookStore, StockManager {
 					+ ", but it must be positive");
 		}
 		
-		List<BookStoreBook> listAllEditorPicks = new ArrayList<BookStoreBook>();
+		// The index is kept up to date by addBooks, updateEditorPicks and
+		// removeBooks, so neither the catalog nor the books need to be locked
 		List<Book> listEditorPicks = new ArrayList<Book>();
-		bookMapMasterKey.readLock().lock();
-		readLockAll();
-		Iterator<Entry<Integer, BookStoreBook>> it = bookMap.entrySet()
-				.iterator();
-		BookStoreBook book;
-
-		// Get all books that are editor picks
-		
-		while (it.hasNext()) {
-			Entry<Integer, BookStoreBook> pair = (Entry<Integer, BookStoreBook>) it
-					.next();
-			book = (BookStoreBook) pair.getValue();
-			if (book.isEditorPick()) {
-				listAllEditorPicks.add(book);
-			}
-		}
-
-		// Find numBooks random indices of books that will be picked
-		Random rand = new Random();
-		Set<Integer> tobePicked = new HashSet<Integer>();
-		int rangePicks = listAllEditorPicks.size();
-		if (rangePicks <= numBooks) {
-			// We need to add all the books
-			for (int i = 0; i < listAllEditorPicks.size(); i++) {
-				tobePicked.add(i);
-			}
-		} else {
-			// We need to pick randomly the books that need to be returned
-			int randNum;
-			while (tobePicked.size() < numBooks) {
-				randNum = rand.nextInt(rangePicks);
-				tobePicked.add(randNum);
-			}
-		}
-
-		// Get the numBooks random books
-		for (Integer index : tobePicked) {
-			book = listAllEditorPicks.get(index);
+		for (BookStoreBook book : editorPickIndex.sample(numBooks)) {
 			listEditorPicks.add(book.immutableBook());
 		}
-		readUnlockAll();
-		bookMapMasterKey.readLock().unlock();
 		return listEditorPicks;
 	}
 
 	@Override
 	public List<Book> getTopRatedBooks(int numBooks)
 			throws BookStoreException {
-		throw new BookStoreException("Not implemented");
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks
+					+ ", but it must be positive");
+		}
+
+		// The index is kept up to date by addBooks, rateBooks and removeBooks
+		List<Book> listTopRated = new ArrayList<Book>();
+		for (BookStoreBook book : topRatedIndex.top(numBooks)) {
+			listTopRated.add(book.immutableBook());
+		}
+		return listTopRated;
 	}
 
 	@Override
 	public List<StockBook> getBooksInDemand()
 			throws BookStoreException {
-		throw new BookStoreException("Not implemented");
+		// The index only holds the books that had a sale miss since their
+		// last restock, they are read from a snapshot so a restock that
+		// runs concurrently is either seen completely or not at all
+		List<StockBook> listBooks = new ArrayList<StockBook>();
+		bookMapMasterKey.asReadLock().lock();
+		BookVersionManager.Snapshot snapshot = bookVersions.openSnapshot();
+		try {
+			for (BookStoreBook book : inDemandIndex.books()) {
+				StockBook bookVersion = snapshot.read(book);
+				if (bookVersion != null && bookVersion.getSaleMisses() > 0) {
+					listBooks.add(bookVersion);
+				}
+			}
+			return listBooks;
+		} finally {
+			snapshot.close();
+			bookMapMasterKey.asReadLock().unlock();
+		}
 	}
 
 	@Override
 	public void rateBooks(Set<BookRating> bookRating)
 			throws BookStoreException {
-		throw new BookStoreException("Not implemented");
+		if (bookRating == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		long sequence;
+		bookMapMasterKey.asReadLock().lock();
+		try {
+			for (BookRating rating : bookRating) {
+				int ISBN = rating.getISBN();
+				if (BookStoreUtility.isInvalidISBN(ISBN))
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.INVALID);
+				if (residentBook(ISBN) == null)
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.NOT_AVAILABLE);
+				if (BookStoreUtility.isInvalidRating(rating.getRating()))
+					throw new BookStoreException(BookStoreConstants.RATING
+							+ rating.getRating() + BookStoreConstants.INVALID);
+			}
+
+			// The ratings are LongAdders and do not need the write locks of
+			// the books. The updates of the top rated index of a book are
+			// serialized on the book, and each one reads the sums after its
+			// own rating was added, so the last one leaves the current sums.
+			// Ratings commute, so their records need no lock of the books
+			// either.
+			sequence = log(LogRecord.rateBooks(bookRating));
+			for (BookRating rating : bookRating) {
+				BookStoreBook book = bookMap.get(rating.getISBN());
+				book.addRating(rating.getRating());
+				synchronized (book) {
+					topRatedIndex.update(book, book.getTotalRating(),
+							book.getTimesRated());
+				}
+			}
+		} finally {
+			bookMapMasterKey.asReadLock().unlock();
+		}
+		awaitDurable(sequence);
 	}
 
 	public void removeAllBooks() throws BookStoreException {
-		bookMapMasterKey.writeLock().lock();
+		long sequence;
+		bookMapMasterKey.asWriteLock().lock();
 		try {
+			sequence = log(LogRecord.removeAllBooks());
 			bookMap.clear();
+			if (tiering != null) {
+				tiering.getColdBooks().clear();
+			}
 			bookMapBookKeys.clear();
+			bookStrings.clear();
+			catalogChanges++;
+			dictionaryClears++;
+			numFlashSales = 0;
+			editorPickIndex.clear();
+			topRatedIndex.clear();
+			inDemandIndex.clear();
 		}
 		finally {
-			bookMapMasterKey.writeLock().unlock();
+			bookMapMasterKey.asWriteLock().unlock();
 		}
+		awaitDurable(sequence);
 	}
 
 	public void removeBooks(Set<Integer> isbnSet) throws BookStoreException {
@@ -387,84 +1185,340 @@ public class ConcurrentCertainBookStore implements BookStore, StockManager {
 		if (isbnSet == null) {
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
-		bookMapMasterKey.writeLock().lock();
+		long sequence;
+		bookMapMasterKey.asWriteLock().lock();
 		try {
 			for (Integer ISBN : isbnSet) {
 				if (BookStoreUtility.isInvalidISBN(ISBN)){
 					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
 							+ BookStoreConstants.INVALID);
 					}
-				if (!bookMap.containsKey(ISBN)){
+				if (!inCatalog(ISBN)){
 						throw new BookStoreException(BookStoreConstants.ISBN + ISBN
 							+ BookStoreConstants.NOT_AVAILABLE);
 					}
 			}
+			sequence = log(LogRecord.removeBooks(isbnSet));
 			for (int isbn : isbnSet) {
-				bookMap.remove(isbn);
+				BookStoreBook book = bookMap.remove(isbn);
+				editorPickIndex.remove(isbn);
+				topRatedIndex.remove(isbn);
+				inDemandIndex.remove(isbn);
+				if (book != null) {
+					if (book.isFlashSale()) {
+						numFlashSales--;
+					}
+					bookStrings.release(book.getTitle());
+					bookStrings.release(book.getAuthor());
+				} else {
+					// Paged out, its strings were released then
+					tiering.getColdBooks().remove(isbn);
+				}
+				bookMapBookKeys.unregister(isbn);
 			}
+			catalogChanges++;
 		}
 		finally {
-			bookMapMasterKey.writeLock().unlock();
+			bookMapMasterKey.asWriteLock().unlock();
 		}
+		awaitDurable(sequence);
 	}
-	
-	private void readLockFromISBNs(Set<Integer> isbns){
-		for (ISBNandLock isbnAndLock : bookMapBookKeys) {
-			if (isbns.contains(isbnAndLock.ISBN)) {
-				isbnAndLock.lock.readLock().lock();
+
+	/**
+	 * Reads the stock books of isbnSet without taking any locks. The read is
+	 * validated against the version stamps of the master lock and of the
+	 * per-book locks, so it only succeeds if no writer touched the catalog or
+	 * any of the books while they were read. Returns null if the read could
+	 * not be validated or if an ISBN is invalid or missing, in which case the
+	 * caller takes the locks and reads (or reports the error) as usual.
+	 * 
+	 * @param isbnSet
+	 * @return
+	 */
+	private List<StockBook> optimisticGetBooksByISBN(Set<Integer> isbnSet) {
+		long masterStamp = bookMapMasterKey.tryOptimisticRead();
+		if (masterStamp == 0) {
+			return null;
+		}
+
+		List<StockBook> listBooks = new ArrayList<StockBook>();
+		ISBNandLock[] locks = new ISBNandLock[isbnSet.size()];
+		long[] stamps = new long[isbnSet.size()];
+		int i = 0;
+		for (Integer ISBN : isbnSet) {
+			if (BookStoreUtility.isInvalidISBN(ISBN)) {
+				return null;
+			}
+			locks[i] = bookMapBookKeys.get(ISBN);
+			BookStoreBook book = bookMap.get(ISBN);
+			if (locks[i] == null || book == null) {
+				return null;
+			}
+			touch(book);
+			stamps[i] = locks[i].lock.tryOptimisticRead();
+			if (stamps[i] == 0) {
+				return null;
+			}
+			listBooks.add(book.immutableStockBook());
+			i++;
+		}
+
+		for (i = 0; i < locks.length; i++) {
+			if (!locks[i].lock.validate(stamps[i])) {
+				return null;
 			}
 		}
+		if (!bookMapMasterKey.validate(masterStamp)) {
+			return null;
+		}
+		if (tiering != null) {
+			for (int j = 0; j < listBooks.size(); j++) {
+				tiering.hit();
+			}
+		}
+		return listBooks;
 	}
-	
-	private void readUnlockFromISBNs(Set<Integer> isbns){
-		for (ISBNandLock isbnAndLock : bookMapBookKeys) {
-			if (isbns.contains(isbnAndLock.ISBN)) {
-				isbnAndLock.lock.readLock().unlock();
+
+	/**
+	 * Reads the books of isbnSet without taking any locks. The fields of a
+	 * Book never change once the book is added, so only the master lock stamp
+	 * has to be validated. Returns null in the same cases as
+	 * optimisticGetBooksByISBN.
+	 * 
+	 * @param isbnSet
+	 * @return
+	 */
+	private List<Book> optimisticGetBooks(Set<Integer> isbnSet) {
+		long masterStamp = bookMapMasterKey.tryOptimisticRead();
+		if (masterStamp == 0) {
+			return null;
+		}
+
+		List<Book> listBooks = new ArrayList<Book>();
+		for (Integer ISBN : isbnSet) {
+			if (BookStoreUtility.isInvalidISBN(ISBN)) {
+				return null;
+			}
+			BookStoreBook book = bookMap.get(ISBN);
+			if (book == null) {
+				return null;
+			}
+			touch(book);
+			listBooks.add(book.immutableBook());
+		}
+
+		if (!bookMapMasterKey.validate(masterStamp)) {
+			return null;
+		}
+		if (tiering != null) {
+			for (int j = 0; j < listBooks.size(); j++) {
+				tiering.hit();
 			}
 		}
+		return listBooks;
 	}
-	
-	private void readLockAll(){
-		for (ISBNandLock isbnAndLock : bookMapBookKeys) {
-			isbnAndLock.lock.readLock().lock();
+
+	/**
+	 * Returns true if the book is in the store, on the heap or paged out. The
+	 * caller must hold the master lock, or check again under it.
+	 */
+	private boolean inCatalog(int ISBN) {
+		return bookMap.containsKey(ISBN)
+				|| (tiering != null && tiering.getColdBooks().contains(ISBN));
+	}
+
+	/**
+	 * Returns the book with the given ISBN, and faults it back onto the heap
+	 * if it was paged out. Returns null if there is no such book. The caller
+	 * must hold the master lock, which keeps the book from being paged out
+	 * again until the lock is released.
+	 */
+	private BookStoreBook residentBook(int ISBN) {
+		BookStoreBook book = bookMap.get(ISBN);
+		if (tiering == null) {
+			return book;
+		}
+		if (book != null) {
+			book.touch();
+			tiering.hit();
+			return book;
+		}
+		synchronized (tiering) {
+			book = bookMap.get(ISBN);
+			if (book != null) {
+				// Faulted in by someone else meanwhile
+				book.touch();
+				return book;
+			}
+			long start = System.nanoTime();
+			StockBook coldBook = tiering.getColdBooks().take(ISBN);
+			if (coldBook == null) {
+				return null;
+			}
+			book = new BookStoreBook(coldBook, bookStrings);
+			book.touch();
+			bookMapBookKeys.register(ISBN);
+			bookMap.put(ISBN, book);
+			bookVersions.commit(Collections.singletonList(book));
+			tiering.faulted(System.nanoTime() - start);
 		}
+		scheduleEvictionIfNeeded();
+		return book;
 	}
-	
-	private void readUnlockAll(){
-		for (ISBNandLock isbnAndLock : bookMapBookKeys) {
-			isbnAndLock.lock.readLock().unlock();
+
+	private void touch(BookStoreBook book) {
+		if (tiering != null) {
+			book.touch();
 		}
 	}
-		
-	private void writeLockFromISBNs(Set<Integer> isbns){
-		for (ISBNandLock isbnAndLock : bookMapBookKeys) {
-			if (isbns.contains(isbnAndLock.ISBN)) {
-				isbnAndLock.lock.writeLock().lock();
-			}
+
+	private void scheduleEvictionIfNeeded() {
+		if (tiering != null && bookMap.size() > tiering.getMaxHotBooks()) {
+			tiering.scheduleEviction(new Runnable() {
+				public void run() {
+					// Every pass cools the books, so after MAX_HEAT + 1
+					// passes only the pinned books are left
+					try {
+						for (int pass = 0; pass <= BookTiering.MAX_HEAT; pass++) {
+							if (evictColdBooks() < 0) {
+								return;
+							}
+						}
+					} catch (BookStoreException ex) {
+						// The books that could not be written stay on the
+						// heap, the next eviction tries them again
+						tiering.evictionFailed();
+					}
+				}
+			});
 		}
 	}
-	
-	private void writeUnlockFromISBNs(Set<Integer> isbns){
-		for (ISBNandLock isbnAndLock : bookMapBookKeys) {
-			if (isbns.contains(isbnAndLock.ISBN)) {
-				isbnAndLock.lock.writeLock().unlock();
+
+	/**
+	 * Makes one eviction pass over the books on the heap, cf. BookTiering.
+	 * The pass pages out cold books until only the target number of books is
+	 * left on the heap and cools the others. Returns the number of books
+	 * paged out, or -1 if no more books needed to be paged out. Does nothing
+	 * if the store has no tiering. The locks of the paged out books are
+	 * dropped, a fault creates them again.
+	 * 
+	 * A book that cannot be written to the cold file stays on the heap. The
+	 * pass still pages out the other books and then throws the failure.
+	 * 
+	 * @return
+	 * @throws BookStoreException
+	 */
+	public int evictColdBooks() throws BookStoreException {
+		if (tiering == null) {
+			return -1;
+		}
+		// No operation is using a book while the master write lock is held,
+		// and no snapshot that could still read the versions of a book is
+		// open
+		bookMapMasterKey.asWriteLock().lock();
+		try {
+			int excess = bookMap.size() - tiering.getTargetHotBooks();
+			if (excess <= 0) {
+				return -1;
+			}
+			List<BookStoreBook> evicted = new ArrayList<BookStoreBook>();
+			for (BookStoreBook book : bookMap.values()) {
+				if (book.cool() == 0 && evicted.size() < excess
+						&& !isPinned(book)) {
+					evicted.add(book);
+				}
 			}
+			int numEvicted = 0;
+			IOException failure = null;
+			for (BookStoreBook book : evicted) {
+				try {
+					tiering.getColdBooks().put(book.immutableStockBook());
+				} catch (IOException ex) {
+					if (failure == null) {
+						failure = ex;
+					}
+					continue;
+				}
+				bookMap.remove(book.getISBN());
+				bookMapBookKeys.unregister(book.getISBN());
+				bookStrings.release(book.getTitle());
+				bookStrings.release(book.getAuthor());
+				numEvicted++;
+			}
+			tiering.evicted(numEvicted);
+			if (failure != null) {
+				throw new BookStoreException(
+						BookStoreConstants.STORAGE_FAILED, failure);
+			}
+			return numEvicted;
+		} finally {
+			bookMapMasterKey.asWriteLock().unlock();
 		}
 	}
-	
-	private void writeLockFromISBN(Integer isbn){
-		for (ISBNandLock isbnAndLock : bookMapBookKeys) {
-			if (isbn.equals(isbnAndLock.ISBN)) {
-				isbnAndLock.lock.writeLock().lock();
+
+	/**
+	 * Returns true if an index refers to the book or it is on flash sale, so
+	 * it must stay on the heap.
+	 */
+	private static boolean isPinned(BookStoreBook book) {
+		return book.isEditorPick() || book.getTimesRated() > 0
+				|| book.hadSaleMiss() || book.isFlashSale();
+	}
+
+	/**
+	 * Returns the hit and fault statistics of the tiering, or null if the
+	 * store has no tiering.
+	 * 
+	 * @return
+	 */
+	public BookTiering.Statistics getTieringStatistics() {
+		return (tiering == null) ? null : tiering.getStatistics();
+	}
+
+	/**
+	 * Returns the number of books on the heap.
+	 * 
+	 * @return
+	 */
+	public int getNumHotBooks() {
+		return bookMap.size();
+	}
+
+	/**
+	 * Stops the background eviction and deletes the cold file. Does nothing
+	 * if the store has no tiering.
+	 */
+	public void close() {
+		if (tiering != null) {
+			try {
+				tiering.close();
+			} catch (IOException ex) {
+				; // The store is closed anyway
 			}
 		}
 	}
-	
-	private void writeUnlockFromISBN(Integer isbn){
-		for (ISBNandLock isbnAndLock : bookMapBookKeys) {
-			if (isbn.equals(isbnAndLock.ISBN)) {
-				isbnAndLock.lock.writeLock().unlock();
-			}
+
+	/**
+	 * Returns the number of per-book locks held by the store, which always
+	 * equals the number of books on the heap.
+	 * 
+	 * @return
+	 */
+	public int getNumBookLocks() {
+		bookMapMasterKey.asReadLock().lock();
+		try {
+			return bookMapBookKeys.size();
+		} finally {
+			bookMapMasterKey.asReadLock().unlock();
 		}
 	}
+
+	/**
+	 * Returns the lock wait statistics of the per-book locks.
+	 * 
+	 * @return
+	 */
+	public BookLockTable.Statistics getLockStatistics() {
+		return bookMapBookKeys.getStatistics();
+	}
 }
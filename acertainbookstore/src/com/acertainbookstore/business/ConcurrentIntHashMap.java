@@ -0,0 +1,259 @@
+package com.acertainbookstore.business;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * ConcurrentIntHashMap is a hash map from int keys to objects, used as the
+ * book catalog of the stores. Keys are kept in a primitive int array and
+ * looked up with open addressing (linear probing), so lookups never box the
+ * key and the map has no per-entry node objects.
+ *
+ * Lookups and iteration take no locks and may run concurrently with writes.
+ * Writes are serialized on the map (the stores already serialize changes to
+ * their catalog), and a resize builds the new table on the side and publishes
+ * it in one step, so readers keep using the old table until then.
+ *
+ * The key 0 marks an empty slot and can not be stored; ISBNs are always
+ * positive. A removed entry keeps its key with a null value (a tombstone)
+ * until the next resize, so concurrent lookups never miss an entry that is
+ * further along the probe sequence.
+ */
+public class ConcurrentIntHashMap<V> implements Iterable<V> {
+	private static final int EMPTY = 0;
+	private static final int INITIAL_CAPACITY = 16;
+
+	private static final class Table {
+		private final AtomicIntegerArray keys;
+		private final AtomicReferenceArray<Object> values;
+		private final int mask;
+
+		private Table(int capacity) {
+			keys = new AtomicIntegerArray(capacity);
+			values = new AtomicReferenceArray<Object>(capacity);
+			mask = capacity - 1;
+		}
+	}
+
+	private volatile Table table = new Table(INITIAL_CAPACITY);
+	private volatile int size = 0;
+	// Slots that hold a key, including tombstones
+	private int usedSlots = 0;
+
+	private static int slot(int key, int mask) {
+		int h = key * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	/**
+	 * Returns the value stored under key, or null if there is none.
+	 *
+	 * @param key
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(int key) {
+		Table t = table;
+		int i = slot(key, t.mask);
+		while (true) {
+			int k = t.keys.get(i);
+			if (k == key) {
+				return (V) t.values.get(i);
+			}
+			if (k == EMPTY) {
+				return null;
+			}
+			i = (i + 1) & t.mask;
+		}
+	}
+
+	public boolean containsKey(int key) {
+		return get(key) != null;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Stores value under key and returns the previous value, or null if there
+	 * was none.
+	 *
+	 * @param key
+	 * @param value
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized V put(int key, V value) {
+		if (key == EMPTY) {
+			throw new IllegalArgumentException("key must not be " + EMPTY);
+		}
+		if (value == null) {
+			throw new NullPointerException();
+		}
+		Table t = table;
+		int i = slot(key, t.mask);
+		while (true) {
+			int k = t.keys.get(i);
+			if (k == key) {
+				V previous = (V) t.values.getAndSet(i, value);
+				if (previous == null) {
+					size++;
+				}
+				return previous;
+			}
+			if (k == EMPTY) {
+				// Publish the value before the key, so a reader that finds
+				// the key also finds the value
+				t.values.set(i, value);
+				t.keys.set(i, key);
+				size++;
+				if (++usedSlots > (t.mask + 1) / 4 * 3) {
+					resize();
+				}
+				return null;
+			}
+			i = (i + 1) & t.mask;
+		}
+	}
+
+	/**
+	 * Removes the value stored under key and returns it, or null if there was
+	 * none.
+	 *
+	 * @param key
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized V remove(int key) {
+		Table t = table;
+		int i = slot(key, t.mask);
+		while (true) {
+			int k = t.keys.get(i);
+			if (k == key) {
+				V previous = (V) t.values.getAndSet(i, null);
+				if (previous != null) {
+					size--;
+				}
+				return previous;
+			}
+			if (k == EMPTY) {
+				return null;
+			}
+			i = (i + 1) & t.mask;
+		}
+	}
+
+	/**
+	 * Grows the table so that expectedSize entries fit without further
+	 * resizes. Like a resize on put, the new table is built on the side.
+	 *
+	 * @param expectedSize
+	 */
+	public synchronized void ensureCapacity(int expectedSize) {
+		Table t = table;
+		int capacity = t.mask + 1;
+		while (capacity / 4 * 3 < expectedSize) {
+			capacity *= 2;
+		}
+		if (capacity > t.mask + 1) {
+			rehash(capacity);
+		}
+	}
+
+	public synchronized void clear() {
+		table = new Table(INITIAL_CAPACITY);
+		size = 0;
+		usedSlots = 0;
+	}
+
+	/**
+	 * Rehashes the live entries into a new table, growing it if more than
+	 * half of the used slots are live and otherwise just dropping the
+	 * tombstones.
+	 */
+	private void resize() {
+		Table t = table;
+		int capacity = t.mask + 1;
+		if (size > capacity / 2) {
+			capacity *= 2;
+		}
+		rehash(capacity);
+	}
+
+	/**
+	 * Rehashes the live entries into a new table of the given capacity and
+	 * publishes it.
+	 */
+	private void rehash(int capacity) {
+		Table t = table;
+		Table resized = new Table(capacity);
+		for (int i = 0; i <= t.mask; i++) {
+			Object value = t.values.get(i);
+			if (value != null) {
+				int key = t.keys.get(i);
+				int j = slot(key, resized.mask);
+				while (resized.keys.get(j) != EMPTY) {
+					j = (j + 1) & resized.mask;
+				}
+				resized.values.set(j, value);
+				resized.keys.set(j, key);
+			}
+		}
+		usedSlots = size;
+		table = resized;
+	}
+
+	/**
+	 * Returns the values of the map. Iteration takes no locks and is weakly
+	 * consistent: it sees the table as it was when the iteration started.
+	 *
+	 * @return
+	 */
+	public Iterable<V> values() {
+		return this;
+	}
+
+	public Iterator<V> iterator() {
+		final Table t = table;
+		return new Iterator<V>() {
+			private int index = advance(0);
+			private Object next;
+
+			private int advance(int from) {
+				for (int i = from; i <= t.mask; i++) {
+					Object value = t.values.get(i);
+					if (value != null) {
+						next = value;
+						return i;
+					}
+				}
+				return -1;
+			}
+
+			public boolean hasNext() {
+				return index >= 0;
+			}
+
+			@SuppressWarnings("unchecked")
+			public V next() {
+				if (index < 0) {
+					throw new NoSuchElementException();
+				}
+				V value = (V) next;
+				index = advance(index + 1);
+				return value;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+}
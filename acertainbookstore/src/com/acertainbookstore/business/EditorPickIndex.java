@@ -0,0 +1,127 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * EditorPickIndex keeps the books that are editor picks in a dense array, so
+ * getEditorPicks can sample them without scanning the whole catalog. A book is
+ * removed by moving the last book of the array into its place, and a map from
+ * ISBN to position finds the place of a book.
+ *
+ * sample picks numBooks distinct positions with Floyd's algorithm, which
+ * draws exactly numBooks random numbers, so its cost only depends on numBooks
+ * and not on the number of picks or the size of the catalog.
+ *
+ * All methods are synchronized on the index, and update applies a whole
+ * updateEditorPicks call at once, so a sample never sees half of it.
+ */
+public class EditorPickIndex<V extends Book> {
+	private static final int INITIAL_CAPACITY = 16;
+
+	private Object[] picks = new Object[INITIAL_CAPACITY];
+	private int size = 0;
+	private final Map<Integer, Integer> positions = new HashMap<Integer, Integer>();
+
+	/**
+	 * Adds the book to the picks, if it is not a pick already.
+	 *
+	 * @param book
+	 */
+	public synchronized void add(V book) {
+		if (positions.containsKey(book.getISBN())) {
+			return;
+		}
+		if (size == picks.length) {
+			Object[] grown = new Object[picks.length * 2];
+			System.arraycopy(picks, 0, grown, 0, size);
+			picks = grown;
+		}
+		picks[size] = book;
+		positions.put(book.getISBN(), size);
+		size++;
+	}
+
+	/**
+	 * Removes the book with the given ISBN from the picks, if it is a pick.
+	 *
+	 * @param ISBN
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized void remove(int ISBN) {
+		Integer position = positions.remove(ISBN);
+		if (position == null) {
+			return;
+		}
+		size--;
+		if (position != size) {
+			V last = (V) picks[size];
+			picks[position] = last;
+			positions.put(last.getISBN(), position);
+		}
+		picks[size] = null;
+	}
+
+	/**
+	 * Adds the picked books and removes the unpicked books in one step.
+	 *
+	 * @param picked
+	 * @param unpicked
+	 */
+	public synchronized void update(Collection<V> picked, Collection<V> unpicked) {
+		for (V book : unpicked) {
+			remove(book.getISBN());
+		}
+		for (V book : picked) {
+			add(book);
+		}
+	}
+
+	public synchronized void clear() {
+		picks = new Object[INITIAL_CAPACITY];
+		size = 0;
+		positions.clear();
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Returns numBooks distinct random picks, or all the picks if there are
+	 * not more than numBooks of them.
+	 *
+	 * @param numBooks
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized List<V> sample(int numBooks) {
+		List<V> sampled = new ArrayList<V>(Math.min(numBooks, size));
+		if (numBooks >= size) {
+			for (int i = 0; i < size; i++) {
+				sampled.add((V) picks[i]);
+			}
+			return sampled;
+		}
+
+		// Floyd's algorithm: for each j in the last numBooks positions, pick a
+		// random position up to j and take j itself if that one was taken
+		ThreadLocalRandom rand = ThreadLocalRandom.current();
+		Set<Integer> chosen = new HashSet<Integer>();
+		for (int j = size - numBooks; j < size; j++) {
+			int position = rand.nextInt(j + 1);
+			if (!chosen.add(position)) {
+				chosen.add(j);
+				position = j;
+			}
+			sampled.add((V) picks[position]);
+		}
+		return sampled;
+	}
+}
@@ -0,0 +1,144 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * FlatCombiner lets concurrent callers hand their operations to a single
+ * combiner instead of each taking the locks of the store. A caller queues its
+ * request and tries to become the combiner. The combiner drains the queue and
+ * applies the whole batch in one go through the Handler, while the other
+ * callers wait for their request to be completed.
+ *
+ * Every request still gets its own result: the handler fails the requests
+ * that can not be applied, and submit throws that exception in the thread of
+ * the caller.
+ */
+public class FlatCombiner<T> {
+	// Bounds the time the combiner spends on the requests of other threads
+	private static final int MAX_BATCH = 256;
+	private static final long WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+	/**
+	 * Applies a batch of requests. Requests that fail are marked with
+	 * Request.fail, all others succeed.
+	 */
+	public interface Handler<T> {
+		void apply(List<Request<T>> batch);
+	}
+
+	/**
+	 * A queued operation and its result.
+	 */
+	public static final class Request<T> {
+		private final T argument;
+		private final Thread caller = Thread.currentThread();
+		private Throwable failure;
+		private volatile boolean done;
+
+		private Request(T argument) {
+			this.argument = argument;
+		}
+
+		public T getArgument() {
+			return argument;
+		}
+
+		/**
+		 * Marks the request as failed with the given exception.
+		 *
+		 * @param ex
+		 */
+		public void fail(BookStoreException ex) {
+			failure = ex;
+		}
+
+		public boolean isFailed() {
+			return failure != null;
+		}
+	}
+
+	private final ConcurrentLinkedQueue<Request<T>> queue = new ConcurrentLinkedQueue<Request<T>>();
+	private final ReentrantLock combinerLock = new ReentrantLock();
+	private final Handler<T> handler;
+
+	public FlatCombiner(Handler<T> handler) {
+		this.handler = handler;
+	}
+
+	/**
+	 * Queues the operation and waits until it was applied by a combiner,
+	 * which may be the calling thread.
+	 *
+	 * @param argument
+	 * @throws BookStoreException
+	 *             if the handler failed the request
+	 */
+	public void submit(T argument) throws BookStoreException {
+		Request<T> request = new Request<T>(argument);
+		queue.add(request);
+		while (!request.done) {
+			if (combinerLock.tryLock()) {
+				try {
+					while (!request.done) {
+						combine();
+					}
+				} finally {
+					combinerLock.unlock();
+				}
+			} else {
+				// The combiner unparks us when our request is done, the
+				// timeout lets us take over if the combiner left before
+				// reaching our request
+				LockSupport.parkNanos(this, WAIT_NANOS);
+			}
+		}
+		Throwable failure = request.failure;
+		if (failure instanceof BookStoreException) {
+			throw (BookStoreException) failure;
+		}
+		if (failure instanceof RuntimeException) {
+			throw (RuntimeException) failure;
+		}
+		if (failure instanceof Error) {
+			throw (Error) failure;
+		}
+	}
+
+	/**
+	 * Applies one batch of queued requests. Must be called by the combiner.
+	 */
+	private void combine() {
+		List<Request<T>> batch = new ArrayList<Request<T>>();
+		Request<T> request;
+		while (batch.size() < MAX_BATCH && (request = queue.poll()) != null) {
+			batch.add(request);
+		}
+		if (batch.isEmpty()) {
+			return;
+		}
+		try {
+			handler.apply(batch);
+		} catch (Throwable ex) {
+			// The batch may be partially applied, report the failure to all
+			// the callers that have not failed already
+			for (Request<T> failed : batch) {
+				if (failed.failure == null) {
+					failed.failure = ex;
+				}
+			}
+		}
+		for (Request<T> completed : batch) {
+			completed.done = true;
+			if (completed.caller != Thread.currentThread()) {
+				LockSupport.unpark(completed.caller);
+			}
+		}
+	}
+}
@@ -1,13 +1,13 @@
 package com.acertainbookstore.business;
 
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
 
 public class ISBNandLock {
 	public final int ISBN;
-	public final ReentrantReadWriteLock lock;
+	public final StampedLock lock;
 	
 	public ISBNandLock(int ISBN) { 
 		this.ISBN = ISBN;
-		this.lock = new ReentrantReadWriteLock();
+		this.lock = new StampedLock();
 	}
 }
@@ -0,0 +1,52 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * InDemandIndex keeps the books that had a sale miss since they were last
+ * restocked, so getBooksInDemand only visits those books instead of scanning
+ * the whole catalog. buyBooks adds a book when it records a sale miss, and
+ * addCopies takes it out again when it resets the sale misses.
+ *
+ * The index is backed by a ConcurrentHashMap, readers take no locks.
+ */
+public class InDemandIndex<V extends Book> {
+	private final ConcurrentHashMap<Integer, V> books = new ConcurrentHashMap<Integer, V>();
+
+	/**
+	 * Adds the book to the books in demand.
+	 *
+	 * @param book
+	 */
+	public void add(V book) {
+		books.put(book.getISBN(), book);
+	}
+
+	/**
+	 * Removes the book with the given ISBN from the books in demand.
+	 *
+	 * @param ISBN
+	 */
+	public void remove(int ISBN) {
+		books.remove(ISBN);
+	}
+
+	public void clear() {
+		books.clear();
+	}
+
+	public int size() {
+		return books.size();
+	}
+
+	/**
+	 * Returns the books in demand.
+	 *
+	 * @return
+	 */
+	public List<V> books() {
+		return new ArrayList<V>(books.values());
+	}
+}
@@ -0,0 +1,612 @@
+package com.acertainbookstore.business;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * LSMBookStorage keeps the books in a log-structured merge tree, so the
+ * catalog can be much larger than the heap. Changed books go to an in-memory
+ * memtable sorted by ISBN. When the memtable holds memtableLimit books it
+ * becomes immutable and a background thread writes it to a new BookSegment,
+ * a sorted immutable file. When there are COMPACTION_TRIGGER segments, the
+ * same thread merges them all into one, which drops the tombstones and the
+ * old versions of the books.
+ *
+ * A lookup checks the memtable, then the immutable memtable being flushed,
+ * then the segments from the newest to the oldest. The first version found
+ * wins, and a tombstone means the book was removed. The bloom filters of the
+ * segments make a lookup of an ISBN that is not there, or only in an old
+ * segment, cost at most one read of a segment in most cases.
+ *
+ * Lookups and scans take the read lock of the storage, changes and the
+ * installing of new segments take the write lock. Segments are only closed
+ * under the write lock, so a lookup never reads a closed segment. The caller
+ * must not change the storage from several threads at the same time.
+ *
+ * A change that finds the memtable full while the previous memtable is still
+ * being flushed waits for the flush (a write stall), so the memory used by the
+ * memtables stays bounded when changes come faster than the disk takes them.
+ *
+ * A failure of a flush, a compaction or the closing of a segment is recorded
+ * and thrown by the next checkBackgroundFailure or by close. A failed flush is
+ * retried by the next change.
+ */
+public class LSMBookStorage {
+	public static final int DEFAULT_MEMTABLE_LIMIT = 64 * 1024;
+	private static final int COMPACTION_TRIGGER = 4;
+
+	private final File directory;
+	private final int memtableLimit;
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final Condition flushDone = lock.writeLock().newCondition();
+	private final ExecutorService background;
+	private final AtomicLong nextSegmentId = new AtomicLong();
+	private TreeMap<Integer, StockBook> memtable = new TreeMap<Integer, StockBook>();
+	private TreeMap<Integer, StockBook> immutable = null;
+	private boolean flushing = false;
+	// The newest segment first
+	private final List<BookSegment> segments = new ArrayList<BookSegment>();
+	// Changes when all the books are removed, so background work on the old
+	// books is not installed
+	private long generation = 0;
+	private long numFlushes = 0;
+	private long numCompactions = 0;
+	// The first failure of the background work not thrown yet
+	private IOException backgroundFailure = null;
+
+	/**
+	 * Creates an empty storage that keeps its segments in directory. Segments
+	 * left in the directory are removed, the storage does not survive a
+	 * restart (cf. BookStoreLog).
+	 *
+	 * @param directory
+	 * @param memtableLimit
+	 * @throws IOException
+	 */
+	public LSMBookStorage(File directory, int memtableLimit) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create " + directory);
+		}
+		this.directory = directory;
+		this.memtableLimit = memtableLimit;
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.getName().endsWith(".seg")) {
+					file.delete();
+				}
+			}
+		}
+		background = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "bookstore-lsm-compaction");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Returns the book with the given ISBN, or null if there is none.
+	 *
+	 * @param ISBN
+	 * @return
+	 * @throws IOException
+	 */
+	public StockBook get(int ISBN) throws IOException {
+		lock.readLock().lock();
+		try {
+			StockBook book = memtable.get(ISBN);
+			if (book == null && immutable != null) {
+				book = immutable.get(ISBN);
+			}
+			for (int i = 0; book == null && i < segments.size(); i++) {
+				book = segments.get(i).get(ISBN);
+			}
+			return (book == BookSegment.TOMBSTONE) ? null : book;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public boolean contains(int ISBN) throws IOException {
+		return get(ISBN) != null;
+	}
+
+	/**
+	 * Puts the book, replacing the book with the same ISBN if there is one.
+	 *
+	 * @param book
+	 */
+	public void put(StockBook book) {
+		change(book.getISBN(), book);
+	}
+
+	/**
+	 * Removes the book with the given ISBN.
+	 *
+	 * @param ISBN
+	 */
+	public void remove(int ISBN) {
+		change(ISBN, BookSegment.TOMBSTONE);
+	}
+
+	private void change(int ISBN, StockBook book) {
+		lock.writeLock().lock();
+		try {
+			while (flushing && memtable.size() >= memtableLimit) {
+				flushDone.awaitUninterruptibly();
+			}
+			memtable.put(ISBN, book);
+			startFlush();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Makes the memtable immutable once it is full and starts the flush of
+	 * the immutable memtable, unless a flush is running. Must be called under
+	 * the write lock.
+	 */
+	private void startFlush() {
+		if (flushing) {
+			return;
+		}
+		if (immutable == null && memtable.size() >= memtableLimit) {
+			immutable = memtable;
+			memtable = new TreeMap<Integer, StockBook>();
+		}
+		if (immutable != null) {
+			// Also retries a flush that failed
+			flushing = true;
+			final TreeMap<Integer, StockBook> toFlush = immutable;
+			final long flushGeneration = generation;
+			background.execute(new Runnable() {
+				public void run() {
+					flush(toFlush, flushGeneration);
+					compactIfNeeded();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Removes all the books and deletes the segments.
+	 */
+	public void clear() {
+		lock.writeLock().lock();
+		try {
+			generation++;
+			memtable = new TreeMap<Integer, StockBook>();
+			immutable = null;
+			closeAll(segments);
+			segments.clear();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Gives the live books to the visitor in ISBN order.
+	 *
+	 * @param visitor
+	 * @throws IOException
+	 */
+	public void scan(final BookStoreSnapshot.Visitor visitor)
+			throws IOException {
+		lock.readLock().lock();
+		try {
+			List<Source> sources = new ArrayList<Source>();
+			sources.add(new Source(memtable.entrySet().iterator(), 0));
+			if (immutable != null) {
+				sources.add(new Source(immutable.entrySet().iterator(), 1));
+			}
+			for (int i = 0; i < segments.size(); i++) {
+				sources.add(new Source(segments.get(i).reader(), 2 + i));
+			}
+			merge(sources, new Merger() {
+				public void merged(int ISBN, StockBook book) {
+					visitor.visit(book);
+				}
+			});
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Writes the immutable memtable to a segment and installs it, unless the
+	 * books were removed in the meantime.
+	 */
+	private void flush(TreeMap<Integer, StockBook> toFlush, long flushGeneration) {
+		BookSegment segment = null;
+		BookSegment.Writer writer = null;
+		IOException failure = null;
+		try {
+			writer = new BookSegment.Writer(newSegmentFile(), toFlush.size());
+			for (Map.Entry<Integer, StockBook> entry : toFlush.entrySet()) {
+				writer.add(entry.getKey(), entry.getValue());
+			}
+			segment = writer.finish();
+		} catch (IOException ex) {
+			if (writer != null) {
+				writer.abort();
+			}
+			failure = ex;
+		}
+
+		lock.writeLock().lock();
+		try {
+			recordFailure(failure);
+			flushing = false;
+			flushDone.signalAll();
+			if (generation != flushGeneration) {
+				close(segment, true);
+			} else if (segment != null) {
+				segments.add(0, segment);
+				immutable = null;
+				numFlushes++;
+				// The memtable may have filled up during the flush
+				if (!background.isShutdown()) {
+					startFlush();
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Merges all the segments into one once there are COMPACTION_TRIGGER of
+	 * them. The segments flushed while merging stay in front of the merged
+	 * one.
+	 */
+	private void compactIfNeeded() {
+		List<BookSegment> merged;
+		long compactionGeneration;
+		lock.readLock().lock();
+		try {
+			if (segments.size() < COMPACTION_TRIGGER) {
+				return;
+			}
+			merged = new ArrayList<BookSegment>(segments);
+			compactionGeneration = generation;
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		BookSegment compacted = null;
+		BookSegment.Writer writer = null;
+		try {
+			int expectedRecords = 0;
+			List<Source> sources = new ArrayList<Source>();
+			for (int i = 0; i < merged.size(); i++) {
+				expectedRecords += merged.get(i).getNumRecords();
+				sources.add(new Source(merged.get(i).reader(), i));
+			}
+			final BookSegment.Writer output = new BookSegment.Writer(
+					newSegmentFile(), expectedRecords);
+			writer = output;
+			// These are all the segments, so nothing older is left for a
+			// tombstone to hide
+			merge(sources, new Merger() {
+				public void merged(int ISBN, StockBook book) throws IOException {
+					output.add(ISBN, book);
+				}
+			});
+			compacted = output.finish();
+		} catch (IOException ex) {
+			if (writer != null) {
+				writer.abort();
+			}
+			lock.writeLock().lock();
+			try {
+				recordFailure(ex);
+			} finally {
+				lock.writeLock().unlock();
+			}
+			return;
+		}
+
+		lock.writeLock().lock();
+		try {
+			if (generation != compactionGeneration) {
+				close(compacted, true);
+				return;
+			}
+			segments.removeAll(merged);
+			segments.add(compacted);
+			closeAll(merged);
+			numCompactions++;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Waits until the flushes and compactions started so far, and the ones
+	 * they started, are done.
+	 */
+	public void awaitBackgroundWork() {
+		boolean pending = true;
+		while (pending) {
+			// A flush may start the next one, so wait until none is queued
+			try {
+				background.submit(new Runnable() {
+					public void run() {
+					}
+				}).get();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException ex) {
+				; // The task does nothing
+			}
+			lock.readLock().lock();
+			try {
+				pending = flushing;
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Throws the failure of the background work since the last call, if there
+	 * was one.
+	 *
+	 * @throws IOException
+	 */
+	public void checkBackgroundFailure() throws IOException {
+		lock.writeLock().lock();
+		try {
+			IOException failure = backgroundFailure;
+			backgroundFailure = null;
+			if (failure != null) {
+				throw failure;
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Stops the background thread and closes the segments, leaving their
+	 * files. Throws the failure of the background work not thrown yet.
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		background.shutdown();
+		awaitTermination();
+		lock.writeLock().lock();
+		try {
+			for (BookSegment segment : segments) {
+				close(segment, false);
+			}
+			segments.clear();
+		} finally {
+			lock.writeLock().unlock();
+		}
+		checkBackgroundFailure();
+	}
+
+	private void awaitTermination() {
+		try {
+			background.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public int getNumSegments() {
+		lock.readLock().lock();
+		try {
+			return segments.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of books and tombstones in the memtables.
+	 *
+	 * @return
+	 */
+	public int getMemtableSize() {
+		lock.readLock().lock();
+		try {
+			return memtable.size()
+					+ ((immutable == null) ? 0 : immutable.size());
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public long getNumFlushes() {
+		lock.readLock().lock();
+		try {
+			return numFlushes;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public long getNumCompactions() {
+		lock.readLock().lock();
+		try {
+			return numCompactions;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of blocks read from the segments by lookups.
+	 *
+	 * @return
+	 */
+	public long getNumDiskReads() {
+		lock.readLock().lock();
+		try {
+			long diskReads = 0;
+			for (BookSegment segment : segments) {
+				diskReads += segment.getNumDiskReads();
+			}
+			return diskReads;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private File newSegmentFile() {
+		return new File(directory, "segment-" + nextSegmentId.incrementAndGet()
+				+ ".seg");
+	}
+
+	/**
+	 * Keeps the failure unless an earlier one is not thrown yet. Must be
+	 * called under the write lock.
+	 */
+	private void recordFailure(IOException failure) {
+		if (backgroundFailure == null) {
+			backgroundFailure = failure;
+		}
+	}
+
+	private void closeAll(List<BookSegment> toClose) {
+		for (BookSegment segment : toClose) {
+			close(segment, true);
+		}
+	}
+
+	/**
+	 * Closes the segment and records a failure. Must be called under the write
+	 * lock.
+	 */
+	private void close(BookSegment segment, boolean delete) {
+		if (segment == null) {
+			return;
+		}
+		try {
+			segment.close(delete);
+		} catch (IOException ex) {
+			recordFailure(ex);
+		}
+	}
+
+	/**
+	 * A sorted run of records being merged: a memtable or a segment. Runs with
+	 * a lower age are newer.
+	 */
+	private static final class Source implements Comparable<Source> {
+		private final Iterator<Map.Entry<Integer, StockBook>> entries;
+		private final BookSegment.Reader reader;
+		private final int age;
+		private int ISBN;
+		private StockBook book;
+
+		private Source(Iterator<Map.Entry<Integer, StockBook>> entries, int age) {
+			this.entries = entries;
+			this.reader = null;
+			this.age = age;
+		}
+
+		private Source(BookSegment.Reader reader, int age) {
+			this.entries = null;
+			this.reader = reader;
+			this.age = age;
+		}
+
+		private boolean next() throws IOException {
+			if (entries != null) {
+				if (!entries.hasNext()) {
+					return false;
+				}
+				Map.Entry<Integer, StockBook> entry = entries.next();
+				ISBN = entry.getKey();
+				book = entry.getValue();
+				return true;
+			}
+			if (!reader.next()) {
+				reader.close();
+				return false;
+			}
+			ISBN = reader.getISBN();
+			book = reader.getBook();
+			return true;
+		}
+
+		private void close() throws IOException {
+			if (reader != null) {
+				reader.close();
+			}
+		}
+
+		public int compareTo(Source other) {
+			int order = Integer.compare(ISBN, other.ISBN);
+			return (order != 0) ? order : Integer.compare(age, other.age);
+		}
+	}
+
+	/**
+	 * Is given the books merged from the sources, cf. merge.
+	 */
+	private interface Merger {
+		void merged(int ISBN, StockBook book) throws IOException;
+	}
+
+	/**
+	 * Merges the sources in ISBN order, giving the newest version of every
+	 * live book to the merger. The tombstones are left out, which is only
+	 * right if the sources hold all the books.
+	 */
+	private static void merge(List<Source> sources, Merger merger)
+			throws IOException {
+		PriorityQueue<Source> queue = new PriorityQueue<Source>();
+		try {
+			for (Source source : sources) {
+				if (source.next()) {
+					queue.add(source);
+				}
+			}
+			while (!queue.isEmpty()) {
+				Source newest = queue.poll();
+				int ISBN = newest.ISBN;
+				StockBook book = newest.book;
+				if (newest.next()) {
+					queue.add(newest);
+				}
+				// Skip the older versions of the book
+				while (!queue.isEmpty() && queue.peek().ISBN == ISBN) {
+					Source older = queue.poll();
+					if (older.next()) {
+						queue.add(older);
+					}
+				}
+				if (book != BookSegment.TOMBSTONE) {
+					merger.merged(ISBN, book);
+				}
+			}
+		} finally {
+			for (Source source : sources) {
+				source.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,481 @@
+/**
+ *
+ */
+package com.acertainbookstore.business;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreUtility;
+
+/**
+ * LSMCertainBookStore implements the bookstore on top of an LSMBookStorage, so
+ * the catalog is kept on local disk and only the recently changed books are
+ * held in memory. The long tail of books that rarely sell costs disk space
+ * instead of heap.
+ *
+ * The indexes only hold the editor picks, the rated books and the books in
+ * demand, which are a small part of such a catalog.
+ *
+ * Reads share a read lock and all updates take the write lock. An update
+ * first throws the failure of a background flush or compaction of the storage
+ * since the last update, if there was one.
+ */
+public class LSMCertainBookStore implements BookStore, StockManager {
+	private final LSMBookStorage storage;
+	private final ReentrantReadWriteLock storageLock = new ReentrantReadWriteLock();
+	private final EditorPickIndex<ImmutableBook> editorPickIndex = new EditorPickIndex<ImmutableBook>();
+	private final TopRatedIndex<ImmutableBook> topRatedIndex = new TopRatedIndex<ImmutableBook>();
+	private final InDemandIndex<ImmutableBook> inDemandIndex = new InDemandIndex<ImmutableBook>();
+
+	/**
+	 * Creates an empty store that keeps its segments in directory.
+	 *
+	 * @param directory
+	 * @throws BookStoreException
+	 */
+	public LSMCertainBookStore(File directory) throws BookStoreException {
+		this(directory, LSMBookStorage.DEFAULT_MEMTABLE_LIMIT);
+	}
+
+	/**
+	 * Creates an empty store that keeps its segments in directory and up to
+	 * memtableLimit changed books in memory before it writes them out.
+	 *
+	 * @param directory
+	 * @param memtableLimit
+	 * @throws BookStoreException
+	 */
+	public LSMCertainBookStore(File directory, int memtableLimit)
+			throws BookStoreException {
+		try {
+			storage = new LSMBookStorage(directory, memtableLimit);
+		} catch (IOException ex) {
+			throw new BookStoreException(BookStoreConstants.STORAGE_FAILED, ex);
+		}
+	}
+
+	public LSMBookStorage getStorage() {
+		return storage;
+	}
+
+	/**
+	 * Stops the background work of the storage and closes its segments.
+	 *
+	 * @throws BookStoreException
+	 */
+	public void close() throws BookStoreException {
+		try {
+			storage.close();
+		} catch (IOException ex) {
+			throw new BookStoreException(BookStoreConstants.STORAGE_FAILED, ex);
+		}
+	}
+
+	/**
+	 * Throws the failure of the background work of the storage, so the update
+	 * that finds it fails before it changes anything. Must be called under the
+	 * write lock.
+	 *
+	 * @throws BookStoreException
+	 */
+	private void checkStorage() throws BookStoreException {
+		try {
+			storage.checkBackgroundFailure();
+		} catch (IOException ex) {
+			throw new BookStoreException(BookStoreConstants.STORAGE_FAILED, ex);
+		}
+	}
+
+	private StockBook find(int ISBN) throws BookStoreException {
+		try {
+			return storage.get(ISBN);
+		} catch (IOException ex) {
+			throw new BookStoreException(BookStoreConstants.STORAGE_FAILED, ex);
+		}
+	}
+
+	private static ImmutableBook immutableBook(StockBook book) {
+		return new ImmutableBook(book.getISBN(), book.getTitle(),
+				book.getAuthor(), book.getPrice());
+	}
+
+	private static StockBook changed(StockBook book, int numCopies,
+			long saleMisses, long timesRated, long totalRating,
+			boolean editorPick) {
+		return new ImmutableStockBook(book.getISBN(), book.getTitle(),
+				book.getAuthor(), book.getPrice(), numCopies, saleMisses,
+				timesRated, totalRating, editorPick);
+	}
+
+	public void addBooks(Set<StockBook> bookSet) throws BookStoreException {
+
+		if (bookSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		storageLock.writeLock().lock();
+		try {
+			checkStorage();
+			// Check if all are there
+			for (StockBook book : bookSet) {
+				int ISBN = book.getISBN();
+				String bookTitle = book.getTitle();
+				String bookAuthor = book.getAuthor();
+				int noCopies = book.getNumCopies();
+				float bookPrice = book.getPrice();
+				if (BookStoreUtility.isInvalidISBN(ISBN)
+						|| BookStoreUtility.isEmpty(bookTitle)
+						|| BookStoreUtility.isEmpty(bookAuthor)
+						|| BookStoreUtility.isInvalidNoCopies(noCopies)
+						|| bookPrice < 0.0) {
+					throw new BookStoreException(BookStoreConstants.BOOK
+							+ book.toString() + BookStoreConstants.INVALID);
+				} else if (find(ISBN) != null) {
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.DUPLICATED);
+				}
+			}
+
+			for (StockBook book : bookSet) {
+				storage.put(changed(book, book.getNumCopies(),
+						book.getSaleMisses(), book.getTimesRated(),
+						book.getTotalRating(), book.isEditorPick()));
+				if (book.isEditorPick()) {
+					editorPickIndex.add(immutableBook(book));
+				}
+				topRatedIndex.update(immutableBook(book),
+						book.getTotalRating(), book.getTimesRated());
+				if (book.getSaleMisses() > 0) {
+					inDemandIndex.add(immutableBook(book));
+				}
+			}
+		} finally {
+			storageLock.writeLock().unlock();
+		}
+	}
+
+	public void addCopies(Set<BookCopy> bookCopiesSet)
+			throws BookStoreException {
+		int ISBN, numCopies;
+
+		if (bookCopiesSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		storageLock.writeLock().lock();
+		try {
+			checkStorage();
+			for (BookCopy bookCopy : bookCopiesSet) {
+				ISBN = bookCopy.getISBN();
+				numCopies = bookCopy.getNumCopies();
+				if (BookStoreUtility.isInvalidISBN(ISBN))
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.INVALID);
+				if (find(ISBN) == null)
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.NOT_AVAILABLE);
+				if (BookStoreUtility.isInvalidNoCopies(numCopies))
+					throw new BookStoreException(BookStoreConstants.NUM_COPIES
+							+ numCopies + BookStoreConstants.INVALID);
+			}
+
+			// Update the number of copies
+			for (BookCopy bookCopy : bookCopiesSet) {
+				StockBook book = find(bookCopy.getISBN());
+				storage.put(changed(book, book.getNumCopies()
+						+ bookCopy.getNumCopies(), 0, book.getTimesRated(),
+						book.getTotalRating(), book.isEditorPick()));
+				inDemandIndex.remove(bookCopy.getISBN());
+			}
+		} finally {
+			storageLock.writeLock().unlock();
+		}
+	}
+
+	public List<StockBook> getBooks() throws BookStoreException {
+		storageLock.readLock().lock();
+		try {
+			final List<StockBook> listBooks = new ArrayList<StockBook>();
+			storage.scan(new BookStoreSnapshot.Visitor() {
+				public void visit(StockBook book) {
+					listBooks.add(book);
+				}
+			});
+			return listBooks;
+		} catch (IOException ex) {
+			throw new BookStoreException(BookStoreConstants.STORAGE_FAILED, ex);
+		} finally {
+			storageLock.readLock().unlock();
+		}
+	}
+
+	public void updateEditorPicks(Set<BookEditorPick> editorPicks)
+			throws BookStoreException {
+		// Check that all ISBNs that we add/remove are there first.
+		if (editorPicks == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		int ISBNVal;
+
+		storageLock.writeLock().lock();
+		try {
+			checkStorage();
+			for (BookEditorPick editorPickArg : editorPicks) {
+				ISBNVal = editorPickArg.getISBN();
+				if (BookStoreUtility.isInvalidISBN(ISBNVal))
+					throw new BookStoreException(BookStoreConstants.ISBN
+							+ ISBNVal + BookStoreConstants.INVALID);
+				if (find(ISBNVal) == null)
+					throw new BookStoreException(BookStoreConstants.ISBN
+							+ ISBNVal + BookStoreConstants.NOT_AVAILABLE);
+			}
+
+			List<ImmutableBook> picked = new ArrayList<ImmutableBook>();
+			List<ImmutableBook> unpicked = new ArrayList<ImmutableBook>();
+			for (BookEditorPick editorPickArg : editorPicks) {
+				StockBook book = find(editorPickArg.getISBN());
+				storage.put(changed(book, book.getNumCopies(),
+						book.getSaleMisses(), book.getTimesRated(),
+						book.getTotalRating(), editorPickArg.isEditorPick()));
+				if (editorPickArg.isEditorPick()) {
+					picked.add(immutableBook(book));
+				} else {
+					unpicked.add(immutableBook(book));
+				}
+			}
+			editorPickIndex.update(picked, unpicked);
+		} finally {
+			storageLock.writeLock().unlock();
+		}
+	}
+
+	public void buyBooks(Set<BookCopy> bookCopiesToBuy)
+			throws BookStoreException {
+		if (bookCopiesToBuy == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		// Check that all ISBNs that we buy are there first.
+		int ISBN;
+		StockBook book;
+		Boolean saleMiss = false;
+		storageLock.writeLock().lock();
+		try {
+			checkStorage();
+			for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+				ISBN = bookCopyToBuy.getISBN();
+				if (bookCopyToBuy.getNumCopies() < 0)
+					throw new BookStoreException(BookStoreConstants.NUM_COPIES
+							+ bookCopyToBuy.getNumCopies()
+							+ BookStoreConstants.INVALID);
+				if (BookStoreUtility.isInvalidISBN(ISBN))
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.INVALID);
+				book = find(ISBN);
+				if (book == null)
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.NOT_AVAILABLE);
+				if (book.getNumCopies() < bookCopyToBuy.getNumCopies()) {
+					// If we cannot sell the copies of the book its a miss
+					storage.put(changed(book, book.getNumCopies(),
+							book.getSaleMisses() + 1, book.getTimesRated(),
+							book.getTotalRating(), book.isEditorPick()));
+					inDemandIndex.add(immutableBook(book));
+					saleMiss = true;
+				}
+			}
+
+			// We throw exception now since we want to see how many books in
+			// the order incurred misses which is used by books in demand
+			if (saleMiss)
+				throw new BookStoreException(BookStoreConstants.BOOK
+						+ BookStoreConstants.NOT_AVAILABLE);
+
+			// Then make purchase
+			for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+				book = find(bookCopyToBuy.getISBN());
+				storage.put(changed(book, book.getNumCopies()
+						- bookCopyToBuy.getNumCopies(), book.getSaleMisses(),
+						book.getTimesRated(), book.getTotalRating(),
+						book.isEditorPick()));
+			}
+		} finally {
+			storageLock.writeLock().unlock();
+		}
+	}
+
+	public List<StockBook> getBooksByISBN(Set<Integer> isbnSet)
+			throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		storageLock.readLock().lock();
+		try {
+			List<StockBook> listBooks = new ArrayList<StockBook>();
+			for (Integer ISBN : isbnSet) {
+				if (BookStoreUtility.isInvalidISBN(ISBN))
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.INVALID);
+				StockBook book = find(ISBN);
+				if (book == null)
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.NOT_AVAILABLE);
+				listBooks.add(book);
+			}
+			return listBooks;
+		} finally {
+			storageLock.readLock().unlock();
+		}
+	}
+
+	public List<Book> getBooks(Set<Integer> isbnSet) throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		storageLock.readLock().lock();
+		try {
+			List<Book> listBooks = new ArrayList<Book>();
+			for (Integer ISBN : isbnSet) {
+				if (BookStoreUtility.isInvalidISBN(ISBN))
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.INVALID);
+				StockBook book = find(ISBN);
+				if (book == null)
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.NOT_AVAILABLE);
+				listBooks.add(immutableBook(book));
+			}
+			return listBooks;
+		} finally {
+			storageLock.readLock().unlock();
+		}
+	}
+
+	public List<Book> getEditorPicks(int numBooks) throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks
+					+ ", but it must be positive");
+		}
+
+		// The index holds the ImmutableBook of every pick, the ISBN, title,
+		// author and price of a book never change
+		return new ArrayList<Book>(editorPickIndex.sample(numBooks));
+	}
+
+	@Override
+	public List<Book> getTopRatedBooks(int numBooks)
+			throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks
+					+ ", but it must be positive");
+		}
+
+		return new ArrayList<Book>(topRatedIndex.top(numBooks));
+	}
+
+	@Override
+	public List<StockBook> getBooksInDemand() throws BookStoreException {
+		storageLock.readLock().lock();
+		try {
+			List<StockBook> listBooks = new ArrayList<StockBook>();
+			for (ImmutableBook book : inDemandIndex.books()) {
+				listBooks.add(find(book.getISBN()));
+			}
+			return listBooks;
+		} finally {
+			storageLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void rateBooks(Set<BookRating> bookRating)
+			throws BookStoreException {
+		if (bookRating == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		storageLock.writeLock().lock();
+		try {
+			checkStorage();
+			for (BookRating rating : bookRating) {
+				int ISBN = rating.getISBN();
+				if (BookStoreUtility.isInvalidISBN(ISBN))
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.INVALID);
+				if (find(ISBN) == null)
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.NOT_AVAILABLE);
+				if (BookStoreUtility.isInvalidRating(rating.getRating()))
+					throw new BookStoreException(BookStoreConstants.RATING
+							+ rating.getRating() + BookStoreConstants.INVALID);
+			}
+
+			for (BookRating rating : bookRating) {
+				StockBook book = find(rating.getISBN());
+				long totalRating = book.getTotalRating() + rating.getRating();
+				long timesRated = book.getTimesRated() + 1;
+				storage.put(changed(book, book.getNumCopies(),
+						book.getSaleMisses(), timesRated, totalRating,
+						book.isEditorPick()));
+				topRatedIndex.update(immutableBook(book), totalRating,
+						timesRated);
+			}
+		} finally {
+			storageLock.writeLock().unlock();
+		}
+	}
+
+	public void removeAllBooks() throws BookStoreException {
+		storageLock.writeLock().lock();
+		try {
+			checkStorage();
+			storage.clear();
+			editorPickIndex.clear();
+			topRatedIndex.clear();
+			inDemandIndex.clear();
+		} finally {
+			storageLock.writeLock().unlock();
+		}
+	}
+
+	public void removeBooks(Set<Integer> isbnSet) throws BookStoreException {
+
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		storageLock.writeLock().lock();
+		try {
+			checkStorage();
+			for (Integer ISBN : isbnSet) {
+				if (BookStoreUtility.isInvalidISBN(ISBN))
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.INVALID);
+				if (find(ISBN) == null)
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.NOT_AVAILABLE);
+			}
+
+			for (int isbn : isbnSet) {
+				storage.remove(isbn);
+				editorPickIndex.remove(isbn);
+				topRatedIndex.remove(isbn);
+				inDemandIndex.remove(isbn);
+			}
+		} finally {
+			storageLock.writeLock().unlock();
+		}
+	}
+}
@@ -0,0 +1,276 @@
+package com.acertainbookstore.business;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * LogRecord is one committed change to the books, as it is written to the
+ * BookStoreLog. A record holds the arguments of the change after they were
+ * validated, so replaying the records in log order rebuilds the books.
+ *
+ * The changes only use a few shapes of arguments: the books added, a list of
+ * ISBNs, or a list of ISBNs with one int value each (copies, ratings or the
+ * editor pick flag as 0 or 1).
+ */
+public final class LogRecord {
+
+	/**
+	 * The kinds of changes, with the byte that marks them in the log.
+	 */
+	public enum Type {
+		ADD_BOOKS(1), ADD_COPIES(2), BUY_BOOKS(3), SALE_MISSES(4), UPDATE_EDITOR_PICKS(
+				5), RATE_BOOKS(6), REMOVE_BOOKS(7), REMOVE_ALL_BOOKS(8);
+
+		private final byte code;
+
+		private Type(int code) {
+			this.code = (byte) code;
+		}
+
+		public byte getCode() {
+			return code;
+		}
+
+		/**
+		 * Returns the type with the given code, or null if there is none.
+		 *
+		 * @param code
+		 * @return
+		 */
+		public static Type fromCode(byte code) {
+			for (Type type : values()) {
+				if (type.code == code) {
+					return type;
+				}
+			}
+			return null;
+		}
+	}
+
+	private static final int[] NO_INTS = new int[0];
+
+	private final Type type;
+	private final List<StockBook> books;
+	private final int[] isbns;
+	private final int[] values;
+
+	private LogRecord(Type type, List<StockBook> books, int[] isbns,
+			int[] values) {
+		this.type = type;
+		this.books = books;
+		this.isbns = isbns;
+		this.values = values;
+	}
+
+	public static LogRecord addBooks(Set<StockBook> bookSet) {
+		List<StockBook> books = new ArrayList<StockBook>(bookSet.size());
+		for (StockBook book : bookSet) {
+			books.add(new ImmutableStockBook(book.getISBN(), book.getTitle(),
+					book.getAuthor(), book.getPrice(), book.getNumCopies(),
+					book.getSaleMisses(), book.getTimesRated(), book
+							.getTotalRating(), book.isEditorPick()));
+		}
+		return new LogRecord(Type.ADD_BOOKS, books, NO_INTS, NO_INTS);
+	}
+
+	public static LogRecord addCopies(Set<BookCopy> bookCopies) {
+		return copies(Type.ADD_COPIES, bookCopies);
+	}
+
+	public static LogRecord buyBooks(Set<BookCopy> bookCopies) {
+		return copies(Type.BUY_BOOKS, bookCopies);
+	}
+
+	private static LogRecord copies(Type type, Set<BookCopy> bookCopies) {
+		int[] isbns = new int[bookCopies.size()];
+		int[] values = new int[bookCopies.size()];
+		int i = 0;
+		for (BookCopy bookCopy : bookCopies) {
+			isbns[i] = bookCopy.getISBN();
+			values[i++] = bookCopy.getNumCopies();
+		}
+		return new LogRecord(type, Collections.<StockBook> emptyList(), isbns,
+				values);
+	}
+
+	public static LogRecord saleMisses(Collection<Integer> missedIsbns) {
+		return isbnsOnly(Type.SALE_MISSES, missedIsbns);
+	}
+
+	public static LogRecord updateEditorPicks(Set<BookEditorPick> editorPicks) {
+		int[] isbns = new int[editorPicks.size()];
+		int[] values = new int[editorPicks.size()];
+		int i = 0;
+		for (BookEditorPick editorPick : editorPicks) {
+			isbns[i] = editorPick.getISBN();
+			values[i++] = editorPick.isEditorPick() ? 1 : 0;
+		}
+		return new LogRecord(Type.UPDATE_EDITOR_PICKS,
+				Collections.<StockBook> emptyList(), isbns, values);
+	}
+
+	public static LogRecord rateBooks(Set<BookRating> bookRatings) {
+		int[] isbns = new int[bookRatings.size()];
+		int[] values = new int[bookRatings.size()];
+		int i = 0;
+		for (BookRating rating : bookRatings) {
+			isbns[i] = rating.getISBN();
+			values[i++] = rating.getRating();
+		}
+		return new LogRecord(Type.RATE_BOOKS,
+				Collections.<StockBook> emptyList(), isbns, values);
+	}
+
+	public static LogRecord removeBooks(Collection<Integer> removedIsbns) {
+		return isbnsOnly(Type.REMOVE_BOOKS, removedIsbns);
+	}
+
+	public static LogRecord removeAllBooks() {
+		return new LogRecord(Type.REMOVE_ALL_BOOKS,
+				Collections.<StockBook> emptyList(), NO_INTS, NO_INTS);
+	}
+
+	private static LogRecord isbnsOnly(Type type, Collection<Integer> isbnList) {
+		int[] isbns = new int[isbnList.size()];
+		int i = 0;
+		for (Integer ISBN : isbnList) {
+			isbns[i++] = ISBN;
+		}
+		return new LogRecord(type, Collections.<StockBook> emptyList(), isbns,
+				NO_INTS);
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * Returns the books added by an ADD_BOOKS record.
+	 *
+	 * @return
+	 */
+	public List<StockBook> getBooks() {
+		return books;
+	}
+
+	/**
+	 * Returns the number of ISBNs of the record.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return isbns.length;
+	}
+
+	public int getISBN(int i) {
+		return isbns[i];
+	}
+
+	/**
+	 * Returns the value that goes with the i-th ISBN: the number of copies,
+	 * the rating, or 1 for an editor pick and 0 otherwise.
+	 *
+	 * @param i
+	 * @return
+	 */
+	public int getValue(int i) {
+		return values[i];
+	}
+
+	public Set<BookCopy> getBookCopies() {
+		Set<BookCopy> bookCopies = new HashSet<BookCopy>();
+		for (int i = 0; i < isbns.length; i++) {
+			bookCopies.add(new BookCopy(isbns[i], values[i]));
+		}
+		return bookCopies;
+	}
+
+	public Set<BookEditorPick> getEditorPicks() {
+		Set<BookEditorPick> editorPicks = new HashSet<BookEditorPick>();
+		for (int i = 0; i < isbns.length; i++) {
+			editorPicks.add(new BookEditorPick(isbns[i], values[i] != 0));
+		}
+		return editorPicks;
+	}
+
+	public Set<BookRating> getBookRatings() {
+		Set<BookRating> bookRatings = new HashSet<BookRating>();
+		for (int i = 0; i < isbns.length; i++) {
+			bookRatings.add(new BookRating(isbns[i], values[i]));
+		}
+		return bookRatings;
+	}
+
+	public Set<Integer> getIsbnSet() {
+		Set<Integer> isbnSet = new HashSet<Integer>();
+		for (int ISBN : isbns) {
+			isbnSet.add(ISBN);
+		}
+		return isbnSet;
+	}
+
+	/**
+	 * Writes the arguments of the record, without the type.
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeInt(books.size());
+		for (StockBook book : books) {
+			out.writeInt(book.getISBN());
+			out.writeUTF(book.getTitle());
+			out.writeUTF(book.getAuthor());
+			out.writeFloat(book.getPrice());
+			out.writeInt(book.getNumCopies());
+			out.writeLong(book.getSaleMisses());
+			out.writeLong(book.getTimesRated());
+			out.writeLong(book.getTotalRating());
+			out.writeBoolean(book.isEditorPick());
+		}
+		out.writeInt(isbns.length);
+		for (int ISBN : isbns) {
+			out.writeInt(ISBN);
+		}
+		out.writeInt(values.length);
+		for (int value : values) {
+			out.writeInt(value);
+		}
+	}
+
+	/**
+	 * Reads the arguments of a record of the given type, as written by
+	 * writeTo.
+	 *
+	 * @param type
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	public static LogRecord readFrom(Type type, DataInput in)
+			throws IOException {
+		int numBooks = in.readInt();
+		List<StockBook> books = new ArrayList<StockBook>(numBooks);
+		for (int i = 0; i < numBooks; i++) {
+			books.add(new ImmutableStockBook(in.readInt(), in.readUTF(), in
+					.readUTF(), in.readFloat(), in.readInt(), in.readLong(), in
+					.readLong(), in.readLong(), in.readBoolean()));
+		}
+		int[] isbns = new int[in.readInt()];
+		for (int i = 0; i < isbns.length; i++) {
+			isbns[i] = in.readInt();
+		}
+		int[] values = new int[in.readInt()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = in.readInt();
+		}
+		return new LogRecord(type, books, isbns, values);
+	}
+}
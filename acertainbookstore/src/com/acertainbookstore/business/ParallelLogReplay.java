@@ -0,0 +1,221 @@
+package com.acertainbookstore.business;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * ParallelLogReplay replays the records of a BookStoreLog on a fork-join pool
+ * during recovery. Every record is split into its parts, one per ISBN, and
+ * the parts are put into partitions by ISBN, so all the parts of a book are in
+ * one partition in log order. The partitions are then replayed in parallel,
+ * each by one task, so the changes to every book are applied in the order of
+ * the log while different books are replayed at the same time.
+ *
+ * The records were validated before they were logged, so their parts cannot
+ * fail on their own. A multi-ISBN buyBooks record is applied to all its books
+ * or, if recovery fails, the store is not created at all; the store is not
+ * visible to anyone before recovery is done, so no reader sees the record half
+ * applied.
+ *
+ * Records that change all the books at once (REMOVE_ALL_BOOKS) are barriers:
+ * the parts collected before them are replayed first, then the record is
+ * applied alone. The parts are also replayed whenever MAX_PENDING of them
+ * were collected, which bounds the memory used by the replay.
+ */
+public class ParallelLogReplay implements BookStoreLog.Visitor {
+	private static final int MAX_PENDING = 1 << 20;
+
+	/**
+	 * Applies records to the store being recovered.
+	 */
+	public interface Target {
+		/**
+		 * Applies the whole record, cf. LogRecord.
+		 */
+		void apply(LogRecord record) throws BookStoreException;
+
+		/**
+		 * Applies the part of the record for the i-th ISBN of the record, or
+		 * the i-th book for ADD_BOOKS records. Called concurrently for parts
+		 * with ISBNs in different partitions.
+		 */
+		void applyPart(LogRecord record, int i) throws BookStoreException;
+	}
+
+	/**
+	 * The parts of a partition in log order, as the record and the index of
+	 * the part in it.
+	 */
+	private static final class Partition {
+		private LogRecord[] records = new LogRecord[16];
+		private int[] parts = new int[16];
+		private int size = 0;
+
+		private void add(LogRecord record, int part) {
+			if (size == records.length) {
+				LogRecord[] grownRecords = new LogRecord[size * 2];
+				System.arraycopy(records, 0, grownRecords, 0, size);
+				records = grownRecords;
+				int[] grownParts = new int[size * 2];
+				System.arraycopy(parts, 0, grownParts, 0, size);
+				parts = grownParts;
+			}
+			records[size] = record;
+			parts[size] = part;
+			size++;
+		}
+
+		private void clear() {
+			for (int i = 0; i < size; i++) {
+				records[i] = null;
+			}
+			size = 0;
+		}
+	}
+
+	/**
+	 * Replays a range of the partitions, splitting it in halves until it is a
+	 * single partition.
+	 */
+	private static final class ReplayTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Target target;
+		private final Partition[] partitions;
+		private final int from;
+		private final int to;
+		private final AtomicReference<BookStoreException> error;
+
+		private ReplayTask(Target target, Partition[] partitions, int from,
+				int to, AtomicReference<BookStoreException> error) {
+			this.target = target;
+			this.partitions = partitions;
+			this.from = from;
+			this.to = to;
+			this.error = error;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > 1) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new ReplayTask(target, partitions, from, middle,
+						error), new ReplayTask(target, partitions, middle, to,
+						error));
+				return;
+			}
+			Partition partition = partitions[from];
+			for (int i = 0; i < partition.size; i++) {
+				if (error.get() != null) {
+					return;
+				}
+				try {
+					target.applyPart(partition.records[i], partition.parts[i]);
+				} catch (BookStoreException ex) {
+					error.compareAndSet(null, ex);
+					return;
+				} catch (RuntimeException ex) {
+					error.compareAndSet(null, new BookStoreException(ex));
+					return;
+				}
+			}
+		}
+	}
+
+	private final Target target;
+	private final ForkJoinPool pool;
+	private final Partition[] partitions;
+	private int pending = 0;
+	private long numRecords = 0;
+	private long numBarriers = 0;
+
+	/**
+	 * Creates a replay that applies the records to target with the pool, in
+	 * one partition per thread of the pool.
+	 *
+	 * @param target
+	 * @param pool
+	 */
+	public ParallelLogReplay(Target target, ForkJoinPool pool) {
+		this.target = target;
+		this.pool = pool;
+		this.partitions = new Partition[pool.getParallelism()];
+		for (int i = 0; i < partitions.length; i++) {
+			partitions[i] = new Partition();
+		}
+	}
+
+	public void visit(long sequence, LogRecord record)
+			throws BookStoreException {
+		numRecords++;
+		if (record.getType() == LogRecord.Type.REMOVE_ALL_BOOKS) {
+			numBarriers++;
+			flush();
+			target.apply(record);
+			return;
+		}
+		if (record.getType() == LogRecord.Type.ADD_BOOKS) {
+			for (int i = 0; i < record.getBooks().size(); i++) {
+				partitionOf(record.getBooks().get(i).getISBN()).add(record, i);
+			}
+			pending += record.getBooks().size();
+		} else {
+			for (int i = 0; i < record.size(); i++) {
+				partitionOf(record.getISBN(i)).add(record, i);
+			}
+			pending += record.size();
+		}
+		if (pending >= MAX_PENDING) {
+			flush();
+		}
+	}
+
+	/**
+	 * Replays the parts collected so far. Must be called after the last
+	 * record was visited.
+	 *
+	 * @throws BookStoreException
+	 *             if a part failed
+	 */
+	public void finish() throws BookStoreException {
+		flush();
+	}
+
+	public long getNumRecords() {
+		return numRecords;
+	}
+
+	/**
+	 * Returns the number of records that were applied alone.
+	 *
+	 * @return
+	 */
+	public long getNumBarriers() {
+		return numBarriers;
+	}
+
+	private Partition partitionOf(int ISBN) {
+		int hash = ISBN * 0x9E3779B9;
+		return partitions[((hash ^ (hash >>> 16)) & 0x7fffffff)
+				% partitions.length];
+	}
+
+	private void flush() throws BookStoreException {
+		if (pending == 0) {
+			return;
+		}
+		AtomicReference<BookStoreException> error = new AtomicReference<BookStoreException>();
+		pool.invoke(new ReplayTask(target, partitions, 0, partitions.length,
+				error));
+		for (Partition partition : partitions) {
+			partition.clear();
+		}
+		pending = 0;
+		if (error.get() != null) {
+			throw error.get();
+		}
+	}
+}
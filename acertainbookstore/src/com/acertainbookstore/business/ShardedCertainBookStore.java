@@ -0,0 +1,605 @@
+/**
+ *
+ */
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreUtility;
+
+/**
+ * ShardedCertainBookStore partitions the books into shards by ISBN. Each shard
+ * keeps its books in a plain HashMap that is owned by one thread, and every
+ * operation on the shard runs as a task on that thread, so the books are never
+ * locked.
+ *
+ * An operation on the books of one shard is a single task on its owner. An
+ * operation that spans several shards parks the owners of those shards: it
+ * puts a park task in the queue of each owner, waits until all of them are
+ * parked, runs on the calling thread and then lets the owners go. The park
+ * tasks are queued in ascending shard order under a short enqueue lock, so two
+ * operations that share shards are parked in the same order on every shard
+ * and can not wait on each other. While the owners are parked the operation
+ * sees all its shards at the same point, which makes it atomic.
+ *
+ * The editor pick and top rated indexes are shared by the shards, they only
+ * hand out the immutable parts of the books.
+ */
+public class ShardedCertainBookStore implements BookStore, StockManager {
+	private final Shard[] shards;
+	private final Object enqueueLock = new Object();
+	private final EditorPickIndex<BookStoreBook> editorPickIndex = new EditorPickIndex<BookStoreBook>();
+	private final TopRatedIndex<BookStoreBook> topRatedIndex = new TopRatedIndex<BookStoreBook>();
+
+	/**
+	 * The books of one shard. They are only touched by the owner thread of
+	 * the shard, or by an operation that has parked the owner.
+	 */
+	private static final class Shard {
+		private final ExecutorService owner;
+		private final Map<Integer, BookStoreBook> books = new HashMap<Integer, BookStoreBook>();
+		private final Set<Integer> inDemand = new HashSet<Integer>();
+
+		private Shard(final int shardId) {
+			owner = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "bookstore-shard-"
+							+ shardId);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+
+	/**
+	 * The body of an operation on the shards.
+	 */
+	private interface ShardOperation<T> {
+		T run() throws BookStoreException;
+	}
+
+	/**
+	 * Creates a store with one shard per processor.
+	 */
+	public ShardedCertainBookStore() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Creates a store with numShards shards.
+	 *
+	 * @param numShards
+	 */
+	public ShardedCertainBookStore(int numShards) {
+		if (numShards < 1) {
+			throw new IllegalArgumentException("numShards = " + numShards
+					+ ", but it must be positive");
+		}
+		shards = new Shard[numShards];
+		for (int i = 0; i < numShards; i++) {
+			shards[i] = new Shard(i);
+		}
+	}
+
+	/**
+	 * Stops the owner threads of the shards.
+	 */
+	public void shutdown() {
+		for (Shard shard : shards) {
+			shard.owner.shutdown();
+		}
+	}
+
+	private int shardOf(int ISBN) {
+		return (ISBN & Integer.MAX_VALUE) % shards.length;
+	}
+
+	private Shard shardOfBook(int ISBN) {
+		return shards[shardOf(ISBN)];
+	}
+
+	/**
+	 * Returns the book with the given ISBN. Must only be called from an
+	 * operation that runs on the shard of the book.
+	 */
+	private BookStoreBook getBook(int ISBN) {
+		return shardOfBook(ISBN).books.get(ISBN);
+	}
+
+	/**
+	 * Returns the shards of the ISBNs in ascending order.
+	 */
+	private int[] shardsOf(Collection<Integer> isbns) {
+		boolean[] used = new boolean[shards.length];
+		int numUsed = 0;
+		for (int ISBN : isbns) {
+			int shardId = shardOf(ISBN);
+			if (!used[shardId]) {
+				used[shardId] = true;
+				numUsed++;
+			}
+		}
+		int[] shardIds = new int[numUsed];
+		for (int i = 0, j = 0; i < shards.length; i++) {
+			if (used[i]) {
+				shardIds[j++] = i;
+			}
+		}
+		return shardIds;
+	}
+
+	private int[] allShards() {
+		int[] shardIds = new int[shards.length];
+		for (int i = 0; i < shards.length; i++) {
+			shardIds[i] = i;
+		}
+		return shardIds;
+	}
+
+	/**
+	 * Runs the operation on the given shards, which must be in ascending
+	 * order. An operation on one shard runs on the owner of the shard, an
+	 * operation on several shards parks their owners and runs on the calling
+	 * thread.
+	 */
+	private <T> T execute(int[] shardIds, final ShardOperation<T> operation)
+			throws BookStoreException {
+		if (shardIds.length == 0) {
+			return operation.run();
+		}
+		if (shardIds.length == 1) {
+			Future<T> result = shards[shardIds[0]].owner
+					.submit(new Callable<T>() {
+						public T call() throws BookStoreException {
+							return operation.run();
+						}
+					});
+			return await(result);
+		}
+
+		final CountDownLatch parked = new CountDownLatch(shardIds.length);
+		final CountDownLatch released = new CountDownLatch(1);
+		Runnable park = new Runnable() {
+			public void run() {
+				parked.countDown();
+				awaitUninterruptibly(released);
+			}
+		};
+		synchronized (enqueueLock) {
+			for (int shardId : shardIds) {
+				shards[shardId].owner.execute(park);
+			}
+		}
+		try {
+			awaitUninterruptibly(parked);
+			return operation.run();
+		} finally {
+			released.countDown();
+		}
+	}
+
+	private static void awaitUninterruptibly(CountDownLatch latch) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				latch.await();
+				break;
+			} catch (InterruptedException ex) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static <T> T await(Future<T> result) throws BookStoreException {
+		try {
+			return result.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new BookStoreException("interrupted while waiting for shard",
+					ex);
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof BookStoreException) {
+				throw (BookStoreException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new BookStoreException(cause);
+		}
+	}
+
+	private void checkAvailable(int ISBN) throws BookStoreException {
+		if (getBook(ISBN) == null)
+			throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+					+ BookStoreConstants.NOT_AVAILABLE);
+	}
+
+	private static void checkISBN(int ISBN) throws BookStoreException {
+		if (BookStoreUtility.isInvalidISBN(ISBN))
+			throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+					+ BookStoreConstants.INVALID);
+	}
+
+	public void addBooks(final Set<StockBook> bookSet)
+			throws BookStoreException {
+
+		if (bookSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		List<Integer> isbns = new ArrayList<Integer>();
+		for (StockBook book : bookSet) {
+			int ISBN = book.getISBN();
+			String bookTitle = book.getTitle();
+			String bookAuthor = book.getAuthor();
+			int noCopies = book.getNumCopies();
+			float bookPrice = book.getPrice();
+			if (BookStoreUtility.isInvalidISBN(ISBN)
+					|| BookStoreUtility.isEmpty(bookTitle)
+					|| BookStoreUtility.isEmpty(bookAuthor)
+					|| BookStoreUtility.isInvalidNoCopies(noCopies)
+					|| bookPrice < 0.0) {
+				throw new BookStoreException(BookStoreConstants.BOOK
+						+ book.toString() + BookStoreConstants.INVALID);
+			}
+			isbns.add(ISBN);
+		}
+
+		execute(shardsOf(isbns), new ShardOperation<Void>() {
+			public Void run() throws BookStoreException {
+				for (StockBook book : bookSet) {
+					if (getBook(book.getISBN()) != null)
+						throw new BookStoreException(BookStoreConstants.ISBN
+								+ book.getISBN()
+								+ BookStoreConstants.DUPLICATED);
+				}
+
+				for (StockBook book : bookSet) {
+					BookStoreBook addedBook = new BookStoreBook(book);
+					Shard shard = shardOfBook(book.getISBN());
+					shard.books.put(book.getISBN(), addedBook);
+					if (addedBook.isEditorPick()) {
+						editorPickIndex.add(addedBook);
+					}
+					topRatedIndex.update(addedBook,
+							addedBook.getTotalRating(),
+							addedBook.getTimesRated());
+					if (addedBook.hadSaleMiss()) {
+						shard.inDemand.add(book.getISBN());
+					}
+				}
+				return null;
+			}
+		});
+	}
+
+	public void addCopies(final Set<BookCopy> bookCopiesSet)
+			throws BookStoreException {
+
+		if (bookCopiesSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		List<Integer> isbns = new ArrayList<Integer>();
+		for (BookCopy bookCopy : bookCopiesSet) {
+			checkISBN(bookCopy.getISBN());
+			isbns.add(bookCopy.getISBN());
+		}
+
+		execute(shardsOf(isbns), new ShardOperation<Void>() {
+			public Void run() throws BookStoreException {
+				for (BookCopy bookCopy : bookCopiesSet) {
+					checkAvailable(bookCopy.getISBN());
+					if (BookStoreUtility.isInvalidNoCopies(bookCopy
+							.getNumCopies()))
+						throw new BookStoreException(
+								BookStoreConstants.NUM_COPIES
+										+ bookCopy.getNumCopies()
+										+ BookStoreConstants.INVALID);
+				}
+
+				// Update the number of copies
+				for (BookCopy bookCopy : bookCopiesSet) {
+					getBook(bookCopy.getISBN()).addCopies(
+							bookCopy.getNumCopies());
+					shardOfBook(bookCopy.getISBN()).inDemand.remove(bookCopy
+							.getISBN());
+				}
+				return null;
+			}
+		});
+	}
+
+	public List<StockBook> getBooks() throws BookStoreException {
+		return execute(allShards(), new ShardOperation<List<StockBook>>() {
+			public List<StockBook> run() {
+				List<StockBook> listBooks = new ArrayList<StockBook>();
+				for (Shard shard : shards) {
+					for (BookStoreBook book : shard.books.values()) {
+						listBooks.add(book.immutableStockBook());
+					}
+				}
+				return listBooks;
+			}
+		});
+	}
+
+	public void updateEditorPicks(final Set<BookEditorPick> editorPicks)
+			throws BookStoreException {
+		// Check that all ISBNs that we add/remove are there first.
+		if (editorPicks == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		List<Integer> isbns = new ArrayList<Integer>();
+		for (BookEditorPick editorPickArg : editorPicks) {
+			checkISBN(editorPickArg.getISBN());
+			isbns.add(editorPickArg.getISBN());
+		}
+
+		execute(shardsOf(isbns), new ShardOperation<Void>() {
+			public Void run() throws BookStoreException {
+				for (BookEditorPick editorPickArg : editorPicks) {
+					checkAvailable(editorPickArg.getISBN());
+				}
+
+				List<BookStoreBook> picked = new ArrayList<BookStoreBook>();
+				List<BookStoreBook> unpicked = new ArrayList<BookStoreBook>();
+				for (BookEditorPick editorPickArg : editorPicks) {
+					BookStoreBook book = getBook(editorPickArg.getISBN());
+					book.setEditorPick(editorPickArg.isEditorPick());
+					if (editorPickArg.isEditorPick()) {
+						picked.add(book);
+					} else {
+						unpicked.add(book);
+					}
+				}
+				editorPickIndex.update(picked, unpicked);
+				return null;
+			}
+		});
+	}
+
+	public void buyBooks(final Set<BookCopy> bookCopiesToBuy)
+			throws BookStoreException {
+		if (bookCopiesToBuy == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		List<Integer> isbns = new ArrayList<Integer>();
+		for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+			if (bookCopyToBuy.getNumCopies() < 0)
+				throw new BookStoreException(BookStoreConstants.NUM_COPIES
+						+ bookCopyToBuy.getNumCopies()
+						+ BookStoreConstants.INVALID);
+			checkISBN(bookCopyToBuy.getISBN());
+			isbns.add(bookCopyToBuy.getISBN());
+		}
+
+		execute(shardsOf(isbns), new ShardOperation<Void>() {
+			public Void run() throws BookStoreException {
+				for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+					checkAvailable(bookCopyToBuy.getISBN());
+				}
+
+				boolean saleMiss = false;
+				for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+					BookStoreBook book = getBook(bookCopyToBuy.getISBN());
+					if (!book.areCopiesInStore(bookCopyToBuy.getNumCopies())) {
+						// If we cannot sell the copies of the book its a miss
+						book.addSaleMiss();
+						shardOfBook(book.getISBN()).inDemand.add(book.getISBN());
+						saleMiss = true;
+					}
+				}
+
+				// We throw exception now since we want to see how many books
+				// in the order incurred misses which is used by books in
+				// demand
+				if (saleMiss)
+					throw new BookStoreException(BookStoreConstants.BOOK
+							+ BookStoreConstants.NOT_AVAILABLE);
+
+				// Then make purchase
+				for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+					getBook(bookCopyToBuy.getISBN()).buyCopies(
+							bookCopyToBuy.getNumCopies());
+				}
+				return null;
+			}
+		});
+	}
+
+	public List<StockBook> getBooksByISBN(final Set<Integer> isbnSet)
+			throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		for (Integer ISBN : isbnSet) {
+			checkISBN(ISBN);
+		}
+
+		return execute(shardsOf(isbnSet), new ShardOperation<List<StockBook>>() {
+			public List<StockBook> run() throws BookStoreException {
+				List<StockBook> listBooks = new ArrayList<StockBook>();
+				for (Integer ISBN : isbnSet) {
+					checkAvailable(ISBN);
+					listBooks.add(getBook(ISBN).immutableStockBook());
+				}
+				return listBooks;
+			}
+		});
+	}
+
+	public List<Book> getBooks(final Set<Integer> isbnSet)
+			throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		for (Integer ISBN : isbnSet) {
+			checkISBN(ISBN);
+		}
+
+		return execute(shardsOf(isbnSet), new ShardOperation<List<Book>>() {
+			public List<Book> run() throws BookStoreException {
+				List<Book> listBooks = new ArrayList<Book>();
+				for (Integer ISBN : isbnSet) {
+					checkAvailable(ISBN);
+					listBooks.add(getBook(ISBN).immutableBook());
+				}
+				return listBooks;
+			}
+		});
+	}
+
+	public List<Book> getEditorPicks(int numBooks) throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks
+					+ ", but it must be positive");
+		}
+
+		// The ISBN, title, author and price of a book never change, so the
+		// shared index can hand them out without going through the shards
+		List<Book> listEditorPicks = new ArrayList<Book>();
+		for (BookStoreBook book : editorPickIndex.sample(numBooks)) {
+			listEditorPicks.add(book.immutableBook());
+		}
+		return listEditorPicks;
+	}
+
+	public List<Book> getTopRatedBooks(int numBooks) throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks
+					+ ", but it must be positive");
+		}
+
+		List<Book> listTopRated = new ArrayList<Book>();
+		for (BookStoreBook book : topRatedIndex.top(numBooks)) {
+			listTopRated.add(book.immutableBook());
+		}
+		return listTopRated;
+	}
+
+	public List<StockBook> getBooksInDemand() throws BookStoreException {
+		return execute(allShards(), new ShardOperation<List<StockBook>>() {
+			public List<StockBook> run() {
+				List<StockBook> listBooks = new ArrayList<StockBook>();
+				for (Shard shard : shards) {
+					for (Integer ISBN : shard.inDemand) {
+						listBooks.add(shard.books.get(ISBN)
+								.immutableStockBook());
+					}
+				}
+				return listBooks;
+			}
+		});
+	}
+
+	public void rateBooks(final Set<BookRating> bookRating)
+			throws BookStoreException {
+		if (bookRating == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		List<Integer> isbns = new ArrayList<Integer>();
+		for (BookRating rating : bookRating) {
+			checkISBN(rating.getISBN());
+			if (BookStoreUtility.isInvalidRating(rating.getRating()))
+				throw new BookStoreException(BookStoreConstants.RATING
+						+ rating.getRating() + BookStoreConstants.INVALID);
+			isbns.add(rating.getISBN());
+		}
+
+		execute(shardsOf(isbns), new ShardOperation<Void>() {
+			public Void run() throws BookStoreException {
+				for (BookRating rating : bookRating) {
+					checkAvailable(rating.getISBN());
+				}
+
+				for (BookRating rating : bookRating) {
+					BookStoreBook book = getBook(rating.getISBN());
+					book.addRating(rating.getRating());
+					topRatedIndex.update(book, book.getTotalRating(),
+							book.getTimesRated());
+				}
+				return null;
+			}
+		});
+	}
+
+	public void removeAllBooks() throws BookStoreException {
+		execute(allShards(), new ShardOperation<Void>() {
+			public Void run() {
+				for (Shard shard : shards) {
+					shard.books.clear();
+					shard.inDemand.clear();
+				}
+				editorPickIndex.clear();
+				topRatedIndex.clear();
+				return null;
+			}
+		});
+	}
+
+	public void removeBooks(final Set<Integer> isbnSet)
+			throws BookStoreException {
+
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		for (Integer ISBN : isbnSet) {
+			checkISBN(ISBN);
+		}
+
+		execute(shardsOf(isbnSet), new ShardOperation<Void>() {
+			public Void run() throws BookStoreException {
+				for (Integer ISBN : isbnSet) {
+					checkAvailable(ISBN);
+				}
+
+				for (int isbn : isbnSet) {
+					Shard shard = shardOfBook(isbn);
+					shard.books.remove(isbn);
+					shard.inDemand.remove(isbn);
+					editorPickIndex.remove(isbn);
+					topRatedIndex.remove(isbn);
+				}
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Returns the number of shards of the store.
+	 *
+	 * @return
+	 */
+	public int getNumShards() {
+		return shards.length;
+	}
+}
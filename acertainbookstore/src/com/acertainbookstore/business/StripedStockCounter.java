@@ -0,0 +1,145 @@
+package com.acertainbookstore.business;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * StripedStockCounter splits the stock of a book over several sub-counters,
+ * so buyers of a book on flash sale decrement different memory locations
+ * instead of contending on one field. A buyer takes from the stripe of its
+ * thread, steals from the other stripes when its own runs dry, and only when
+ * no single stripe has enough left it rebalances: it drains all the stripes,
+ * takes its copies from the sum and spreads the rest again.
+ *
+ * Taking copies never lets a stripe go below zero, so the stock is never
+ * oversold. Rebalancing, adding copies and summing are serialized on the
+ * counter, so a sum never sees copies that are in flight between stripes and
+ * a buyer is only turned away if the whole stock is too small.
+ *
+ * The counter is not versioned by BookVersionManager: taking copies is not a
+ * commit, so snapshot reads of a book on flash sale see the current sum and
+ * not the stock as of their epoch.
+ */
+public class StripedStockCounter {
+	// Spaces the stripes a cache line apart, so buyers on different stripes
+	// do not share a line
+	private static final int PADDING = 16;
+
+	private final AtomicIntegerArray stripes;
+	private final int numStripes;
+
+	/**
+	 * Creates a counter holding numCopies split over numStripes stripes.
+	 *
+	 * @param numCopies
+	 * @param numStripes
+	 */
+	public StripedStockCounter(int numCopies, int numStripes) {
+		if (numStripes < 1) {
+			throw new IllegalArgumentException("numStripes = " + numStripes
+					+ ", but it must be positive");
+		}
+		this.numStripes = numStripes;
+		this.stripes = new AtomicIntegerArray(numStripes * PADDING);
+		spread(numCopies);
+	}
+
+	private int home() {
+		return (int) (Thread.currentThread().getId() % numStripes);
+	}
+
+	/**
+	 * Takes numCopies copies from the stripe if it has that many left.
+	 */
+	private boolean tryTake(int stripe, int numCopies) {
+		int index = stripe * PADDING;
+		while (true) {
+			int copies = stripes.get(index);
+			if (copies < numCopies) {
+				return false;
+			}
+			if (stripes.compareAndSet(index, copies, copies - numCopies)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Takes numCopies copies from the stock if it has that many left.
+	 *
+	 * @param numCopies
+	 * @return true if the copies were taken
+	 */
+	public boolean take(int numCopies) {
+		if (numCopies <= 0) {
+			return numCopies == 0;
+		}
+		int home = home();
+		for (int i = 0; i < numStripes; i++) {
+			if (tryTake((home + i) % numStripes, numCopies)) {
+				return true;
+			}
+		}
+		synchronized (this) {
+			int total = drain();
+			boolean taken = total >= numCopies;
+			if (taken) {
+				total -= numCopies;
+			}
+			spread(total);
+			return taken;
+		}
+	}
+
+	/**
+	 * Adds numCopies copies to the stock, spread over the stripes.
+	 *
+	 * @param numCopies
+	 */
+	public synchronized void add(int numCopies) {
+		spread(numCopies);
+	}
+
+	/**
+	 * Returns the number of copies left.
+	 *
+	 * @return
+	 */
+	public synchronized int sum() {
+		int total = 0;
+		for (int i = 0; i < numStripes; i++) {
+			total += stripes.get(i * PADDING);
+		}
+		return total;
+	}
+
+	public int getNumStripes() {
+		return numStripes;
+	}
+
+	/**
+	 * Empties all the stripes and returns what they held. Must be called with
+	 * the counter locked.
+	 */
+	private int drain() {
+		int total = 0;
+		for (int i = 0; i < numStripes; i++) {
+			total += stripes.getAndSet(i * PADDING, 0);
+		}
+		return total;
+	}
+
+	/**
+	 * Adds numCopies evenly to the stripes. Must be called with the counter
+	 * locked, or before the counter is shared.
+	 */
+	private void spread(int numCopies) {
+		int share = numCopies / numStripes;
+		int rest = numCopies % numStripes;
+		for (int i = 0; i < numStripes; i++) {
+			int copies = share + (i < rest ? 1 : 0);
+			if (copies > 0) {
+				stripes.addAndGet(i * PADDING, copies);
+			}
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package com.acertainbookstore.business;
+
+/**
+ * SyncPolicy decides when the BookStoreLog forces its records to disk, which
+ * trades the changes that may be lost in a crash for the cost of a change.
+ */
+public enum SyncPolicy {
+	/**
+	 * Every record is forced to disk before append returns. Nothing is lost,
+	 * but every change pays for its own fsync.
+	 */
+	ALWAYS,
+
+	/**
+	 * Changes wait until their record is on disk, but all the changes waiting
+	 * at the same time share one fsync (group commit). Nothing is lost.
+	 */
+	GROUP,
+
+	/**
+	 * A background thread forces the log at a fixed interval and changes do
+	 * not wait for it. The changes of the last interval may be lost.
+	 */
+	INTERVAL,
+
+	/**
+	 * The log is never forced, the operating system writes it back when it
+	 * sees fit. Survives a crash of the server, but not of the machine.
+	 */
+	NONE;
+}
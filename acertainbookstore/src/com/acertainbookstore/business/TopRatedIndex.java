@@ -0,0 +1,112 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * TopRatedIndex keeps the rated books ordered by their average rating, highest
+ * first, so getTopRatedBooks only walks the first numBooks entries instead of
+ * sorting the whole catalog. Books that were never rated are not in the index.
+ *
+ * The order is kept in a concurrent skip list and a map from ISBN points to
+ * the current entry of each book. A new rating adds a new entry before the old
+ * one is removed, and top only counts an entry if it is still the current
+ * entry of its book, so a reader never sees a book twice. Readers take no
+ * locks; updates of the same book must be serialized by the caller.
+ */
+public class TopRatedIndex<V extends Book> {
+
+	/**
+	 * An entry of the index, ordered by average rating and then by ISBN.
+	 */
+	private static final class Entry<V> implements Comparable<Entry<V>> {
+		private final double averageRating;
+		private final int ISBN;
+		private final V book;
+
+		private Entry(double averageRating, int ISBN, V book) {
+			this.averageRating = averageRating;
+			this.ISBN = ISBN;
+			this.book = book;
+		}
+
+		public int compareTo(Entry<V> other) {
+			int order = Double.compare(other.averageRating, averageRating);
+			return (order != 0) ? order : Integer.compare(ISBN, other.ISBN);
+		}
+	}
+
+	private final ConcurrentSkipListSet<Entry<V>> ranking = new ConcurrentSkipListSet<Entry<V>>();
+	private final ConcurrentHashMap<Integer, Entry<V>> entries = new ConcurrentHashMap<Integer, Entry<V>>();
+
+	/**
+	 * Moves the book to the place of its new rating. Books with timesRated 0
+	 * are taken out of the index.
+	 *
+	 * @param book
+	 * @param totalRating
+	 * @param timesRated
+	 */
+	public void update(V book, long totalRating, long timesRated) {
+		if (timesRated <= 0) {
+			remove(book.getISBN());
+			return;
+		}
+		Entry<V> entry = new Entry<V>((double) totalRating / timesRated,
+				book.getISBN(), book);
+		Entry<V> previous = entries.get(book.getISBN());
+		if (previous != null && previous.compareTo(entry) == 0) {
+			// The skip list would take the new entry for the previous one,
+			// so the previous entry stays when its average did not change
+			if (previous.book == book) {
+				return;
+			}
+			ranking.remove(previous);
+			previous = null;
+		}
+		ranking.add(entry);
+		entries.put(book.getISBN(), entry);
+		if (previous != null) {
+			ranking.remove(previous);
+		}
+	}
+
+	/**
+	 * Removes the book with the given ISBN from the index.
+	 *
+	 * @param ISBN
+	 */
+	public void remove(int ISBN) {
+		Entry<V> entry = entries.remove(ISBN);
+		if (entry != null) {
+			ranking.remove(entry);
+		}
+	}
+
+	public void clear() {
+		entries.clear();
+		ranking.clear();
+	}
+
+	/**
+	 * Returns the numBooks books with the highest average rating, highest
+	 * first.
+	 *
+	 * @param numBooks
+	 * @return
+	 */
+	public List<V> top(int numBooks) {
+		List<V> topBooks = new ArrayList<V>();
+		for (Entry<V> entry : ranking) {
+			if (topBooks.size() >= numBooks) {
+				break;
+			}
+			if (entries.get(entry.ISBN) == entry) {
+				topBooks.add(entry.book);
+			}
+		}
+		return topBooks;
+	}
+}
@@ -15,6 +15,7 @@ public final class BookStoreClientConstants {
 	public static final int CLIENT_MAX_CONNECTION_ADDRESS = 200;
 	public static final int CLIENT_MAX_THREADSPOOL_THREADS = 250;
 	public static final int CLIENT_MAX_TIMEOUT_MILLISECS = 30000;
+	public static final int CLIENT_STREAM_BUFFER_SIZE = 64 * 1024;
 
 	public static final String strERR_CLIENT_REQUEST_SENDING = "ERR_CLIENT_REQUEST_SENDING";
 	public static final String strERR_CLIENT_REQUEST_EXCEPTION = "ERR_CLIENT_REQUEST_EXCEPTION";
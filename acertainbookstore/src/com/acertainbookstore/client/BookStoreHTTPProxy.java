@@ -31,6 +31,7 @@ import com.acertainbookstore.utils.BookStoreUtility;
 public class BookStoreHTTPProxy implements BookStore {
 	protected HttpClient client;
 	protected String serverAddress;
+	protected ReplicaRouter replicaRouter = null;
 
 	/**
 	 * Initialize the client object
@@ -60,6 +61,25 @@ public class BookStoreHTTPProxy implements BookStore {
 		client.start();
 	}
 
+	/**
+	 * Initialize a client object that sends the reads to the replicas at
+	 * replicaAddresses as long as they are at most maxStalenessMillis behind
+	 * the server, and to the server otherwise (cf. ReplicaRouter)
+	 */
+	public BookStoreHTTPProxy(String serverAddress, List<String> replicaAddresses,
+			long maxStalenessMillis) throws Exception {
+		this(serverAddress);
+		replicaRouter = new ReplicaRouter(replicaAddresses, maxStalenessMillis);
+	}
+
+	/**
+	 * Returns the router of the reads, or null if all requests go to the
+	 * server
+	 */
+	public ReplicaRouter getReplicaRouter() {
+		return replicaRouter;
+	}
+
 	public String getServerAddress() {
 		return serverAddress;
 	}
@@ -85,11 +105,15 @@ public class BookStoreHTTPProxy implements BookStore {
 
 	@SuppressWarnings("unchecked")
 	public List<Book> getBooks(Set<Integer> isbnSet) throws BookStoreException {
-		ContentExchange exchange = new ContentExchange();
-		String urlString = serverAddress + "/" + BookStoreMessageTag.GETBOOKS;
-
 		String listISBNsxmlString = BookStoreUtility
 				.serializeObjectToXMLString(isbnSet);
+		if (replicaRouter != null) {
+			return (List<Book>) replicaRouter.read(client, serverAddress, "/"
+					+ BookStoreMessageTag.GETBOOKS, listISBNsxmlString);
+		}
+
+		ContentExchange exchange = new ContentExchange();
+		String urlString = serverAddress + "/" + BookStoreMessageTag.GETBOOKS;
 		exchange.setMethod("POST");
 		exchange.setURL(urlString);
 		Buffer requestContent = new ByteArrayBuffer(listISBNsxmlString);
@@ -110,11 +134,14 @@ public class BookStoreHTTPProxy implements BookStore {
 			throw new BookStoreException("unsupported encoding of numbooks", ex);
 		}
 
-		String urlString = serverAddress + "/"
-				+ BookStoreMessageTag.EDITORPICKS + "?"
+		String path = "/" + BookStoreMessageTag.EDITORPICKS + "?"
 				+ BookStoreConstants.BOOK_NUM_PARAM + "=" + urlEncodedNumBooks;
+		if (replicaRouter != null) {
+			return (List<Book>) replicaRouter.read(client, serverAddress,
+					path, null);
+		}
 
-		exchange.setURL(urlString);
+		exchange.setURL(serverAddress + path);
 
 		return (List<Book>) BookStoreUtility.SendAndRecv(this.client, exchange);
 	}
@@ -130,15 +157,42 @@ public class BookStoreHTTPProxy implements BookStore {
 
 	@Override
 	public void rateBooks(Set<BookRating> bookRating) throws BookStoreException {
-		// TODO Auto-generated method stub
-		throw new BookStoreException("Not implemented");
-		
+		ContentExchange exchange = new ContentExchange();
+		String urlString = serverAddress + "/" + BookStoreMessageTag.RATEBOOKS;
+
+		String listRatingsxmlString = BookStoreUtility
+				.serializeObjectToXMLString(bookRating);
+		exchange.setMethod("POST");
+		exchange.setURL(urlString);
+		Buffer requestContent = new ByteArrayBuffer(listRatingsxmlString);
+		exchange.setRequestContent(requestContent);
+
+		BookStoreUtility.SendAndRecv(this.client, exchange);
 	}
 
 	@Override
+	@SuppressWarnings("unchecked")
 	public List<Book> getTopRatedBooks(int numBooks) throws BookStoreException {
-		// TODO Auto-generated method stub
-		throw new BookStoreException("Not implemented");
+		ContentExchange exchange = new ContentExchange();
+		String urlEncodedNumBooks = null;
+
+		try {
+			urlEncodedNumBooks = URLEncoder.encode(Integer.toString(numBooks),
+					"UTF-8");
+		} catch (UnsupportedEncodingException ex) {
+			throw new BookStoreException("unsupported encoding of numbooks", ex);
+		}
+
+		String path = "/" + BookStoreMessageTag.TOPRATEDBOOKS + "?"
+				+ BookStoreConstants.BOOK_NUM_PARAM + "=" + urlEncodedNumBooks;
+		if (replicaRouter != null) {
+			return (List<Book>) replicaRouter.read(client, serverAddress,
+					path, null);
+		}
+
+		exchange.setURL(serverAddress + path);
+
+		return (List<Book>) BookStoreUtility.SendAndRecv(this.client, exchange);
 	}
 
 }
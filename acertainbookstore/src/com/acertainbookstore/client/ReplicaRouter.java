@@ -0,0 +1,136 @@
+package com.acertainbookstore.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.jetty.client.ContentExchange;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreUtility;
+
+/**
+ * ReplicaRouter sends the reads of a proxy to the replicas of the server
+ * (cf. LogReceiver), taking turns, and falls back to the primary server when
+ * the replica is staler than maxStalenessMillis or can not be reached. Every
+ * read is tried on at most one replica, so a slow or dead replica costs a
+ * read at most one extra round trip.
+ *
+ * The replica checks the staleness bound itself, so the proxy needs no
+ * knowledge of the state of the replicas.
+ */
+public class ReplicaRouter {
+	private final List<String> replicaAddresses;
+	private final long maxStalenessMillis;
+	private final AtomicInteger next = new AtomicInteger();
+	private final LongAdder replicaReads = new LongAdder();
+	private final LongAdder fallbacks = new LongAdder();
+
+	/**
+	 * Creates a router over the replicas at replicaAddresses, which are
+	 * given in the same form as the address of the primary.
+	 *
+	 * @param replicaAddresses
+	 * @param maxStalenessMillis
+	 */
+	public ReplicaRouter(List<String> replicaAddresses, long maxStalenessMillis) {
+		this.replicaAddresses = new ArrayList<String>(replicaAddresses);
+		this.maxStalenessMillis = maxStalenessMillis;
+	}
+
+	public long getMaxStalenessMillis() {
+		return maxStalenessMillis;
+	}
+
+	/**
+	 * Returns the number of reads served by a replica.
+	 *
+	 * @return
+	 */
+	public long getNumReplicaReads() {
+		return replicaReads.sum();
+	}
+
+	/**
+	 * Returns the number of reads that a replica could not serve and that
+	 * went to the primary.
+	 *
+	 * @return
+	 */
+	public long getNumFallbacks() {
+		return fallbacks.sum();
+	}
+
+	/**
+	 * Sends the read to a replica, or to the primary at primaryAddress if
+	 * the replica can not serve it. The path is the part of the URL after
+	 * the address, and the read is POSTed with the body if it has one.
+	 *
+	 * @param client
+	 * @param primaryAddress
+	 * @param path
+	 * @param body
+	 *            may be null
+	 * @return
+	 * @throws BookStoreException
+	 */
+	public List<?> read(HttpClient client, String primaryAddress, String path,
+			String body) throws BookStoreException {
+		if (!replicaAddresses.isEmpty()) {
+			String replicaAddress = replicaAddresses.get((next
+					.getAndIncrement() & Integer.MAX_VALUE)
+					% replicaAddresses.size());
+			String boundedPath = path + (path.indexOf('?') < 0 ? "?" : "&")
+					+ BookStoreConstants.MAX_STALENESS_PARAM + "="
+					+ maxStalenessMillis;
+			try {
+				List<?> result = BookStoreUtility.SendAndRecv(client,
+						exchange(replicaAddress + boundedPath, body));
+				replicaReads.increment();
+				return result;
+			} catch (BookStoreException ex) {
+				if (!isUnavailable(ex)) {
+					replicaReads.increment();
+					throw ex;
+				}
+				fallbacks.increment();
+			}
+		}
+		return BookStoreUtility.SendAndRecv(client,
+				exchange(primaryAddress + path, body));
+	}
+
+	private static ContentExchange exchange(String url, String body) {
+		ContentExchange exchange = new ContentExchange();
+		exchange.setURL(url);
+		if (body != null) {
+			exchange.setMethod("POST");
+			exchange.setRequestContent(new ByteArrayBuffer(body));
+		}
+		return exchange;
+	}
+
+	/**
+	 * Returns true if the exception says the replica could not serve the
+	 * read, rather than that the read itself failed.
+	 */
+	private static boolean isUnavailable(BookStoreException ex) {
+		String message = ex.getMessage();
+		return BookStoreConstants.STALE_REPLICA.equals(message)
+				|| BookStoreConstants.READ_ONLY.equals(message)
+				|| BookStoreClientConstants.strERR_CLIENT_REQUEST_SENDING
+						.equals(message)
+				|| BookStoreClientConstants.strERR_CLIENT_REQUEST_EXCEPTION
+						.equals(message)
+				|| BookStoreClientConstants.strERR_CLIENT_REQUEST_TIMEOUT
+						.equals(message)
+				|| BookStoreClientConstants.strERR_CLIENT_RESPONSE_DECODING
+						.equals(message)
+				|| BookStoreClientConstants.strERR_CLIENT_UNKNOWN
+						.equals(message);
+	}
+}
@@ -3,6 +3,11 @@
  */
 package com.acertainbookstore.client;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
@@ -31,6 +36,7 @@ public class StockManagerHTTPProxy implements StockManager {
 
 	protected HttpClient client;
 	protected String serverAddress;
+	protected ReplicaRouter replicaRouter = null;
 
 	/**
 	 * Initialize the client object
@@ -60,6 +66,25 @@ public class StockManagerHTTPProxy implements StockManager {
 		client.start();
 	}
 
+	/**
+	 * Initialize a client object that sends the reads to the replicas at
+	 * replicaAddresses as long as they are at most maxStalenessMillis behind
+	 * the server, and to the server otherwise (cf. ReplicaRouter)
+	 */
+	public StockManagerHTTPProxy(String serverAddress, List<String> replicaAddresses,
+			long maxStalenessMillis) throws Exception {
+		this(serverAddress);
+		replicaRouter = new ReplicaRouter(replicaAddresses, maxStalenessMillis);
+	}
+
+	/**
+	 * Returns the router of the reads, or null if all requests go to the
+	 * server
+	 */
+	public ReplicaRouter getReplicaRouter() {
+		return replicaRouter;
+	}
+
 	public String getServerAddress() {
 		return serverAddress;
 	}
@@ -83,6 +108,82 @@ public class StockManagerHTTPProxy implements StockManager {
 		BookStoreUtility.SendAndRecv(this.client, exchange);
 	}
 
+	/**
+	 * Adds the books of the iterator to the store, streaming them to the
+	 * server as they are read instead of sending one xml string. The server
+	 * adds them in batches, so unlike addBooks the import is not
+	 * all-or-nothing: if a batch fails, the books before it stay in the
+	 * store.
+	 * 
+	 * @param books
+	 * @throws BookStoreException
+	 */
+	public void streamAddBooks(final Iterator<StockBook> books)
+			throws BookStoreException {
+		ContentExchange exchange = new ContentExchange();
+		String urlString;
+		urlString = serverAddress + "/" + BookStoreMessageTag.ADDBOOKSSTREAM;
+
+		final PipedOutputStream pipeOut = new PipedOutputStream();
+		PipedInputStream pipeIn;
+		try {
+			pipeIn = new PipedInputStream(pipeOut,
+					BookStoreClientConstants.CLIENT_STREAM_BUFFER_SIZE);
+		} catch (IOException ex) {
+			throw new BookStoreException(
+					BookStoreClientConstants.strERR_CLIENT_REQUEST_SENDING, ex);
+		}
+		final Throwable[] writeError = new Throwable[1];
+		Thread writer = new Thread(new Runnable() {
+			public void run() {
+				try {
+					ObjectOutputStream out = BookStoreUtility
+							.createXMLObjectOutputStream(pipeOut);
+					try {
+						while (books.hasNext()) {
+							out.writeObject(books.next());
+						}
+					} finally {
+						out.close();
+					}
+				} catch (Throwable ex) {
+					writeError[0] = ex;
+					try {
+						pipeOut.close();
+					} catch (IOException closeEx) {
+						; // Already broken
+					}
+				}
+			}
+		}, "stock-import-writer");
+		writer.setDaemon(true);
+
+		exchange.setMethod("POST");
+		exchange.setURL(urlString);
+		exchange.setRequestContentSource(pipeIn);
+		writer.start();
+		try {
+			BookStoreUtility.SendAndRecv(this.client, exchange);
+		} finally {
+			// Unblocks the writer if the server stopped reading early
+			try {
+				pipeIn.close();
+			} catch (IOException ex) {
+				; // Nothing left to release
+			}
+			try {
+				writer.join();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (writeError[0] != null) {
+			throw new BookStoreException(
+					BookStoreClientConstants.strERR_CLIENT_REQUEST_SENDING,
+					writeError[0]);
+		}
+	}
+
 	public void addCopies(Set<BookCopy> bookCopiesSet)
 			throws BookStoreException {
 		ContentExchange exchange = new ContentExchange();
@@ -102,6 +203,10 @@ public class StockManagerHTTPProxy implements StockManager {
 
 	@SuppressWarnings("unchecked")
 	public List<StockBook> getBooks() throws BookStoreException {
+		if (replicaRouter != null) {
+			return (List<StockBook>) replicaRouter.read(client, serverAddress,
+					"/" + BookStoreMessageTag.LISTBOOKS, null);
+		}
 		ContentExchange exchange = new ContentExchange();
 		String urlString = serverAddress + "/" + BookStoreMessageTag.LISTBOOKS;
 
@@ -131,8 +236,20 @@ public class StockManagerHTTPProxy implements StockManager {
 	}
 
 	@Override
+	@SuppressWarnings("unchecked")
 	public List<StockBook> getBooksInDemand() throws BookStoreException {
-		throw new BookStoreException("Not implemented");
+		if (replicaRouter != null) {
+			return (List<StockBook>) replicaRouter.read(client, serverAddress,
+					"/" + BookStoreMessageTag.BOOKSINDEMAND, null);
+		}
+		ContentExchange exchange = new ContentExchange();
+		String urlString = serverAddress + "/"
+				+ BookStoreMessageTag.BOOKSINDEMAND;
+
+		exchange.setURL(urlString);
+
+		return (List<StockBook>) BookStoreUtility.SendAndRecv(this.client,
+				exchange);
 	}
 
 	public void removeAllBooks() throws BookStoreException {
@@ -177,12 +294,17 @@ public class StockManagerHTTPProxy implements StockManager {
 	@SuppressWarnings("unchecked")
 	public List<StockBook> getBooksByISBN(Set<Integer> isbns)
 			throws BookStoreException {
+		String listBooksxmlString = BookStoreUtility
+				.serializeObjectToXMLString(isbns);
+		if (replicaRouter != null) {
+			return (List<StockBook>) replicaRouter.read(client, serverAddress,
+					"/" + BookStoreMessageTag.GETSTOCKBOOKSBYISBN,
+					listBooksxmlString);
+		}
 		ContentExchange exchange = new ContentExchange();
 		String urlString;
 		urlString = serverAddress + "/" + BookStoreMessageTag.GETSTOCKBOOKSBYISBN;
 
-		String listBooksxmlString = BookStoreUtility
-				.serializeObjectToXMLString(isbns);
 		exchange.setMethod("POST");
 		exchange.setURL(urlString);
 		Buffer requestContent = new ByteArrayBuffer(listBooksxmlString);
@@ -0,0 +1,211 @@
+package com.acertainbookstore.client.tests;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.acertainbookstore.business.AtomicCertainBookStore;
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * Test class to test the AtomicCertainBookStore under concurrent buyers
+ *
+ */
+public class AtomicBookStoreTest {
+
+	private static final int TEST_ISBN1 = BookStoreTestUtility.TEST_ISBN1;
+	private static final int TEST_ISBN2 = BookStoreTestUtility.TEST_ISBN2;
+	private static final int NUM_COPIES = BookStoreTestUtility.NUM_COPIES;
+	private static final int NUM_THREADS = BookStoreTestUtility.NUM_THREADS;
+
+	private AtomicCertainBookStore store;
+
+	@Before
+	public void setUpBefore() throws BookStoreException {
+		store = new AtomicCertainBookStore();
+		store.addBooks(BookStoreTestUtility.twoTitles());
+	}
+
+	/**
+	 * Tests that concurrent buyers of a single title sell every copy exactly
+	 * once
+	 */
+	@Test
+	public void testSingleTitleIsNeverOversold() throws Exception {
+		Set<BookCopy> booksToBuy = new HashSet<BookCopy>();
+		booksToBuy.add(new BookCopy(TEST_ISBN1, 1));
+
+		int purchases = BookStoreTestUtility.buyUntilSoldOut(store,
+				booksToBuy);
+
+		Set<Integer> isbns = new HashSet<Integer>();
+		isbns.add(TEST_ISBN1);
+		StockBook book = store.getBooksByISBN(isbns).get(0);
+		assertTrue(purchases == NUM_COPIES);
+		assertTrue(book.getNumCopies() == 0);
+		assertTrue(book.getSaleMisses() >= NUM_THREADS);
+	}
+
+	/**
+	 * Tests that purchases of several titles stay all-or-nothing when one of
+	 * the titles runs out first
+	 */
+	@Test
+	public void testMultiTitlePurchaseIsAllOrNothing() throws Exception {
+		Set<BookCopy> booksToBuy = new HashSet<BookCopy>();
+		booksToBuy.add(new BookCopy(TEST_ISBN1, 1));
+		booksToBuy.add(new BookCopy(TEST_ISBN2, 1));
+
+		int purchases = BookStoreTestUtility.buyUntilSoldOut(store,
+				booksToBuy);
+
+		Set<Integer> isbns = new HashSet<Integer>();
+		isbns.add(TEST_ISBN1);
+		isbns.add(TEST_ISBN2);
+		for (StockBook book : store.getBooksByISBN(isbns)) {
+			if (book.getISBN() == TEST_ISBN1)
+				assertTrue(book.getNumCopies() == NUM_COPIES - purchases);
+			else
+				assertTrue(book.getNumCopies() == NUM_COPIES / 2 - purchases);
+		}
+		assertTrue(purchases == NUM_COPIES / 2);
+	}
+
+	/**
+	 * Tests that reads never see the copies reserved by purchases that are
+	 * rolled back
+	 */
+	@Test
+	public void testReadsSeeNoRolledBackPurchase() throws Exception {
+		final int soldOutISBN = TEST_ISBN2 + 1;
+		Set<StockBook> books = new HashSet<StockBook>();
+		books.add(new ImmutableStockBook(soldOutISBN, "Sold out", "Nobody",
+				(float) 10, 1, 0, 0, 0, false));
+		store.addBooks(books);
+
+		final Set<BookCopy> failingPurchase = new HashSet<BookCopy>();
+		failingPurchase.add(new BookCopy(TEST_ISBN1, 1));
+		failingPurchase.add(new BookCopy(TEST_ISBN2, 1));
+		failingPurchase.add(new BookCopy(soldOutISBN, 2));
+		final AtomicBoolean done = new AtomicBoolean(false);
+		List<Thread> buyers = new ArrayList<Thread>();
+		for (int i = 0; i < NUM_THREADS / 4; i++) {
+			buyers.add(new Thread(new Runnable() {
+				public void run() {
+					while (!done.get()) {
+						try {
+							store.buyBooks(failingPurchase);
+						} catch (BookStoreException e) {
+							;
+						}
+					}
+				}
+			}));
+		}
+		for (Thread buyer : buyers) {
+			buyer.start();
+		}
+
+		Set<Integer> isbns = new HashSet<Integer>();
+		isbns.add(TEST_ISBN1);
+		isbns.add(TEST_ISBN2);
+		int dirtyReads = 0;
+		try {
+			for (int i = 0; i < 20000; i++) {
+				for (StockBook book : store.getBooksByISBN(isbns)) {
+					int expected = (book.getISBN() == TEST_ISBN1) ? NUM_COPIES
+							: NUM_COPIES / 2;
+					if (book.getNumCopies() != expected) {
+						dirtyReads++;
+					}
+				}
+			}
+		} finally {
+			done.set(true);
+			for (Thread buyer : buyers) {
+				buyer.join();
+			}
+		}
+		assertTrue(dirtyReads == 0);
+	}
+
+	/**
+	 * Tests that purchases that fail and put their copies back never make a
+	 * concurrent purchase of the last copies fail or record a sale miss
+	 */
+	@Test
+	public void testRollbackIsNotASaleMiss() throws Exception {
+		final int soldOutISBN = TEST_ISBN2 + 1;
+		Set<StockBook> books = new HashSet<StockBook>();
+		books.add(new ImmutableStockBook(soldOutISBN, "Sold out", "Nobody",
+				(float) 10, 1, 0, 0, 0, false));
+		store.addBooks(books);
+
+		// Reserves a copy of TEST_ISBN1 and puts it back every time
+		final Set<BookCopy> failingPurchase = new HashSet<BookCopy>();
+		failingPurchase.add(new BookCopy(TEST_ISBN1, 1));
+		failingPurchase.add(new BookCopy(soldOutISBN, 2));
+		final Set<BookCopy> purchase = new HashSet<BookCopy>();
+		purchase.add(new BookCopy(TEST_ISBN1, 1));
+
+		final AtomicInteger failures = new AtomicInteger(0);
+		final AtomicInteger buyersLeft = new AtomicInteger(NUM_THREADS / 2);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < NUM_THREADS / 2; i++) {
+			threads.add(new Thread(new Runnable() {
+				public void run() {
+					while (buyersLeft.get() > 0) {
+						try {
+							store.buyBooks(failingPurchase);
+						} catch (BookStoreException e) {
+							;
+						}
+					}
+				}
+			}));
+			threads.add(new Thread(new Runnable() {
+				public void run() {
+					for (int j = 0; j < NUM_COPIES / (NUM_THREADS / 2); j++) {
+						try {
+							store.buyBooks(purchase);
+						} catch (BookStoreException e) {
+							failures.incrementAndGet();
+						}
+					}
+					buyersLeft.decrementAndGet();
+				}
+			}));
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		Set<Integer> isbns = new HashSet<Integer>();
+		isbns.add(TEST_ISBN1);
+		isbns.add(soldOutISBN);
+		assertTrue(failures.get() == 0);
+		for (StockBook book : store.getBooksByISBN(isbns)) {
+			if (book.getISBN() == TEST_ISBN1) {
+				assertTrue(book.getNumCopies() == NUM_COPIES
+						% (NUM_THREADS / 2));
+				assertTrue(book.getSaleMisses() == 0);
+			} else {
+				assertTrue(book.getSaleMisses() > 0);
+			}
+		}
+	}
+}
@@ -0,0 +1,196 @@
+package com.acertainbookstore.client.tests;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.CertainBookStore;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.server.BookImporter;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreUtility;
+
+/**
+ * Test class to test the streamed import of books into a store, without
+ * going through HTTP
+ *
+ */
+public class BookImportTest {
+
+	private static final int BATCH_SIZE = 10;
+
+	private CertainBookStore store;
+	private BookImporter importer;
+
+	@Before
+	public void setUpBefore() {
+		store = new CertainBookStore();
+		importer = new BookImporter(store, BATCH_SIZE);
+	}
+
+	private static StockBook book(int ISBN) {
+		return new ImmutableStockBook(ISBN, "Title " + ISBN, "Author " + ISBN,
+				(float) ISBN, ISBN, 0, 0, 0, false);
+	}
+
+	/**
+	 * Writes the objects the way StockManagerHTTPProxy.streamAddBooks does
+	 */
+	private static ByteArrayInputStream stream(List<?> objects)
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = BookStoreUtility
+				.createXMLObjectOutputStream(bytes);
+		for (Object object : objects) {
+			out.writeObject(object);
+		}
+		out.close();
+		return new ByteArrayInputStream(bytes.toByteArray());
+	}
+
+	/**
+	 * Tests that every streamed book is added, including the last partial
+	 * batch
+	 */
+	@Test
+	public void testRoundTrip() throws IOException, BookStoreException {
+		List<StockBook> books = new ArrayList<StockBook>();
+		for (int ISBN = 1; ISBN <= 2 * BATCH_SIZE + 5; ISBN++) {
+			books.add(book(ISBN));
+		}
+		assertTrue(importer.importBooks(stream(books)) == books.size());
+
+		List<StockBook> imported = store.getBooks();
+		assertTrue(imported.size() == books.size());
+		for (StockBook book : imported) {
+			int ISBN = book.getISBN();
+			assertTrue(book.getTitle().equals("Title " + ISBN));
+			assertTrue(book.getNumCopies() == ISBN);
+		}
+		assertTrue(importer.importBooks(stream(new ArrayList<StockBook>())) == 0);
+	}
+
+	/**
+	 * Tests that a failed batch reports the books imported before it, which
+	 * stay in the store, including an ISBN that comes twice in one batch
+	 */
+	@Test
+	public void testFailedBatch() throws IOException, BookStoreException {
+		List<StockBook> books = new ArrayList<StockBook>();
+		for (int ISBN = 1; ISBN <= BATCH_SIZE + 3; ISBN++) {
+			books.add(book(ISBN));
+		}
+		books.add(new ImmutableStockBook(BATCH_SIZE + 2, "Other title",
+				"Other author", (float) 1, 1, 0, 0, 0, false));
+		try {
+			importer.importBooks(stream(books));
+			fail();
+		} catch (BookStoreException ex) {
+			assertTrue(ex.getMessage().startsWith(
+					BATCH_SIZE + BookStoreConstants.IMPORTED));
+			assertTrue(ex.getMessage().endsWith(
+					BookStoreConstants.DUPLICATED));
+		}
+		assertTrue(store.getBooks().size() == BATCH_SIZE);
+
+		books.clear();
+		books.add(book(1));
+		try {
+			importer.importBooks(stream(books));
+			fail();
+		} catch (BookStoreException ex) {
+			assertTrue(ex.getMessage().startsWith(
+					0 + BookStoreConstants.IMPORTED));
+		}
+		assertTrue(store.getBooks().size() == BATCH_SIZE);
+	}
+
+	/**
+	 * Tests that a stream that breaks off fails with IMPORT_READ_FAILED after
+	 * the batches read before it were imported
+	 */
+	@Test
+	public void testBrokenStream() throws IOException {
+		List<StockBook> books = new ArrayList<StockBook>();
+		for (int ISBN = 1; ISBN <= 2 * BATCH_SIZE; ISBN++) {
+			books.add(book(ISBN));
+		}
+		ByteArrayInputStream bytes = stream(books);
+		final int breakAt = bytes.available() * 3 / 4;
+		InputStream broken = new FilterInputStream(bytes) {
+			private int read = 0;
+
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (read >= breakAt) {
+					throw new IOException("The connection was reset");
+				}
+				int n = super.read(b, off, Math.min(len, breakAt - read));
+				if (n > 0) {
+					read += n;
+				}
+				return n;
+			}
+		};
+		try {
+			importer.importBooks(broken);
+			fail();
+		} catch (BookStoreException ex) {
+			assertTrue(ex.getMessage().equals(
+					BATCH_SIZE + BookStoreConstants.IMPORTED
+							+ BookStoreConstants.IMPORT_READ_FAILED));
+		}
+		assertTrue(store.getBooks().size() == BATCH_SIZE);
+	}
+
+	/**
+	 * Tests that malformed streams and streams of other objects fail with
+	 * IMPORT_MALFORMED
+	 */
+	@Test
+	public void testMalformedStream() throws IOException {
+		List<Object> objects = new ArrayList<Object>();
+		for (int ISBN = 1; ISBN <= BATCH_SIZE; ISBN++) {
+			objects.add(book(ISBN));
+		}
+		objects.add(new BookCopy(1, 1));
+		try {
+			importer.importBooks(stream(objects));
+			fail();
+		} catch (BookStoreException ex) {
+			assertTrue(ex.getMessage().equals(
+					BATCH_SIZE + BookStoreConstants.IMPORTED
+							+ BookStoreConstants.IMPORT_MALFORMED));
+		}
+		assertTrue(store.getBooks().size() == BATCH_SIZE);
+
+		byte[] garbage = "<object-stream><not a book".getBytes("UTF-8");
+		try {
+			importer.importBooks(new ByteArrayInputStream(garbage));
+			fail();
+		} catch (BookStoreException ex) {
+			assertTrue(ex.getMessage().endsWith(
+					BookStoreConstants.IMPORT_MALFORMED));
+		}
+	}
+}
@@ -14,6 +14,7 @@ import org.junit.Test;
 
 import com.acertainbookstore.business.Book;
 import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookRating;
 import com.acertainbookstore.business.CertainBookStore;
 import com.acertainbookstore.business.ImmutableStockBook;
 import com.acertainbookstore.business.StockBook;
@@ -314,6 +315,85 @@ public class BookStoreTest {
 
 	}
 
+	/**
+	 * Tests that rated books are returned by getTopRatedBooks, highest
+	 * average rating first
+	 */
+	@Test
+	public void testRateBooksAndGetTopRated() throws BookStoreException {
+		addBooks(TEST_ISBN + 1, NUM_COPIES);
+		addBooks(TEST_ISBN + 2, NUM_COPIES);
+
+		Set<BookRating> ratings = new HashSet<BookRating>();
+		ratings.add(new BookRating(TEST_ISBN, 2));
+		ratings.add(new BookRating(TEST_ISBN + 1, 5));
+		client.rateBooks(ratings);
+		ratings.clear();
+		ratings.add(new BookRating(TEST_ISBN, 4));
+		client.rateBooks(ratings);
+
+		// TEST_ISBN + 2 was never rated
+		List<Book> topRated = client.getTopRatedBooks(3);
+		assertTrue(topRated.size() == 2);
+		assertTrue(topRated.get(0).getISBN() == TEST_ISBN + 1);
+		assertTrue(topRated.get(1).getISBN() == TEST_ISBN);
+		assertTrue(client.getTopRatedBooks(1).size() == 1);
+
+		Set<Integer> isbnList = new HashSet<Integer>();
+		isbnList.add(TEST_ISBN);
+		StockBook book = storeManager.getBooksByISBN(isbnList).get(0);
+		assertTrue(book.getTimesRated() == 2 && book.getTotalRating() == 6);
+	}
+
+	/**
+	 * Tests that a book stays among the top rated books when a new rating
+	 * leaves its average rating unchanged
+	 */
+	@Test
+	public void testRateBooksSameAverage() throws BookStoreException {
+		Set<BookRating> ratings = new HashSet<BookRating>();
+		ratings.add(new BookRating(TEST_ISBN, 4));
+		client.rateBooks(ratings);
+		client.rateBooks(ratings);
+
+		List<Book> topRated = client.getTopRatedBooks(1);
+		assertTrue(topRated.size() == 1);
+		assertTrue(topRated.get(0).getISBN() == TEST_ISBN);
+	}
+
+	/**
+	 * Tests that no book is rated if one of the ratings is invalid
+	 */
+	@Test
+	public void testRateBooksAllOrNothing() throws BookStoreException {
+		Set<BookRating> ratings = new HashSet<BookRating>();
+		ratings.add(new BookRating(TEST_ISBN, 3));
+		ratings.add(new BookRating(TEST_ISBN + 1, 3)); // not in the store
+		try {
+			client.rateBooks(ratings);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+
+		ratings.clear();
+		ratings.add(new BookRating(TEST_ISBN, 6)); // invalid rating
+		try {
+			client.rateBooks(ratings);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+
+		assertTrue(client.getTopRatedBooks(1).isEmpty());
+		try {
+			client.getTopRatedBooks(-1);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+	}
+
 	@AfterClass
 	public static void tearDownAfterClass() throws BookStoreException {
 		storeManager.removeAllBooks();
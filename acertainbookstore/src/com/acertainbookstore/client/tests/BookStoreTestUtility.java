@@ -0,0 +1,162 @@
+package com.acertainbookstore.client.tests;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * BookStoreTestUtility holds the fixtures shared by several test classes: the
+ * books, the changes and the comparison of stores of the tests that rebuild a
+ * store from a log, and the two titles and concurrent buyers of the tests of
+ * all-or-nothing purchases
+ *
+ */
+public final class BookStoreTestUtility {
+
+	public static final int NUM_BOOKS = 20;
+	public static final int TEST_ISBN1 = 30345660;
+	public static final int TEST_ISBN2 = 30345661;
+	public static final int NUM_COPIES = 10000;
+	public static final int NUM_THREADS = 64;
+
+	private BookStoreTestUtility() {
+	}
+
+	public static Set<StockBook> books() {
+		Set<StockBook> books = new HashSet<StockBook>();
+		for (int ISBN = 1; ISBN <= NUM_BOOKS; ISBN++) {
+			books.add(new ImmutableStockBook(ISBN, "Title " + ISBN, "Author "
+					+ ISBN, (float) ISBN, 5, 0, 0, 0, false));
+		}
+		return books;
+	}
+
+	/**
+	 * Makes one change of every kind, including a failed buy that incurs a
+	 * sale miss
+	 */
+	public static <S extends BookStore & StockManager> void change(S store)
+			throws BookStoreException {
+		store.addBooks(books());
+
+		Set<BookCopy> copies = new HashSet<BookCopy>();
+		copies.add(new BookCopy(1, 3));
+		copies.add(new BookCopy(2, 5));
+		store.buyBooks(copies);
+		copies.clear();
+		copies.add(new BookCopy(3, 6));
+		try {
+			store.buyBooks(copies);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+		copies.clear();
+		copies.add(new BookCopy(4, 2));
+		store.addCopies(copies);
+
+		Set<BookEditorPick> picks = new HashSet<BookEditorPick>();
+		picks.add(new BookEditorPick(5, true));
+		picks.add(new BookEditorPick(6, true));
+		store.updateEditorPicks(picks);
+		picks.clear();
+		picks.add(new BookEditorPick(6, false));
+		store.updateEditorPicks(picks);
+
+		Set<BookRating> ratings = new HashSet<BookRating>();
+		ratings.add(new BookRating(7, 4));
+		ratings.add(new BookRating(8, 1));
+		store.rateBooks(ratings);
+
+		Set<Integer> removed = new HashSet<Integer>();
+		removed.add(9);
+		removed.add(10);
+		store.removeBooks(removed);
+	}
+
+	/**
+	 * Checks that two stores hold the same books with the same stock, misses,
+	 * ratings and editor picks
+	 */
+	public static <S extends BookStore & StockManager, T extends BookStore & StockManager> void assertSameBooks(
+			S expected, T actual) throws BookStoreException {
+		List<StockBook> expectedBooks = expected.getBooks();
+		assertTrue(actual.getBooks().size() == expectedBooks.size());
+		for (StockBook book : expectedBooks) {
+			Set<Integer> isbns = new HashSet<Integer>();
+			isbns.add(book.getISBN());
+			StockBook other = actual.getBooksByISBN(isbns).get(0);
+			assertTrue(other.getTitle().equals(book.getTitle()));
+			assertTrue(other.getAuthor().equals(book.getAuthor()));
+			assertTrue(other.getNumCopies() == book.getNumCopies());
+			assertTrue(other.getSaleMisses() == book.getSaleMisses());
+			assertTrue(other.getTimesRated() == book.getTimesRated());
+			assertTrue(other.getTotalRating() == book.getTotalRating());
+			assertTrue(other.isEditorPick() == book.isEditorPick());
+		}
+		assertTrue(actual.getEditorPicks(NUM_BOOKS).size() == expected
+				.getEditorPicks(NUM_BOOKS).size());
+		assertTrue(actual.getBooksInDemand().size() == expected
+				.getBooksInDemand().size());
+	}
+
+	/**
+	 * Returns the titles TEST_ISBN1 with NUM_COPIES copies and TEST_ISBN2 with
+	 * NUM_COPIES / 2 copies
+	 */
+	public static Set<StockBook> twoTitles() {
+		Set<StockBook> books = new HashSet<StockBook>();
+		books.add(new ImmutableStockBook(TEST_ISBN1, "Harry Potter and JUnit",
+				"JK Unit", (float) 10, NUM_COPIES, 0, 0, 0, false));
+		books.add(new ImmutableStockBook(TEST_ISBN2,
+				"The C Programming Language", "Dennis Ritchie", (float) 50,
+				NUM_COPIES / 2, 0, 0, 0, false));
+		return books;
+	}
+
+	/**
+	 * Runs NUM_THREADS threads that each keep buying booksToBuy from the store
+	 * until a purchase fails, and returns the number of purchases that
+	 * succeeded.
+	 */
+	public static int buyUntilSoldOut(final BookStore store,
+			final Set<BookCopy> booksToBuy) throws InterruptedException {
+		final AtomicInteger purchases = new AtomicInteger(0);
+		List<Thread> buyers = new ArrayList<Thread>();
+		for (int i = 0; i < NUM_THREADS; i++) {
+			buyers.add(new Thread(new Runnable() {
+				public void run() {
+					try {
+						while (true) {
+							store.buyBooks(booksToBuy);
+							purchases.incrementAndGet();
+						}
+					} catch (BookStoreException e) {
+						; // Sold out
+					}
+				}
+			}));
+		}
+		for (Thread buyer : buyers) {
+			buyer.start();
+		}
+		for (Thread buyer : buyers) {
+			buyer.join();
+		}
+		return purchases.get();
+	}
+}
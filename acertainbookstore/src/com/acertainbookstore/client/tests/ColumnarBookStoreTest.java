@@ -0,0 +1,200 @@
+package com.acertainbookstore.client.tests;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookStringDictionary;
+import com.acertainbookstore.business.ColumnarCertainBookStore;
+import com.acertainbookstore.business.ConcurrentCertainBookStore;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * Test class to test the ColumnarCertainBookStore and the growth of its
+ * off-heap columns
+ *
+ */
+public class ColumnarBookStoreTest {
+
+	private static final int NUM_BOOKS = 5000;
+
+	private ColumnarCertainBookStore store;
+
+	@Before
+	public void setUpBefore() throws BookStoreException {
+		store = new ColumnarCertainBookStore();
+		Set<StockBook> books = new HashSet<StockBook>();
+		for (int ISBN = 1; ISBN <= NUM_BOOKS; ISBN++) {
+			books.add(new ImmutableStockBook(ISBN, "Title " + ISBN, "Author "
+					+ ISBN, (float) ISBN, ISBN, 0, 0, 0, ISBN % 2 == 0));
+		}
+		store.addBooks(books);
+	}
+
+	/**
+	 * Tests that every book survives the growth of the columns and the index
+	 */
+	@Test
+	public void testBooksSurviveGrowth() throws BookStoreException {
+		List<StockBook> books = store.getBooks();
+		assertTrue(books.size() == NUM_BOOKS);
+		for (StockBook book : books) {
+			int ISBN = book.getISBN();
+			assertTrue(book.getTitle().equals("Title " + ISBN));
+			assertTrue(book.getAuthor().equals("Author " + ISBN));
+			assertTrue(book.getPrice() == (float) ISBN);
+			assertTrue(book.getNumCopies() == ISBN);
+			assertTrue(book.isEditorPick() == (ISBN % 2 == 0));
+		}
+	}
+
+	/**
+	 * Tests that buying and restocking update the copies and sale misses
+	 */
+	@Test
+	public void testBuyAndRestock() throws BookStoreException {
+		Set<BookCopy> booksToBuy = new HashSet<BookCopy>();
+		booksToBuy.add(new BookCopy(10, 10));
+		store.buyBooks(booksToBuy);
+		try {
+			store.buyBooks(booksToBuy);
+			fail();
+		} catch (BookStoreException e) {
+			;
+		}
+
+		Set<Integer> isbns = new HashSet<Integer>();
+		isbns.add(10);
+		StockBook book = store.getBooksByISBN(isbns).get(0);
+		assertTrue(book.getNumCopies() == 0);
+		assertTrue(book.getSaleMisses() == 1);
+
+		store.addCopies(booksToBuy);
+		book = store.getBooksByISBN(isbns).get(0);
+		assertTrue(book.getNumCopies() == 10);
+		assertTrue(book.getSaleMisses() == 0);
+	}
+
+	/**
+	 * Tests that removed books are gone and that their slots are reused
+	 */
+	@Test
+	public void testRemoveAndReAdd() throws BookStoreException {
+		Set<Integer> isbns = new HashSet<Integer>();
+		for (int ISBN = 1; ISBN <= NUM_BOOKS; ISBN += 2) {
+			isbns.add(ISBN);
+		}
+		store.removeBooks(isbns);
+		assertTrue(store.getBooks().size() == NUM_BOOKS / 2);
+		try {
+			store.getBooksByISBN(isbns);
+			fail();
+		} catch (BookStoreException e) {
+			;
+		}
+
+		Set<StockBook> books = new HashSet<StockBook>();
+		for (int ISBN = NUM_BOOKS + 1; ISBN <= NUM_BOOKS * 3 / 2; ISBN++) {
+			books.add(new ImmutableStockBook(ISBN, "New title", "New author",
+					(float) 1, 1, 0, 0, 0, false));
+		}
+		store.addBooks(books);
+		assertTrue(store.getBooks().size() == NUM_BOOKS);
+		assertTrue(store.getEditorPicks(NUM_BOOKS).size() == NUM_BOOKS / 2);
+	}
+
+	/**
+	 * Tests that a set of books with the same ISBN twice is rejected as a
+	 * whole
+	 */
+	@Test
+	public void testDuplicateISBNInSet() throws BookStoreException {
+		int ISBN = NUM_BOOKS + 1;
+		Set<StockBook> books = new HashSet<StockBook>();
+		books.add(new ImmutableStockBook(ISBN, "Title", "Author", (float) 1,
+				1, 0, 0, 0, false));
+		books.add(new ImmutableStockBook(ISBN, "Other title", "Author",
+				(float) 2, 1, 0, 0, 0, false));
+		assertTrue(books.size() == 2);
+		try {
+			store.addBooks(books);
+			fail();
+		} catch (BookStoreException e) {
+			;
+		}
+		assertTrue(store.getBooks().size() == NUM_BOOKS);
+
+		books.clear();
+		books.add(new ImmutableStockBook(ISBN, "Title", "Author", (float) 1,
+				1, 0, 0, 0, false));
+		store.addBooks(books);
+		Set<Integer> isbns = new HashSet<Integer>();
+		isbns.add(ISBN);
+		store.removeBooks(isbns);
+		assertTrue(store.getBooks().size() == NUM_BOOKS);
+	}
+
+	/**
+	 * Tests that books by the same author share one copy of the author
+	 */
+	@Test
+	public void testSharedAuthor() throws BookStoreException {
+		Set<StockBook> books = new HashSet<StockBook>();
+		books.add(new ImmutableStockBook(NUM_BOOKS + 1, "First title",
+				new String("Shared author"), (float) 1, 1, 0, 0, 0, false));
+		books.add(new ImmutableStockBook(NUM_BOOKS + 2, "Second title",
+				new String("Shared author"), (float) 1, 1, 0, 0, 0, false));
+		store.addBooks(books);
+
+		Set<Integer> isbns = new HashSet<Integer>();
+		isbns.add(NUM_BOOKS + 1);
+		isbns.add(NUM_BOOKS + 2);
+		List<StockBook> sharedBooks = store.getBooksByISBN(isbns);
+		assertTrue(sharedBooks.get(0).getAuthor() == sharedBooks.get(1)
+				.getAuthor());
+
+		isbns.remove(NUM_BOOKS + 2);
+		store.removeBooks(isbns);
+		isbns.clear();
+		isbns.add(NUM_BOOKS + 2);
+		assertTrue(store.getBooksByISBN(isbns).get(0).getAuthor()
+				.equals("Shared author"));
+	}
+
+	/**
+	 * Tests that the dictionary grows past its initial capacity, both on its
+	 * own and behind the stores that canonicalize their strings
+	 */
+	@Test
+	public void testManyDistinctStrings() throws BookStoreException {
+		BookStringDictionary dictionary = new BookStringDictionary();
+		for (int i = 0; i < 1000; i++) {
+			String string = "String " + i;
+			assertTrue(dictionary.canonicalize(new String(string)).equals(
+					string));
+			assertTrue(dictionary.canonicalize(new String(string)) == dictionary
+					.canonicalize(string));
+		}
+
+		ConcurrentCertainBookStore concurrentStore = new ConcurrentCertainBookStore();
+		Set<StockBook> books = new HashSet<StockBook>();
+		for (int ISBN = 1; ISBN <= 100; ISBN++) {
+			books.add(new ImmutableStockBook(ISBN, "Title " + ISBN, "Author "
+					+ ISBN, (float) ISBN, 1, 0, 0, 0, false));
+		}
+		concurrentStore.addBooks(books);
+		for (StockBook book : concurrentStore.getBooks()) {
+			assertTrue(book.getTitle().equals("Title " + book.getISBN()));
+			assertTrue(book.getAuthor().equals("Author " + book.getISBN()));
+		}
+	}
+}
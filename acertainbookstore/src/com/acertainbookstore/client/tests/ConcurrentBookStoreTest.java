@@ -1,17 +1,27 @@
 package com.acertainbookstore.client.tests;
 
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.acertainbookstore.business.Book;
 import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookLockTable;
+import com.acertainbookstore.business.BookStoreBook;
+import com.acertainbookstore.business.BookVersionManager;
+import com.acertainbookstore.business.BulkLoadListener;
 import com.acertainbookstore.business.ConcurrentCertainBookStore;
 import com.acertainbookstore.business.ImmutableStockBook;
 import com.acertainbookstore.business.StockBook;
@@ -132,6 +142,434 @@ public class ConcurrentBookStoreTest {
         Runnable current = new ActionMaker(store, set3, 5000, false);
 		current.run();
 	}
-	
-	
+
+	// removed books must give their locks back, also under add/remove churn
+	@Test
+	public void testFive() throws BookStoreException{
+		Set<BookCopy> buyBooks = new HashSet<BookCopy>();
+		buyBooks.add(new BookCopy(TEST_ISBN1, 1));
+		buyBooks.add(new BookCopy(TEST_ISBN2, 1));
+		threads.add(new ActionMaker(store, buyBooks, 5000));
+
+		Set<StockBook> churnBooks = new HashSet<StockBook>();
+		Set<Integer> churnIsbns = new HashSet<Integer>();
+		for(int round = 0; round < 200; round++){
+			churnBooks.clear();
+			churnIsbns.clear();
+			for(int i = 0; i < 1000; i++){
+				int isbn = 1 + (round % 10) * 1000 + i;
+				churnBooks.add(new ImmutableStockBook(isbn, "Churn", "Churner",
+						(float) 10, 5, 0, 0, 0, false));
+				churnIsbns.add(isbn);
+			}
+			store.addBooks(churnBooks);
+			assertTrue(store.getNumBookLocks() == 1004);
+			store.removeBooks(churnIsbns);
+			assertTrue(store.getNumBookLocks() == 4);
+		}
+		assertTrue(store.getBooks().size() == 4);
+	}
+
+	// optimistic reads of several books must still see a consistent state
+	@Test
+	public void testSix() throws BookStoreException{
+		Set<BookCopy> buyBooks = new HashSet<BookCopy>();
+		Set<Integer> isbns = new HashSet<Integer>();
+		for(Integer isbn : new Integer[] {TEST_ISBN1, TEST_ISBN2, TEST_ISBN3, TEST_ISBN4}){
+			buyBooks.add(new BookCopy(isbn, 3));
+			isbns.add(isbn);
+		}
+		threads.add(new ActionMaker(store, buyBooks, 5000));
+		for(int i = 10000; i > 0; i--){
+			List<StockBook> books = store.getBooksByISBN(isbns);
+			assertTrue(books.get(0).getNumCopies() == books.get(1).getNumCopies());
+			assertTrue(books.get(1).getNumCopies() == books.get(2).getNumCopies());
+			assertTrue(books.get(2).getNumCopies() == books.get(3).getNumCopies());
+		}
+	}
+
+	// unchanged books are served from the cached projection, changed ones are not
+	@Test
+	public void testSeven() throws BookStoreException{
+		Set<Integer> isbns = new HashSet<Integer>();
+		isbns.add(TEST_ISBN1);
+		StockBook before = store.getBooksByISBN(isbns).get(0);
+		assertTrue(store.getBooksByISBN(isbns).get(0) == before);
+
+		Set<BookCopy> buyBooks = new HashSet<BookCopy>();
+		buyBooks.add(new BookCopy(TEST_ISBN1, 1));
+		store.buyBooks(buyBooks);
+		StockBook after = store.getBooksByISBN(isbns).get(0);
+		assertTrue(after != before);
+		assertTrue(after.getNumCopies() == before.getNumCopies() - 1);
+		assertTrue(store.getBooksByISBN(isbns).get(0) == after);
+	}
+
+	// editor picks come from the index and follow picks, unpicks and removals
+	@Test
+	public void testEight() throws BookStoreException{
+		Set<BookEditorPick> picks = new HashSet<BookEditorPick>();
+		for(Integer isbn : new Integer[] {TEST_ISBN1, TEST_ISBN2, TEST_ISBN3}){
+			picks.add(new BookEditorPick(isbn, true));
+		}
+		store.updateEditorPicks(picks);
+		assertTrue(store.getEditorPicks(10).size() == 3);
+
+		for(int i = 0; i < 100; i++){
+			List<Book> sampled = store.getEditorPicks(2);
+			assertTrue(sampled.size() == 2);
+			assertTrue(sampled.get(0).getISBN() != sampled.get(1).getISBN());
+			for(Book book : sampled){
+				assertTrue(book.getISBN() != TEST_ISBN4);
+			}
+		}
+
+		picks.clear();
+		picks.add(new BookEditorPick(TEST_ISBN1, false));
+		store.updateEditorPicks(picks);
+		Set<Integer> removed = new HashSet<Integer>();
+		removed.add(TEST_ISBN2);
+		store.removeBooks(removed);
+		List<Book> remaining = store.getEditorPicks(10);
+		assertTrue(remaining.size() == 1);
+		assertTrue(remaining.get(0).getISBN() == TEST_ISBN3);
+	}
+
+	// 64 buyers missing the same sold out book each record their miss
+	@Test
+	public void testNine() throws Exception{
+		final int numThreads = 64;
+		final int attempts = 500;
+		final Set<BookCopy> buyBooks = new HashSet<BookCopy>();
+		buyBooks.add(new BookCopy(TEST_ISBN1, 2501));
+		List<Thread> buyers = new ArrayList<Thread>();
+		for(int i = 0; i < numThreads; i++){
+			buyers.add(new Thread(new Runnable() {
+				public void run() {
+					for(int j = 0; j < attempts; j++){
+						try {
+							store.buyBooks(buyBooks);
+						} catch (BookStoreException e) {
+							; // Sold out
+						}
+					}
+				}
+			}));
+		}
+		for(Thread buyer : buyers){
+			buyer.start();
+		}
+		for(Thread buyer : buyers){
+			buyer.join();
+		}
+
+		Set<Integer> isbns = new HashSet<Integer>();
+		isbns.add(TEST_ISBN1);
+		StockBook book = store.getBooksByISBN(isbns).get(0);
+		assertTrue(book.getNumCopies() == 2500);
+		assertTrue(book.getSaleMisses() == numThreads * attempts);
+		List<StockBook> inDemand = store.getBooksInDemand();
+		assertTrue(inDemand.size() == 1);
+		assertTrue(inDemand.get(0).getSaleMisses() == numThreads * attempts);
+	}
+
+	// Combined purchases of two titles stay all-or-nothing and sell every
+	// copy of the scarcer title exactly once
+	@Test
+	public void testTen() throws Exception{
+		store = new ConcurrentCertainBookStore(true, true);
+		store.addBooks(getDefaultBook());
+		final int numThreads = 64;
+		final Set<BookCopy> buyBooks = new HashSet<BookCopy>();
+		buyBooks.add(new BookCopy(TEST_ISBN1, 1));
+		buyBooks.add(new BookCopy(TEST_ISBN2, 2));
+		final AtomicInteger purchases = new AtomicInteger(0);
+		List<Thread> buyers = new ArrayList<Thread>();
+		for(int i = 0; i < numThreads; i++){
+			buyers.add(new Thread(new Runnable() {
+				public void run() {
+					try {
+						while(true){
+							store.buyBooks(buyBooks);
+							purchases.incrementAndGet();
+						}
+					} catch (BookStoreException e) {
+						; // Sold out
+					}
+				}
+			}));
+		}
+		for(Thread buyer : buyers){
+			buyer.start();
+		}
+		for(Thread buyer : buyers){
+			buyer.join();
+		}
+
+		assertTrue(purchases.get() == 1250);
+		for(StockBook book : store.getBooks()){
+			if(book.getISBN() == TEST_ISBN1)
+				assertTrue(book.getNumCopies() == 1250);
+			else if(book.getISBN() == TEST_ISBN2)
+				assertTrue(book.getNumCopies() == 0);
+		}
+		List<StockBook> inDemand = store.getBooksInDemand();
+		assertTrue(inDemand.size() == 1);
+		assertTrue(inDemand.get(0).getISBN() == TEST_ISBN2);
+	}
+
+	// Buyers of a book on flash sale sell every copy exactly once, and the
+	// stock is reported exactly while on sale and after the sale ends
+	@Test
+	public void testEleven() throws Exception{
+		final int numThreads = 64;
+		store.startFlashSale(TEST_ISBN1);
+		final Set<BookCopy> buyBooks = new HashSet<BookCopy>();
+		buyBooks.add(new BookCopy(TEST_ISBN1, 1));
+		final AtomicInteger purchases = new AtomicInteger(0);
+		List<Thread> buyers = new ArrayList<Thread>();
+		for(int i = 0; i < numThreads; i++){
+			buyers.add(new Thread(new Runnable() {
+				public void run() {
+					try {
+						while(true){
+							store.buyBooks(buyBooks);
+							purchases.incrementAndGet();
+						}
+					} catch (BookStoreException e) {
+						; // Sold out
+					}
+				}
+			}));
+		}
+		for(Thread buyer : buyers){
+			buyer.start();
+		}
+		for(Thread buyer : buyers){
+			buyer.join();
+		}
+
+		Set<Integer> isbns = new HashSet<Integer>();
+		isbns.add(TEST_ISBN1);
+		assertTrue(purchases.get() == 2500);
+		StockBook book = store.getBooksByISBN(isbns).get(0);
+		assertTrue(book.getNumCopies() == 0);
+		assertTrue(book.getSaleMisses() == numThreads);
+
+		Set<BookCopy> restock = new HashSet<BookCopy>();
+		restock.add(new BookCopy(TEST_ISBN1, 10));
+		store.addCopies(restock);
+		assertTrue(store.getBooksByISBN(isbns).get(0).getNumCopies() == 10);
+
+		// A purchase of several books is all-or-nothing with the flash sale
+		Set<BookCopy> mixed = new HashSet<BookCopy>();
+		mixed.add(new BookCopy(TEST_ISBN1, 11));
+		mixed.add(new BookCopy(TEST_ISBN2, 1));
+		try {
+			store.buyBooks(mixed);
+			assertTrue(false);
+		} catch (BookStoreException e) {
+			;
+		}
+		mixed.clear();
+		mixed.add(new BookCopy(TEST_ISBN1, 4));
+		mixed.add(new BookCopy(TEST_ISBN2, 1));
+		store.buyBooks(mixed);
+
+		store.endFlashSale(TEST_ISBN1);
+		for(StockBook stockBook : store.getBooks()){
+			if(stockBook.getISBN() == TEST_ISBN1)
+				assertTrue(stockBook.getNumCopies() == 6);
+			else if(stockBook.getISBN() == TEST_ISBN2)
+				assertTrue(stockBook.getNumCopies() == 2499);
+		}
+	}
+
+	// A lock holder that never lets go makes other lockers fail after the
+	// timeout instead of blocking, and they keep none of their locks
+	@Test
+	public void testTwelve() throws Exception{
+		final BookLockTable table = new BookLockTable(100);
+		table.register(TEST_ISBN1);
+		table.register(TEST_ISBN2);
+		final Set<Integer> stuck = new HashSet<Integer>();
+		stuck.add(TEST_ISBN2);
+		table.writeLock(stuck);
+
+		// An assertion that fails in the locker only ends that thread, so
+		// the failure is handed over and rethrown here
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread locker = new Thread(new Runnable() {
+			public void run() {
+				Set<Integer> both = new HashSet<Integer>();
+				both.add(TEST_ISBN1);
+				both.add(TEST_ISBN2);
+				try {
+					table.writeLock(both);
+					fail();
+				} catch (BookStoreException e) {
+					; // Timed out
+				} catch (Throwable t) {
+					failure.set(t);
+				}
+			}
+		});
+		locker.start();
+		locker.join(5000);
+		assertTrue(!locker.isAlive());
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+
+		Set<Integer> free = new HashSet<Integer>();
+		free.add(TEST_ISBN1);
+		table.writeLock(free);
+		table.writeUnlock(free);
+		table.writeUnlock(stuck);
+		assertTrue(table.getStatistics().getTimeouts() == 1);
+		assertTrue(table.getStatistics().getAcquisitions() == 2);
+	}
+
+	// A bulk load publishes all its books and reports its progress, and a
+	// load with a book already in the store adds nothing
+	@Test
+	public void testThirteen() throws Exception{
+		final int numBooks = 20000;
+		List<StockBook> books = new ArrayList<StockBook>();
+		for(int i = 1; i <= numBooks; i++){
+			books.add(new ImmutableStockBook(i, "Bulk title " + (i % 100),
+					"Bulk author " + (i % 10), (float) 10, 5, 0, 0, 0, i % 1000 == 0));
+		}
+		final AtomicInteger prepared = new AtomicInteger(0);
+		final AtomicInteger published = new AtomicInteger(0);
+		// The listener runs on the pool threads, so it records wrong totals
+		// for the test thread to check instead of asserting there
+		final AtomicInteger wrongTotals = new AtomicInteger(0);
+		BulkLoadListener listener = new BulkLoadListener() {
+			public synchronized void prepared(int done, int total) {
+				if (total != numBooks)
+					wrongTotals.incrementAndGet();
+				if (done > prepared.get())
+					prepared.set(done);
+			}
+			public void published(int total) {
+				published.set(total);
+			}
+		};
+		store.bulkAddBooks(books, listener);
+		assertTrue(wrongTotals.get() == 0);
+		assertTrue(prepared.get() == numBooks);
+		assertTrue(published.get() == numBooks);
+		assertTrue(store.getBooks().size() == numBooks + 4);
+		assertTrue(store.getEditorPicks(100).size() == numBooks / 1000);
+		assertTrue(store.getNumBookLocks() == numBooks + 4);
+
+		List<StockBook> clashing = new ArrayList<StockBook>();
+		clashing.add(new ImmutableStockBook(numBooks + 1, "New title",
+				"New author", (float) 10, 5, 0, 0, 0, false));
+		clashing.add(new ImmutableStockBook(TEST_ISBN1, "Harry Potter and JUnit",
+				"JK Unit", (float) 10, 5, 0, 0, 0, false));
+		try {
+			store.bulkAddBooks(clashing, null);
+			assertTrue(false);
+		} catch (BookStoreException e) {
+			;
+		}
+		assertTrue(store.getBooks().size() == numBooks + 4);
+	}
+
+	// Commits of disjoint books run side by side, and a reader still sees
+	// every commit completely or not at all
+	@Test
+	public void testFourteen() throws Exception{
+		final int rounds = 1000;
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread pairBuyer = new Thread(new Runnable() {
+			public void run() {
+				Set<BookCopy> pair = new HashSet<BookCopy>();
+				pair.add(new BookCopy(TEST_ISBN1, 1));
+				pair.add(new BookCopy(TEST_ISBN2, 1));
+				try {
+					for (int i = 0; i < rounds; i++)
+						store.buyBooks(pair);
+				} catch (Throwable t) {
+					failure.compareAndSet(null, t);
+				}
+			}
+		});
+		Thread otherBuyer = new Thread(new Runnable() {
+			public void run() {
+				Set<BookCopy> single = new HashSet<BookCopy>();
+				single.add(new BookCopy(TEST_ISBN3, 1));
+				Set<BookCopy> restock = new HashSet<BookCopy>();
+				restock.add(new BookCopy(TEST_ISBN4, 1));
+				try {
+					for (int i = 0; i < rounds; i++) {
+						store.buyBooks(single);
+						store.addCopies(restock);
+					}
+				} catch (Throwable t) {
+					failure.compareAndSet(null, t);
+				}
+			}
+		});
+		pairBuyer.start();
+		otherBuyer.start();
+		while (pairBuyer.isAlive() || otherBuyer.isAlive()) {
+			int copies1 = -1, copies2 = -2;
+			for (StockBook book : store.getBooks()) {
+				if (book.getISBN() == TEST_ISBN1)
+					copies1 = book.getNumCopies();
+				else if (book.getISBN() == TEST_ISBN2)
+					copies2 = book.getNumCopies();
+			}
+			assertTrue(copies1 == copies2);
+		}
+		pairBuyer.join();
+		otherBuyer.join();
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+		for (StockBook book : store.getBooks()) {
+			if (book.getISBN() == TEST_ISBN3)
+				assertTrue(book.getNumCopies() == 2500 - rounds);
+			else if (book.getISBN() == TEST_ISBN4)
+				assertTrue(book.getNumCopies() == 2500 + rounds);
+			else
+				assertTrue(book.getNumCopies() == 2500 - rounds);
+		}
+	}
+
+	// The stock on flash sale is not versioned: a snapshot opened during the
+	// sale sees copies taken after it was opened, while snapshots opened
+	// before and after the sale keep the stock as of their epoch
+	@Test
+	public void testFifteen() throws BookStoreException{
+		BookVersionManager versions = new BookVersionManager();
+		BookStoreBook book = new BookStoreBook(new ImmutableStockBook(
+				TEST_ISBN1, "Harry Potter and JUnit", "JK Unit", (float) 10, 10,
+				0, 0, 0, false));
+		versions.commit(Collections.singletonList(book));
+
+		BookVersionManager.Snapshot before = versions.openSnapshot();
+		assertTrue(book.buyCopies(3));
+		versions.commit(Collections.singletonList(book));
+		assertTrue(before.read(book).getNumCopies() == 10);
+		before.close();
+
+		book.startFlashSale(4);
+		versions.commit(Collections.singletonList(book));
+		BookVersionManager.Snapshot during = versions.openSnapshot();
+		assertTrue(book.buyCopies(2));
+		assertTrue(during.read(book).getNumCopies() == 5);
+		during.close();
+
+		book.endFlashSale();
+		versions.commit(Collections.singletonList(book));
+		BookVersionManager.Snapshot after = versions.openSnapshot();
+		assertTrue(book.buyCopies(1));
+		versions.commit(Collections.singletonList(book));
+		assertTrue(after.read(book).getNumCopies() == 5);
+		after.close();
+	}
 }
@@ -0,0 +1,451 @@
+package com.acertainbookstore.client.tests;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.business.BookStoreLog;
+import com.acertainbookstore.business.BookStoreSnapshot;
+import com.acertainbookstore.business.CertainBookStore;
+import com.acertainbookstore.business.ConcurrentCertainBookStore;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.LogRecord;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.business.SyncPolicy;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * Test class to test that a CertainBookStore with a BookStoreLog is rebuilt
+ * from its log
+ *
+ */
+public class DurableBookStoreTest {
+
+	private static final int NUM_BOOKS = BookStoreTestUtility.NUM_BOOKS;
+
+	private File file;
+	private File snapshotFile;
+
+	@Before
+	public void setUpBefore() throws IOException {
+		file = File.createTempFile("bookstore", ".log");
+		file.delete();
+		snapshotFile = new File(file.getPath() + ".snapshot");
+	}
+
+	@After
+	public void tearDownAfter() {
+		file.delete();
+		snapshotFile.delete();
+	}
+
+	/**
+	 * Tests that a store reopened from its log under every sync policy has
+	 * the books of the store that wrote it
+	 */
+	@Test
+	public void testReopenEveryPolicy() throws BookStoreException,
+			IOException {
+		for (SyncPolicy policy : SyncPolicy.values()) {
+			file.delete();
+			BookStoreLog log = new BookStoreLog(file, policy,
+					BookStoreLog.DEFAULT_SYNC_INTERVAL_MILLIS);
+			CertainBookStore store = new CertainBookStore(log);
+			BookStoreTestUtility.change(store);
+			assertTrue(log.getNumRecords() == 8);
+			if (policy == SyncPolicy.ALWAYS || policy == SyncPolicy.GROUP) {
+				assertTrue(log.getDurableSequence() >= 8);
+			}
+			log.close();
+
+			BookStoreLog reopened = new BookStoreLog(file, policy,
+					BookStoreLog.DEFAULT_SYNC_INTERVAL_MILLIS);
+			assertTrue(reopened.getLastSequence() == 8);
+			BookStoreTestUtility.assertSameBooks(store, new CertainBookStore(
+					reopened));
+			reopened.close();
+		}
+	}
+
+	/**
+	 * Tests that a ConcurrentCertainBookStore reopened from its log has the
+	 * books of the store that wrote it, and that the log replays the same in
+	 * a CertainBookStore
+	 */
+	@Test
+	public void testReopenConcurrentStore() throws BookStoreException,
+			IOException {
+		BookStoreLog log = new BookStoreLog(file);
+		ConcurrentCertainBookStore store = new ConcurrentCertainBookStore(log);
+		BookStoreTestUtility.change(store);
+		assertTrue(log.getNumRecords() == 8);
+		assertTrue(log.getDurableSequence() >= 8);
+		log.close();
+
+		log = new BookStoreLog(file);
+		assertTrue(log.getLastSequence() == 8);
+		ConcurrentCertainBookStore reopened = new ConcurrentCertainBookStore(
+				log);
+		BookStoreTestUtility.assertSameBooks(store, reopened);
+		BookStoreTestUtility.assertSameBooks(store, new CertainBookStore(
+				new BookStoreLog(file)));
+
+		// The reopened store goes on appending to the log
+		Set<BookCopy> copies = new HashSet<BookCopy>();
+		copies.add(new BookCopy(11, 1));
+		reopened.buyBooks(copies);
+		log.close();
+		log = new BookStoreLog(file);
+		BookStoreTestUtility.assertSameBooks(reopened,
+				new ConcurrentCertainBookStore(log));
+		log.close();
+	}
+
+	/**
+	 * Tests that the log of a ConcurrentCertainBookStore changed by several
+	 * threads at once, including purchases of books on flash sale, replays to
+	 * the same books
+	 */
+	@Test
+	public void testConcurrentChanges() throws Exception {
+		BookStoreLog log = new BookStoreLog(file, SyncPolicy.NONE,
+				BookStoreLog.DEFAULT_SYNC_INTERVAL_MILLIS);
+		final ConcurrentCertainBookStore store = new ConcurrentCertainBookStore(
+				log);
+		store.addBooks(BookStoreTestUtility.books());
+		store.startFlashSale(1);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 4; i++) {
+			final long seed = i;
+			threads.add(new Thread(new Runnable() {
+				public void run() {
+					try {
+						concurrentChanges(store, seed);
+					} catch (Throwable ex) {
+						failure.compareAndSet(null, ex);
+					}
+				}
+			}));
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+		store.endFlashSale(1);
+		log.close();
+
+		log = new BookStoreLog(file);
+		BookStoreTestUtility.assertSameBooks(store,
+				new ConcurrentCertainBookStore(log));
+		log.close();
+	}
+
+	/**
+	 * Makes random purchases, restocks, ratings and editor picks of the books
+	 * added by change, with few copies so that purchases miss
+	 */
+	private static void concurrentChanges(ConcurrentCertainBookStore store,
+			long seed) throws BookStoreException {
+		Random random = new Random(seed);
+		for (int i = 0; i < 2000; i++) {
+			int ISBN = 1 + random.nextInt(NUM_BOOKS);
+			int other = 1 + (ISBN % NUM_BOOKS);
+			Set<BookCopy> copies = new HashSet<BookCopy>();
+			switch (random.nextInt(4)) {
+			case 0:
+				copies.add(new BookCopy(ISBN, 1 + random.nextInt(3)));
+				if (random.nextBoolean()) {
+					copies.add(new BookCopy(other, 1 + random.nextInt(3)));
+				}
+				try {
+					store.buyBooks(copies);
+				} catch (BookStoreException ex) {
+					; // A sale miss, which is logged as well
+				}
+				break;
+			case 1:
+				copies.add(new BookCopy(ISBN, 1 + random.nextInt(4)));
+				store.addCopies(copies);
+				break;
+			case 2:
+				Set<BookRating> ratings = new HashSet<BookRating>();
+				ratings.add(new BookRating(ISBN, random.nextInt(6)));
+				store.rateBooks(ratings);
+				break;
+			default:
+				Set<BookEditorPick> picks = new HashSet<BookEditorPick>();
+				picks.add(new BookEditorPick(ISBN, random.nextBoolean()));
+				store.updateEditorPicks(picks);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Tests that a record only partly written before a crash is cut off and
+	 * that the log can be appended to afterwards
+	 */
+	@Test
+	public void testTornTail() throws BookStoreException, IOException {
+		BookStoreLog log = new BookStoreLog(file);
+		CertainBookStore store = new CertainBookStore(log);
+		BookStoreTestUtility.change(store);
+		log.close();
+		long length = file.length();
+
+		FileOutputStream out = new FileOutputStream(file, true);
+		out.write(new byte[] { 0, 0, 0, 40, 1, 2, 3, 4, 3, 0, 0 });
+		out.close();
+
+		log = new BookStoreLog(file);
+		assertTrue(file.length() == length);
+		CertainBookStore reopened = new CertainBookStore(log);
+		BookStoreTestUtility.assertSameBooks(store, reopened);
+
+		Set<BookCopy> copies = new HashSet<BookCopy>();
+		copies.add(new BookCopy(11, 1));
+		reopened.buyBooks(copies);
+		log.close();
+
+		log = new BookStoreLog(file);
+		Set<Integer> isbns = new HashSet<Integer>();
+		isbns.add(11);
+		assertTrue(new CertainBookStore(log).getBooksByISBN(isbns).get(0)
+				.getNumCopies() == 4);
+		log.close();
+	}
+
+	/**
+	 * Tests that a store restarted from a checkpoint and the tail of the log
+	 * has the books of the store that wrote them
+	 */
+	@Test
+	public void testCheckpoint() throws BookStoreException, IOException {
+		BookStoreLog log = new BookStoreLog(file);
+		CertainBookStore store = new CertainBookStore(snapshotFile, log);
+		BookStoreTestUtility.change(store);
+		long position = log.getPosition();
+		assertTrue(store.checkpoint(snapshotFile) == 8);
+
+		Set<BookCopy> copies = new HashSet<BookCopy>();
+		copies.add(new BookCopy(11, 2));
+		store.buyBooks(copies);
+		Set<BookRating> ratings = new HashSet<BookRating>();
+		ratings.add(new BookRating(12, 5));
+		store.rateBooks(ratings);
+		log.close();
+
+		BookStoreSnapshot snapshot = BookStoreSnapshot.open(snapshotFile);
+		assertTrue(snapshot.getSequence() == 8);
+		assertTrue(snapshot.getLogPosition() == position);
+		assertTrue(snapshot.getNumBooks() == NUM_BOOKS - 2);
+
+		log = new BookStoreLog(file);
+		CertainBookStore reopened = new CertainBookStore(snapshotFile, log);
+		BookStoreTestUtility.assertSameBooks(store, reopened);
+
+		// A second checkpoint replaces the first one
+		assertTrue(reopened.checkpoint(snapshotFile) == 10);
+		log.close();
+		log = new BookStoreLog(file);
+		BookStoreTestUtility.assertSameBooks(store, new CertainBookStore(
+				snapshotFile, log));
+		log.close();
+	}
+
+	/**
+	 * Tests that reading the log from the position of a record gives the
+	 * records after it, and that a position which does not start the next
+	 * record reads the log from the start instead
+	 */
+	@Test
+	public void testReadFromPosition() throws BookStoreException, IOException {
+		BookStoreLog log = new BookStoreLog(file);
+		CertainBookStore store = new CertainBookStore(log);
+		BookStoreTestUtility.change(store);
+		long sequence = log.getLastSequence();
+		long position = log.getPosition();
+		Set<BookCopy> copies = new HashSet<BookCopy>();
+		copies.add(new BookCopy(11, 2));
+		store.buyBooks(copies);
+		Set<BookRating> ratings = new HashSet<BookRating>();
+		ratings.add(new BookRating(12, 5));
+		store.rateBooks(ratings);
+		final List<Long> read = new ArrayList<Long>();
+		BookStoreLog.Visitor visitor = new BookStoreLog.Visitor() {
+			public void visit(long recordSequence, LogRecord record) {
+				read.add(recordSequence);
+			}
+		};
+		long[] positions = { position, position - 1, position + 1, 0,
+				Long.MAX_VALUE };
+		for (long from : positions) {
+			read.clear();
+			log.read(sequence, from, visitor);
+			assertTrue(read.size() == log.getLastSequence() - sequence);
+			assertTrue(read.get(0) == sequence + 1);
+		}
+
+		read.clear();
+		log.read(log.getLastSequence(), log.getPosition(), visitor);
+		assertTrue(read.isEmpty());
+		log.close();
+	}
+
+	/**
+	 * Makes numChanges random changes to the books with ISBNs 1 to numBooks,
+	 * which are removed and added again on the way
+	 */
+	private static void randomChanges(CertainBookStore store, int numBooks,
+			int numChanges, long seed) throws BookStoreException {
+		Random random = new Random(seed);
+		Set<StockBook> books = new HashSet<StockBook>();
+		for (int ISBN = 1; ISBN <= numBooks; ISBN++) {
+			books.add(new ImmutableStockBook(ISBN, "Title " + ISBN, "Author "
+					+ ISBN % 7, (float) ISBN, 10, 0, 0, 0, false));
+		}
+		store.addBooks(books);
+		for (int i = 0; i < numChanges; i++) {
+			if (i == numChanges / 2) {
+				store.removeAllBooks();
+				store.addBooks(books);
+			}
+			int ISBN = 1 + random.nextInt(numBooks);
+			int other = 1 + (ISBN % numBooks);
+			Set<BookCopy> copies = new HashSet<BookCopy>();
+			switch (random.nextInt(6)) {
+			case 0:
+				copies.add(new BookCopy(ISBN, 1 + random.nextInt(3)));
+				copies.add(new BookCopy(other, 1 + random.nextInt(3)));
+				try {
+					store.buyBooks(copies);
+				} catch (BookStoreException ex) {
+					; // A sale miss, which is logged as well
+				}
+				break;
+			case 1:
+				copies.add(new BookCopy(ISBN, 1 + random.nextInt(5)));
+				store.addCopies(copies);
+				break;
+			case 2:
+				Set<BookRating> ratings = new HashSet<BookRating>();
+				ratings.add(new BookRating(ISBN, random.nextInt(6)));
+				store.rateBooks(ratings);
+				break;
+			case 3:
+				Set<BookEditorPick> picks = new HashSet<BookEditorPick>();
+				picks.add(new BookEditorPick(ISBN, random.nextBoolean()));
+				store.updateEditorPicks(picks);
+				break;
+			default:
+				Set<Integer> removed = new HashSet<Integer>();
+				removed.add(ISBN);
+				store.removeBooks(removed);
+				Set<StockBook> added = new HashSet<StockBook>();
+				added.add(new ImmutableStockBook(ISBN, "Title " + ISBN,
+						"Author " + ISBN % 7, (float) ISBN, 1 + random
+								.nextInt(10), 0, 0, 0, random.nextBoolean()));
+				store.addBooks(added);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Tests that replaying the log in parallel by ISBN rebuilds the same books
+	 * as replaying it sequentially
+	 */
+	@Test
+	public void testParallelReplay() throws BookStoreException, IOException {
+		BookStoreLog log = new BookStoreLog(file, SyncPolicy.NONE,
+				BookStoreLog.DEFAULT_SYNC_INTERVAL_MILLIS);
+		CertainBookStore store = new CertainBookStore(log);
+		randomChanges(store, 50, 5000, 7);
+		log.close();
+
+		for (int replayThreads = 1; replayThreads <= 4; replayThreads *= 2) {
+			log = new BookStoreLog(file);
+			BookStoreTestUtility.assertSameBooks(store, new CertainBookStore(
+					null, log, replayThreads));
+			log.close();
+		}
+	}
+
+	/**
+	 * Tests that concurrent buyers with the GROUP policy are all durable and
+	 * share fsyncs
+	 */
+	@Test
+	public void testGroupCommit() throws BookStoreException, IOException,
+			InterruptedException {
+		final int numThreads = 8;
+		final int numBuys = 50;
+		BookStoreLog log = new BookStoreLog(file);
+		final CertainBookStore store = new CertainBookStore(log);
+		Set<StockBook> books = new HashSet<StockBook>();
+		for (int ISBN = 1; ISBN <= numThreads; ISBN++) {
+			books.add(new ImmutableStockBook(ISBN, "Title " + ISBN, "Author "
+					+ ISBN, (float) ISBN, numBuys, 0, 0, 0, false));
+		}
+		store.addBooks(books);
+		long syncsBefore = log.getNumSyncs();
+
+		final List<BookStoreException> failures = new ArrayList<BookStoreException>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 1; i <= numThreads; i++) {
+			final int ISBN = i;
+			threads.add(new Thread(new Runnable() {
+				public void run() {
+					Set<BookCopy> copies = new HashSet<BookCopy>();
+					copies.add(new BookCopy(ISBN, 1));
+					try {
+						for (int j = 0; j < numBuys; j++) {
+							store.buyBooks(copies);
+						}
+					} catch (BookStoreException ex) {
+						synchronized (failures) {
+							failures.add(ex);
+						}
+					}
+				}
+			}));
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertTrue(failures.isEmpty());
+		assertTrue(log.getDurableSequence() == log.getLastSequence());
+		assertTrue(log.getNumSyncs() - syncsBefore <= numThreads * numBuys);
+		log.close();
+
+		log = new BookStoreLog(file);
+		for (StockBook book : new CertainBookStore(log).getBooks()) {
+			assertTrue(book.getNumCopies() == 0);
+		}
+		log.close();
+	}
+}
@@ -0,0 +1,227 @@
+package com.acertainbookstore.client.tests;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.LSMBookStorage;
+import com.acertainbookstore.business.LSMCertainBookStore;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * Test class to test the LSMCertainBookStore and the flushing and compaction
+ * of its segments
+ *
+ */
+public class LSMBookStoreTest {
+
+	private static final int NUM_BOOKS = 2000;
+	private static final int MEMTABLE_LIMIT = 100;
+
+	private File directory;
+	private LSMCertainBookStore store;
+
+	@Before
+	public void setUpBefore() throws BookStoreException, IOException {
+		directory = File.createTempFile("bookstore", ".lsm");
+		directory.delete();
+		store = new LSMCertainBookStore(directory, MEMTABLE_LIMIT);
+		// Added in small sets, so the memtable is flushed many times
+		for (int from = 1; from <= NUM_BOOKS; from += 50) {
+			Set<StockBook> books = new HashSet<StockBook>();
+			for (int ISBN = from; ISBN < from + 50; ISBN++) {
+				books.add(new ImmutableStockBook(ISBN, "Title " + ISBN,
+						"Author " + ISBN, (float) ISBN, 10, 0, 0, 0,
+						ISBN % 100 == 0));
+			}
+			store.addBooks(books);
+		}
+		store.getStorage().awaitBackgroundWork();
+	}
+
+	@After
+	public void tearDownAfter() throws BookStoreException {
+		store.close();
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	private StockBook getBook(int ISBN) throws BookStoreException {
+		Set<Integer> isbns = new HashSet<Integer>();
+		isbns.add(ISBN);
+		return store.getBooksByISBN(isbns).get(0);
+	}
+
+	/**
+	 * Tests that the books survive being flushed to segments and compacted
+	 */
+	@Test
+	public void testFlushAndCompaction() throws BookStoreException {
+		LSMBookStorage storage = store.getStorage();
+		assertTrue(storage.getNumFlushes() > 0);
+		assertTrue(storage.getNumCompactions() > 0);
+		assertTrue(storage.getMemtableSize() < NUM_BOOKS);
+
+		List<StockBook> books = store.getBooks();
+		assertTrue(books.size() == NUM_BOOKS);
+		int expectedISBN = 1;
+		for (StockBook book : books) {
+			// A scan returns the books in ISBN order
+			assertTrue(book.getISBN() == expectedISBN++);
+			assertTrue(book.getTitle().equals("Title " + book.getISBN()));
+			assertTrue(book.getNumCopies() == 10);
+		}
+		assertTrue(store.getEditorPicks(NUM_BOOKS).size() == NUM_BOOKS / 100);
+	}
+
+	/**
+	 * Tests that changes to books in the segments shadow the old versions
+	 */
+	@Test
+	public void testUpdates() throws BookStoreException {
+		for (int ISBN = 1; ISBN <= NUM_BOOKS; ISBN += 7) {
+			Set<BookCopy> copies = new HashSet<BookCopy>();
+			copies.add(new BookCopy(ISBN, 3));
+			store.buyBooks(copies);
+			Set<BookRating> ratings = new HashSet<BookRating>();
+			ratings.add(new BookRating(ISBN, 4));
+			store.rateBooks(ratings);
+		}
+		Set<BookCopy> copies = new HashSet<BookCopy>();
+		copies.add(new BookCopy(2, 11));
+		try {
+			store.buyBooks(copies);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+		store.getStorage().awaitBackgroundWork();
+
+		for (int ISBN = 1; ISBN <= NUM_BOOKS; ISBN++) {
+			StockBook book = getBook(ISBN);
+			boolean changed = (ISBN - 1) % 7 == 0;
+			assertTrue(book.getNumCopies() == (changed ? 7 : 10));
+			assertTrue(book.getTimesRated() == (changed ? 1 : 0));
+			assertTrue(book.getTotalRating() == (changed ? 4 : 0));
+		}
+		assertTrue(getBook(2).getSaleMisses() == 1);
+		assertTrue(store.getBooksInDemand().size() == 1);
+		assertTrue(store.getTopRatedBooks(3).size() == 3);
+	}
+
+	/**
+	 * Tests that removed books stay removed through flushes and compactions,
+	 * and can be added again
+	 */
+	@Test
+	public void testTombstones() throws BookStoreException {
+		Set<Integer> removed = new HashSet<Integer>();
+		for (int ISBN = 2; ISBN <= NUM_BOOKS; ISBN += 2) {
+			removed.add(ISBN);
+		}
+		store.removeBooks(removed);
+		store.getStorage().awaitBackgroundWork();
+
+		assertTrue(store.getBooks().size() == NUM_BOOKS / 2);
+		try {
+			getBook(2);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+
+		Set<StockBook> books = new HashSet<StockBook>();
+		books.add(new ImmutableStockBook(2, "New title", "New author", 1, 1,
+				0, 0, 0, false));
+		store.addBooks(books);
+		assertTrue(getBook(2).getTitle().equals("New title"));
+		assertTrue(store.getBooks().size() == NUM_BOOKS / 2 + 1);
+
+		store.removeAllBooks();
+		assertTrue(store.getBooks().isEmpty());
+		store.addBooks(books);
+		assertTrue(store.getBooks().size() == 1);
+	}
+
+	/**
+	 * Tests that the bloom filters keep lookups of missing ISBNs away from the
+	 * disk and that a book in a segment costs about one read
+	 */
+	@Test
+	public void testBloomFilters() throws BookStoreException {
+		LSMBookStorage storage = store.getStorage();
+		long diskReads = storage.getNumDiskReads();
+		int numMissing = 1000;
+		for (int ISBN = NUM_BOOKS + 1; ISBN <= NUM_BOOKS + numMissing; ISBN++) {
+			try {
+				getBook(ISBN);
+				fail();
+			} catch (BookStoreException ex) {
+				;
+			}
+		}
+		// About 1% false positives per segment
+		assertTrue(storage.getNumDiskReads() - diskReads < numMissing
+				* storage.getNumSegments() / 20);
+
+		diskReads = storage.getNumDiskReads();
+		for (int ISBN = 1; ISBN <= 100; ISBN++) {
+			getBook(ISBN);
+		}
+		assertTrue(storage.getNumDiskReads() - diskReads <= 100 * 2);
+	}
+
+	/**
+	 * Tests that a failed flush fails the next update without changing
+	 * anything, and that the flush is retried once the disk is back
+	 */
+	@Test
+	public void testBackgroundFailure() throws BookStoreException {
+		File moved = new File(directory.getPath() + ".moved");
+		assertTrue(directory.renameTo(moved));
+		Set<BookCopy> copies = new HashSet<BookCopy>();
+		for (int ISBN = 1; ISBN <= MEMTABLE_LIMIT; ISBN++) {
+			copies.add(new BookCopy(ISBN, 1));
+		}
+		store.addCopies(copies);
+		store.getStorage().awaitBackgroundWork();
+
+		Set<BookCopy> more = new HashSet<BookCopy>();
+		more.add(new BookCopy(NUM_BOOKS, 1));
+		try {
+			store.addCopies(more);
+			fail();
+		} catch (BookStoreException ex) {
+			assertTrue(ex.getCause() instanceof IOException);
+		}
+		assertTrue(getBook(NUM_BOOKS).getNumCopies() == 10);
+
+		assertTrue(moved.renameTo(directory));
+		long numFlushes = store.getStorage().getNumFlushes();
+		store.addCopies(more);
+		store.getStorage().awaitBackgroundWork();
+		assertTrue(store.getStorage().getNumFlushes() > numFlushes);
+		for (int ISBN = 1; ISBN <= MEMTABLE_LIMIT; ISBN++) {
+			assertTrue(getBook(ISBN).getNumCopies() == 11);
+		}
+		assertTrue(getBook(NUM_BOOKS).getNumCopies() == 11);
+	}
+}
@@ -0,0 +1,248 @@
+package com.acertainbookstore.client.tests;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.eclipse.jetty.server.Server;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.acertainbookstore.business.Book;
+import com.acertainbookstore.business.BookStoreLog;
+import com.acertainbookstore.business.CertainBookStore;
+import com.acertainbookstore.client.BookStoreHTTPProxy;
+import com.acertainbookstore.client.StockManagerHTTPProxy;
+import com.acertainbookstore.server.BookStoreHTTPMessageHandler;
+import com.acertainbookstore.server.LogReceiver;
+import com.acertainbookstore.server.LogShipper;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * Test class to test that replicas follow the log of a primary
+ * CertainBookStore, and that the proxies read from them within a staleness
+ * bound
+ *
+ */
+public class ReplicationTest {
+
+	private static final int NUM_BOOKS = BookStoreTestUtility.NUM_BOOKS;
+	private static final long HEARTBEAT_MILLIS = 10;
+	private static final long TIMEOUT_MILLIS = 10000;
+
+	private File file;
+	private BookStoreLog log;
+	private CertainBookStore primary;
+	private LogShipper shipper;
+	private List<LogReceiver> replicas = new ArrayList<LogReceiver>();
+	private List<Server> servers = new ArrayList<Server>();
+
+	@Before
+	public void setUpBefore() throws BookStoreException, IOException {
+		file = File.createTempFile("bookstore", ".log");
+		log = new BookStoreLog(file);
+		primary = new CertainBookStore(log);
+		shipper = new LogShipper(log, 0, HEARTBEAT_MILLIS);
+	}
+
+	@After
+	public void tearDownAfter() throws Exception {
+		for (Server server : servers) {
+			server.stop();
+		}
+		for (LogReceiver replica : replicas) {
+			replica.close();
+		}
+		shipper.close();
+		log.close();
+		file.delete();
+	}
+
+	private LogReceiver startReplica() {
+		LogReceiver replica = new LogReceiver(new CertainBookStore(),
+				"localhost", shipper.getPort(), 10);
+		replicas.add(replica);
+		return replica;
+	}
+
+	private void awaitReplica(LogReceiver replica)
+			throws InterruptedException, BookStoreException {
+		assertTrue(replica.awaitSequence(log.getCommittedSequence(),
+				TIMEOUT_MILLIS));
+	}
+
+	/**
+	 * Starts an HTTP server for the handler and returns its address
+	 */
+	private String startServer(BookStoreHTTPMessageHandler handler)
+			throws Exception {
+		Server server = new Server(0);
+		server.setHandler(handler);
+		server.start();
+		servers.add(server);
+		return "http://localhost:" + server.getConnectors()[0].getLocalPort();
+	}
+
+	/**
+	 * Tests that replicas apply the changes of the primary, including a
+	 * replica that connects after the changes were made
+	 */
+	@Test
+	public void testReplicasFollowPrimary() throws BookStoreException,
+			InterruptedException {
+		LogReceiver early = startReplica();
+		BookStoreTestUtility.change(primary);
+		awaitReplica(early);
+		BookStoreTestUtility.assertSameBooks(primary, early.getBookStore());
+
+		LogReceiver late = startReplica();
+		awaitReplica(late);
+		BookStoreTestUtility.assertSameBooks(primary, late.getBookStore());
+		assertTrue(shipper.getNumReplicas() == 2);
+
+		primary.removeAllBooks();
+		primary.addBooks(BookStoreTestUtility.books());
+		awaitReplica(early);
+		awaitReplica(late);
+		BookStoreTestUtility.assertSameBooks(primary, early.getBookStore());
+		BookStoreTestUtility.assertSameBooks(primary, late.getBookStore());
+	}
+
+	/**
+	 * Tests that a replica is fresh while the primary reaches it, and grows
+	 * stale when the primary is gone
+	 */
+	@Test
+	public void testStaleness() throws BookStoreException,
+			InterruptedException {
+		LogReceiver replica = startReplica();
+		BookStoreTestUtility.change(primary);
+		awaitReplica(replica);
+		// Heartbeats keep an idle replica fresh
+		Thread.sleep(20 * HEARTBEAT_MILLIS);
+		assertTrue(replica.getStalenessMillis() < 10 * HEARTBEAT_MILLIS);
+
+		shipper.close();
+		Thread.sleep(20 * HEARTBEAT_MILLIS);
+		assertTrue(replica.getStalenessMillis() >= 20 * HEARTBEAT_MILLIS);
+		assertTrue(!replica.isConnected());
+	}
+
+	/**
+	 * Tests that a replica whose books do not match the primary stops with
+	 * the failure instead of drifting further
+	 */
+	@Test
+	public void testDivergedReplica() throws BookStoreException,
+			InterruptedException {
+		CertainBookStore diverged = new CertainBookStore();
+		diverged.addBooks(BookStoreTestUtility.books());
+		LogReceiver replica = new LogReceiver(diverged, "localhost",
+				shipper.getPort(), 10);
+		replicas.add(replica);
+		primary.addBooks(BookStoreTestUtility.books());
+		try {
+			awaitReplica(replica);
+			fail();
+		} catch (BookStoreException ex) {
+			assertTrue(ex.getCause() == replica.getFailure());
+		}
+		assertTrue(replica.getFailure() != null);
+		assertTrue(!replica.isConnected());
+		assertTrue(replica.getStalenessMillis() == Long.MAX_VALUE);
+		assertTrue(replica.getAppliedSequence() == 0);
+	}
+
+	/**
+	 * Tests that the proxies read from the replicas, that the replicas refuse
+	 * changes, and that reads fall back to the primary when the replicas are
+	 * too stale. Like the other tests over HTTP it only runs when localtest
+	 * is false.
+	 */
+	@Test
+	public void testProxyRouting() throws Exception {
+		String localTestProperty = System
+				.getProperty(BookStoreConstants.PROPERTY_KEY_LOCAL_TEST);
+		assumeFalse(localTestProperty == null
+				|| Boolean.parseBoolean(localTestProperty));
+		String primaryAddress = startServer(new BookStoreHTTPMessageHandler(
+				primary));
+		List<String> replicaAddresses = new ArrayList<String>();
+		List<String> replicaStockAddresses = new ArrayList<String>();
+		for (int i = 0; i < 2; i++) {
+			String address = startServer(new BookStoreHTTPMessageHandler(
+					startReplica()));
+			replicaAddresses.add(address);
+			replicaStockAddresses.add(address + "/stock");
+		}
+		long maxStalenessMillis = 20 * HEARTBEAT_MILLIS;
+		BookStoreHTTPProxy client = new BookStoreHTTPProxy(primaryAddress,
+				replicaAddresses, maxStalenessMillis);
+		StockManagerHTTPProxy storeManager = new StockManagerHTTPProxy(
+				primaryAddress + "/stock", replicaStockAddresses,
+				maxStalenessMillis);
+		StockManagerHTTPProxy replicaManager = new StockManagerHTTPProxy(
+				replicaStockAddresses.get(0));
+		try {
+			primary.addBooks(BookStoreTestUtility.books());
+			for (LogReceiver replica : replicas) {
+				awaitReplica(replica);
+			}
+			Thread.sleep(2 * HEARTBEAT_MILLIS);
+
+			Set<Integer> isbns = new HashSet<Integer>();
+			isbns.add(1);
+			isbns.add(2);
+			for (int i = 0; i < 4; i++) {
+				List<Book> books = client.getBooks(isbns);
+				assertTrue(books.size() == 2);
+				assertTrue(storeManager.getBooks().size() == NUM_BOOKS);
+				assertTrue(storeManager.getBooksByISBN(isbns).size() == 2);
+				assertTrue(storeManager.getBooksInDemand().isEmpty());
+			}
+			assertTrue(client.getReplicaRouter().getNumReplicaReads() == 4);
+			assertTrue(client.getReplicaRouter().getNumFallbacks() == 0);
+			assertTrue(storeManager.getReplicaRouter().getNumReplicaReads() == 12);
+			// A read that fails on the replica is not retried on the primary
+			isbns.add(NUM_BOOKS + 1);
+			try {
+				client.getBooks(isbns);
+				fail();
+			} catch (BookStoreException ex) {
+				;
+			}
+			assertTrue(client.getReplicaRouter().getNumFallbacks() == 0);
+
+			try {
+				replicaManager.addBooks(BookStoreTestUtility.books());
+				fail();
+			} catch (BookStoreException ex) {
+				assertTrue(ex.getMessage().equals(
+						BookStoreConstants.READ_ONLY));
+			}
+
+			// Without the primary the replicas grow stale
+			shipper.close();
+			Thread.sleep(2 * maxStalenessMillis);
+			assertTrue(storeManager.getBooks().size() == NUM_BOOKS);
+			isbns.remove(NUM_BOOKS + 1);
+			assertTrue(client.getBooks(isbns).size() == 2);
+			assertTrue(client.getEditorPicks(1).isEmpty());
+			assertTrue(client.getReplicaRouter().getNumFallbacks() == 2);
+			assertTrue(storeManager.getReplicaRouter().getNumFallbacks() == 1);
+		} finally {
+			client.stop();
+			storeManager.stop();
+			replicaManager.stop();
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package com.acertainbookstore.client.tests;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.ShardedCertainBookStore;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * Test class to test the ShardedCertainBookStore, in particular operations
+ * that span several shards
+ *
+ */
+public class ShardedBookStoreTest {
+
+	private static final int NUM_SHARDS = 4;
+	// Consecutive ISBNs land on different shards
+	private static final int TEST_ISBN1 = BookStoreTestUtility.TEST_ISBN1;
+	private static final int TEST_ISBN2 = BookStoreTestUtility.TEST_ISBN2;
+	private static final int NUM_COPIES = BookStoreTestUtility.NUM_COPIES;
+
+	private ShardedCertainBookStore store;
+
+	@Before
+	public void setUpBefore() throws BookStoreException {
+		store = new ShardedCertainBookStore(NUM_SHARDS);
+		store.addBooks(BookStoreTestUtility.twoTitles());
+	}
+
+	@After
+	public void tearDown() {
+		store.shutdown();
+	}
+
+	/**
+	 * Tests that adding books on several shards is all-or-nothing when one of
+	 * them is a duplicate
+	 */
+	@Test
+	public void testAddBooksAcrossShardsIsAllOrNothing()
+			throws BookStoreException {
+		Set<StockBook> books = new HashSet<StockBook>();
+		books.add(new ImmutableStockBook(TEST_ISBN2 + 1, "New Book",
+				"New Author", (float) 10, 5, 0, 0, 0, false));
+		books.add(new ImmutableStockBook(TEST_ISBN1, "Harry Potter and JUnit",
+				"JK Unit", (float) 10, 5, 0, 0, 0, false));
+		try {
+			store.addBooks(books);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+		assertTrue(store.getBooks().size() == 2);
+	}
+
+	/**
+	 * Tests that a purchase that misses on one shard leaves the other shards
+	 * unchanged and puts the missed book in demand
+	 */
+	@Test
+	public void testSaleMissAcrossShards() throws BookStoreException {
+		Set<BookCopy> booksToBuy = new HashSet<BookCopy>();
+		booksToBuy.add(new BookCopy(TEST_ISBN1, 1));
+		booksToBuy.add(new BookCopy(TEST_ISBN2, NUM_COPIES));
+		try {
+			store.buyBooks(booksToBuy);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+
+		Set<Integer> isbns = new HashSet<Integer>();
+		isbns.add(TEST_ISBN1);
+		assertTrue(store.getBooksByISBN(isbns).get(0).getNumCopies() == NUM_COPIES);
+		List<StockBook> inDemand = store.getBooksInDemand();
+		assertTrue(inDemand.size() == 1);
+		assertTrue(inDemand.get(0).getISBN() == TEST_ISBN2);
+	}
+
+	/**
+	 * Tests that purchases of titles on different shards stay all-or-nothing
+	 * under concurrent buyers
+	 */
+	@Test
+	public void testMultiShardPurchaseIsAllOrNothing() throws Exception {
+		Set<BookCopy> booksToBuy = new HashSet<BookCopy>();
+		booksToBuy.add(new BookCopy(TEST_ISBN1, 1));
+		booksToBuy.add(new BookCopy(TEST_ISBN2, 1));
+
+		int purchases = BookStoreTestUtility.buyUntilSoldOut(store,
+				booksToBuy);
+
+		for (StockBook book : store.getBooks()) {
+			if (book.getISBN() == TEST_ISBN1)
+				assertTrue(book.getNumCopies() == NUM_COPIES - purchases);
+			else
+				assertTrue(book.getNumCopies() == NUM_COPIES / 2 - purchases);
+		}
+		assertTrue(purchases == NUM_COPIES / 2);
+	}
+}
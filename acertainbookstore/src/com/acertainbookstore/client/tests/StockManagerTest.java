@@ -436,6 +436,34 @@ public class StockManagerTest {
 		assertTrue(booksInStoreList.size() == 0);
 	}
 
+	/**
+	 * Tests that a book is in demand after a sale miss and is no longer in
+	 * demand once it is restocked
+	 */
+	@Test
+	public void testGetBooksInDemand() throws BookStoreException {
+		assertTrue(storeManager.getBooksInDemand().isEmpty());
+
+		Set<BookCopy> booksToBuy = new HashSet<BookCopy>();
+		booksToBuy.add(new BookCopy(TEST_ISBN, NUM_COPIES + 1));
+		try {
+			client.buyBooks(booksToBuy);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+
+		List<StockBook> booksInDemand = storeManager.getBooksInDemand();
+		assertTrue(booksInDemand.size() == 1);
+		assertTrue(booksInDemand.get(0).getISBN() == TEST_ISBN);
+		assertTrue(booksInDemand.get(0).getSaleMisses() == 1);
+
+		Set<BookCopy> booksToAdd = new HashSet<BookCopy>();
+		booksToAdd.add(new BookCopy(TEST_ISBN, 1));
+		storeManager.addCopies(booksToAdd);
+		assertTrue(storeManager.getBooksInDemand().isEmpty());
+	}
+
 	@AfterClass
 	public static void tearDownAfterClass() throws BookStoreException {
 		storeManager.removeAllBooks();
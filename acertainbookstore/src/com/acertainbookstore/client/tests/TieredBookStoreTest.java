@@ -0,0 +1,302 @@
+package com.acertainbookstore.client.tests;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.business.BookTiering;
+import com.acertainbookstore.business.ConcurrentCertainBookStore;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * Test class to test the paging of books out of the heap of the
+ * ConcurrentCertainBookStore and back
+ *
+ */
+public class TieredBookStoreTest {
+
+	private static final int NUM_BOOKS = 1000;
+	private static final int MAX_HOT_BOOKS = 100;
+
+	private File coldFile;
+	private ConcurrentCertainBookStore store;
+
+	@Before
+	public void setUpBefore() throws BookStoreException, IOException {
+		coldFile = File.createTempFile("bookstore", ".cold");
+		store = new ConcurrentCertainBookStore(coldFile, MAX_HOT_BOOKS);
+		Set<StockBook> books = new HashSet<StockBook>();
+		for (int ISBN = 1; ISBN <= NUM_BOOKS; ISBN++) {
+			books.add(new ImmutableStockBook(ISBN, "Title " + ISBN, "Author "
+					+ ISBN, (float) ISBN, 10, 0, 0, 0, false));
+		}
+		store.addBooks(books);
+		evict();
+	}
+
+	@After
+	public void tearDownAfter() {
+		store.close();
+		coldFile.delete();
+	}
+
+	/**
+	 * Makes eviction passes until no more books need to be paged out
+	 */
+	private void evict() throws BookStoreException {
+		while (store.evictColdBooks() > 0) {
+			;
+		}
+	}
+
+	private StockBook getBook(int ISBN) throws BookStoreException {
+		Set<Integer> isbns = new HashSet<Integer>();
+		isbns.add(ISBN);
+		return store.getBooksByISBN(isbns).get(0);
+	}
+
+	/**
+	 * Tests that the books are paged out down to the limit and still read
+	 * back the same
+	 */
+	@Test
+	public void testEvictionAndFaults() throws BookStoreException {
+		assertTrue(store.getNumHotBooks() <= MAX_HOT_BOOKS);
+		BookTiering.Statistics statistics = store.getTieringStatistics();
+		assertTrue(statistics.getColdBooks() >= NUM_BOOKS - MAX_HOT_BOOKS);
+		assertTrue(statistics.getEvictions() >= NUM_BOOKS - MAX_HOT_BOOKS);
+		// Only the books on the heap keep their locks
+		assertTrue(store.getNumBookLocks() == store.getNumHotBooks());
+
+		List<StockBook> books = store.getBooks();
+		assertTrue(books.size() == NUM_BOOKS);
+		Set<Integer> isbns = new HashSet<Integer>();
+		for (StockBook book : books) {
+			assertTrue(book.getTitle().equals("Title " + book.getISBN()));
+			assertTrue(book.getNumCopies() == 10);
+			isbns.add(book.getISBN());
+		}
+		assertTrue(isbns.size() == NUM_BOOKS);
+
+		for (int ISBN = 1; ISBN <= NUM_BOOKS; ISBN++) {
+			StockBook book = getBook(ISBN);
+			assertTrue(book.getAuthor().equals("Author " + ISBN));
+			assertTrue(book.getPrice() == (float) ISBN);
+		}
+		statistics = store.getTieringStatistics();
+		assertTrue(statistics.getFaults() >= NUM_BOOKS - MAX_HOT_BOOKS);
+		assertTrue(statistics.getFaultNanos() > 0);
+		evict();
+		assertTrue(store.getNumHotBooks() <= MAX_HOT_BOOKS);
+		assertTrue(store.getNumBookLocks() == store.getNumHotBooks());
+	}
+
+	/**
+	 * Tests that the books that cannot be written to the cold file stay on
+	 * the heap with their locks, and that the eviction reports the failure
+	 */
+	@Test
+	public void testEvictionFailure() throws BookStoreException {
+		// Up to the limit, so no background eviction is started
+		for (int ISBN = 1; store.getNumHotBooks() < MAX_HOT_BOOKS; ISBN++) {
+			getBook(ISBN);
+		}
+		// Closing the store closes the cold file under it
+		store.close();
+		int numHotBooks = store.getNumHotBooks();
+		boolean failed = false;
+		// A few passes cool every book enough to be paged out
+		for (int pass = 0; pass < 10 && !failed; pass++) {
+			try {
+				store.evictColdBooks();
+			} catch (BookStoreException ex) {
+				assertTrue(ex.getCause() instanceof IOException);
+				failed = true;
+			}
+		}
+		assertTrue(failed);
+		assertTrue(store.getNumHotBooks() == numHotBooks);
+		assertTrue(store.getNumBookLocks() == numHotBooks);
+		assertTrue(getBook(1).getNumCopies() == 10);
+	}
+
+	/**
+	 * Tests that getBooks sees every book while other threads fault paged out
+	 * books in and page them out again
+	 */
+	@Test
+	public void testGetBooksDuringFaults() throws BookStoreException,
+			InterruptedException {
+		final AtomicBoolean done = new AtomicBoolean(false);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread[] faulters = new Thread[2];
+		for (int i = 0; i < faulters.length; i++) {
+			final int first = 1 + i;
+			faulters[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						int ISBN = first;
+						while (!done.get()) {
+							getBook(ISBN);
+							ISBN = 1 + (ISBN + 6) % NUM_BOOKS;
+							if (ISBN % 50 == 0) {
+								store.evictColdBooks();
+							}
+						}
+					} catch (Throwable ex) {
+						failure.compareAndSet(null, ex);
+					}
+				}
+			});
+			faulters[i].start();
+		}
+		try {
+			for (int i = 0; i < 200; i++) {
+				assertTrue(store.getBooks().size() == NUM_BOOKS);
+			}
+		} finally {
+			done.set(true);
+			for (Thread faulter : faulters) {
+				faulter.join();
+			}
+		}
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+	}
+
+	/**
+	 * Tests that changes to paged out books fault them in and survive being
+	 * paged out again, and that paged out books can be removed
+	 */
+	@Test
+	public void testChanges() throws BookStoreException {
+		for (int ISBN = 1; ISBN <= NUM_BOOKS; ISBN += 3) {
+			Set<BookCopy> copies = new HashSet<BookCopy>();
+			copies.add(new BookCopy(ISBN, 4));
+			store.buyBooks(copies);
+		}
+		Set<BookCopy> copies = new HashSet<BookCopy>();
+		copies.add(new BookCopy(NUM_BOOKS, 5));
+		store.addCopies(copies);
+		evict();
+		evict();
+		for (int ISBN = 1; ISBN <= NUM_BOOKS; ISBN++) {
+			int expected = ((ISBN - 1) % 3 == 0) ? 6 : 10;
+			if (ISBN == NUM_BOOKS) {
+				expected += 5;
+			}
+			assertTrue(getBook(ISBN).getNumCopies() == expected);
+		}
+
+		evict();
+		Set<StockBook> books = new HashSet<StockBook>();
+		books.add(new ImmutableStockBook(2, "Title", "Author", 1, 1, 0, 0, 0,
+				false));
+		try {
+			store.addBooks(books);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+		Set<Integer> removed = new HashSet<Integer>();
+		for (int ISBN = 2; ISBN <= NUM_BOOKS; ISBN += 2) {
+			removed.add(ISBN);
+		}
+		store.removeBooks(removed);
+		assertTrue(store.getBooks().size() == NUM_BOOKS / 2);
+		store.addBooks(books);
+		assertTrue(getBook(2).getTitle().equals("Title"));
+
+		store.removeAllBooks();
+		assertTrue(store.getBooks().isEmpty());
+		assertTrue(store.getTieringStatistics().getColdBooks() == 0);
+	}
+
+	/**
+	 * Tests that the books that are used stay on the heap while the others
+	 * are paged out
+	 */
+	@Test
+	public void testWorkingSet() throws BookStoreException {
+		Set<Integer> workingSet = new HashSet<Integer>();
+		for (int ISBN = 1; ISBN <= MAX_HOT_BOOKS / 2; ISBN++) {
+			workingSet.add(ISBN);
+		}
+		for (int round = 0; round < 5; round++) {
+			// Some cold books are used once in between the working set
+			for (int ISBN = 500 + round * 50; ISBN < 550 + round * 50; ISBN++) {
+				store.getBooks(workingSet);
+				getBook(ISBN);
+			}
+			store.getBooks(workingSet);
+			evict();
+		}
+
+		long faults = store.getTieringStatistics().getFaults();
+		long hits = store.getTieringStatistics().getHits();
+		store.getBooks(workingSet);
+		store.getBooksByISBN(workingSet);
+		BookTiering.Statistics statistics = store.getTieringStatistics();
+		assertTrue(statistics.getFaults() == faults);
+		assertTrue(statistics.getHits() - hits == 2 * workingSet.size());
+		assertTrue(statistics.getHitRatio() > 0 && statistics.getHitRatio() < 1);
+	}
+
+	/**
+	 * Tests that the books the indexes refer to are never paged out
+	 */
+	@Test
+	public void testPinnedBooks() throws BookStoreException {
+		Set<BookEditorPick> picks = new HashSet<BookEditorPick>();
+		Set<BookRating> ratings = new HashSet<BookRating>();
+		for (int ISBN = 1; ISBN <= NUM_BOOKS; ISBN += 100) {
+			picks.add(new BookEditorPick(ISBN, true));
+			ratings.add(new BookRating(ISBN + 1, 5));
+		}
+		store.updateEditorPicks(picks);
+		store.rateBooks(ratings);
+		Set<BookCopy> copies = new HashSet<BookCopy>();
+		copies.add(new BookCopy(3, 11));
+		try {
+			store.buyBooks(copies);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+		for (int i = 0; i <= 4; i++) {
+			// Cold books are faulted in and paged out again around them
+			for (int ISBN = 200 + i * 100; ISBN < 300 + i * 100; ISBN++) {
+				getBook(ISBN);
+			}
+			evict();
+		}
+
+		long faults = store.getTieringStatistics().getFaults();
+		assertTrue(store.getEditorPicks(NUM_BOOKS).size() == NUM_BOOKS / 100);
+		assertTrue(store.getTopRatedBooks(NUM_BOOKS).size() == NUM_BOOKS / 100);
+		assertTrue(store.getBooksInDemand().size() == 1);
+		for (int ISBN = 1; ISBN <= NUM_BOOKS; ISBN += 100) {
+			getBook(ISBN);
+			getBook(ISBN + 1);
+		}
+		getBook(3);
+		assertTrue(store.getTieringStatistics().getFaults() == faults);
+	}
+}
@@ -0,0 +1,132 @@
+package com.acertainbookstore.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.xml.stream.XMLStreamException;
+
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreUtility;
+import com.thoughtworks.xstream.XStreamException;
+
+/**
+ * BookImporter adds the books of a stream written with
+ * BookStoreUtility.createXMLObjectOutputStream to a store. The books are read
+ * one at a time and added in batches, so the memory used does not depend on
+ * the number of books. Each batch is added on its own: if one fails, the
+ * batches before it stay in the store and the rest of the stream is not read.
+ */
+public class BookImporter {
+	private final StockManager stockManager;
+	private final int batchSize;
+
+	/**
+	 * Creates an importer that adds the books to stockManager, batchSize
+	 * books at a time.
+	 *
+	 * @param stockManager
+	 * @param batchSize
+	 */
+	public BookImporter(StockManager stockManager, int batchSize) {
+		this.stockManager = stockManager;
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Adds the books streamed from in and returns the number of books added.
+	 * A failure is reported as a BookStoreException whose message starts with
+	 * the number of books added before it. A stream that is not well-formed,
+	 * or holds something else than books, fails with IMPORT_MALFORMED, and one
+	 * that could not be read to the end with IMPORT_READ_FAILED. A book whose
+	 * ISBN comes twice within a batch fails like a duplicate of a book in the
+	 * store.
+	 *
+	 * @param in
+	 * @return
+	 * @throws BookStoreException
+	 */
+	public int importBooks(InputStream in) throws BookStoreException {
+		Set<StockBook> batch = new HashSet<StockBook>();
+		Set<Integer> batchISBNs = new HashSet<Integer>();
+		int imported = 0;
+		ObjectInputStream objects = null;
+		try {
+			objects = BookStoreUtility.createXMLObjectInputStream(in);
+			while (true) {
+				Object object;
+				try {
+					object = objects.readObject();
+				} catch (EOFException ex) {
+					break;
+				}
+				if (!(object instanceof StockBook)) {
+					throw new BookStoreException(
+							BookStoreConstants.IMPORT_MALFORMED);
+				}
+				StockBook book = (StockBook) object;
+				if (!batchISBNs.add(book.getISBN())) {
+					throw new BookStoreException(BookStoreConstants.ISBN
+							+ book.getISBN() + BookStoreConstants.DUPLICATED);
+				}
+				batch.add(book);
+				if (batch.size() == batchSize) {
+					stockManager.addBooks(batch);
+					imported += batch.size();
+					batch.clear();
+					batchISBNs.clear();
+				}
+			}
+			if (!batch.isEmpty()) {
+				stockManager.addBooks(batch);
+				imported += batch.size();
+			}
+			return imported;
+		} catch (BookStoreException ex) {
+			throw new BookStoreException(imported + BookStoreConstants.IMPORTED
+					+ ex.getMessage(), ex);
+		} catch (ClassNotFoundException ex) {
+			throw new BookStoreException(imported + BookStoreConstants.IMPORTED
+					+ BookStoreConstants.IMPORT_MALFORMED, ex);
+		} catch (XStreamException ex) {
+			// The parser wraps the failures to read the stream as well
+			throw new BookStoreException(imported + BookStoreConstants.IMPORTED
+					+ (isReadFailure(ex) ? BookStoreConstants.IMPORT_READ_FAILED
+							: BookStoreConstants.IMPORT_MALFORMED), ex);
+		} catch (IOException ex) {
+			throw new BookStoreException(imported + BookStoreConstants.IMPORTED
+					+ BookStoreConstants.IMPORT_READ_FAILED, ex);
+		} finally {
+			if (objects != null) {
+				try {
+					objects.close();
+				} catch (IOException ex) {
+					; // Nothing more is read from it
+				}
+			}
+		}
+	}
+
+	private static boolean isReadFailure(Throwable ex) {
+		Throwable cause = ex;
+		while (cause != null) {
+			if (cause instanceof IOException) {
+				return true;
+			}
+			// The StAX parser keeps the failure as the nested exception
+			if (cause instanceof XMLStreamException
+					&& cause.getCause() == null) {
+				cause = ((XMLStreamException) cause).getNestedException();
+			} else {
+				cause = cause.getCause();
+			}
+		}
+		return false;
+	}
+}
@@ -16,6 +16,7 @@ import org.eclipse.jetty.server.handler.AbstractHandler;
 
 import com.acertainbookstore.business.BookCopy;
 import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookRating;
 import com.acertainbookstore.business.CertainBookStore;
 import com.acertainbookstore.business.StockBook;
 import com.acertainbookstore.utils.BookStoreConstants;
@@ -33,11 +34,25 @@ import com.acertainbookstore.utils.BookStoreUtility;
  */
 public class BookStoreHTTPMessageHandler extends AbstractHandler {
 	private CertainBookStore myBookStore = null;
+	// Null unless the store is a replica
+	private LogReceiver replica = null;
 
 	public BookStoreHTTPMessageHandler(CertainBookStore bookStore) {
 		myBookStore = bookStore;
 	}
 
+	/**
+	 * Creates the handler of a replica: the requests that change the books
+	 * are refused, and reads that carry a MAX_STALENESS_PARAM are refused
+	 * while the replica is staler than that.
+	 * 
+	 * @param replica
+	 */
+	public BookStoreHTTPMessageHandler(LogReceiver replica) {
+		myBookStore = replica.getBookStore();
+		this.replica = replica;
+	}
+
 	@SuppressWarnings("unchecked")
 	public void handle(String target, Request baseRequest,
 			HttpServletRequest request, HttpServletResponse response)
@@ -65,8 +80,18 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 			messageTag = BookStoreUtility.convertURItoMessageTag(requestURI);
 		}
 		// the RequestURI before the switch
+		BookStoreException replicaException = null;
+		if (replica != null && messageTag != null) {
+			replicaException = checkReplica(messageTag, request);
+		}
 		if (messageTag == null) {
 			System.out.println("Unknown message tag");
+		} else if (replicaException != null) {
+			bookStoreResponse = new BookStoreResponse();
+			bookStoreResponse.setException(replicaException);
+			response.getWriter().println(
+					BookStoreUtility
+							.serializeObjectToXMLString(bookStoreResponse));
 		} else {
 			switch (messageTag) {
 			case REMOVEBOOKS:
@@ -118,6 +143,21 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 				response.getWriter().println(listBooksxmlString);
 				break;
 
+			case ADDBOOKSSTREAM:
+				bookStoreResponse = new BookStoreResponse();
+				try {
+					streamAddBooks(request);
+				} catch (BookStoreException ex) {
+					bookStoreResponse.setException(ex);
+				} catch (IOException ex) {
+					bookStoreResponse.setException(new BookStoreException(
+							BookStoreConstants.IMPORT_READ_FAILED, ex));
+				}
+				listBooksxmlString = BookStoreUtility
+						.serializeObjectToXMLString(bookStoreResponse);
+				response.getWriter().println(listBooksxmlString);
+				break;
+
 			case ADDCOPIES:
 				xml = BookStoreUtility.extractPOSTDataFromRequest(request);
 
@@ -230,7 +270,54 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 						.serializeObjectToXMLString(bookStoreResponse);
 				response.getWriter().println(listBooksxmlString);
 				break;
-				
+
+			case RATEBOOKS:
+				xml = BookStoreUtility.extractPOSTDataFromRequest(request);
+				Set<BookRating> bookRatings = (Set<BookRating>) BookStoreUtility
+						.deserializeXMLStringToObject(xml);
+
+				bookStoreResponse = new BookStoreResponse();
+				try {
+					myBookStore.rateBooks(bookRatings);
+				} catch (BookStoreException ex) {
+					bookStoreResponse.setException(ex);
+				}
+				listBooksxmlString = BookStoreUtility
+						.serializeObjectToXMLString(bookStoreResponse);
+				response.getWriter().println(listBooksxmlString);
+				break;
+
+			case TOPRATEDBOOKS:
+				numBooksString = URLDecoder
+						.decode(request
+								.getParameter(BookStoreConstants.BOOK_NUM_PARAM),
+								"UTF-8");
+				bookStoreResponse = new BookStoreResponse();
+				try {
+					numBooks = BookStoreUtility
+							.convertStringToInt(numBooksString);
+					bookStoreResponse.setList(myBookStore
+							.getTopRatedBooks(numBooks));
+				} catch (BookStoreException ex) {
+					bookStoreResponse.setException(ex);
+				}
+				listBooksxmlString = BookStoreUtility
+						.serializeObjectToXMLString(bookStoreResponse);
+				response.getWriter().println(listBooksxmlString);
+				break;
+
+			case BOOKSINDEMAND:
+				bookStoreResponse = new BookStoreResponse();
+				try {
+					bookStoreResponse.setList(myBookStore.getBooksInDemand());
+				} catch (BookStoreException ex) {
+					bookStoreResponse.setException(ex);
+				}
+				listBooksxmlString = BookStoreUtility
+						.serializeObjectToXMLString(bookStoreResponse);
+				response.getWriter().println(listBooksxmlString);
+				break;
+
 			default:
 				System.out.println("Unhandled message tag");
 				break;
@@ -240,4 +327,56 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 		baseRequest.setHandled(true);
 
 	}
+
+	/**
+	 * Returns the exception a replica answers the request with, or null if
+	 * it serves the request.
+	 * 
+	 * @param messageTag
+	 * @param request
+	 * @return
+	 */
+	private BookStoreException checkReplica(BookStoreMessageTag messageTag,
+			HttpServletRequest request) {
+		switch (messageTag) {
+		case LISTBOOKS:
+		case GETBOOKS:
+		case EDITORPICKS:
+		case GETSTOCKBOOKSBYISBN:
+		case TOPRATEDBOOKS:
+		case BOOKSINDEMAND:
+			String maxStaleness = request
+					.getParameter(BookStoreConstants.MAX_STALENESS_PARAM);
+			if (maxStaleness == null) {
+				return null;
+			}
+			try {
+				if (replica.getStalenessMillis() > BookStoreUtility
+						.convertStringToInt(maxStaleness)) {
+					return new BookStoreException(
+							BookStoreConstants.STALE_REPLICA);
+				}
+			} catch (BookStoreException ex) {
+				return ex;
+			}
+			return null;
+		default:
+			return new BookStoreException(BookStoreConstants.READ_ONLY);
+		}
+	}
+
+	/**
+	 * Adds the books streamed in the body of the request, IMPORT_BATCH_SIZE
+	 * books at a time (cf. BookImporter).
+	 * 
+	 * @param request
+	 * @throws IOException
+	 *             if the body of the request could not be opened
+	 * @throws BookStoreException
+	 */
+	private void streamAddBooks(HttpServletRequest request)
+			throws IOException, BookStoreException {
+		new BookImporter(myBookStore, BookStoreConstants.IMPORT_BATCH_SIZE)
+				.importBooks(request.getInputStream());
+	}
 }
@@ -3,22 +3,54 @@
  */
 package com.acertainbookstore.server;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import com.acertainbookstore.business.BookStoreLog;
 import com.acertainbookstore.business.CertainBookStore;
+import com.acertainbookstore.business.SyncPolicy;
 import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
 
 /**
  * Starts the bookstore HTTP server that the clients will communicate with.
+ * If the logfile property is set, the store is rebuilt from that log and
+ * appends its changes to it, synced as the syncpolicy property says. If the
+ * snapshotfile property is set as well, the store starts from that snapshot
+ * and only replays the log after it, and a new snapshot is written every
+ * checkpointinterval milliseconds.
+ *
+ * If the replicationport property is set as well, the log is shipped to the
+ * replicas that connect to that port (cf. LogShipper). A server started with
+ * the primary property set to the host:port of the replication port of a
+ * primary is a read-only replica of it (cf. LogReceiver).
  */
 public class BookStoreHTTPServer {
+	private static final long DEFAULT_CHECKPOINT_INTERVAL_MILLIS = 60 * 1000;
 
 	/**
 	 * @param args
 	 */
 	public static void main(String[] args) {
-		CertainBookStore bookStore = new CertainBookStore();
+		BookStoreHTTPMessageHandler handler;
+		String primary = System
+				.getProperty(BookStoreConstants.PROPERTY_KEY_PRIMARY);
+		if (primary != null) {
+			LogReceiver replica = createReplica(primary);
+			if (replica == null) {
+				return;
+			}
+			handler = new BookStoreHTTPMessageHandler(replica);
+		} else {
+			CertainBookStore bookStore = createBookStore();
+			if (bookStore == null || !startShipping(bookStore)) {
+				return;
+			}
+			handler = new BookStoreHTTPMessageHandler(bookStore);
+		}
 		int listen_on_port = 8081;
-		BookStoreHTTPMessageHandler handler = new BookStoreHTTPMessageHandler(
-				bookStore);
 		String server_port_string = System.getProperty(BookStoreConstants.PROPERTY_KEY_SERVER_PORT);
 		if(server_port_string != null) {
 			try {
@@ -32,4 +64,109 @@ public class BookStoreHTTPServer {
 		}
 	}
 
+	private static CertainBookStore createBookStore() {
+		String logFile = System
+				.getProperty(BookStoreConstants.PROPERTY_KEY_LOG_FILE);
+		if (logFile == null) {
+			return new CertainBookStore();
+		}
+		SyncPolicy policy = SyncPolicy.GROUP;
+		String policyString = System
+				.getProperty(BookStoreConstants.PROPERTY_KEY_SYNC_POLICY);
+		if (policyString != null) {
+			try {
+				policy = SyncPolicy.valueOf(policyString.toUpperCase());
+			} catch (IllegalArgumentException ex) {
+				System.err.println(ex);
+			}
+		}
+		String snapshotFile = System
+				.getProperty(BookStoreConstants.PROPERTY_KEY_SNAPSHOT_FILE);
+		try {
+			BookStoreLog log = new BookStoreLog(new File(logFile), policy,
+					BookStoreLog.DEFAULT_SYNC_INTERVAL_MILLIS);
+			if (snapshotFile == null) {
+				return new CertainBookStore(log);
+			}
+			CertainBookStore bookStore = new CertainBookStore(new File(
+					snapshotFile), log);
+			scheduleCheckpoints(bookStore, new File(snapshotFile));
+			return bookStore;
+		} catch (IOException ex) {
+			System.err.println(ex);
+		} catch (BookStoreException ex) {
+			System.err.println(ex);
+		}
+		return null;
+	}
+
+	/**
+	 * Ships the log of the store to its replicas if the replicationport
+	 * property is set. Returns false if that failed.
+	 */
+	private static boolean startShipping(CertainBookStore bookStore) {
+		String portString = System
+				.getProperty(BookStoreConstants.PROPERTY_KEY_REPLICATION_PORT);
+		if (portString == null) {
+			return true;
+		}
+		if (bookStore.getLog() == null) {
+			System.err.println("Replication needs the "
+					+ BookStoreConstants.PROPERTY_KEY_LOG_FILE
+					+ " property to be set");
+			return false;
+		}
+		try {
+			new LogShipper(bookStore.getLog(), Integer.parseInt(portString),
+					LogShipper.DEFAULT_HEARTBEAT_MILLIS);
+			return true;
+		} catch (NumberFormatException ex) {
+			System.err.println(ex);
+		} catch (IOException ex) {
+			System.err.println(ex);
+		}
+		return false;
+	}
+
+	/**
+	 * Creates an empty store that replicates the primary at host:port.
+	 */
+	private static LogReceiver createReplica(String primary) {
+		int colon = primary.lastIndexOf(':');
+		try {
+			return new LogReceiver(new CertainBookStore(), primary.substring(0,
+					colon), Integer.parseInt(primary.substring(colon + 1)),
+					LogReceiver.DEFAULT_RETRY_MILLIS);
+		} catch (NumberFormatException ex) {
+			System.err.println(ex);
+		} catch (StringIndexOutOfBoundsException ex) {
+			System.err.println(ex);
+		}
+		return null;
+	}
+
+	private static void scheduleCheckpoints(final CertainBookStore bookStore,
+			final File snapshotFile) {
+		long interval = DEFAULT_CHECKPOINT_INTERVAL_MILLIS;
+		String intervalString = System
+				.getProperty(BookStoreConstants.PROPERTY_KEY_CHECKPOINT_INTERVAL);
+		if (intervalString != null) {
+			try {
+				interval = Long.parseLong(intervalString);
+			} catch (NumberFormatException ex) {
+				System.err.println(ex);
+			}
+		}
+		Timer timer = new Timer("bookstore-checkpoint", true);
+		timer.schedule(new TimerTask() {
+			public void run() {
+				try {
+					bookStore.checkpoint(snapshotFile);
+				} catch (BookStoreException ex) {
+					System.err.println(ex);
+				}
+			}
+		}, interval, interval);
+	}
+
 }
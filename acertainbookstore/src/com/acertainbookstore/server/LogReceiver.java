@@ -0,0 +1,217 @@
+package com.acertainbookstore.server;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+
+import com.acertainbookstore.business.CertainBookStore;
+import com.acertainbookstore.business.LogRecord;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * LogReceiver keeps a replica store up to date with a primary: it connects
+ * to the LogShipper of the primary, applies the records it is sent to the
+ * store and reconnects when the connection is lost, asking for the records
+ * after the last one it applied.
+ *
+ * The staleness of the replica is the time since it last got a heartbeat
+ * for a record it had applied, i.e. since it last knew it was up to date.
+ * It keeps growing while the primary is unreachable, so readers that bound
+ * the staleness they accept go elsewhere (cf. ReplicaRouter).
+ *
+ * A record that does not apply to the books of the replica stops the
+ * replication for good: the connection is closed, the failure is kept for
+ * getFailure and awaitSequence, and the replica counts as infinitely stale.
+ */
+public class LogReceiver {
+	public static final long DEFAULT_RETRY_MILLIS = 100;
+
+	private final CertainBookStore bookStore;
+	private final String primaryHost;
+	private final int primaryPort;
+	private final long retryMillis;
+	private final Thread receiver;
+	private volatile long appliedSequence = 0;
+	// When the replica was last known to be up to date, 0 if never
+	private volatile long upToDateNanos = 0;
+	private volatile boolean connected = false;
+	private volatile boolean closed = false;
+	private volatile BookStoreException failure = null;
+	private volatile Socket socket;
+
+	/**
+	 * Starts replicating the primary whose LogShipper listens on
+	 * primaryHost:primaryPort into bookStore, which must be empty and have
+	 * no log.
+	 *
+	 * @param bookStore
+	 * @param primaryHost
+	 * @param primaryPort
+	 * @param retryMillis
+	 *            the time to wait before reconnecting
+	 */
+	public LogReceiver(CertainBookStore bookStore, String primaryHost,
+			int primaryPort, long retryMillis) {
+		this.bookStore = bookStore;
+		this.primaryHost = primaryHost;
+		this.primaryPort = primaryPort;
+		this.retryMillis = retryMillis;
+		receiver = new Thread(new Runnable() {
+			public void run() {
+				receive();
+			}
+		}, "bookstore-log-receiver");
+		receiver.setDaemon(true);
+		receiver.start();
+	}
+
+	public CertainBookStore getBookStore() {
+		return bookStore;
+	}
+
+	/**
+	 * Returns the sequence number of the last record applied.
+	 *
+	 * @return
+	 */
+	public long getAppliedSequence() {
+		return appliedSequence;
+	}
+
+	public boolean isConnected() {
+		return connected;
+	}
+
+	/**
+	 * Returns the failure that stopped the replication, or null if there was
+	 * none.
+	 *
+	 * @return
+	 */
+	public BookStoreException getFailure() {
+		return failure;
+	}
+
+	/**
+	 * Returns the time since the replica was last known to be up to date
+	 * with the primary, or Long.MAX_VALUE if it never was or the replication
+	 * failed.
+	 *
+	 * @return
+	 */
+	public long getStalenessMillis() {
+		long upToDate = upToDateNanos;
+		if (upToDate == 0 || failure != null) {
+			return Long.MAX_VALUE;
+		}
+		return (System.nanoTime() - upToDate) / 1000000;
+	}
+
+	private void receive() {
+		while (!closed) {
+			try {
+				socket = new Socket(primaryHost, primaryPort);
+				connected = true;
+				apply(socket);
+			} catch (IOException ex) {
+				; // Reconnects below
+			} catch (BookStoreException ex) {
+				// The records do not apply to the books of the replica, it
+				// would only drift further from the primary. The connection is
+				// closed before the failure is seen.
+				connected = false;
+				close(socket);
+				closed = true;
+				failure = ex;
+			} finally {
+				connected = false;
+				close(socket);
+			}
+			if (!closed) {
+				try {
+					Thread.sleep(retryMillis);
+				} catch (InterruptedException ex) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Applies the records sent on the socket until it is closed.
+	 */
+	private void apply(Socket socket) throws IOException, BookStoreException {
+		socket.setTcpNoDelay(true);
+		DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+		out.writeLong(appliedSequence);
+		out.flush();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				socket.getInputStream(), 64 * 1024));
+		while (!closed) {
+			long sequence = in.readLong();
+			byte code = in.readByte();
+			if (code == LogShipper.HEARTBEAT) {
+				if (sequence == appliedSequence) {
+					upToDateNanos = System.nanoTime();
+				}
+				continue;
+			}
+			LogRecord.Type type = LogRecord.Type.fromCode(code);
+			if (type == null || sequence != appliedSequence + 1) {
+				throw new IOException("Unexpected record " + sequence
+						+ " of type " + code + " after " + appliedSequence);
+			}
+			bookStore.apply(LogRecord.readFrom(type, in));
+			appliedSequence = sequence;
+		}
+	}
+
+	/**
+	 * Waits until the replica has applied the record with the given sequence
+	 * number, or the timeout passed. Returns false on a timeout, and throws
+	 * the failure that stopped the replication.
+	 *
+	 * @param sequence
+	 * @param timeoutMillis
+	 * @return
+	 * @throws InterruptedException
+	 * @throws BookStoreException
+	 */
+	public boolean awaitSequence(long sequence, long timeoutMillis)
+			throws InterruptedException, BookStoreException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (appliedSequence < sequence) {
+			if (failure != null) {
+				throw new BookStoreException(
+						BookStoreConstants.REPLICATION_FAILED, failure);
+			}
+			if (System.currentTimeMillis() >= deadline) {
+				return false;
+			}
+			Thread.sleep(1);
+		}
+		return true;
+	}
+
+	/**
+	 * Stops replicating. The store keeps the books it has.
+	 */
+	public void close() {
+		closed = true;
+		close(socket);
+		receiver.interrupt();
+	}
+
+	private static void close(Socket socket) {
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException ex) {
+				;
+			}
+		}
+	}
+}
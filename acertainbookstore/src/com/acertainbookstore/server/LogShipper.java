@@ -0,0 +1,197 @@
+package com.acertainbookstore.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.acertainbookstore.business.BookStoreLog;
+import com.acertainbookstore.business.LogRecord;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * LogShipper streams the committed records of the log of a primary store to
+ * its replicas (cf. LogReceiver). A replica connects to the port of the
+ * shipper and sends the sequence number of the last record it applied; the
+ * shipper then sends it every committed record after that one, as it is
+ * committed, framed as
+ *
+ * <pre>
+ * sequence (long) | type (byte) | arguments
+ * </pre>
+ *
+ * in the format of the log. After every batch of records, and every
+ * heartbeat interval when there are none, the shipper sends a heartbeat: the
+ * sequence number of the last committed record with the type HEARTBEAT. A
+ * replica that has applied that record was up to date with the primary when
+ * the heartbeat was sent, which is what it measures its staleness by.
+ *
+ * Only committed records are shipped (cf. BookStoreLog.getCommittedSequence),
+ * so a replica never sees a change the primary could lose in a crash. Every
+ * replica is served by its own thread, which polls the log for new records.
+ */
+public class LogShipper {
+	/**
+	 * The type of the heartbeat frames, no record type uses it.
+	 */
+	public static final byte HEARTBEAT = 0;
+	public static final long DEFAULT_HEARTBEAT_MILLIS = 50;
+	private static final long POLL_MILLIS = 2;
+
+	private final BookStoreLog log;
+	private final ServerSocket serverSocket;
+	private final long heartbeatMillis;
+	private final Set<Socket> replicas = Collections
+			.synchronizedSet(new HashSet<Socket>());
+	private volatile boolean closed = false;
+
+	/**
+	 * Starts shipping the log to the replicas that connect to port on the
+	 * loopback address. A port of 0 picks a free port, cf. getPort.
+	 *
+	 * @param log
+	 * @param port
+	 * @param heartbeatMillis
+	 * @throws IOException
+	 */
+	public LogShipper(BookStoreLog log, int port, long heartbeatMillis)
+			throws IOException {
+		this.log = log;
+		this.heartbeatMillis = heartbeatMillis;
+		this.serverSocket = new ServerSocket(port, 50,
+				InetAddress.getLoopbackAddress());
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				accept();
+			}
+		}, "bookstore-log-shipper");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Returns the number of replicas connected.
+	 *
+	 * @return
+	 */
+	public int getNumReplicas() {
+		return replicas.size();
+	}
+
+	private void accept() {
+		while (!closed) {
+			final Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (IOException ex) {
+				// Closed, or the replica gave up while connecting
+				continue;
+			}
+			replicas.add(socket);
+			Thread shipper = new Thread(new Runnable() {
+				public void run() {
+					try {
+						ship(socket);
+					} catch (IOException ex) {
+						; // The replica reconnects
+					} catch (BookStoreException ex) {
+						; // The replica reconnects
+					} catch (InterruptedException ex) {
+						;
+					} finally {
+						replicas.remove(socket);
+						try {
+							socket.close();
+						} catch (IOException ex) {
+							;
+						}
+					}
+				}
+			}, "bookstore-log-shipper-" + socket.getPort());
+			shipper.setDaemon(true);
+			shipper.start();
+		}
+	}
+
+	/**
+	 * Ships the log to the replica on the socket until either side closes.
+	 */
+	private void ship(Socket socket) throws IOException, BookStoreException,
+			InterruptedException {
+		socket.setTcpNoDelay(true);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				socket.getInputStream()));
+		final DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+		long applied = in.readLong();
+
+		BookStoreLog.Cursor cursor = log.openCursor();
+		cursor.read(applied, null);
+		if (cursor.getSequence() != applied) {
+			// The replica has records the log does not have
+			throw new IOException("The replica applied " + applied
+					+ " records, the log has " + cursor.getSequence());
+		}
+
+		BookStoreLog.Visitor sender = new BookStoreLog.Visitor() {
+			public void visit(long sequence, LogRecord record)
+					throws BookStoreException {
+				try {
+					out.writeLong(sequence);
+					out.writeByte(record.getType().getCode());
+					record.writeTo(out);
+				} catch (IOException ex) {
+					throw new BookStoreException(
+							BookStoreConstants.REPLICATION_FAILED, ex);
+				}
+			}
+		};
+		long lastHeartbeat = 0;
+		while (!closed) {
+			int shipped = cursor.read(log.getCommittedSequence(), sender);
+			long now = System.currentTimeMillis();
+			if (shipped > 0 || now - lastHeartbeat >= heartbeatMillis) {
+				out.writeLong(cursor.getSequence());
+				out.writeByte(HEARTBEAT);
+				out.flush();
+				lastHeartbeat = now;
+			}
+			if (shipped == 0) {
+				Thread.sleep(POLL_MILLIS);
+			}
+		}
+	}
+
+	/**
+	 * Stops shipping and disconnects the replicas.
+	 */
+	public void close() {
+		closed = true;
+		try {
+			serverSocket.close();
+		} catch (IOException ex) {
+			;
+		}
+		synchronized (replicas) {
+			for (Socket socket : replicas) {
+				try {
+					socket.close();
+				} catch (IOException ex) {
+					;
+				}
+			}
+		}
+	}
+}
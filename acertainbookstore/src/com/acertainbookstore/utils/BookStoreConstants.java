@@ -14,6 +14,8 @@ public final class BookStoreConstants {
 	public static final String BOOKISBN_PARAM = "ISBN";
 	public static final String BOOK_NUM_PARAM = "number_of_books";
 	public static final String XMLSTRINGLEN_PARAM = "len";
+	// The staleness in milliseconds a reader accepts from a replica
+	public static final String MAX_STALENESS_PARAM = "max_staleness";
 	
 	// Used as error code when converting numbers to integer
 	public static final int INVALID_PARAMS = -1;
@@ -30,7 +32,36 @@ public final class BookStoreConstants {
 	public static final String NUM_COPIES = "The Number of copies: ";
 	public static final String RATING = "The rating: ";
 	public static final String NULL_INPUT = "null input parameters";
+	// When the locks of a book could not be acquired in time
+	public static final String LOCK_TIMEOUT = " could not be locked in time";
+	// When a streamed import fails part way
+	public static final String IMPORTED = " books were imported before: ";
+	// When a streamed import holds something else than well-formed books
+	public static final String IMPORT_MALFORMED = "The streamed books are malformed";
+	// When the streamed books could not be read to the end
+	public static final String IMPORT_READ_FAILED = "The streamed books could not be read";
+	// When a change could not be written to the log
+	public static final String LOG_FAILED = "The change could not be logged";
+	// When a snapshot of the books could not be written or loaded
+	public static final String SNAPSHOT_FAILED = "The snapshot failed";
+	// When the books could not be read from or written to disk
+	public static final String STORAGE_FAILED = "The storage failed";
+	// When the log could not be shipped to a replica
+	public static final String REPLICATION_FAILED = "The replication failed";
+	// When a replica is asked to change the books
+	public static final String READ_ONLY = "The replica only serves reads";
+	// When a replica is staler than the reader accepts
+	public static final String STALE_REPLICA = "The replica is too stale";
+
+	// Number of books a streamed import adds at a time
+	public static final int IMPORT_BATCH_SIZE = 1000;
 
 	public static final String PROPERTY_KEY_LOCAL_TEST = "localtest";
 	public static final String PROPERTY_KEY_SERVER_PORT = "port";
+	public static final String PROPERTY_KEY_LOG_FILE = "logfile";
+	public static final String PROPERTY_KEY_SYNC_POLICY = "syncpolicy";
+	public static final String PROPERTY_KEY_SNAPSHOT_FILE = "snapshotfile";
+	public static final String PROPERTY_KEY_CHECKPOINT_INTERVAL = "checkpointinterval";
+	public static final String PROPERTY_KEY_REPLICATION_PORT = "replicationport";
+	public static final String PROPERTY_KEY_PRIMARY = "primary";
 }
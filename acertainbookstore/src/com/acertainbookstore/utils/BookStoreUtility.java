@@ -4,6 +4,10 @@
 package com.acertainbookstore.utils;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.util.List;
@@ -106,6 +110,17 @@ public final class BookStoreUtility {
 		return null;
 	}
 
+	/**
+	 * Creates the XStream used for all the messages. XStream only
+	 * de-serializes the types it is allowed to, the bookstore types are
+	 * added to the standard ones.
+	 */
+	private static XStream createXStream() {
+		XStream xmlStream = new XStream(new StaxDriver());
+		xmlStream.allowTypesByWildcard(new String[] { "com.acertainbookstore.**" });
+		return xmlStream;
+	}
+
 	/**
 	 * Serializes an object to an xml string
 	 * 
@@ -114,7 +129,7 @@ public final class BookStoreUtility {
 	 */
 	public static String serializeObjectToXMLString(Object object) {
 		String xmlString;
-		XStream xmlStream = new XStream(new StaxDriver());
+		XStream xmlStream = createXStream();
 		xmlString = xmlStream.toXML(object);
 		return xmlString;
 	}
@@ -127,11 +142,40 @@ public final class BookStoreUtility {
 	 */
 	public static Object deserializeXMLStringToObject(String xmlObject) {
 		Object dataObject = null;
-		XStream xmlStream = new XStream(new StaxDriver());
+		XStream xmlStream = createXStream();
 		dataObject = xmlStream.fromXML(xmlObject);
 		return dataObject;
 	}
 
+	/**
+	 * Creates a stream that serializes objects one at a time as xml to out,
+	 * so a sequence of objects can be sent without building the whole xml
+	 * string. The stream must be closed to finish the xml.
+	 * 
+	 * @param out
+	 * @return
+	 * @throws IOException
+	 */
+	public static ObjectOutputStream createXMLObjectOutputStream(
+			OutputStream out) throws IOException {
+		XStream xmlStream = createXStream();
+		return xmlStream.createObjectOutputStream(out);
+	}
+
+	/**
+	 * Creates a stream that de-serializes the objects written by a stream of
+	 * createXMLObjectOutputStream one at a time from in. readObject throws an
+	 * EOFException after the last object.
+	 * 
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	public static ObjectInputStream createXMLObjectInputStream(InputStream in)
+			throws IOException {
+		XStream xmlStream = createXStream();
+		return xmlStream.createObjectInputStream(in);
+	}
 
 	/**
 	 * Manages the sending of an exchange through the client, waits for the